@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -13,13 +15,17 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.CostModel;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class Parser {
@@ -423,6 +429,70 @@ public class Parser {
 
     }
 
+    /**
+     * CREATE INDEX name ON table (field) [INCLUDE (field, ...)], which ZQL does
+     * not know about
+     */
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "\\s*CREATE\\s+INDEX\\s+(\\w+)\\s+ON\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)"
+                    + "(?:\\s*INCLUDE\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\))?\\s*;?",
+            Pattern.CASE_INSENSITIVE);
+
+    /** The longest CREATE INDEX statement looked for ahead of ZQL */
+    private static final int MAX_CREATE_INDEX_LENGTH = 1024;
+
+    /**
+     * @param included the comma-separated fields to copy into the index, or null
+     */
+    public void handleCreateIndexStatement(String name, String table,
+            String field, String included, TransactionId tid)
+            throws DbException, IOException, simpledb.ParsingException,
+            TransactionAbortedException {
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(table);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + table);
+        }
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        String[] includedNames = included == null ? new String[0]
+                : included.split("\\s*,\\s*");
+        int fieldIndex;
+        int[] includedIndexes = new int[includedNames.length];
+        String current = field;
+        try {
+            fieldIndex = td.fieldNameToIndex(field);
+            for (int i = 0; i < includedNames.length; i++) {
+                current = includedNames[i];
+                includedIndexes[i] = td.fieldNameToIndex(current);
+            }
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown field " + current
+                    + " in table " + table);
+        }
+        if (!(Database.getCatalog().getDatabaseFile(tableId) instanceof HeapFile)) {
+            throw new simpledb.ParsingException("Table " + table
+                    + " is not a heap file and cannot be indexed");
+        }
+        for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it
+                .hasNext();) {
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(it.next())) {
+                if (index.getName().equalsIgnoreCase(name))
+                    throw new simpledb.ParsingException("Index " + name
+                            + " already exists");
+            }
+        }
+
+        // keep the index next to the table it belongs to
+        File heap = ((HeapFile) Database.getCatalog().getDatabaseFile(tableId))
+                .getFile();
+        File f = new File(heap.getAbsoluteFile().getParentFile(), name + ".idx");
+        SecondaryIndex.create(tid, name, tableId, fieldIndex, includedIndexes, f);
+        System.out.println("Created index " + name + " on " + table + "("
+                + field + ")"
+                + (included == null ? "" : " including (" + included + ")"));
+    }
+
     public void handleTransactStatement(ZTransactStmt s)
             throws IOException,
             simpledb.ParsingException {
@@ -495,8 +565,22 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            // look for a CREATE INDEX before handing the statement to ZQL
+            BufferedInputStream bis = new BufferedInputStream(is);
+            bis.mark(MAX_CREATE_INDEX_LENGTH);
+            byte[] head = new byte[MAX_CREATE_INDEX_LENGTH];
+            int n = 0, r;
+            while (n < head.length && (r = bis.read(head, n, head.length - n)) > 0)
+                n += r;
+            bis.reset();
+            Matcher createIndex = CREATE_INDEX.matcher(new String(head, 0, n,
+                    StandardCharsets.UTF_8));
+
+            ZStatement s = null;
+            if (!createIndex.lookingAt()) {
+                ZqlParser p = new ZqlParser(bis);
+                s = p.readStatement();
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -509,7 +593,11 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (s == null)
+                        handleCreateIndexStatement(createIndex.group(1),
+                                createIndex.group(2), createIndex.group(3),
+                                createIndex.group(4), curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
@@ -522,7 +610,7 @@ public class Parser {
                         System.out
                                 .println("Can't parse "
                                         + s
-                                        + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
+                                        + "\n -- parser only handles SQL transactions, insert, delete, select and create index statements");
                     }
                     if (query != null)
                         query.execute();
@@ -567,7 +655,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "create index", "on", "include" };
 
     public static void main(String[] argv) throws IOException {
 
@@ -585,15 +673,30 @@ public class Parser {
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        TableStats.stopReanalyzer();
+        if (statsFile != null) {
+            // keep statistics rebuilt since startup for the next one
+            try {
+                TableStats.saveStatistics(statsFile);
+            } catch (IOException e) {
+                System.out.println("Could not save table stats: " + e.getMessage());
+            }
+        }
         System.out.println("Bye");
     }
 
     protected boolean interactive = true;
 
+    /** The file the statistics of the tables are kept in, next to the catalog */
+    protected File statsFile;
+
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        CostModel.load(new File(argv[0] + CostModel.COSTS_FILE_SUFFIX));
+        // statistics saved next to the catalog save scanning every table
+        statsFile = new File(argv[0] + TableStats.STATS_FILE_SUFFIX);
+        TableStats.loadStatistics(statsFile);
 
         String queryFile = null;
 
@@ -2,11 +2,13 @@ package simpledb;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.optimizer.CostCalibrator;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.util.Arrays;
 
 public class SimpleDb {
     public static void main (String[] args)
@@ -94,6 +96,14 @@ public class SimpleDb {
                     e.printStackTrace();
                 }
 
+                break;
+            case "calibrate":
+                // measure the cost model constants and save them next to the catalog
+                try {
+                    CostCalibrator.main(Arrays.copyOfRange(args, 1, args.length));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
                 break;
             default:
                 System.err.println("Unknown command: " + args[0]);
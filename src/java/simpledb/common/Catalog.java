@@ -1,6 +1,8 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.HashFile;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -9,9 +11,13 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
 import java.rmi.server.ExportException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -28,6 +34,7 @@ public class Catalog {
         private final DbFile file;
         private final String name;
         private final String pkeyField;
+        private final List<SecondaryIndex> indexes = new ArrayList<>();
 
         public Table(DbFile file, String name, String pkeyField) {
             this.file = file;
@@ -38,6 +45,15 @@ public class Catalog {
 
     Map<String, Integer> name2Id;
     Map<Integer, Table> id2Table;
+    Map<Integer, SecondaryIndex> id2Index;
+    /** the schema file last loaded by {@link #loadSchema}, or null */
+    private File schemaFile;
+
+    /** A secondary index in a schema file: index name on table (field) [include (field, ...)] */
+    private static final Pattern INDEX_LINE = Pattern.compile(
+            "\\s*index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)"
+                    + "(?:\\s*include\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\))?\\s*",
+            Pattern.CASE_INSENSITIVE);
 
     /**
      * Constructor.
@@ -47,6 +63,7 @@ public class Catalog {
         // some code goes here
         name2Id = new HashMap<>();
         id2Table = new HashMap<>();
+        id2Index = new HashMap<>();
     }
 
     /**
@@ -61,7 +78,12 @@ public class Catalog {
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
         name2Id.put(name, file.getId());
-        id2Table.put(file.getId(), new Table(file, name, pkeyField));
+        Table replaced = id2Table.put(file.getId(), new Table(file, name, pkeyField));
+        if (replaced != null) {
+            // the indexes of the old table don't describe the new file
+            for (SecondaryIndex index : replaced.indexes)
+                id2Index.remove(index.getFile().getId());
+        }
     }
 
     public void addTable(DbFile file, String name) {
@@ -79,6 +101,98 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Remove a table, and its secondary indexes, from the catalog, if it is
+     * there.  Its name is kept if a later table has taken it over.
+     * @param tableid the id of the table to remove
+     */
+    public void removeTable(int tableid) {
+        Table removed = this.id2Table.remove(tableid);
+        if (removed == null)
+            return;
+        this.name2Id.remove(removed.name, tableid);
+        for (SecondaryIndex index : removed.indexes)
+            this.id2Index.remove(index.getFile().getId());
+    }
+
+    /**
+     * Add a secondary index to the catalog, against the table it indexes.  The
+     * index's file can then be looked up through {@link #getDatabaseFile} and
+     * {@link #getTupleDesc} like a table's, but is not listed by
+     * {@link #tableIdIterator}.
+     * @param index the index to add
+     * @throws NoSuchElementException if the indexed table doesn't exist
+     */
+    public void addIndex(SecondaryIndex index) throws NoSuchElementException {
+        checkIdExist(index.getTableId());
+        this.id2Table.get(index.getTableId()).indexes.add(index);
+        this.id2Index.put(index.getFile().getId(), index);
+    }
+
+    /**
+     * Record a secondary index in the schema file the catalog was loaded from,
+     * so that {@link #loadSchema} registers it again after a restart, before
+     * the log is recovered.  The file of the index must then be
+     * <tt>name.idx</tt> next to the schema file.  Indexes of tables that
+     * {@link #loadSchema} would not find again are not recorded.
+     * @param index the index to record
+     * @throws DbException if the index file is not where loadSchema looks for it
+     * @throws IOException if the schema file cannot be written
+     */
+    public void saveIndex(SecondaryIndex index) throws DbException, IOException {
+        if (schemaFile == null)
+            return;
+        File folder = schemaFile.getParentFile();
+        Table table = this.id2Table.get(index.getTableId());
+        if (table == null || !(table.file instanceof HeapFile) || !((HeapFile) table.file).getFile()
+                .getAbsoluteFile().equals(new File(folder, table.name + ".dat")))
+            return;
+        if (!index.getFile().getFile().getAbsoluteFile().equals(new File(folder, index.getName() + ".idx")))
+            throw new DbException("index " + index.getName() + " of table " + table.name
+                    + " must be stored in " + new File(folder, index.getName() + ".idx"));
+
+        TupleDesc td = table.file.getTupleDesc();
+        StringBuilder line = new StringBuilder("index " + index.getName() + " on " + table.name
+                + " (" + td.getFieldName(index.getField()) + ")");
+        int[] included = index.getIncluded();
+        for (int i = 0; i < included.length; i++)
+            line.append(i == 0 ? " include (" : ", ").append(td.getFieldName(included[i]));
+        if (included.length > 0)
+            line.append(")");
+        line.append("\n");
+
+        try (RandomAccessFile raf = new RandomAccessFile(schemaFile, "rw")) {
+            long length = raf.length();
+            if (length > 0) {
+                raf.seek(length - 1);
+                if (raf.read() != '\n')
+                    line.insert(0, '\n');
+            }
+            raf.seek(length);
+            raf.write(line.toString().getBytes(StandardCharsets.UTF_8));
+            raf.getFD().sync();
+        }
+    }
+
+    /**
+     * Remove a secondary index from the catalog, if it is there.
+     * @param index the index to remove
+     */
+    public void removeIndex(SecondaryIndex index) {
+        if (this.id2Index.remove(index.getFile().getId()) != null)
+            this.id2Table.get(index.getTableId()).indexes.remove(index);
+    }
+
+    /**
+     * Returns the secondary indexes of the specified table, in the order they were
+     * added; empty if it has none.
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) throws NoSuchElementException {
+        checkIdExist(tableid);
+        return Collections.unmodifiableList(this.id2Table.get(tableid).indexes);
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -103,8 +217,7 @@ public class Catalog {
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
         // some code goes here
-        checkIdExist(tableid);
-        return this.id2Table.get(tableid).file.getTupleDesc();
+        return getDatabaseFile(tableid).getTupleDesc();
     }
 
     /**
@@ -115,6 +228,8 @@ public class Catalog {
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         // some code goes here
+        if (this.id2Index.containsKey(tableid))
+            return this.id2Index.get(tableid).getFile();
         checkIdExist(tableid);
         return this.id2Table.get(tableid).file;
     }
@@ -140,10 +255,21 @@ public class Catalog {
         // some code goes here
         this.name2Id.clear();
         this.id2Table.clear();
+        this.id2Index.clear();
+        this.schemaFile = null;
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A table is stored in a HeapFile, unless its line ends with the annotation
+     * <tt>hash</tt> after the field list, as in <tt>t (a int pk, b int) hash</tt>;
+     * then it is stored in a HashFile keyed on its primary key.
+     * <p>
+     * A line <tt>index name on t (a) include (b, c)</tt>, as written by
+     * {@link #saveIndex}, opens the secondary index stored in <tt>name.idx</tt>
+     * on a table listed before it.  The schema must be loaded before
+     * {@link simpledb.storage.LogFile#recover} runs, since the log can hold
+     * changes to the pages of any of these files.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -151,13 +277,22 @@ public class Catalog {
         String baseFolder=new File(new File(catalogFile).getAbsolutePath()).getParent();
         try {
             BufferedReader br = new BufferedReader(new FileReader(catalogFile));
+            this.schemaFile = new File(catalogFile).getAbsoluteFile();
             
             while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                Matcher index = INDEX_LINE.matcher(line);
+                if (index.matches()) {
+                    loadIndex(index, baseFolder);
+                    continue;
+                }
                 //assume line is of the format name (field type, field type, ...)
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
                 String[] els = fields.split(",");
+                String storage = line.substring(line.indexOf(")") + 1).trim();
                 ArrayList<String> names = new ArrayList<>();
                 ArrayList<Type> types = new ArrayList<>();
                 String primaryKey = "";
@@ -184,17 +319,47 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                DbFile tabHf;
+                if (storage.isEmpty()) {
+                    tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                } else if (storage.equalsIgnoreCase("hash") && !primaryKey.isEmpty()) {
+                    tabHf = new HashFile(new File(baseFolder+"/"+name + ".dat"), names.indexOf(primaryKey), t);
+                } else if (storage.equalsIgnoreCase("hash")) {
+                    System.out.println("Hash table " + name + " needs a primary key");
+                    System.exit(0);
+                    return;
+                } else {
+                    System.out.println("Unknown annotation " + storage);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NoSuchElementException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
     }
+
+    /**
+     * Open the secondary index described by a matched index line of a schema file.
+     * @throws NoSuchElementException if its table or one of its fields is unknown
+     */
+    private void loadIndex(Matcher index, String baseFolder) throws NoSuchElementException {
+        String name = index.group(1);
+        int tableid = getTableId(index.group(2));
+        TupleDesc td = getTupleDesc(tableid);
+        String[] includedNames = index.group(4) == null ? new String[0] : index.group(4).split("\\s*,\\s*");
+        int[] included = new int[includedNames.length];
+        for (int i = 0; i < included.length; i++)
+            included[i] = td.fieldNameToIndex(includedNames[i]);
+        addIndex(new SecondaryIndex(name, tableid, td.fieldNameToIndex(index.group(3)), included,
+                new File(baseFolder, name + ".idx")));
+        System.out.println("Added index : " + name + " on " + index.group(2));
+    }
 }
 
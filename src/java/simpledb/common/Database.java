@@ -1,5 +1,6 @@
 package simpledb.common;
 
+import simpledb.optimizer.TableStats;
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
 
@@ -62,6 +63,8 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
+            _instance.get()._bufferpool.stopTrickleFlush();
+            _instance.get()._bufferpool.stopPrefetch();
             bufferPoolF.set(_instance.get(), new BufferPool(pages));
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
@@ -72,6 +75,14 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        TableStats.stopReanalyzer();
+        _instance.get()._bufferpool.stopTrickleFlush();
+        _instance.get()._bufferpool.stopPrefetch();
+        try {
+            _instance.get()._logfile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         _instance.set(new Database());
     }
 
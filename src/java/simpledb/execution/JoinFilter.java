@@ -0,0 +1,89 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * JoinFilter is an operator that applies a join predicate to two fields of
+ * the same tuple.  It stands in for a join whose two sides have already been
+ * joined by other joins, such as the second join between the same two tables
+ * or the join that closes a cycle of joins.
+ */
+public class JoinFilter extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate p;
+    private OpIterator child;
+
+    /**
+     * Constructor accepts a join predicate to apply and a child operator to
+     * read tuples to filter from.
+     *
+     * @param p
+     *            The predicate to filter tuples with; both of its fields are
+     *            indexes into the tuples of child
+     * @param child
+     *            The child operator
+     */
+    public JoinFilter(JoinPredicate p, OpIterator child) {
+        this.p = p;
+        this.child = child;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child.open();
+    }
+
+    public void close() {
+        child.close();
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * Returns the next tuple of the child whose two fields satisfy the
+     * predicate.
+     *
+     * @return The next tuple that passes the filter, or null if there are no
+     *         more tuples
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (p.filter(t, t))
+                return t;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+
+}
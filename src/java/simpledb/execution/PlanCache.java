@@ -1,53 +1,160 @@
 package simpledb.execution;
 import simpledb.optimizer.LogicalJoinNode;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.NoSuchElementException;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to join a given set of relations.  A set of relations is a long
+ * bitmask with one bit per relation; the plans are kept in an open
+ * addressing hash table over those bitmasks, so that the optimizer does not
+ * allocate a set for every subset of the relations it considers.
+ * <p>
+ * The best plan for a set of relations is stored as the subset of it that
+ * forms the left input and the joins that join the left input to the
+ * rest; {@link #getOrder} puts the complete join order back together.
+ */
 public class PlanCache {
-    final Map<Set<LogicalJoinNode>,List<LogicalJoinNode>> bestOrders= new HashMap<>();
-    final Map<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<>();
-    final Map<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<>();
-    
-    /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
+    private static final int INITIAL_CAPACITY = 64;
+
+    // the empty set marks an unused slot: every plan joins at least one relation
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] lefts = new long[INITIAL_CAPACITY];
+    private double[] costs = new double[INITIAL_CAPACITY];
+    private int[] cards = new int[INITIAL_CAPACITY];
+    private List<?>[] joins = new List<?>[INITIAL_CAPACITY];
+    private int size = 0;
+
+    private int slot(long s) {
+        long h = s * 0x9E3779B97F4A7C15L;
+        int i = (int) (h ^ (h >>> 32)) & (keys.length - 1);
+        while (keys[i] != 0 && keys[i] != s) {
+            i = (i + 1) & (keys.length - 1);
+        }
+        return i;
+    }
+
+    private int find(long s) {
+        int i = slot(s);
+        if (keys[i] == 0)
+            throw new NoSuchElementException("no plan for relations " + Long.toBinaryString(s));
+        return i;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys, oldLefts = lefts;
+        double[] oldCosts = costs;
+        int[] oldCards = cards;
+        List<?>[] oldJoins = joins;
+        int capacity = keys.length * 2;
+        keys = new long[capacity];
+        lefts = new long[capacity];
+        costs = new double[capacity];
+        cards = new int[capacity];
+        joins = new List<?>[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                lefts[j] = oldLefts[i];
+                costs[j] = oldCosts[i];
+                cards[j] = oldCards[i];
+                joins[j] = oldJoins[i];
+            }
+        }
+    }
+
+    /** Add a new cost, cardinality and ordering for a particular set of relations.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
-        specified join set
-        @param s the set of joins for which a new ordering (plan) is being added
+        specified set
+        @param s the set of relations for which a new plan is being added
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
+        @param left the relations of s that the plan joins to the others as the left input, or 0 if s is a
+               single relation that is scanned
+        @param between the joins between left and the other relations of s; the first one is the one the
+               plan performs
+    */
+    public void addPlan(long s, double cost, int card, long left, List<LogicalJoinNode> between) {
+        if (s == 0)
+            throw new IllegalArgumentException("a plan must join at least one relation");
+        if ((size + 1) * 4 > keys.length * 3)
+            grow();
+        int i = slot(s);
+        if (keys[i] == 0)
+            size++;
+        keys[i] = s;
+        lefts[i] = left;
+        costs[i] = cost;
+        cards[i] = card;
+        joins[i] = between;
+    }
+
+    /** @return true if the cache holds a plan for the set of relations s */
+    public boolean contains(long s) {
+        return s != 0 && keys[slot(s)] == s;
+    }
+
+    /** @return the number of sets of relations the cache holds a plan for */
+    public int size() {
+        return size;
+    }
+
+    /** Find the best join order in the cache for the specified set of relations
+        @param s the set of relations to look up the best order for
+        @return the joins of the best plan for s, each one after the joins that produce its inputs
+        @throws NoSuchElementException if the cache has no plan for s
+    */
+    public List<LogicalJoinNode> getOrder(long s) {
+        List<LogicalJoinNode> order = new ArrayList<>();
+        addOrder(s, order);
+        return order;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addOrder(long s, List<LogicalJoinNode> order) {
+        int i = find(s);
+        if (lefts[i] == 0)
+            return;
+        addOrder(lefts[i], order);
+        addOrder(s & ~lefts[i], order);
+        order.addAll((List<LogicalJoinNode>) joins[i]);
+    }
+
+    /** @return the relations of the best plan for s that it joins as its left input, or 0 if s is a single
+        relation
+        @throws NoSuchElementException if the cache has no plan for s
     */
-    public void addPlan(Set<LogicalJoinNode> s, double cost, int card, List<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
-    }
-    
-    /** Find the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+    public long getLeft(long s) {
+        return lefts[find(s)];
+    }
+
+    /** @return the joins the best plan for s performs last, the first of them being its join
+        @throws NoSuchElementException if the cache has no plan for s
     */
-    public List<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    @SuppressWarnings("unchecked")
+    public List<LogicalJoinNode> getJoins(long s) {
+        List<LogicalJoinNode> between = (List<LogicalJoinNode>) joins[find(s)];
+        return between == null ? Collections.emptyList() : between;
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cost for
+
+    /** Find the cost of the best join order in the cache for the specified set of relations
+        @param s the set of relations to look up the best cost for
         @return the cost of the best order for s in the cache
+        @throws NoSuchElementException if the cache has no plan for s
     */
-    public double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    public double getCost(long s) {
+        return costs[find(s)];
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cardinality for
+
+    /** Find the cardinality of the best join order in the cache for the specified set of relations
+        @param s the set of relations to look up the best cardinality for
         @return the cardinality of the best order for s in the cache
+        @throws NoSuchElementException if the cache has no plan for s
     */
-    public int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    public int getCard(long s) {
+        return cards[find(s)];
     }
 }
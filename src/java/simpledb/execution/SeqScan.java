@@ -1,6 +1,5 @@
 package simpledb.execution;
 
-import com.sun.jndi.dns.DnsContextFactory;
 import simpledb.common.Database;
 import simpledb.storage.DbFile;
 import simpledb.transaction.TransactionAbortedException;
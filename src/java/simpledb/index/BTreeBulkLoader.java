@@ -0,0 +1,250 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.common.DbException;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * BTreeBulkLoader builds a B+ tree bottom-up from tuples that arrive sorted on
+ * the key field, writing the pages of an empty BTreeFile directly.  Leaf pages
+ * are filled left to right up to the fill factor; every time a page is started
+ * to the right of a full one, the separating key is passed up to the level
+ * above, which is filled the same way and grows a new root when needed.
+ * <p>
+ * Only the two right-most pages of each level are kept in memory: the page
+ * being filled and the one before it.  A page is written as soon as its
+ * successor on the same level is complete, since by then its parent and
+ * sibling pointers can no longer change.
+ * <p>
+ * An internal page is only started once it has two children, so that no page
+ * ever holds a child without a key.  If the input ends while the last child of
+ * a level is waiting for company, it shares a new page with the child before
+ * it instead.  The right-most page of a level may still end up below minimum
+ * occupancy; {@link BTreeFile#bulkLoad} evens it out afterwards.
+ *
+ * @see BTreeFile#bulkLoad
+ */
+class BTreeBulkLoader implements Closeable {
+
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+	private final int leafCapacity;
+	/** the empty slots to leave on each internal page */
+	private final int internalReserve;
+	private final RandomAccessFile rf;
+
+	private int nextPageNo = 1;
+
+	/** The pages of one level of the tree under construction */
+	private static class Level {
+		/** the page being filled */
+		BTreePage open;
+		/** the page before it, not written yet */
+		BTreePage prev;
+		/** a child and separating key that did not fit into the open (internal) page */
+		Field pendingKey;
+		BTreePage pendingChild;
+
+		Level(BTreePage open) {
+			this.open = open;
+		}
+	}
+
+	/** levels.get(0) holds the leaves and the last level the root */
+	private final List<Level> levels = new ArrayList<>();
+
+	/**
+	 * @param file - the empty B+ tree to load
+	 * @param fillFactor - the fraction of each page to fill, in (0, 1]
+	 */
+	BTreeBulkLoader(BTreeFile file, double fillFactor) throws IOException {
+		this.td = file.getTupleDesc();
+		this.tableid = file.getId();
+		this.keyField = file.keyField();
+		BTreeLeafPage leaf = new BTreeLeafPage(new BTreePageId(tableid, 0, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), keyField);
+		BTreeInternalPage internal = new BTreeInternalPage(new BTreePageId(tableid, 0, BTreePageId.INTERNAL),
+				BTreeInternalPage.createEmptyPageData(), keyField);
+		this.leafCapacity = Math.max(1, (int) (leaf.getMaxTuples() * fillFactor));
+		this.internalReserve = internal.getMaxEntries() - Math.max(2, (int) (internal.getMaxEntries() * fillFactor));
+		this.rf = new RandomAccessFile(file.getFile(), "rw");
+	}
+
+	/**
+	 * Build the tree from the given tuples, and point the root pointer page at it.
+	 *
+	 * @param tuples - the tuples to load, in non-decreasing order of the key field
+	 * @return the id of the root page, or null if there were no tuples
+	 * @throws DbException if the tuples are not sorted or do not match the tuple
+	 * descriptor of the file
+	 */
+	BTreePageId load(Iterator<Tuple> tuples) throws DbException, IOException {
+		Field last = null;
+		while(tuples.hasNext()) {
+			Tuple t = tuples.next();
+			if(!t.getTupleDesc().equals(td)) {
+				throw new DbException("type mismatch, in bulkLoad");
+			}
+			Field key = t.getField(keyField);
+			if(last != null && key.compare(Op.LESS_THAN, last)) {
+				throw new DbException("bulk load input is not sorted on field " + keyField);
+			}
+			Field prevKey = last;
+			last = key;
+
+			BTreeLeafPage leaf;
+			if(levels.isEmpty()) {
+				leaf = newLeafPage();
+				leaf.setParentId(BTreeRootPtrPage.getId(tableid));
+				levels.add(new Level(leaf));
+			}
+			else {
+				leaf = (BTreeLeafPage) levels.get(0).open;
+				if(leaf.getNumTuples() >= leafCapacity) {
+					BTreeLeafPage next = newLeafPage();
+					leaf.setRightSiblingId(next.getId());
+					next.setLeftSiblingId(leaf.getId());
+					startSibling(0, BTreeFile.separatorKey(prevKey, key), next);
+					leaf = next;
+				}
+			}
+
+			// the tuple may belong to another file, whose record id must survive
+			Tuple copy = new Tuple(td);
+			for(int i = 0; i < td.numFields(); i++) {
+				copy.setField(i, t.getField(i));
+			}
+			leaf.insertTuple(copy);
+		}
+		if(levels.isEmpty()) {
+			return null;
+		}
+
+		finish();
+		BTreePageId rootId = levels.get(levels.size() - 1).open.getId();
+		BTreeRootPtrPage rootPtr = new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid),
+				BTreeRootPtrPage.createEmptyPageData());
+		rootPtr.setRootId(rootId);
+		rf.seek(0);
+		rf.write(rootPtr.getPageData());
+		return rootId;
+	}
+
+	/**
+	 * Make page the open page of the given level, to the right of the current open
+	 * page and separated from it by key, and write out the page before that one.
+	 */
+	private void startSibling(int level, Field key, BTreePage page) throws DbException, IOException {
+		Level l = levels.get(level);
+		addChild(level + 1, key, page);
+		if(l.prev != null) {
+			writePage(l.prev);
+		}
+		l.prev = l.open;
+		l.open = page;
+	}
+
+	/**
+	 * Add child to the given level, to the right of all the children it has so far
+	 * and separated from the last of them by key.
+	 */
+	private void addChild(int level, Field key, BTreePage child) throws DbException, IOException {
+		if(level == levels.size()) {
+			// the tree grows a new root above the two open pages of the level below
+			BTreePage left = levels.get(level - 1).open;
+			BTreeInternalPage root = newInternalPage();
+			root.setParentId(BTreeRootPtrPage.getId(tableid));
+			root.insertEntry(new BTreeEntry(key, left.getId(), child.getId()));
+			left.setParentId(root.getId());
+			child.setParentId(root.getId());
+			levels.add(new Level(root));
+			return;
+		}
+
+		Level l = levels.get(level);
+		BTreeInternalPage page = (BTreeInternalPage) l.open;
+		if(l.pendingChild != null) {
+			// the waiting child can start a new page now that it has company
+			BTreeInternalPage next = newInternalPage();
+			next.insertEntry(new BTreeEntry(key, l.pendingChild.getId(), child.getId()));
+			l.pendingChild.setParentId(next.getId());
+			child.setParentId(next.getId());
+			Field separator = l.pendingKey;
+			l.pendingKey = null;
+			l.pendingChild = null;
+			startSibling(level, separator, next);
+		}
+		else if(page.getNumEmptySlots() <= internalReserve) {
+			l.pendingKey = key;
+			l.pendingChild = child;
+		}
+		else {
+			BTreePageId lastChild = page.reverseIterator().next().getRightChild();
+			page.insertEntry(new BTreeEntry(key, lastChild, child.getId()));
+			child.setParentId(page.getId());
+		}
+	}
+
+	/**
+	 * Place the children still waiting for a page, from the bottom up, and write out
+	 * every page held in memory.
+	 */
+	private void finish() throws DbException, IOException {
+		// levels may grow while the loop runs
+		for(int level = 1; level < levels.size(); level++) {
+			Level l = levels.get(level);
+			if(l.pendingChild == null) {
+				continue;
+			}
+			// move the last child of the full page over to share a page with the
+			// waiting one; the key in between them goes up
+			BTreeInternalPage page = (BTreeInternalPage) l.open;
+			BTreeEntry lastEntry = page.reverseIterator().next();
+			BTreePage moved = levels.get(level - 1).prev;
+			if(!moved.getId().equals(lastEntry.getRightChild())) {
+				throw new DbException("bulk load lost track of the last child of " + page.getId());
+			}
+			page.deleteKeyAndRightChild(lastEntry);
+			BTreeInternalPage next = newInternalPage();
+			next.insertEntry(new BTreeEntry(l.pendingKey, moved.getId(), l.pendingChild.getId()));
+			moved.setParentId(next.getId());
+			l.pendingChild.setParentId(next.getId());
+			l.pendingKey = null;
+			l.pendingChild = null;
+			startSibling(level, lastEntry.getKey(), next);
+		}
+
+		for(Level l : levels) {
+			if(l.prev != null) {
+				writePage(l.prev);
+			}
+			writePage(l.open);
+		}
+	}
+
+	private BTreeLeafPage newLeafPage() throws IOException {
+		return new BTreeLeafPage(new BTreePageId(tableid, nextPageNo++, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), keyField);
+	}
+
+	private BTreeInternalPage newInternalPage() throws IOException {
+		return new BTreeInternalPage(new BTreePageId(tableid, nextPageNo++, BTreePageId.INTERNAL),
+				BTreeInternalPage.createEmptyPageData(), keyField);
+	}
+
+	private void writePage(BTreePage page) throws IOException {
+		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
+		rf.write(page.getPageData());
+	}
+
+	public void close() throws IOException {
+		rf.close();
+	}
+}
@@ -2,9 +2,11 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.Function;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
+import simpledb.common.Type;
 import simpledb.execution.IndexPredicate;
 import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
@@ -33,6 +35,10 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private final int keyField;
 
+	private final BTreeLatches latches = new BTreeLatches();
+	private final BTreeFreePages freePages = new BTreeFreePages();
+	private volatile int prefetchPages = 0;
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -55,6 +61,36 @@ public class BTreeFile implements DbFile {
 		return f;
 	}
 
+	/**
+	 * Set how many leaf pages a scan of this file reads ahead, in the background,
+	 * once it has moved past its first leaf.  A long range scan over a cold index
+	 * then finds the leaves it comes to next already in the BufferPool.  Zero, the
+	 * default, turns read-ahead off.
+	 * 
+	 * @param pages - the number of leaves to keep read ahead of a scan
+	 * @see BufferPool#prefetch
+	 */
+	public void setPrefetchPages(int pages) {
+		this.prefetchPages = pages;
+	}
+
+	public int getPrefetchPages() {
+		return prefetchPages;
+	}
+
+	/**
+	 * Start reading the leaves a scan will come to next, if read-ahead is on.
+	 * 
+	 * @param pid - the leaf after the one the scan just moved to, or null
+	 * @param sibling - gives the leaf after a leaf in the direction of the scan;
+	 *        the same instance for every call made by one scan
+	 */
+	void prefetchLeaves(PageId pid, Function<Page, PageId> sibling) {
+		if(prefetchPages > 0 && pid != null) {
+			Database.getBufferPool().prefetch(pid, prefetchPages, sibling);
+		}
+	}
+
 	/**
 	 * Returns an ID uniquely identifying this BTreeFile. Implementation note:
 	 * you will need to generate this tableid somewhere and ensure that each
@@ -174,6 +210,9 @@ public class BTreeFile implements DbFile {
 	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
 	 * leaf node with permission perm.
 	 * 
+	 * Pages are read-latched on the way down, each one being released once its child
+	 * is latched; the latch on the leaf is left for the caller to release.
+	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
@@ -187,8 +226,17 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		latches.latch(pid, false);
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+
+		// internal pages are only read on the way down
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		BTreePageId child = page.getChildId(page.findChildIndex(f));
+		latches.latch(child, false);
+		latches.unlatch(pid);
+		return findLeafPage(tid, dirtypages, child, perm, f);
 	}
 	
 	/**
@@ -205,7 +253,166 @@ public class BTreeFile implements DbFile {
 	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
                                Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		latches.enter();
+		try {
+			return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		} finally {
+			latches.exit();
+		}
+	}
+
+	/**
+	 * Find the right-most leaf page that may contain a key less than f, or with inclusive
+	 * also a key equal to f.  If f is null, it finds the right-most leaf page -- used by
+	 * descending scans.  Pages are read-latched on the way down just as in
+	 * {@link #findLeafPage(TransactionId, BTreePageId, Field)}.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the current page being searched
+	 * @param f - the upper bound of the keys wanted, or null
+	 * @param inclusive - whether keys equal to f are wanted
+	 * @return the right-most leaf page possibly containing a key wanted
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid, BTreePageId pid, Field f, boolean inclusive)
+					throws DbException, TransactionAbortedException {
+		latches.enter();
+		try {
+			Map<PageId, Page> dirtypages = new HashMap<>();
+			latches.latch(pid, false);
+			while(pid.pgcateg() != BTreePageId.LEAF) {
+				BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+				BTreePageId child = page.getChildId(page.findLastChildIndex(f, inclusive));
+				latches.latch(child, false);
+				latches.unlatch(pid);
+				pid = child;
+			}
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		} finally {
+			latches.exit();
+		}
+	}
+
+	/**
+	 * Read the tuples of a leaf page under a read latch, so that iterators never see a
+	 * page halfway through a split or merge and hold no latches between calls.
+	 * 
+	 * @param page - the leaf page to read
+	 * @param f - if not null, skip the tuples whose key is less than f
+	 * @return an iterator over a copy of the page's tuples
+	 */
+	Iterator<Tuple> readLeafPage(BTreeLeafPage page, Field f) {
+		return readLeafPage(page, f, false);
+	}
+
+	/**
+	 * Read the tuples of a leaf page under a read latch, in descending key order.
+	 * 
+	 * @param page - the leaf page to read
+	 * @return an iterator over a copy of the page's tuples, from the last to the first
+	 * @see #readLeafPage(BTreeLeafPage, Field)
+	 */
+	Iterator<Tuple> readLeafPageBackwards(BTreeLeafPage page) {
+		return readLeafPage(page, null, true);
+	}
+
+	private Iterator<Tuple> readLeafPage(BTreeLeafPage page, Field f, boolean reverse) {
+		latches.enter();
+		try {
+			latches.latch(page.getId(), false);
+			List<Tuple> tuples = new ArrayList<>(page.getNumTuples());
+			Iterator<Tuple> it = reverse ? page.reverseIterator()
+					: f == null ? page.iterator() : page.iterator(page.lowerBound(f));
+			while(it.hasNext()) {
+				tuples.add(it.next());
+			}
+			return tuples.iterator();
+		} finally {
+			latches.exit();
+		}
+	}
+
+	/**
+	 * Whether a page can absorb the insertion or deletion of one tuple or entry
+	 * without being split, merged or redistributed, in which case nothing above it
+	 * in the tree can change.
+	 */
+	private boolean isSafe(BTreePage page, boolean insert) {
+		if(insert) {
+			return page.getNumEmptySlots() > 0;
+		}
+		boolean root = page.getParentId().pgcateg() == BTreePageId.ROOT_PTR;
+		if(page instanceof BTreeLeafPage) {
+			BTreeLeafPage leaf = (BTreeLeafPage) page;
+			int maxEmptySlots = leaf.getMaxTuples() - leaf.getMaxTuples()/2; // ceiling
+			return root || leaf.getNumEmptySlots() < maxEmptySlots;
+		}
+		BTreeInternalPage internal = (BTreeInternalPage) page;
+		if(internal.hasSlottedKeys() && internal.getNumEmptySlots() == 0) {
+			// a steal below may lengthen one of its keys and make it split
+			return false;
+		}
+		int maxEmptySlots = internal.getMaxEntries() - internal.getMaxEntries()/2; // ceiling
+		return root ? internal.getNumEntries() > 1 : internal.getNumEmptySlots() < maxEmptySlots;
+	}
+
+	/**
+	 * Latch-crabbing descent to the left-most leaf page that may contain f, for an
+	 * insertion or a deletion.
+	 * 
+	 * An optimistic descent read-latches the root pointer and the internal pages,
+	 * releasing each one as soon as its child is latched, and write-latches only the
+	 * leaf.  It is enough whenever the leaf turns out to be safe; otherwise the caller
+	 * must let go of everything and come back pessimistically.
+	 * 
+	 * A pessimistic descent write-latches every page, and releases all the latches
+	 * above a page once that page is safe.  Whatever is still latched when the leaf is
+	 * reached is the part of the path that a split or merge can reach.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param f - the key being inserted or deleted
+	 * @param insert - whether the leaf is needed for an insertion or a deletion
+	 * @param optimistic - whether to read-latch the internal pages
+	 * @return the write-latched leaf page, or null if an optimistic descent found an
+	 * empty tree
+	 * @see #isSafe(BTreePage, boolean)
+	 */
+	private BTreeLeafPage latchLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Field f,
+			boolean insert, boolean optimistic)
+					throws DbException, IOException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		latches.latch(rootPtrId, !optimistic);
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		BTreePageId pid = rootPtr.getRootId();
+		if(pid == null) {
+			if(optimistic) {
+				return null;
+			}
+			// the root has just been created, so set the root pointer to point to it
+			pid = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			rootPtr.setRootId(pid);
+		}
+
+		BTreePageId parentId = rootPtrId;
+		while(true) {
+			boolean leaf = pid.pgcateg() == BTreePageId.LEAF;
+			latches.latch(pid, leaf || !optimistic);
+			BTreePage page = (BTreePage) getPage(tid, dirtypages, pid,
+					leaf ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+			if(optimistic) {
+				latches.unlatch(parentId);
+			}
+			else if(isSafe(page, insert)) {
+				latches.unlatchAllBut(pid);
+			}
+			if(leaf) {
+				return (BTreeLeafPage) page;
+			}
+			BTreeInternalPage internal = (BTreeInternalPage) page;
+			parentId = pid;
+			pid = internal.getChildId(internal.findChildIndex(f));
+		}
 	}
 
 	/**
@@ -231,16 +438,41 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage rightPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		Tuple[] moving = new Tuple[page.getNumTuples() / 2];
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			rightPage.insertTuple(t);
+		}
+		Field key = separatorKey(page.reverseIterator().next().getField(keyField), moving[0].getField(keyField));
+
+		// link the new page in to the right of the old one
+		BTreePageId oldRightId = page.getRightSiblingId();
+		if(oldRightId != null) {
+			BTreeLeafPage oldRight = (BTreeLeafPage) getPage(tid, dirtypages, oldRightId, Permissions.READ_WRITE);
+			oldRight.setLeftSiblingId(rightPage.getId());
+		}
+		rightPage.setRightSiblingId(oldRightId);
+		rightPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(rightPage.getId());
+
+		// copy the first key of the new page, or as much of it as tells the two
+		// pages apart, up into the parent
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
+		parent.insertEntry(new BTreeEntry(key, page.getId(), rightPage.getId()));
+		page.setParentId(parent.getId());
+		rightPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, key)) {
+			return rightPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -268,18 +500,62 @@ public class BTreeFile implements DbFile {
 	public BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage rightPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page; the entry just
+		// below them is pushed up rather than moved
+		BTreeEntry[] moving = new BTreeEntry[page.getNumEntriesToSplitOff()];
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		BTreeEntry mid = it.next();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			page.deleteKeyAndRightChild(moving[i]);
+		}
+		page.deleteKeyAndRightChild(mid);
+		for(BTreeEntry e : moving) {
+			rightPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, rightPage);
+
+		// push the middle key up into the parent
+		mid.setLeftChild(page.getId());
+		mid.setRightChild(rightPage.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid.getKey());
+		parent.insertEntry(mid);
+		page.setParentId(parent.getId());
+		rightPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, mid.getKey())) {
+			return rightPage;
+		}
+		return page;
 	}
 	
+	/**
+	 * The key to separate two neighbouring leaf pages by in their parent.  For string
+	 * keys this is the shortest prefix of the first key on the right that is still
+	 * greater than the last key on the left, so that internal pages hold short keys;
+	 * other keys are copied up whole.
+	 * 
+	 * @param left - the last key of the left-hand page
+	 * @param right - the first key of the right-hand page
+	 * @return a key k with left < k <= right, or right if the two are equal
+	 */
+	static Field separatorKey(Field left, Field right) {
+		if(!(right instanceof StringField) || !left.compare(Op.LESS_THAN, right)) {
+			return right;
+		}
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int common = 0;
+		while(common < l.length() && common < r.length() && l.charAt(common) == r.charAt(common)) {
+			common++;
+		}
+		return new StringField(r.substring(0, Math.min(common + 1, r.length())), Type.STRING_LEN);
+	}
+
 	/**
 	 * Method to encapsulate the process of getting a parent page ready to accept new entries.
 	 * This may mean creating a page to become the new root of the tree, splitting the existing 
@@ -401,12 +677,20 @@ public class BTreeFile implements DbFile {
 	 */
 	Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
 			throws DbException, TransactionAbortedException {
+		// the root pointer is latched explicitly at the top of a descent, and header
+		// pages are covered by the monitor of this file
+		if(pid.pgcateg() == BTreePageId.LEAF || pid.pgcateg() == BTreePageId.INTERNAL) {
+			latches.latchIfStructural(pid);
+		}
 		if(dirtypages.containsKey(pid)) {
 			return dirtypages.get(pid);
 		}
 		else {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
+				// mark the page dirty while it is still latched, so the buffer pool
+				// does not take it for a clean eviction victim halfway through
+				p.markDirty(true, tid);
 				dirtypages.put(pid, p);
 			}
 			return p;
@@ -426,27 +710,31 @@ public class BTreeFile implements DbFile {
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		Field key = t.getField(keyField);
+
+		latches.enter();
+		try {
+			// find and lock the left-most leaf page corresponding to the key field,
+			// assuming that it has room so that only the leaf needs a write latch
+			BTreeLeafPage leafPage = latchLeafPage(tid, dirtypages, key, true, true);
+			if(leafPage == null || leafPage.getNumEmptySlots() == 0) {
+				// the leaf may have to split, so start over holding write latches on
+				// every page the split could reach
+				latches.unlatchAll();
+				dirtypages.clear();
+				latches.beginStructural();
+				leafPage = latchLeafPage(tid, dirtypages, key, true, false);
+				if(leafPage.getNumEmptySlots() == 0) {
+					leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+				}
+			}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
-
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
+		} finally {
+			latches.exit();
 		}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
         return new ArrayList<>(dirtypages.values());
 	}
 	
@@ -496,6 +784,11 @@ public class BTreeFile implements DbFile {
 		else { // BTreePageId.INTERNAL
 			handleMinOccupancyInternalPage(tid, dirtypages, (BTreeInternalPage) page, parent, leftEntry, rightEntry);
 		}
+
+		// a steal may have put a longer key into a parent keyed on strings
+		if(parent != null && parent.isOverfull()) {
+			splitInternalPage(tid, dirtypages, parent, parent.iterator().next().getKey());
+		}
 	}
 	
 	/**
@@ -564,11 +857,22 @@ public class BTreeFile implements DbFile {
 	 */
 	public void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		Tuple[] moving = new Tuple[(sibling.getNumTuples() - page.getNumTuples()) / 2];
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the separator becomes the first key of the right-hand page
+		BTreeLeafPage leftPage = isRightSibling ? page : sibling;
+		BTreeLeafPage rightPage = isRightSibling ? sibling : page;
+		entry.setKey(separatorKey(leftPage.reverseIterator().next().getField(keyField),
+				rightPage.iterator().next().getField(keyField)));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -603,7 +907,7 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(leftSibling.getNumEmptySlots() >= maxEmptySlots && leftSibling.canMergeWith(page, leftEntry.getKey())) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
@@ -614,7 +918,7 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(rightSibling.getNumEmptySlots() >= maxEmptySlots && page.canMergeWith(rightSibling, rightEntry.getKey())) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
@@ -643,11 +947,19 @@ public class BTreeFile implements DbFile {
 	public void stealFromLeftInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		// rotate each key through the parent: the parent key comes down in front
+		// of the page's first child, and the sibling's last key goes up, until
+		// the two pages are equally full
+		BTreePageId firstChild = page.getChildId(page.findChildIndex(null));
+		while(page.getNumEmptySlots() - leftSibling.getNumEmptySlots() >= 2) {
+			BTreeEntry e = leftSibling.reverseIterator().next();
+			leftSibling.deleteKeyAndRightChild(e);
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), e.getRightChild(), firstChild));
+			parentEntry.setKey(e.getKey());
+			firstChild = e.getRightChild();
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -670,11 +982,30 @@ public class BTreeFile implements DbFile {
 	public void stealFromRightInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		// rotate each key through the parent: the parent key comes down after
+		// the page's last child, and the sibling's first key goes up, until the
+		// two pages are equally full
+		BTreePageId lastChild = getLastChildId(page);
+		while(page.getNumEmptySlots() - rightSibling.getNumEmptySlots() >= 2) {
+			BTreeEntry e = rightSibling.iterator().next();
+			rightSibling.deleteKeyAndLeftChild(e);
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), lastChild, e.getLeftChild()));
+			parentEntry.setKey(e.getKey());
+			lastChild = e.getLeftChild();
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
+	}
+
+	/**
+	 * @return the id of the right-most child of the given internal page
+	 */
+	private BTreePageId getLastChildId(BTreeInternalPage page) {
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		if(it.hasNext()) {
+			return it.next().getRightChild();
+		}
+		return page.getChildId(page.findChildIndex(null));
 	}
 	
 	/**
@@ -698,13 +1029,26 @@ public class BTreeFile implements DbFile {
 	public void mergeLeafPages(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
+		Tuple[] moving = new Tuple[rightPage.getNumTuples()];
+		Iterator<Tuple> it = rightPage.iterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page
+		BTreePageId rightSiblingId = rightPage.getRightSiblingId();
+		leftPage.setRightSiblingId(rightSiblingId);
+		if(rightSiblingId != null) {
+			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
+			rightSibling.setLeftSiblingId(leftPage.getId());
+		}
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -730,14 +1074,23 @@ public class BTreeFile implements DbFile {
 	public void mergeInternalPages(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
-		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		BTreeEntry[] moving = new BTreeEntry[rightPage.getNumEntries()];
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+
+		// pull the parent key down between the two sets of children
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), getLastChildId(leftPage),
+				rightPage.getChildId(rightPage.findChildIndex(null))));
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -767,7 +1120,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -802,21 +1155,172 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
-				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
+		latches.enter();
+		try {
+			// the record id leads straight to the leaf, and if the leaf stays at least
+			// half full nothing else needs to be latched
+			BTreeLeafPage page = latchRecordPage(tid, dirtypages, t);
+			if(page != null && !isSafe(page, false)) {
+				// start over from the root holding write latches on every page a merge
+				// could reach
+				latches.unlatchAll();
+				dirtypages.clear();
+				latches.beginStructural();
+				page = latchLeafPage(tid, dirtypages, t.getField(keyField), false, false);
+				RecordId rid = t.getRecordId();
+				if(rid == null || page.getId().getPageNumber() != rid.getPageId().getPageNumber()) {
+					page = null;
+				}
+			}
+			if(page == null) {
+				// either another thread was moving the tuple, or duplicates of its key
+				// span several leaves and the descent stopped short of this one, so
+				// run alone in the tree instead
+				latches.exit();
+				latches.enterExclusive();
+				dirtypages.clear();
+				page = latchRecordPage(tid, dirtypages, t);
+				if(page == null) {
+					throw new DbException("tried to delete tuple with null rid");
+				}
+			}
+			page.deleteTuple(t);
 
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			// if the page is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+			if(page.getNumEmptySlots() > maxEmptySlots) { 
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
+		} finally {
+			latches.exit();
 		}
 
         return new ArrayList<>(dirtypages.values());
 	}
 
+	/**
+	 * Write-latch and return the leaf page holding the given tuple.  Another thread may
+	 * move the tuple to a different page before the latch is granted, so the record id
+	 * is checked again once it is.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param t - the tuple to find
+	 * @return the leaf page on which t is stored, or null if t has no record id, which
+	 * may only mean that another thread is moving it to a different page
+	 */
+	private BTreeLeafPage latchRecordPage(TransactionId tid, Map<PageId, Page> dirtypages, Tuple t)
+			throws DbException, TransactionAbortedException {
+		while(true) {
+			RecordId rid = t.getRecordId();
+			if(rid == null) {
+				return null;
+			}
+			BTreePageId pageId = new BTreePageId(tableid, rid.getPageId().getPageNumber(), BTreePageId.LEAF);
+			latches.latch(pageId, true);
+			if(rid.equals(t.getRecordId())) {
+				return (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			}
+			latches.unlatch(pageId);
+		}
+	}
+
+	/**
+	 * Load tuples sorted on the key field into this BTreeFile, which must be empty.
+	 * Rather than inserting the tuples one at a time, the tree is built bottom-up:
+	 * leaf pages are packed left to right up to the given fill factor, and the
+	 * internal levels are filled in as the leaves complete, so only a couple of
+	 * pages per level are ever held in memory.
+	 * <p>
+	 * The pages are written straight to the file, bypassing the buffer pool and the
+	 * log, so the load is not undone if tid aborts.  A final pass through the buffer
+	 * pool brings the right-most page of each level up to minimum occupancy.  The
+	 * tree is latched exclusively for the duration of the load.
+	 * 
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to load, in non-decreasing order of the key field
+	 * @param fillFactor - the fraction of each page to fill, greater than 0 and at most 1.
+	 * Values below one half leave pages less than half full on purpose.
+	 * @throws DbException if the tree is not empty, or the tuples are out of order
+	 * @throws IllegalArgumentException if the fill factor is out of range
+	 */
+	public void bulkLoad(TransactionId tid, Iterator<Tuple> tuples, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		if(!(fillFactor > 0 && fillFactor <= 1)) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1], got " + fillFactor);
+		}
+
+		latches.enterExclusive();
+		try {
+			Map<PageId, Page> dirtypages = new HashMap<>();
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+			BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+			// a tree that only ever had one page is empty once its root leaf is
+			boolean empty = numPages() <= 1;
+			if(empty && rootId != null) {
+				empty = ((BTreeLeafPage) getPage(tid, dirtypages, rootId, Permissions.READ_ONLY)).getNumTuples() == 0;
+			}
+			if(!empty) {
+				throw new DbException("bulk load needs an empty B+ tree");
+			}
+
+			try(BTreeBulkLoader loader = new BTreeBulkLoader(this, fillFactor)) {
+				rootId = loader.load(tuples);
+			}
+			if(rootId == null) {
+				return;
+			}
+
+			// nothing cached may shadow what the loader wrote
+			BufferPool bp = Database.getBufferPool();
+			bp.discardPage(rootPtrId);
+			bp.discardPage(new BTreePageId(tableid, 1, BTreePageId.LEAF));
+			bp.discardPage(new BTreePageId(tableid, 1, BTreePageId.INTERNAL));
+			dirtypages.clear();
+			balanceRightEdge(tid, dirtypages);
+
+			// the pages touched while balancing may have been evicted along the way,
+			// so write the final copies out like the rest of the load
+			for(Page p : dirtypages.values()) {
+				writePage(p);
+				bp.discardPage(p.getId());
+			}
+		} finally {
+			latches.exit();
+		}
+	}
+
+	/**
+	 * Bring the right-most page of each level of a freshly loaded tree up to minimum
+	 * occupancy, working down from the root, by stealing from or merging with its
+	 * left sibling.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @see #handleMinOccupancyPage(TransactionId, Map, BTreePage)
+	 */
+	private void balanceRightEdge(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId pid = getRootPtrPage(tid, dirtypages).getRootId();
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			BTreePageId childId = getLastChildId(page);
+			BTreePage child = (BTreePage) getPage(tid, dirtypages, childId, Permissions.READ_WRITE);
+			int max = child instanceof BTreeLeafPage ? ((BTreeLeafPage) child).getMaxTuples()
+					: ((BTreeInternalPage) child).getMaxEntries();
+			int maxEmptySlots = max - max/2; // ceiling
+			if(child.getNumEmptySlots() > maxEmptySlots) {
+				// fixing the child may merge pages above it, so start over from the root
+				handleMinOccupancyPage(tid, dirtypages, child);
+				pid = getRootPtrPage(tid, dirtypages).getRootId();
+			}
+			else {
+				pid = childId;
+			}
+		}
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -860,51 +1364,83 @@ public class BTreeFile implements DbFile {
 	 */
 	public int getEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
-
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				}
-				else {
-					headerPage = null;
-				}
-			}
+		synchronized(this) {
+			return findEmptyPageNo(tid, dirtypages);
+		}
+	}
 
-			// if headerPage is not null, it must have an empty slot
+	private int findEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		int emptyPageNo = getCachedEmptyPageNo(tid, dirtypages);
+		while(emptyPageNo != -1) {
+			BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, BTreeFreePages.getHeaderIndex(emptyPageNo));
 			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				headerPage.markSlotUsed(BTreeFreePages.getSlot(emptyPageNo), true);
+				freePages.setEmpty(emptyPageNo, false);
+				return emptyPageNo;
 			}
+			// the cache was reloaded on the way
+			emptyPageNo = getCachedEmptyPageNo(tid, dirtypages);
 		}
 
-		// at this point if headerId is null, either there are no header pages 
-		// or there are no free slots
-		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
-			}
+		// there are no header pages or no free slots
+		synchronized(this) {
+			// create the new page
+			BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true));
+			byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+			bw.write(emptyData);
+			bw.close();
+			emptyPageNo = numPages();
 		}
 
 		return emptyPageNo; 
 	}
+
+	private int getCachedEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		loadFreePages(tid, dirtypages);
+		return freePages.getEmptyPageNo();
+	}
+
+	/**
+	 * Read the chain of header pages into the free page cache, unless it is already there.
+	 * Each header page is only read once, however many pages are allocated and freed afterwards.
+	 */
+	private void loadFreePages(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		if(freePages.isLoaded()) {
+			return;
+		}
+		// get a read lock on the root pointer page and use it to locate the first header page
+		List<BTreeHeaderPage> chain = new ArrayList<>();
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		while(headerId != null) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			chain.add(headerPage);
+			headerId = headerPage.getNextPageId();
+		}
+		freePages.load(chain);
+	}
+
+	/**
+	 * Get the i-th page of the chain of header pages with read-write permission, checking
+	 * that the free page cache still agrees with it.  If it does not, the cache is reloaded
+	 * and null is returned, as the cached page numbers may no longer hold.
+	 *
+	 * @return the header page, or null if the cache was reloaded
+	 */
+	private BTreeHeaderPage getHeaderPage(TransactionId tid, Map<PageId, Page> dirtypages, int i)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages,
+				freePages.getHeaderPageId(i), Permissions.READ_WRITE);
+		if(!freePages.isCurrent(i, headerPage)) {
+			freePages.invalidate();
+			loadFreePages(tid, dirtypages);
+			return null;
+		}
+		return headerPage;
+	}
 	
 	/**
 	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
@@ -956,6 +1492,21 @@ public class BTreeFile implements DbFile {
 	 */
 	public void setEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int emptyPageNo)
 			throws DbException, IOException, TransactionAbortedException {
+		synchronized(this) {
+			freePage(tid, dirtypages, emptyPageNo);
+		}
+
+		// once the header says the page is free another thread may allocate it, so
+		// the old copy must not be written back over the new one
+		for(int pgcateg : new int[] {BTreePageId.LEAF, BTreePageId.INTERNAL}) {
+			BTreePageId pid = new BTreePageId(tableid, emptyPageNo, pgcateg);
+			dirtypages.remove(pid);
+			Database.getBufferPool().discardPage(pid);
+		}
+	}
+
+	private void freePage(TransactionId tid, Map<PageId, Page> dirtypages, int emptyPageNo)
+			throws DbException, IOException, TransactionAbortedException {
 
 		// if this is the last page in the file (and not the only page), just 
 		// truncate the file
@@ -977,54 +1528,46 @@ public class BTreeFile implements DbFile {
 //			}
 //		}
 
-		// otherwise, get a read lock on the root pointer page and use it to locate 
-		// the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		BTreePageId prevId = null;
-		int headerPageCount = 0;
-
-		// if there are no header pages, create the first header page and update
-		// the header pointer in the BTreeRootPtrPage
-		if(headerId == null) {
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			rootPtr.setHeaderId(headerId);
-		}
-
-		// iterate through all the existing header pages to find the one containing the slot
-		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			prevId = headerId;
-			headerId = headerPage.getNextPageId();
-			headerPageCount++;
+		// otherwise, find the header page recording emptyPageNo, adding header pages
+		// to the end of the chain until there is one
+		int headerIndex = BTreeFreePages.getHeaderIndex(emptyPageNo);
+		BTreeHeaderPage headerPage = null;
+		while(headerPage == null) {
+			loadFreePages(tid, dirtypages);
+			if(freePages.getNumHeaderPages() <= headerIndex) {
+				addHeaderPage(tid, dirtypages);
+			}
+			else {
+				headerPage = getHeaderPage(tid, dirtypages, headerIndex);
+			}
 		}
+		headerPage.markSlotUsed(BTreeFreePages.getSlot(emptyPageNo), false);
+		freePages.setEmpty(emptyPageNo, true);
+	}
 
-		// at this point headerId should either be null or set with 
-		// the headerPage containing the slot corresponding to emptyPageNo.
-		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
-			
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			headerPage.setPrevPageId(prevId);
-			prevPage.setNextPageId(headerId);
-			
-			headerPageCount++;
-			prevId = headerId;
-		}
+	/**
+	 * Append a new header page, with every slot marked used, to the chain of header pages.
+	 * If there are no header pages yet, the new one is linked from the BTreeRootPtrPage.
+	 */
+	private void addHeaderPage(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
+		headerPage.init();
 
-		// now headerId should be set with the headerPage containing the slot corresponding to 
-		// emptyPageNo
-		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
-		headerPage.markSlotUsed(emptySlot, false);
+		BTreeHeaderPage prevPage = null;
+		while(prevPage == null && freePages.getNumHeaderPages() > 0) {
+			prevPage = getHeaderPage(tid, dirtypages, freePages.getNumHeaderPages() - 1);
+		}
+		if(prevPage == null) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+					BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr.setHeaderId(headerPage.getId());
+		}
+		else {
+			headerPage.setPrevPageId(prevPage.getId());
+			prevPage.setNextPageId(headerPage.getId());
+		}
+		freePages.addHeaderPage(headerPage);
 	}
 
 	/**
@@ -1041,6 +1584,67 @@ public class BTreeFile implements DbFile {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * get the specified tuples from the file based on its IndexPredicate value, in
+	 * ascending or descending key order.  A descending scan starts from the right-most
+	 * leaf that may hold a matching tuple; for a LESS_THAN or LESS_THAN_OR_EQ predicate
+	 * it therefore never reads the leaves past the bound, and stops at the first key
+	 * below the bound of an EQUALS, GREATER_THAN or GREATER_THAN_OR_EQ predicate.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on, or null for all tuples
+	 * @param descending - whether to return the tuples in descending key order
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred, boolean descending) {
+		if(!descending) {
+			return ipred == null ? iterator(tid) : indexIterator(tid, ipred);
+		}
+		if(ipred == null) {
+			return new BTreeRangeIterator(this, tid, null, null, null, true);
+		}
+		switch(ipred.getOp()) {
+		case EQUALS:
+			return new BTreeRangeIterator(this, tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, ipred.getField()),
+					new IndexPredicate(Op.LESS_THAN_OR_EQ, ipred.getField()), null, true);
+		case GREATER_THAN:
+		case GREATER_THAN_OR_EQ:
+			return new BTreeRangeIterator(this, tid, ipred, null, null, true);
+		case LESS_THAN:
+		case LESS_THAN_OR_EQ:
+			return new BTreeRangeIterator(this, tid, null, ipred, null, true);
+		default:
+			// no bound to start from or stop at
+			return new BTreeRangeIterator(this, tid, null, null, ipred, true);
+		}
+	}
+
+	/**
+	 * get the tuples of the file whose keys lie between a lower and an upper bound, in
+	 * ascending or descending key order.  The scan descends straight to the leaf holding
+	 * the bound it starts from and stops at the first key past the other bound, so it
+	 * only reads the leaves that hold the range.
+	 * 
+	 * @param tid - the transaction id
+	 * @param lower - a GREATER_THAN or GREATER_THAN_OR_EQ predicate, or null if the range
+	 *        has no lower bound
+	 * @param upper - a LESS_THAN or LESS_THAN_OR_EQ predicate, or null if the range has no
+	 *        upper bound
+	 * @param descending - whether to return the tuples in descending key order
+	 * @return an iterator for the tuples in the range
+	 * @throws IllegalArgumentException if a bound has the wrong operation
+	 */
+	public DbFileIterator rangeIterator(TransactionId tid, IndexPredicate lower, IndexPredicate upper,
+			boolean descending) {
+		if(lower != null && lower.getOp() != Op.GREATER_THAN && lower.getOp() != Op.GREATER_THAN_OR_EQ) {
+			throw new IllegalArgumentException("lower bound must be > or >=, not " + lower.getOp());
+		}
+		if(upper != null && upper.getOp() != Op.LESS_THAN && upper.getOp() != Op.LESS_THAN_OR_EQ) {
+			throw new IllegalArgumentException("upper bound must be < or <=, not " + upper.getOp());
+		}
+		return new BTreeRangeIterator(this, tid, lower, upper, null, descending);
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
 	 * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1065,6 +1669,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	final TransactionId tid;
 	final BTreeFile f;
+	final Function<Page, PageId> rightSibling = p -> ((BTreeLeafPage) p).getRightSiblingId();
 
 	/**
 	 * Constructor for this iterator
@@ -1083,8 +1688,12 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
+		if(root == null) {
+			// nothing has been inserted yet
+			return;
+		}
 		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+		it = f.readLeafPage(curp, null);
 	}
 
 	/**
@@ -1106,7 +1715,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+				f.prefetchLeaves(curp.getRightSiblingId(), rightSibling);
+				it = f.readLeafPage(curp, null);
 				if (!it.hasNext())
 					it = null;
 			}
@@ -1147,6 +1757,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	final TransactionId tid;
 	final BTreeFile f;
 	final IndexPredicate ipred;
+	final Function<Page, PageId> rightSibling = p -> ((BTreeLeafPage) p).getRightSiblingId();
 
 	/**
 	 * Constructor for this iterator
@@ -1168,14 +1779,19 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
+		if(root == null) {
+			// nothing has been inserted yet
+			return;
+		}
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
 			curp = f.findLeafPage(tid, root, ipred.getField());
+			it = f.readLeafPage(curp, ipred.getField());
 		}
 		else {
 			curp = f.findLeafPage(tid, root, null);
+			it = f.readLeafPage(curp, null);
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1215,7 +1831,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+				f.prefetchLeaves(curp.getRightSiblingId(), rightSibling);
+				it = f.readLeafPage(curp, null);
 			}
 		}
 
@@ -1238,3 +1855,126 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		it = null;
 	}
 }
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of a B+ Tree File
+ * whose keys lie within a range, in ascending or descending key order
+ */
+class BTreeRangeIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+
+	final TransactionId tid;
+	final BTreeFile f;
+	final IndexPredicate lower;
+	final IndexPredicate upper;
+	final IndexPredicate filter;
+	final boolean descending;
+	final Function<Page, PageId> sibling;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param lower - the lower bound of the keys, or null
+	 * @param upper - the upper bound of the keys, or null
+	 * @param filter - a further predicate on the keys that does not bound them, or null
+	 * @param descending - whether to return the tuples in descending key order
+	 */
+	public BTreeRangeIterator(BTreeFile f, TransactionId tid, IndexPredicate lower, IndexPredicate upper,
+			IndexPredicate filter, boolean descending) {
+		this.f = f;
+		this.tid = tid;
+		this.lower = lower;
+		this.upper = upper;
+		this.filter = filter;
+		this.descending = descending;
+		this.sibling = descending ? p -> ((BTreeLeafPage) p).getLeftSiblingId()
+				: p -> ((BTreeLeafPage) p).getRightSiblingId();
+	}
+
+	/**
+	 * Open this iterator by getting an iterator on the leaf page holding the bound
+	 * the scan starts from
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		if(root == null) {
+			// nothing has been inserted yet
+			return;
+		}
+		if(descending) {
+			curp = f.findLastLeafPage(tid, root, upper == null ? null : upper.getField(),
+					upper == null || upper.getOp() == Op.LESS_THAN_OR_EQ);
+			it = f.readLeafPageBackwards(curp);
+		}
+		else {
+			Field start = lower == null ? null : lower.getField();
+			curp = f.findLeafPage(tid, root, start);
+			it = f.readLeafPage(curp, start);
+		}
+	}
+
+	/**
+	 * Read the next tuple in the range either from the current page or from the next
+	 * page by following the right sibling pointer, or the left one when descending.
+	 * 
+	 * @return the next tuple in the range, or null once the scan is past its end
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		IndexPredicate start = descending ? upper : lower;
+		IndexPredicate end = descending ? lower : upper;
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				Field key = t.getField(f.keyField());
+				if(end != null && !key.compare(end.getOp(), end.getField())) {
+					// every tuple from here on is past the end of the range
+					it = null;
+					return null;
+				}
+				if((start == null || key.compare(start.getOp(), start.getField()))
+						&& (filter == null || key.compare(filter.getOp(), filter.getField()))) {
+					return t;
+				}
+			}
+
+			PageId nextp = sibling.apply(curp);
+			// if there are no more pages in this direction, end the iteration
+			if(nextp == null) {
+				it = null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						nextp, Permissions.READ_ONLY);
+				f.prefetchLeaves(sibling.apply(curp), sibling);
+				it = descending ? f.readLeafPageBackwards(curp) : f.readLeafPage(curp, null);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
@@ -234,6 +234,8 @@ public class BTreeFileEncoder {
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		if (BTreeInternalPage.hasSlottedKeys(keyType))
+			nentries = BTreeInternalPage.getMaxSlottedEntries();
 
 		List<List<BTreeEntry>> entries = new ArrayList<>();
 
@@ -621,6 +623,9 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		if (BTreeInternalPage.hasSlottedKeys(keyType))
+			return convertToSlottedInternalPage(entries, childPageCategory);
+
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
@@ -694,6 +699,33 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries to a byte array in the slotted format of a
+	 * BTreeInternalPage keyed on strings
+	 * 
+	 * @param entries - the set of entries
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 */
+	private static byte[] convertToSlottedInternalPage(List<BTreeEntry> entries, int childPageCategory) {
+		int nslots = BTreeInternalPage.getNumSlottedSlots();
+		int entrycount = Math.min(entries.size(), BTreeInternalPage.getMaxSlottedEntries());
+		byte[] header = new byte[(nslots + 7) / 8];
+		Field[] keys = new Field[nslots];
+		int[] children = new int[nslots];
+
+		entries.sort(new EntryComparator());
+		children[0] = entries.get(0).getLeftChild().getPageNumber();
+		for (int e = 0; e < entrycount; e++) {
+			keys[e + 1] = entries.get(e).getKey();
+			children[e + 1] = entries.get(e).getRightChild().getPageNumber();
+		}
+		for (int i = 0; i < entrycount + 1; i++)
+			header[i / 8] |= (byte) (1 << (i % 8));
+
+		return BTreeInternalPage.getSlottedPageData(0, childPageCategory, header, keys, children);
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
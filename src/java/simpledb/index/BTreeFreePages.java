@@ -0,0 +1,99 @@
+package simpledb.index;
+
+import java.util.*;
+
+import simpledb.storage.Page;
+
+/**
+ * BTreeFreePages keeps the free-page bitmaps of one BTreeFile's header pages
+ * in memory, so that finding an empty page takes one nextSetBit rather than a
+ * walk down the chain of header pages and a scan of every bitmap.  Page
+ * number p of the file is recorded in slot p % n of header page p / n, where n
+ * is BTreeHeaderPage.getNumSlots().
+ * <p>
+ * The header pages in the BufferPool stay the authority on which pages are
+ * free; BTreeFile updates the cache and the header page together.  The cache
+ * remembers the header page instances it was read from, and is only trusted
+ * for a header page that the BufferPool still holds as that same instance.
+ * An aborted transaction, recovery or an eviction all make the BufferPool
+ * read the page afresh, at which point BTreeFile reloads the cache.
+ * <p>
+ * BTreeFreePages is not thread safe; BTreeFile uses it inside its own monitor.
+ */
+class BTreeFreePages {
+
+	private final List<BTreeHeaderPage> headerPages = new ArrayList<>();
+	private final BitSet free = new BitSet();
+	private boolean loaded = false;
+
+	/** @return true if the cache holds the header pages of the file */
+	boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Replace the cache with the bitmaps of the given header pages.
+	 *
+	 * @param chain - every header page of the file, in order
+	 */
+	void load(List<BTreeHeaderPage> chain) {
+		invalidate();
+		for(BTreeHeaderPage p : chain) {
+			addHeaderPage(p);
+		}
+		loaded = true;
+	}
+
+	/** Forget the cached header pages; they are read again on next use */
+	void invalidate() {
+		headerPages.clear();
+		free.clear();
+		loaded = false;
+	}
+
+	/** Append a header page to the end of the chain */
+	void addHeaderPage(BTreeHeaderPage p) {
+		BitSet empty = p.getEmptySlots();
+		int first = headerPages.size() * BTreeHeaderPage.getNumSlots();
+		for(int i = empty.nextSetBit(0); i >= 0; i = empty.nextSetBit(i + 1)) {
+			free.set(first + i);
+		}
+		headerPages.add(p);
+	}
+
+	int getNumHeaderPages() {
+		return headerPages.size();
+	}
+
+	/** @return the id of the i-th header page of the chain */
+	BTreePageId getHeaderPageId(int i) {
+		return headerPages.get(i).getId();
+	}
+
+	/**
+	 * @return true if p is the instance of the i-th header page the cache was
+	 * read from, so that the cache agrees with it
+	 */
+	boolean isCurrent(int i, Page p) {
+		return headerPages.get(i) == p;
+	}
+
+	/** @return the lowest numbered empty page, or -1 if there is none */
+	int getEmptyPageNo() {
+		return free.nextSetBit(0);
+	}
+
+	void setEmpty(int pageNo, boolean empty) {
+		free.set(pageNo, empty);
+	}
+
+	/** @return the position in the chain of the header page recording pageNo */
+	static int getHeaderIndex(int pageNo) {
+		return pageNo / BTreeHeaderPage.getNumSlots();
+	}
+
+	/** @return the slot of its header page recording pageNo */
+	static int getSlot(int pageNo) {
+		return pageNo % BTreeHeaderPage.getNumSlots();
+	}
+}
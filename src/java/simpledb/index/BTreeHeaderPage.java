@@ -4,6 +4,7 @@ import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.LogFile;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.Page;
@@ -11,6 +12,7 @@ import simpledb.transaction.TransactionId;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.BitSet;
 
 /**
  * Each instance of BTreeHeaderPage stores data for one page of a BTreeFile and 
@@ -23,6 +25,7 @@ import java.util.Arrays;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long lsn = LogFile.NO_LSN;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -273,6 +276,14 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
@@ -301,15 +312,15 @@ public class BTreeHeaderPage implements Page {
 	 * @return the index of the first empty slot or -1 if none exists
 	 */
 	public int getEmptySlot() {
-		for (int i=0; i<header.length; i++) {
-			if((int) header[i] != 0xFF) {
-				for(int j = 0; j < 8; j++) {
-					if(!isSlotUsed(i*8 + j)) {
-						return i*8 + j;
-					}
-				}
-			}
-		}
-		return -1;
+		return getEmptySlots().nextSetBit(0);
+	}
+
+	/**
+	 * @return the slots of this header page whose pages are empty
+	 */
+	public BitSet getEmptySlots() {
+		BitSet empty = BitSet.valueOf(header);
+		empty.flip(0, numSlots);
+		return empty;
 	}
 }
@@ -13,6 +13,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -30,6 +31,17 @@ public class BTreeInternalPage extends BTreePage {
 	
 	private int childCategory; // either leaf or internal
 
+	// on pages keyed on strings, each key is stored as a 2-byte length and its
+	// bytes, and is found through a 2-byte offset kept beside its child pointer
+	private static final int KEY_OFFSET_SIZE = 2;
+	private static final int KEY_LENGTH_SIZE = 2;
+	private static final int MIN_SLOTTED_ENTRY_SIZE = INDEX_SIZE + KEY_OFFSET_SIZE + KEY_LENGTH_SIZE;
+	private static final int MAX_SLOTTED_ENTRY_SIZE = MIN_SLOTTED_ENTRY_SIZE + Type.STRING_LEN;
+
+	// used slots in sorted order, rebuilt lazily after the header changes;
+	// usedSlots[0] holds the left-most child and usedSlots[j] the jth key
+	private int[] usedSlots;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -43,7 +55,11 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        // slotted pages are balanced by bytes a whole entry at a time, so they may
+        // fall short of half full by a couple of the longest possible entries
+        int slack = hasSlottedKeys() ? 2 : 0;
+        assert !isOverfull();
+        assert !checkOccupancy || depth <= 0 || (getNumEmptySlots() <= getMaxEntries() - getMaxEntries() / 2 + slack);
 	}
 	
 	/**
@@ -62,6 +78,14 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * Pages keyed on strings are slotted instead, so that short keys take up
+	 * less room than long ones.  After the header come the child pointer of
+	 * each used slot in order, each but the first followed by the offset of
+	 * its key within the page; the keys themselves, each a length and its
+	 * bytes, are packed against the end of the page.  Such a page has as many
+	 * slots as it could fill with empty keys, and holds entries for as long as
+	 * their keys fit into the space between the two.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -72,7 +96,7 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this.numSlots = getNumSlots();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -92,24 +116,29 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
-		try{
-			// allocate and read the keys of this page
-			// start from 1 because the first key slot is not used
-			// since a node with m keys has m+1 pointers
-			keys[0] = null;
-			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		children = new int[numSlots];
+		if (hasSlottedKeys()) {
+			readSlottedEntries(data, dis);
 		}
+		else {
+			try{
+				// read the keys of this page
+				// start from 1 because the first key slot is not used
+				// since a node with m keys has m+1 pointers
+				keys[0] = null;
+				for (int i=1; i<keys.length; i++)
+					keys[i] = readNextKey(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 
-		children = new int[numSlots];
-		try{
-			// allocate and read the child pointers of this page
-			for (int i=0; i<children.length; i++)
-				children[i] = readNextChild(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+			try{
+				// read the child pointers of this page
+				for (int i=0; i<children.length; i++)
+					children[i] = readNextChild(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 		}
 		dis.close();
 
@@ -120,6 +149,8 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
+		if (hasSlottedKeys())
+			return getMaxSlottedEntries();
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
@@ -133,13 +164,81 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = getNumSlots();
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * @return the number of slots on this page, counting slot 0 which only holds a
+	 * child pointer
+	 */
+	int getNumSlots() {
+		if (!hasSlottedKeys())
+			return getMaxEntries() + 1;
+		return getNumSlottedSlots();
+	}
+
+	/**
+	 * @return the number of slots on a page keyed on strings: enough for a page
+	 * full of empty strings
+	 */
+	static int getNumSlottedSlots() {
+		int bitsPerEntryIncludingHeader = MIN_SLOTTED_ENTRY_SIZE * 8 + 1;
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
+		return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader + 1;
+	}
+
+	/**
+	 * @return true if pages of B+ trees keyed on the given type store their keys
+	 * in the slotted, variable-length format
+	 */
+	static boolean hasSlottedKeys(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	boolean hasSlottedKeys() {
+		return hasSlottedKeys(td.getFieldType(keyField));
+	}
+
+	/**
+	 * @return the number of entries with the longest possible keys that fit on a
+	 * slotted page, keeping room for one key to grow
+	 */
+	static int getMaxSlottedEntries() {
+		return (getKeyAreaSize() - Type.STRING_LEN) / MAX_SLOTTED_ENTRY_SIZE;
+	}
+
+	/**
+	 * @return the bytes of a slotted page left for entries, after the parent pointer,
+	 * the child category, the header and the left-most child pointer
+	 */
+	private static int getKeyAreaSize() {
+		int headerBytes = (getNumSlottedSlots() + 7) / 8;
+		return BufferPool.getPageSize() - (2 * INDEX_SIZE + 1 + headerBytes);
+	}
+
+	/**
+	 * @return the bytes an entry with the given key takes up on a slotted page
+	 */
+	private static int getSlottedEntrySize(Field key) {
+		return MIN_SLOTTED_ENTRY_SIZE + ((StringField) key).getValue().length();
+	}
+
+	/**
+	 * @return the bytes taken up by the entries of a slotted page
+	 */
+	private int getUsedKeyBytes() {
+		int bytes = 0;
+		for (int slot : usedSlots()) {
+			if (slot > 0)
+				bytes += getSlottedEntrySize(keys[slot]);
+		}
+		return bytes;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -224,6 +323,24 @@ public class BTreeInternalPage extends BTreePage {
 		return child;
 	}
 
+	/**
+	 * Read the child pointers and keys of a slotted page, whose header has been read.
+	 */
+	private void readSlottedEntries(byte[] data, DataInputStream dis) throws IOException {
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			children[i] = dis.readInt();
+			if (i > 0) {
+				int offset = dis.readUnsignedShort();
+				int len = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+				keys[i] = new StringField(new String(data, offset + KEY_LENGTH_SIZE, len), Type.STRING_LEN);
+			}
+		}
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -236,6 +353,9 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		if (hasSlottedKeys())
+			return getSlottedPageData(parent, childCategory, header, keys, children);
+
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -337,6 +457,63 @@ public class BTreeInternalPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Serialize a slotted page.  The keys are written in slot order, ending at the
+	 * end of the page.
+	 * @see #BTreeInternalPage
+	 */
+	static byte[] getSlottedPageData(int parent, int childCategory, byte[] header, Field[] keys, int[] children) {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		int directoryBytes = INDEX_SIZE + 1 + header.length;
+		int keyBytes = 0;
+		for (int i=0; i<keys.length; i++) {
+			if (!isSlotUsed(header, i))
+				continue;
+			directoryBytes += INDEX_SIZE;
+			if (i > 0) {
+				directoryBytes += KEY_OFFSET_SIZE;
+				keyBytes += KEY_LENGTH_SIZE + ((StringField) keys[i]).getValue().length();
+			}
+		}
+		if (directoryBytes + keyBytes > len)
+			throw new IllegalStateException("internal page entries take up " + (directoryBytes + keyBytes) + " bytes");
+
+		try {
+			dos.writeInt(parent);
+			dos.writeByte((byte) childCategory);
+			dos.write(header);
+
+			int offset = len - keyBytes;
+			for (int i=0; i<keys.length; i++) {
+				if (!isSlotUsed(header, i))
+					continue;
+				dos.writeInt(children[i]);
+				if (i > 0) {
+					dos.writeShort(offset);
+					offset += KEY_LENGTH_SIZE + ((StringField) keys[i]).getValue().length();
+				}
+			}
+
+			dos.write(new byte[len - keyBytes - directoryBytes]);
+
+			for (int i=1; i<keys.length; i++) {
+				if (!isSlotUsed(header, i))
+					continue;
+				String s = ((StringField) keys[i]).getValue();
+				dos.writeShort(s.length());
+				dos.writeBytes(s);
+			}
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -461,7 +638,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -480,7 +657,8 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
-		if (emptySlot == -1)
+		if (emptySlot == -1 || (hasSlottedKeys()
+				&& getUsedKeyBytes() + getSlottedEntrySize(e.getKey()) > getKeyAreaSize() - Type.STRING_LEN))
 			throw new DbException("called insertEntry on page with no empty slots.");        
 
 		// find the child pointer matching the left or right child in this entry
@@ -566,13 +744,20 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		int used = usedSlots().length;
+		return used > 0 && isSlotUsed(0) ? used - 1 : used;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page.  On a slotted page this is
+	 * the number of entries with the longest possible keys that still fit.
 	 */
 	public int getNumEmptySlots() {
+		if (hasSlottedKeys()) {
+			int free = getKeyAreaSize() - Type.STRING_LEN - getUsedKeyBytes();
+			int fit = free > 0 ? free / MAX_SLOTTED_ENTRY_SIZE : 0;
+			return Math.min(fit, numSlots - 1 - getNumEntries());
+		}
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -586,11 +771,65 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns true if associated slot on this page is filled.
 	 */
 	public boolean isSlotUsed(int i) {
+		return isSlotUsed(header, i);
+	}
+
+	private static boolean isSlotUsed(byte[] header, int i) {
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 		return (header[headerbyte] & (1 << headerbit)) != 0;
 	}
 
+	/**
+	 * Whether a key put in place by {@link #updateEntry} has used up the space a
+	 * slotted page keeps for one key to grow into, so that the page must be split
+	 * before anything else is done to it.  Pages with fixed-length keys never are.
+	 */
+	public boolean isOverfull() {
+		return hasSlottedKeys() && getKeyAreaSize() - getUsedKeyBytes() < Type.STRING_LEN;
+	}
+
+	/**
+	 * Whether the entries of the page to the right of this one, and the key that
+	 * separates the two pages in their parent, all fit onto this page.
+	 * @param right - the right sibling of this page
+	 * @param key - the key between the two pages
+	 */
+	public boolean canMergeWith(BTreeInternalPage right, Field key) {
+		int entries = getNumEntries() + right.getNumEntries() + 1;
+		if (!hasSlottedKeys())
+			return entries <= getMaxEntries();
+		return entries < numSlots && getUsedKeyBytes() + right.getUsedKeyBytes() + getSlottedEntrySize(key)
+				<= getKeyAreaSize() - Type.STRING_LEN;
+	}
+
+	/**
+	 * @return the number of entries at the right end of this page that a split
+	 * moves to the new page: half of them, or on a slotted page as many as leave
+	 * the two pages closest in size once the entry between them is pushed up
+	 */
+	public int getNumEntriesToSplitOff() {
+		int n = getNumEntries();
+		if (!hasSlottedKeys())
+			return n / 2;
+		int total = getUsedKeyBytes();
+		int[] slots = usedSlots();
+		int best = n / 2;
+		int bestDiff = Integer.MAX_VALUE;
+		int moved = 0;
+		for (int m = 1; m < n; m++) {
+			moved += getSlottedEntrySize(keys[slots[slots.length - m]]);
+			int left = total - moved - getSlottedEntrySize(keys[slots[slots.length - m - 1]]);
+			if (Math.abs(left - moved) < bestDiff) {
+				best = m;
+				bestDiff = Math.abs(left - moved);
+			}
+			if (moved >= left)
+				break;
+		}
+		return best;
+	}
+
 	/**
 	 * Abstraction to fill or clear a slot on this page.
 	 */
@@ -603,6 +842,99 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		usedSlots = null;
+	}
+
+	/**
+	 * @return the used slots of this page in order, building the cached array if
+	 * the header has changed since it was last built
+	 */
+	private int[] usedSlots() {
+		int[] slots = usedSlots;
+		if (slots == null) {
+			int n = 0;
+			int[] tmp = new int[numSlots];
+			for (int i = 0; i < numSlots; i++) {
+				if (isSlotUsed(i))
+					tmp[n++] = i;
+			}
+			slots = Arrays.copyOf(tmp, n);
+			usedSlots = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * Binary search for the number of keys on this page that are strictly less
+	 * than f.  Keys equal to f therefore count towards the right, so that
+	 * descending through {@link #findChildIndex} reaches the left-most page that
+	 * may contain f.
+	 * @param f - the key to search for
+	 * @return the number of keys less than f, between 0 and getNumEntries()
+	 */
+	public int lowerBound(Field f) {
+		int[] slots = usedSlots();
+		int lo = 1;
+		int hi = slots.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[slots[mid]].compare(Op.LESS_THAN, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo - 1;
+	}
+
+	/**
+	 * Binary search for the number of keys on this page that are less than or
+	 * equal to f, so that descending through {@link #findLastChildIndex} reaches
+	 * the right-most page that may contain f.
+	 * @param f - the key to search for
+	 * @return the number of keys less than or equal to f, between 0 and getNumEntries()
+	 */
+	public int upperBound(Field f) {
+		int[] slots = usedSlots();
+		int lo = 1;
+		int hi = slots.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[slots[mid]].compare(Op.LESS_THAN_OR_EQ, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo - 1;
+	}
+
+	/**
+	 * Find the slot of the child to descend into when searching for f, without
+	 * allocating any entries.  A null f selects the left-most child.
+	 * @param f - the key to search for, or null
+	 * @return the slot of the child page, to be passed to {@link #getChildId}
+	 */
+	public int findChildIndex(Field f) {
+		int[] slots = usedSlots();
+		if (slots.length == 0)
+			throw new NoSuchElementException();
+		return slots[f == null ? 0 : lowerBound(f)];
+	}
+
+	/**
+	 * Find the slot of the right-most child that may contain a key less than f,
+	 * or with inclusive also a key equal to f.  A null f selects the right-most
+	 * child.
+	 * @param f - the key to search for, or null
+	 * @param inclusive - whether keys equal to f are wanted
+	 * @return the slot of the child page, to be passed to {@link #getChildId}
+	 */
+	public int findLastChildIndex(Field f, boolean inclusive) {
+		int[] slots = usedSlots();
+		if (slots.length == 0)
+			throw new NoSuchElementException();
+		if (f == null)
+			return slots[slots.length - 1];
+		return slots[inclusive ? upperBound(f) : lowerBound(f)];
 	}
 
 	/**
@@ -745,7 +1077,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -765,8 +1097,17 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null) {
+					continue;
+				}
+				// the left child sits in the closest used slot before this one,
+				// which need not be the adjacent slot once entries were deleted
+				int prev = entry - 1;
+				while(prev > 0 && !p.isSlotUsed(prev)) {
+					--prev;
+				}
+				BTreePageId childId = p.getChildId(prev);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -0,0 +1,171 @@
+package simpledb.index;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import simpledb.storage.PageId;
+
+/**
+ * BTreeLatches holds the short-term page latches of one BTreeFile.  Latches
+ * are separate from the transactional locks taken through the BufferPool:
+ * they only keep concurrent operations on the same tree from seeing each
+ * other's half-finished page updates, and are held for the duration of a
+ * single insertTuple, deleteTuple or leaf read rather than until the
+ * transaction commits.
+ * <p>
+ * Latches are taken top-down, and left to right among siblings, so they
+ * cannot deadlock.  Each thread remembers the latches it holds in the order
+ * it took them, which lets a crabbing descent drop all of a page's ancestors
+ * at once when the page turns out to be safe.  While a thread restructures
+ * the tree (see {@link #beginStructural}) every page BTreeFile fetches on
+ * its behalf is write-latched.
+ * <p>
+ * Above the page latches sits a tree latch.  Every operation holds it
+ * shared; an operation that cannot find its way down the tree by key takes
+ * it exclusively instead, and then needs no page latches at all.
+ * <p>
+ * A page only has a latch while some thread holds or waits for it, so the
+ * table stays as small as the set of pages in use.
+ */
+class BTreeLatches {
+
+	private final ConcurrentHashMap<PageId, Latch> latches = new ConcurrentHashMap<>();
+	private final ReentrantReadWriteLock treeLatch = new ReentrantReadWriteLock();
+	private final ThreadLocal<Held> held = ThreadLocal.withInitial(Held::new);
+
+	/** What the current thread holds */
+	private static class Held {
+		/** latched pages in acquisition order, mapped to whether the latch is exclusive */
+		final LinkedHashMap<PageId, Boolean> pages = new LinkedHashMap<>();
+		boolean structural;
+		boolean treeExclusive;
+	}
+
+	private static class Latch {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		/** threads holding or waiting for the lock; changed only inside latches.compute */
+		int users;
+	}
+
+	/** Get the latch of a page, counting the current thread as one of its users */
+	private ReentrantReadWriteLock acquire(PageId pid) {
+		return latches.compute(pid, (k, l) -> {
+			if (l == null) {
+				l = new Latch();
+			}
+			l.users++;
+			return l;
+		}).lock;
+	}
+
+	/** Stop counting the current thread as a user of the latch of a page */
+	private void forget(PageId pid) {
+		latches.computeIfPresent(pid, (k, l) -> --l.users == 0 ? null : l);
+	}
+
+	/** The number of pages that have a latch, for tests */
+	int size() {
+		return latches.size();
+	}
+
+	/** Start an operation alongside others in the tree */
+	void enter() {
+		treeLatch.readLock().lock();
+	}
+
+	/** Start an operation that runs alone in the tree and takes no page latches */
+	void enterExclusive() {
+		treeLatch.writeLock().lock();
+		held.get().treeExclusive = true;
+	}
+
+	/** End the current operation, releasing every latch it still holds */
+	void exit() {
+		Held h = held.get();
+		unlatchAll();
+		h.structural = false;
+		if (h.treeExclusive) {
+			h.treeExclusive = false;
+			treeLatch.writeLock().unlock();
+		} else {
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * From now until {@link #exit}, the current operation may split or merge
+	 * pages, so every page it touches is write-latched.
+	 */
+	void beginStructural() {
+		held.get().structural = true;
+	}
+
+	/**
+	 * Latch a page for the current thread.  Does nothing if the thread already
+	 * holds a latch at least as strong.  A shared latch is upgraded by
+	 * releasing and re-acquiring it, so callers must not rely on the page being
+	 * unchanged across an upgrade.
+	 */
+	void latch(PageId pid, boolean exclusive) {
+		Held h = held.get();
+		if (h.treeExclusive) {
+			return;
+		}
+		Boolean cur = h.pages.get(pid);
+		if (cur != null && (cur || !exclusive)) {
+			return;
+		}
+		if (cur != null) {
+			h.pages.remove(pid);
+			release(pid, false);
+		}
+		ReentrantReadWriteLock l = acquire(pid);
+		if (exclusive) {
+			l.writeLock().lock();
+		} else {
+			l.readLock().lock();
+		}
+		h.pages.put(pid, exclusive);
+	}
+
+	/** Write-latch a page if the current operation is restructuring the tree */
+	void latchIfStructural(PageId pid) {
+		if (held.get().structural) {
+			latch(pid, true);
+		}
+	}
+
+	void unlatch(PageId pid) {
+		Boolean exclusive = held.get().pages.remove(pid);
+		if (exclusive != null) {
+			release(pid, exclusive);
+		}
+	}
+
+	/** Release every latch of the current thread except the one on pid */
+	void unlatchAllBut(PageId pid) {
+		Iterator<Map.Entry<PageId, Boolean>> it = held.get().pages.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<PageId, Boolean> e = it.next();
+			if (!e.getKey().equals(pid)) {
+				it.remove();
+				release(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	void unlatchAll() {
+		unlatchAllBut(null);
+	}
+
+	private void release(PageId pid, boolean exclusive) {
+		ReentrantReadWriteLock l = latches.get(pid).lock;
+		if (exclusive) {
+			l.writeLock().unlock();
+		} else {
+			l.readLock().unlock();
+		}
+		forget(pid);
+	}
+}
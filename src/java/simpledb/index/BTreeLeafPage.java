@@ -27,6 +27,9 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// used slots in sorted order, rebuilt lazily after the header changes
+	private int[] usedSlots;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -476,6 +479,46 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		usedSlots = null;
+	}
+
+	/**
+	 * @return the used slots of this page in order, building the cached array if
+	 * the header has changed since it was last built
+	 */
+	private int[] usedSlots() {
+		int[] slots = usedSlots;
+		if (slots == null) {
+			int n = 0;
+			int[] tmp = new int[numSlots];
+			for (int i = 0; i < numSlots; i++) {
+				if (isSlotUsed(i))
+					tmp[n++] = i;
+			}
+			slots = Arrays.copyOf(tmp, n);
+			usedSlots = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * Binary search for the first tuple on this page whose key is greater than or
+	 * equal to f.
+	 * @param f - the key to search for
+	 * @return the slot of that tuple, or getMaxTuples() if every key is less than f
+	 */
+	public int lowerBound(Field f) {
+		int[] slots = usedSlots();
+		int lo = 0;
+		int hi = slots.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (tuples[slots[mid]].getField(keyField).compare(Predicate.Op.LESS_THAN, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo < slots.length ? slots[lo] : numSlots;
 	}
 
 	/**
@@ -486,6 +529,14 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @param slot - the slot to start from, e.g. as returned by {@link #lowerBound}
+	 * @return an iterator over the tuples on this page from the given slot onwards
+	 */
+	public Iterator<Tuple> iterator(int slot) {
+		return new BTreeLeafPageIterator(this, slot);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -532,6 +583,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int curTuple) {
+		this.p = p;
+		this.curTuple = curTuple;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
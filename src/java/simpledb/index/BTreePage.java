@@ -5,6 +5,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.LogFile;
 import simpledb.storage.Page;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
@@ -20,6 +21,7 @@ import simpledb.transaction.TransactionId;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	protected volatile long lsn = LogFile.NO_LSN;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -134,6 +136,14 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -2,6 +2,7 @@ package simpledb.index;
 
 import simpledb.common.DbException;
 import simpledb.storage.BufferPool;
+import simpledb.storage.LogFile;
 import simpledb.storage.Page;
 import simpledb.transaction.TransactionId;
 
@@ -19,6 +20,7 @@ public class BTreeRootPtrPage implements Page {
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
+	private volatile long lsn = LogFile.NO_LSN;
 
 	private final BTreePageId pid;
 
@@ -140,6 +142,14 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
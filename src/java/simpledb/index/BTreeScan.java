@@ -15,7 +15,8 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate, or within a range of keys.  Tuples come in
+ * ascending key order unless the scan is descending.
  */
 public class BTreeScan implements OpIterator {
 
@@ -25,6 +26,9 @@ public class BTreeScan implements OpIterator {
 	private final TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private IndexPredicate lower = null;
+	private IndexPredicate upper = null;
+	private boolean descending = false;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -49,8 +53,45 @@ public class BTreeScan implements OpIterator {
 	 *            in sorted order
 	 */
 	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, tableAlias, ipred, false);
+	}
+
+	/**
+	 * Creates a B+ tree scan over the specified table that returns the tuples
+	 * matching a predicate in ascending or descending key order.
+	 * 
+	 * @param descending
+	 *            whether to return the tuples in descending key order
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred, boolean descending) {
 		this.tid = tid;
 		this.ipred = ipred;
+		this.descending = descending;
+		reset(tableid,tableAlias);
+	}
+
+	/**
+	 * Creates a B+ tree scan over the tuples of the specified table whose keys
+	 * lie between two bounds.  Only the leaf pages holding the range are read.
+	 * 
+	 * @param lower
+	 *            a GREATER_THAN or GREATER_THAN_OR_EQ predicate, or null if
+	 *            the range has no lower bound
+	 * @param upper
+	 *            a LESS_THAN or LESS_THAN_OR_EQ predicate, or null if the
+	 *            range has no upper bound
+	 * @param descending
+	 *            whether to return the tuples in descending key order
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+	 * @see BTreeFile#rangeIterator
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate lower,
+			IndexPredicate upper, boolean descending) {
+		this.tid = tid;
+		this.lower = lower;
+		this.upper = upper;
+		this.descending = descending;
 		reset(tableid,tableAlias);
 	}
 
@@ -87,11 +128,16 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(lower != null || upper != null) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).rangeIterator(tid,
+					lower, upper, descending);
+		}
+		else if(ipred == null && !descending) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred,
+					descending);
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
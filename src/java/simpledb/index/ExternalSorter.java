@@ -0,0 +1,170 @@
+package simpledb.index;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * ExternalSorter sorts tuples on one field while holding no more than a fixed
+ * number of them in memory.  Tuples are collected into runs; each run that
+ * fills up is sorted and written to a temporary file, and {@link #sorted}
+ * merges the runs on disk with the last one, still in memory, reading one
+ * tuple of each run at a time.  Tuples with equal keys come out in no
+ * particular order, and without their RecordIds.
+ * <p>
+ * The temporary files are removed by {@link #close}.
+ */
+class ExternalSorter implements Closeable {
+
+	private final TupleDesc td;
+	private final int keyField;
+	private final int runSize;
+	private final List<Tuple> current = new ArrayList<>();
+	private final List<File> runs = new ArrayList<>();
+	private final List<Integer> runLengths = new ArrayList<>();
+	private final List<DataInputStream> readers = new ArrayList<>();
+
+	/**
+	 * @param td - the TupleDesc of the tuples to sort
+	 * @param keyField - the field to sort on
+	 * @param runSize - the most tuples to hold in memory, at least one
+	 */
+	ExternalSorter(TupleDesc td, int keyField, int runSize) {
+		if(runSize < 1) {
+			throw new IllegalArgumentException("runs must hold at least one tuple");
+		}
+		this.td = td;
+		this.keyField = keyField;
+		this.runSize = runSize;
+	}
+
+	private int compare(Tuple a, Tuple b) {
+		Field ka = a.getField(keyField);
+		Field kb = b.getField(keyField);
+		if(ka.compare(Op.LESS_THAN, kb)) return -1;
+		if(ka.compare(Op.GREATER_THAN, kb)) return 1;
+		return 0;
+	}
+
+	/**
+	 * Add a tuple to be sorted, writing out the current run if it is full.
+	 */
+	void add(Tuple t) throws IOException {
+		current.add(t);
+		if(current.size() >= runSize) {
+			spill();
+		}
+	}
+
+	private void spill() throws IOException {
+		current.sort(this::compare);
+		File f = File.createTempFile("sort", ".run");
+		f.deleteOnExit();
+		runs.add(f);
+		runLengths.add(current.size());
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+			for(Tuple t : current) {
+				for(int i = 0; i < td.numFields(); i++) {
+					t.getField(i).serialize(out);
+				}
+			}
+		}
+		current.clear();
+	}
+
+	/**
+	 * @return the tuples added so far, in non-decreasing order of the key field.
+	 * Reading a run from disk may throw UncheckedIOException from the iterator.
+	 */
+	Iterator<Tuple> sorted() throws IOException {
+		current.sort(this::compare);
+		if(runs.isEmpty()) {
+			return current.iterator();
+		}
+
+		// each source is the next tuple of a run, and the rest of it
+		PriorityQueue<Map.Entry<Tuple, Iterator<Tuple>>> heads = new PriorityQueue<>(
+				(a, b) -> compare(a.getKey(), b.getKey()));
+		List<Iterator<Tuple>> sources = new ArrayList<>();
+		for(int i = 0; i < runs.size(); i++) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(i))));
+			readers.add(in);
+			sources.add(new RunIterator(in, runLengths.get(i)));
+		}
+		sources.add(current.iterator());
+		for(Iterator<Tuple> source : sources) {
+			if(source.hasNext()) {
+				heads.add(new AbstractMap.SimpleImmutableEntry<>(source.next(), source));
+			}
+		}
+
+		return new Iterator<Tuple>() {
+			public boolean hasNext() {
+				return !heads.isEmpty();
+			}
+
+			public Tuple next() {
+				Map.Entry<Tuple, Iterator<Tuple>> head = heads.poll();
+				if(head == null) {
+					throw new NoSuchElementException();
+				}
+				if(head.getValue().hasNext()) {
+					heads.add(new AbstractMap.SimpleImmutableEntry<>(head.getValue().next(), head.getValue()));
+				}
+				return head.getKey();
+			}
+		};
+	}
+
+	/**
+	 * Remove the runs written to disk.
+	 */
+	public void close() throws IOException {
+		for(DataInputStream in : readers) {
+			in.close();
+		}
+		readers.clear();
+		for(File f : runs) {
+			f.delete();
+		}
+		runs.clear();
+		runLengths.clear();
+		current.clear();
+	}
+
+	/** Reads back the tuples of a run written by spill */
+	private class RunIterator implements Iterator<Tuple> {
+		private final DataInputStream in;
+		private int remaining;
+
+		RunIterator(DataInputStream in, int length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		public Tuple next() {
+			if(remaining == 0) {
+				throw new NoSuchElementException();
+			}
+			remaining--;
+			Tuple t = new Tuple(td);
+			try {
+				for(int i = 0; i < td.numFields(); i++) {
+					t.setField(i, td.getFieldType(i).parse(in));
+				}
+			} catch (ParseException e) {
+				throw new UncheckedIOException(new IOException("corrupt sort run", e));
+			}
+			return t;
+		}
+	}
+}
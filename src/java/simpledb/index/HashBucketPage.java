@@ -0,0 +1,249 @@
+package simpledb.index;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one bucket of a
+ * HashFile, or of one overflow page of a bucket.  A bucket holds the tuples
+ * whose key hashes agree on their lowest getLocalDepth() bits; when it has
+ * more tuples than fit on one page and splitting it would not tell them apart,
+ * the rest go to a chain of overflow pages.
+ *
+ * @see HashFile
+ * @see BufferPool
+ *
+ */
+public class HashBucketPage extends HashPage {
+
+	private final TupleDesc td;
+	private final byte[] header;
+	private final Tuple[] tuples;
+	private final int numSlots;
+
+	private int localDepth;
+	private int overflow; // next page of the bucket, or 0
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format of a HashBucketPage is the local depth of the bucket and the
+	 * page number of its next overflow page, followed by a set of header bytes
+	 * indicating the slots of the page that are in use and the tuple slots.
+	 *  Specifically, the number of tuples is equal to: <p>
+	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
+	 * <p> where tuple size is the size of tuples in this
+	 * database table, which can be determined via {@link Catalog#getTupleDesc}.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		super(id);
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getMaxTuples(td);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		localDepth = dis.readInt();
+		overflow = dis.readInt();
+		header = new byte[getHeaderSize()];
+		dis.readFully(header);
+		tuples = new Tuple[numSlots];
+		for (int i = 0; i < tuples.length; i++) {
+			tuples[i] = readNextTuple(dis, i);
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of tuples with the given TupleDesc that fit on a bucket page
+	 */
+	public static int getMaxTuples(TupleDesc td) {
+		int extraBytes = 2 * INDEX_SIZE;
+		return (BufferPool.getPageSize() * 8 - extraBytes * 8) / (td.getSize() * 8 + 1);
+	}
+
+	private int getHeaderSize() {
+		return (numSlots + 7) / 8;
+	}
+
+	/** Return a view of this page before it was modified
+	 -- used by recovery */
+	public HashBucketPage getBeforeImage() {
+		try {
+			return new HashBucketPage(pid, getBeforeImageData());
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws IOException {
+		if (!isSlotUsed(slotId)) {
+			dis.skipBytes(td.getSize());
+			return null;
+		}
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		try {
+			for (int j = 0; j < td.numFields(); j++) {
+				t.setField(j, td.getFieldType(j).parse(dis));
+			}
+		} catch (java.text.ParseException e) {
+			throw new IOException("parsing error in " + pid, e);
+		}
+		return t;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @see #HashBucketPage
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(localDepth);
+			dos.writeInt(overflow);
+			dos.write(header);
+			for (int i = 0; i < tuples.length; i++) {
+				if (!isSlotUsed(i)) {
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+				for (int j = 0; j < td.numFields(); j++) {
+					tuples[i].getField(j).serialize(dos);
+				}
+			}
+			dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	/** @return how many low bits of their hashes the tuples of this bucket share */
+	public int getLocalDepth() {
+		return localDepth;
+	}
+
+	public void setLocalDepth(int localDepth) {
+		this.localDepth = localDepth;
+	}
+
+	/**
+	 * @return the id of the next overflow page of this bucket, or null if this is the last page
+	 */
+	public HashPageId getOverflowId() {
+		if (overflow == 0) {
+			return null;
+		}
+		return new HashPageId(pid.getTableId(), overflow, HashPageId.BUCKET);
+	}
+
+	/**
+	 * Set the next overflow page of this bucket
+	 * @param id - the id of the next page, or null if this is the last page
+	 */
+	public void setOverflowId(HashPageId id) {
+		overflow = id == null ? 0 : id.getPageNumber();
+	}
+
+	/**
+	 * Adds the specified tuple to the page;  the tuple is updated to reflect
+	 *  that it is now stored on this page.
+	 * @throws DbException if the page is full or the TupleDesc does not match
+	 * @param t The tuple to add.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td)) {
+			throw new DbException("type mismatch, in insertTuple");
+		}
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				tuples[i] = t;
+				t.setRecordId(new RecordId(pid, i));
+				return;
+			}
+		}
+		throw new DbException("called insertTuple on page with no empty slots.");
+	}
+
+	/**
+	 * Delete the specified tuple from the page.
+	 * @throws DbException if this tuple is not on this page, or its slot is
+	 *         already empty.
+	 * @param t The tuple to delete
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !pid.equals(rid.getPageId())) {
+			throw new DbException("tried to delete tuple on invalid page or table");
+		}
+		if (!isSlotUsed(rid.getTupleNumber())) {
+			throw new DbException("tried to delete null tuple.");
+		}
+		markSlotUsed(rid.getTupleNumber(), false);
+		tuples[rid.getTupleNumber()] = null;
+		t.setRecordId(null);
+	}
+
+	/** Remove every tuple from this page */
+	public void clear() {
+		Arrays.fill(header, (byte) 0);
+		Arrays.fill(tuples, null);
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int empty = 0;
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				empty++;
+			}
+		}
+		return empty;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		return (header[i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	private void markSlotUsed(int i, boolean value) {
+		if (value)
+			header[i / 8] |= 1 << (i % 8);
+		else
+			header[i / 8] &= ~(1 << (i % 8));
+	}
+
+	/**
+	 * @return the tuples on this page, in slot order
+	 */
+	public List<Tuple> getTuples() {
+		List<Tuple> result = new ArrayList<>();
+		for (int i = 0; i < numSlots; i++) {
+			if (isSlotUsed(i)) {
+				result.add(tuples[i]);
+			}
+		}
+		return result;
+	}
+}
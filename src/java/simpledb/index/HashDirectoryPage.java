@@ -0,0 +1,86 @@
+package simpledb.index;
+
+import simpledb.storage.BufferPool;
+
+import java.io.*;
+
+/**
+ * HashDirectoryPage holds one slice of the directory of a HashFile: for
+ * consecutive directory entries, the page number of the bucket each one
+ * points to.  Entry i of the directory is entry i % getNumEntries() of
+ * directory page i / getNumEntries().
+ *
+ * @see HashFile
+ * @see HashMetaPage
+ *
+ */
+public class HashDirectoryPage extends HashPage {
+
+	private final int[] buckets;
+
+	/**
+	 * Create a HashDirectoryPage from a set of bytes of data read from disk.
+	 * The format of a HashDirectoryPage is an array of bucket page numbers.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+		super(id);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		buckets = new int[getNumEntries()];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = dis.readInt();
+		}
+		dis.close();
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of directory entries on one page
+	 */
+	public static int getNumEntries() {
+		return BufferPool.getPageSize() / INDEX_SIZE;
+	}
+
+	/** Return a view of this page before it was modified
+	 -- used by recovery */
+	public HashDirectoryPage getBeforeImage() {
+		try {
+			return new HashDirectoryPage(pid, getBeforeImageData());
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			for (int b : buckets) {
+				dos.writeInt(b);
+			}
+			dos.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @return the id of the bucket the i-th entry of this page points to
+	 */
+	public HashPageId getBucketId(int i) {
+		return new HashPageId(pid.getTableId(), buckets[i], HashPageId.BUCKET);
+	}
+
+	/**
+	 * Point the i-th entry of this page at a bucket
+	 */
+	public void setBucketId(int i, HashPageId id) {
+		buckets[i] = id.getPageNumber();
+	}
+}
@@ -0,0 +1,720 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * HashFile is an implementation of a DbFile that stores an extendible hash
+ * table keyed on one field.  A lookup hashes the key and uses the lowest
+ * global depth bits of the hash to pick an entry of the directory, which
+ * names the bucket page holding every tuple with that key.  Once the meta
+ * page and the directory pages are in the BufferPool, finding the tuples with
+ * a given key therefore takes one page read however large the table is.
+ * <p>
+ * A full bucket is split in two by one more bit of the hash, doubling the
+ * directory if the bucket already used as many bits as the directory does.
+ * When splitting cannot help, because every tuple in the bucket has the same
+ * hash or the directory cannot grow any further, the bucket gets overflow
+ * pages instead.  Buckets are not merged again when tuples are deleted.
+ * <p>
+ * HashFile works closely with HashMetaPage, HashDirectoryPage and
+ * HashBucketPage; the format of these pages is described in their constructors.
+ *
+ * @see HashMetaPage#HashMetaPage
+ * @see HashDirectoryPage#HashDirectoryPage
+ * @see HashBucketPage#HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	// inserts and deletes change the directory and move tuples between buckets,
+	// so they exclude each other and every reader
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Constructs a hash file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash file
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+	}
+
+	/**
+	 * Returns the File backing this HashFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashFile, the hash of the
+	 * absolute file name of the file underlying it.
+	 *
+	 * @return an ID uniquely identifying this HashFile.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 *
+	 * @return TupleDesc of this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that this hash file is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		byte[] pageBuf = new byte[BufferPool.getPageSize()];
+
+		try (RandomAccessFile rf = new RandomAccessFile(f, "r")) {
+			long offset = (long) id.getPageNumber() * BufferPool.getPageSize();
+			if (id.pgcateg() == HashPageId.META && rf.length() < BufferPool.getPageSize()) {
+				// nothing has been written yet
+				return new HashMetaPage(id, HashPage.createEmptyPageData());
+			}
+			if (offset + BufferPool.getPageSize() > rf.length()) {
+				throw new IllegalArgumentException("Read past end of table");
+			}
+			rf.seek(offset);
+			rf.readFully(pageBuf);
+			Debug.log(1, "HashFile.readPage: read page %d", id.getPageNumber());
+			switch (id.pgcateg()) {
+			case HashPageId.META:
+				return new HashMetaPage(id, pageBuf);
+			case HashPageId.DIRECTORY:
+				return new HashDirectoryPage(id, pageBuf);
+			default:
+				return new HashBucketPage(id, pageBuf);
+			}
+		} catch (FileNotFoundException e) {
+			if (id.pgcateg() == HashPageId.META) {
+				try {
+					return new HashMetaPage(id, HashPage.createEmptyPageData());
+				} catch (IOException e1) {
+					throw new RuntimeException(e1);
+				}
+			}
+			throw new IllegalArgumentException("Read past end of table", e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			rf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+			rf.write(page.getPageData());
+		}
+	}
+
+	/**
+	 * Returns the number of pages in this HashFile, including the meta page.
+	 */
+	public int numPages() {
+		// we only ever write full pages
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * @return the hash of a key; the low bits of it select the bucket of the key
+	 */
+	static int hash(Field key) {
+		// spread the bits of Field.hashCode(), which for an IntField is its value
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * @return the largest global depth the directory pages a meta page can
+	 * point to have room for
+	 */
+	static int getMaxDepth() {
+		long entries = (long) HashMetaPage.getMaxDirectoryPages() * HashDirectoryPage.getNumEntries();
+		return Math.min(30, 63 - Long.numberOfLeadingZeros(entries));
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
+	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
+	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since
+	 * presumably they will soon be dirtied by this transaction.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the requested page
+	 * @param perm - the requested permissions on the page
+	 * @return the requested page
+	 */
+	Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if (dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().getPage(tid, pid, perm);
+		if (perm == Permissions.READ_WRITE) {
+			p.markDirty(true, tid);
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Append a new, empty page to the end of the file and fetch it with
+	 * read-write permission.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pgcateg - the kind of page to create
+	 * @return the new page
+	 */
+	private Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgcateg)
+			throws DbException, IOException, TransactionAbortedException {
+		// page 0 is always the meta page, even before it has been written
+		int emptyPageNo = Math.max(1, numPages());
+		HashPageId newPageId = new HashPageId(tableid, emptyPageNo, pgcateg);
+
+		// write empty page to disk
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			rf.seek((long) emptyPageNo * BufferPool.getPageSize());
+			rf.write(HashPage.createEmptyPageData());
+		}
+
+		// make sure the page is not in the buffer pool or in the local cache
+		Database.getBufferPool().discardPage(newPageId);
+		dirtypages.remove(newPageId);
+
+		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+	}
+
+	/**
+	 * @return the id of the bucket the i-th entry of the directory points to
+	 */
+	private HashPageId getBucketId(TransactionId tid, Map<PageId, Page> dirtypages, HashMetaPage meta, int i)
+			throws DbException, TransactionAbortedException {
+		int entries = HashDirectoryPage.getNumEntries();
+		HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages,
+				meta.getDirectoryPageId(i / entries), Permissions.READ_ONLY);
+		return dir.getBucketId(i % entries);
+	}
+
+	/**
+	 * Point the i-th entry of the directory at a bucket
+	 */
+	private void setBucketId(TransactionId tid, Map<PageId, Page> dirtypages, HashMetaPage meta, int i,
+			HashPageId bucketId) throws DbException, TransactionAbortedException {
+		int entries = HashDirectoryPage.getNumEntries();
+		HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages,
+				meta.getDirectoryPageId(i / entries), Permissions.READ_WRITE);
+		dir.setBucketId(i % entries, bucketId);
+	}
+
+	/**
+	 * @return the pages of a bucket, starting with its primary page and
+	 * following its overflow pages
+	 */
+	private List<HashBucketPage> getChain(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId bucketId,
+			Permissions perm) throws DbException, TransactionAbortedException {
+		List<HashBucketPage> chain = new ArrayList<>();
+		HashPageId pid = bucketId;
+		while (pid != null) {
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid, perm);
+			chain.add(page);
+			pid = page.getOverflowId();
+		}
+		return chain;
+	}
+
+	/**
+	 * Insert a tuple into the bucket its key hashes to, splitting the bucket
+	 * or giving it an overflow page if it is full.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #splitBucket(TransactionId, Map, HashMetaPage, List, int)
+	 */
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new LinkedHashMap<>();
+		int h = hash(t.getField(keyField));
+
+		lock.writeLock().lock();
+		try {
+			HashMetaPage meta = (HashMetaPage) getPage(tid, dirtypages, HashMetaPage.getId(tableid),
+					Permissions.READ_ONLY);
+			if (meta.getNumDirectoryPages() == 0) {
+				// the first insert creates a directory with a single entry and bucket
+				meta = (HashMetaPage) getPage(tid, dirtypages, meta.getId(), Permissions.READ_WRITE);
+				HashBucketPage bucket = (HashBucketPage) getEmptyPage(tid, dirtypages, HashPageId.BUCKET);
+				HashDirectoryPage dir = (HashDirectoryPage) getEmptyPage(tid, dirtypages, HashPageId.DIRECTORY);
+				dir.setBucketId(0, bucket.getId());
+				meta.addDirectoryPage(dir.getId());
+				meta.setGlobalDepth(0);
+			}
+
+			while (true) {
+				int index = h & (meta.getDirectorySize() - 1);
+				List<HashBucketPage> chain = getChain(tid, dirtypages,
+						getBucketId(tid, dirtypages, meta, index), Permissions.READ_ONLY);
+				for (HashBucketPage page : chain) {
+					if (page.getNumEmptySlots() > 0) {
+						page = (HashBucketPage) getPage(tid, dirtypages, page.getId(), Permissions.READ_WRITE);
+						page.insertTuple(t);
+						return new ArrayList<>(dirtypages.values());
+					}
+				}
+
+				HashBucketPage bucket = chain.get(0);
+				if (bucket.getLocalDepth() < getMaxDepth() && !allSameHash(chain, h)) {
+					meta = splitBucket(tid, dirtypages, meta, chain, h);
+				}
+				else {
+					// splitting would not make room, so chain another page to the bucket
+					HashBucketPage last = (HashBucketPage) getPage(tid, dirtypages,
+							chain.get(chain.size() - 1).getId(), Permissions.READ_WRITE);
+					HashBucketPage overflow = (HashBucketPage) getEmptyPage(tid, dirtypages, HashPageId.BUCKET);
+					overflow.setLocalDepth(bucket.getLocalDepth());
+					last.setOverflowId(overflow.getId());
+					overflow.insertTuple(t);
+					return new ArrayList<>(dirtypages.values());
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if every tuple of a bucket has the given hash
+	 */
+	private boolean allSameHash(List<HashBucketPage> chain, int h) {
+		for (HashBucketPage page : chain) {
+			for (Tuple t : page.getTuples()) {
+				if (hash(t.getField(keyField)) != h) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Split a full bucket in two by the next bit of the hashes of its tuples.
+	 * If the bucket already uses as many bits as the directory, the directory
+	 * is doubled first.  The tuples that keep their bucket stay on its pages,
+	 * the others move to a new bucket, and pages of the old overflow chain
+	 * that are needed by neither side stay at the end of the old bucket.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param meta - the meta page of this file
+	 * @param chain - the pages of the bucket to split
+	 * @param h - the hash of a key belonging to the bucket
+	 * @return the meta page, fetched with read-write permission if the directory grew
+	 */
+	private HashMetaPage splitBucket(TransactionId tid, Map<PageId, Page> dirtypages, HashMetaPage meta,
+			List<HashBucketPage> chain, int h) throws DbException, IOException, TransactionAbortedException {
+		int depth = chain.get(0).getLocalDepth();
+		if (depth == meta.getGlobalDepth()) {
+			meta = doubleDirectory(tid, dirtypages, meta);
+		}
+
+		List<Tuple> low = new ArrayList<>();
+		List<Tuple> high = new ArrayList<>();
+		Deque<HashBucketPage> spare = new ArrayDeque<>();
+		for (HashBucketPage page : chain) {
+			page = (HashBucketPage) getPage(tid, dirtypages, page.getId(), Permissions.READ_WRITE);
+			for (Tuple t : page.getTuples()) {
+				if ((hash(t.getField(keyField)) >>> depth & 1) == 0) {
+					low.add(t);
+				}
+				else {
+					high.add(t);
+				}
+			}
+			page.clear();
+			page.setOverflowId(null);
+			page.setLocalDepth(depth + 1);
+			spare.add(page);
+		}
+
+		HashBucketPage lowBucket = spare.poll();
+		HashBucketPage highBucket = (HashBucketPage) getEmptyPage(tid, dirtypages, HashPageId.BUCKET);
+		highBucket.setLocalDepth(depth + 1);
+		HashBucketPage last = fillBucket(tid, dirtypages, lowBucket, low, spare);
+		fillBucket(tid, dirtypages, highBucket, high, spare);
+		for (HashBucketPage page : spare) {
+			last.setOverflowId(page.getId());
+			last = page;
+		}
+
+		// every entry whose low depth+1 bits name the new bucket moves to it
+		int first = (h & ((1 << depth) - 1)) | (1 << depth);
+		for (int i = first; i < meta.getDirectorySize(); i += 1 << (depth + 1)) {
+			setBucketId(tid, dirtypages, meta, i, highBucket.getId());
+		}
+		return meta;
+	}
+
+	/**
+	 * Insert tuples into a bucket, chaining pages from spare, or new pages once
+	 * spare runs out, as each page fills up.
+	 *
+	 * @return the last page of the bucket
+	 */
+	private HashBucketPage fillBucket(TransactionId tid, Map<PageId, Page> dirtypages, HashBucketPage bucket,
+			List<Tuple> tuples, Deque<HashBucketPage> spare)
+			throws DbException, IOException, TransactionAbortedException {
+		HashBucketPage page = bucket;
+		for (Tuple t : tuples) {
+			if (page.getNumEmptySlots() == 0) {
+				HashBucketPage next = spare.poll();
+				if (next == null) {
+					next = (HashBucketPage) getEmptyPage(tid, dirtypages, HashPageId.BUCKET);
+					next.setLocalDepth(bucket.getLocalDepth());
+				}
+				page.setOverflowId(next.getId());
+				page = next;
+			}
+			page.insertTuple(t);
+		}
+		return page;
+	}
+
+	/**
+	 * Double the directory, adding directory pages to the meta page as needed.
+	 * The new upper half of the directory points at the same buckets as the
+	 * lower half.
+	 *
+	 * @return the meta page, fetched with read-write permission
+	 */
+	private HashMetaPage doubleDirectory(TransactionId tid, Map<PageId, Page> dirtypages, HashMetaPage meta)
+			throws DbException, IOException, TransactionAbortedException {
+		meta = (HashMetaPage) getPage(tid, dirtypages, meta.getId(), Permissions.READ_WRITE);
+		int size = meta.getDirectorySize();
+		while ((long) meta.getNumDirectoryPages() * HashDirectoryPage.getNumEntries() < 2L * size) {
+			HashDirectoryPage dir = (HashDirectoryPage) getEmptyPage(tid, dirtypages, HashPageId.DIRECTORY);
+			meta.addDirectoryPage(dir.getId());
+		}
+		for (int i = 0; i < size; i++) {
+			setBucketId(tid, dirtypages, meta, size + i, getBucketId(tid, dirtypages, meta, i));
+		}
+		meta.setGlobalDepth(meta.getGlobalDepth() + 1);
+		return meta;
+	}
+
+	/**
+	 * Delete a tuple from this HashFile.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new LinkedHashMap<>();
+		RecordId rid = t.getRecordId();
+		if (rid == null || !(rid.getPageId() instanceof HashPageId) || rid.getPageId().getTableId() != tableid) {
+			throw new DbException("tried to delete tuple on invalid page or table");
+		}
+		HashPageId pid = (HashPageId) rid.getPageId();
+		if (pid.pgcateg() != HashPageId.BUCKET) {
+			throw new DbException("tried to delete tuple on invalid page or table");
+		}
+
+		lock.writeLock().lock();
+		try {
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			page.deleteTuple(t);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * Read the tuples of the bucket at an entry of the directory, if that
+	 * entry is the lowest one pointing to the bucket.
+	 *
+	 * @param tid - the transaction id
+	 * @param i - the directory entry
+	 * @return the tuples of the bucket, an empty list if another entry stands
+	 * for the bucket, or null if the directory has no entry i
+	 */
+	List<Tuple> readBucket(TransactionId tid, int i) throws DbException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		lock.readLock().lock();
+		try {
+			HashMetaPage meta = (HashMetaPage) getPage(tid, dirtypages, HashMetaPage.getId(tableid),
+					Permissions.READ_ONLY);
+			if (meta.getNumDirectoryPages() == 0 || i >= meta.getDirectorySize()) {
+				return null;
+			}
+			List<Tuple> tuples = new ArrayList<>();
+			List<HashBucketPage> chain = getChain(tid, dirtypages, getBucketId(tid, dirtypages, meta, i),
+					Permissions.READ_ONLY);
+			// the entries that point to a bucket agree on its local depth low bits
+			if (i < 1 << chain.get(0).getLocalDepth()) {
+				for (HashBucketPage page : chain) {
+					tuples.addAll(page.getTuples());
+				}
+			}
+			return tuples;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Read the tuples with the given key; only the pages of the bucket the key
+	 * hashes to are read.
+	 *
+	 * @param tid - the transaction id
+	 * @param key - the key to look up
+	 * @return the tuples whose key field equals key
+	 */
+	List<Tuple> readKey(TransactionId tid, Field key) throws DbException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		lock.readLock().lock();
+		try {
+			HashMetaPage meta = (HashMetaPage) getPage(tid, dirtypages, HashMetaPage.getId(tableid),
+					Permissions.READ_ONLY);
+			List<Tuple> tuples = new ArrayList<>();
+			if (meta.getNumDirectoryPages() == 0) {
+				return tuples;
+			}
+			int index = hash(key) & (meta.getDirectorySize() - 1);
+			for (HashBucketPage page : getChain(tid, dirtypages, getBucketId(tid, dirtypages, meta, index),
+					Permissions.READ_ONLY)) {
+				for (Tuple t : page.getTuples()) {
+					if (t.getField(keyField).equals(key)) {
+						tuples.add(t);
+					}
+				}
+			}
+			return tuples;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get a read lock on the pages holding the tuples that match an
+	 * IndexPredicate, and return an iterator over them.  An EQUALS predicate
+	 * reads only the bucket its key hashes to; a hash index keeps no order, so
+	 * any other predicate is answered by scanning the whole file.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new HashSearchIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this hash file, in no particular order.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(this, tid);
+	}
+
+}
+
+/**
+ * Helper class that implements the Java Iterator for tuples on a HashFile,
+ * reading one bucket at a time
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	int entry = 0;
+
+	final TransactionId tid;
+	final HashFile f;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the HashFile containing the tuples
+	 * @param tid - the transaction id
+	 */
+	public HashFileIterator(HashFile f, TransactionId tid) {
+		this.f = f;
+		this.tid = tid;
+	}
+
+	/**
+	 * Open this iterator at the first entry of the directory
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		entry = 0;
+		it = Collections.emptyIterator();
+	}
+
+	/**
+	 * Read the next tuple either from the current bucket if it has more tuples
+	 * or from the bucket of the next entry of the directory.
+	 *
+	 * @return the next tuple, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (it != null && !it.hasNext()) {
+			List<Tuple> tuples = f.readBucket(tid, entry++);
+			it = tuples == null ? null : tuples.iterator();
+		}
+		if (it == null)
+			return null;
+		return it.next();
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for search tuples on a
+ * HashFile
+ */
+class HashSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	DbFileIterator scan = null;
+
+	final TransactionId tid;
+	final HashFile f;
+	final IndexPredicate ipred;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the HashFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on
+	 */
+	public HashSearchIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator by reading the bucket of the key, or by starting a
+	 * scan of the whole file if the predicate is not an equality
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		if (ipred.getOp() == Op.EQUALS) {
+			it = f.readKey(tid, ipred.getField()).iterator();
+		}
+		else {
+			scan = f.iterator(tid);
+			scan.open();
+		}
+	}
+
+	/**
+	 * Read the next tuple matching the predicate
+	 *
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if (it != null) {
+			return it.hasNext() ? it.next() : null;
+		}
+		if (scan == null) {
+			return null;
+		}
+		while (scan.hasNext()) {
+			Tuple t = scan.next();
+			if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				return t;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		if (scan != null) {
+			scan.close();
+			scan = null;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package simpledb.index;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+
+import java.io.*;
+
+/**
+ * HashMetaPage is page 0 of every HashFile.  It holds the global depth of
+ * the directory, that is how many low bits of a key's hash select its bucket,
+ * and the page numbers of the directory pages in order.  A new, all-zero meta
+ * page describes a file with no directory and no buckets yet.
+ *
+ * @see HashFile
+ * @see HashDirectoryPage
+ *
+ */
+public class HashMetaPage extends HashPage {
+
+	private int globalDepth;
+	private final int[] directoryPages;
+	private int numDirectoryPages;
+
+	/**
+	 * Create a HashMetaPage from a set of bytes of data read from disk.
+	 * The format of a HashMetaPage is the global depth and the number of
+	 * directory pages, followed by the page numbers of the directory pages.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashMetaPage(HashPageId id, byte[] data) throws IOException {
+		super(id);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		globalDepth = dis.readInt();
+		numDirectoryPages = dis.readInt();
+		directoryPages = new int[getMaxDirectoryPages()];
+		for (int i = 0; i < directoryPages.length; i++) {
+			directoryPages[i] = dis.readInt();
+		}
+		dis.close();
+		setBeforeImage();
+	}
+
+	/** @return the id of the meta page of a HashFile */
+	public static HashPageId getId(int tableid) {
+		return new HashPageId(tableid, 0, HashPageId.META);
+	}
+
+	/**
+	 * @return the number of directory pages a meta page can point to
+	 */
+	public static int getMaxDirectoryPages() {
+		return (BufferPool.getPageSize() - 2 * INDEX_SIZE) / INDEX_SIZE;
+	}
+
+	/** Return a view of this page before it was modified
+	 -- used by recovery */
+	public HashMetaPage getBeforeImage() {
+		try {
+			return new HashMetaPage(pid, getBeforeImageData());
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(globalDepth);
+			dos.writeInt(numDirectoryPages);
+			for (int p : directoryPages) {
+				dos.writeInt(p);
+			}
+			dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	/** @return the number of low bits of a hash that select its bucket */
+	public int getGlobalDepth() {
+		return globalDepth;
+	}
+
+	public void setGlobalDepth(int globalDepth) {
+		this.globalDepth = globalDepth;
+	}
+
+	/** @return the number of entries in the directory */
+	public int getDirectorySize() {
+		return 1 << globalDepth;
+	}
+
+	public int getNumDirectoryPages() {
+		return numDirectoryPages;
+	}
+
+	/**
+	 * @return the id of the i-th directory page
+	 */
+	public HashPageId getDirectoryPageId(int i) {
+		if (i < 0 || i >= numDirectoryPages) {
+			throw new IllegalArgumentException("no directory page " + i);
+		}
+		return new HashPageId(pid.getTableId(), directoryPages[i], HashPageId.DIRECTORY);
+	}
+
+	/**
+	 * Append a page to the directory.
+	 * @param id - the id of the new directory page
+	 * @throws DbException if the id is invalid or the meta page is full
+	 */
+	public void addDirectoryPage(HashPageId id) throws DbException {
+		if (id.getTableId() != pid.getTableId() || id.pgcateg() != HashPageId.DIRECTORY) {
+			throw new DbException("not a directory page of this file: " + id);
+		}
+		if (numDirectoryPages == directoryPages.length) {
+			throw new DbException("the directory cannot grow any further");
+		}
+		directoryPages[numDirectoryPages++] = id.getPageNumber();
+	}
+}
@@ -0,0 +1,92 @@
+package simpledb.index;
+
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.transaction.TransactionId;
+
+/**
+ * HashPage holds what the pages of a HashFile have in common: their id, and
+ * the dirty bit, LSN and before image the BufferPool and recovery keep for
+ * every page.
+ *
+ * @see HashFile
+ * @see BufferPool
+ *
+ */
+public abstract class HashPage implements Page {
+	protected volatile boolean dirty = false;
+	protected volatile TransactionId dirtier = null;
+	protected volatile long lsn = LogFile.NO_LSN;
+
+	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	protected final HashPageId pid;
+	protected byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	protected HashPage(HashPageId id) {
+		this.pid = id;
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashPage of any kind.
+	 * Used to add new, empty pages to the file.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = getPageData().clone();
+		}
+	}
+
+	/** @return the page data of the before image */
+	protected byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			return oldData;
+		}
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+}
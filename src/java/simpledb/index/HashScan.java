@@ -0,0 +1,141 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * HashScan is an operator which reads the tuples of a hash index that match
+ * a predicate.  An EQUALS predicate only reads the bucket of its key; tuples
+ * come in no particular order.
+ */
+public class HashScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private TupleDesc myTd;
+	private final IndexPredicate ipred;
+	private transient DbFileIterator it;
+	private String tablename;
+	private String alias;
+
+	/**
+	 * Creates a hash index scan over the specified table as a part of the
+	 * specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser); the returned
+	 *            tupleDesc should have fields with name tableAlias.fieldName
+	 * @param ipred
+	 * 			  The index predicate to match. If null, the scan will return all tuples
+	 */
+	public HashScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.ipred = ipred;
+		reset(tableid, tableAlias);
+	}
+
+	public HashScan(TransactionId tid, int tableid, IndexPredicate ipred) {
+		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
+	}
+
+	/**
+	 * @return
+	 *       return the table name of the table the operator scans. This should
+	 *       be the actual name of the table in the catalog of the database
+	 * */
+	public String getTableName() {
+		return this.tablename;
+	}
+
+	/**
+	 * @return Return the alias of the table this operator scans.
+	 * */
+	public String getAlias()
+	{
+		return this.alias;
+	}
+
+	/**
+	 * Reset the tableid, and tableAlias of this operator.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser)
+	 */
+	public void reset(int tableid, String tableAlias) {
+		this.isOpen = false;
+		this.alias = tableAlias;
+		this.tablename = Database.getCatalog().getTableName(tableid);
+		if (ipred == null) {
+			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+		}
+		else {
+			this.it = ((HashFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+		}
+		myTd = Database.getCatalog().getTupleDesc(tableid);
+		String[] newNames = new String[myTd.numFields()];
+		Type[] newTypes = new Type[myTd.numFields()];
+		for (int i = 0; i < myTd.numFields(); i++) {
+			newNames[i] = tableAlias + "." + myTd.getFieldName(i);
+			newTypes[i] = myTd.getFieldType(i);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc with field names from the underlying HashFile,
+	 * prefixed with the tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		return it.next();
+	}
+
+	public void close() {
+		it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
@@ -0,0 +1,153 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexOnlyScan reads the fields of a heap table that a SecondaryIndex covers
+ * straight from the entries of the index, in key order, without visiting the
+ * heap file.  Its tuples hold the indexed field followed by the included fields
+ * of the index; the other fields of the table are not available.
+ *
+ * @see SecondaryIndex#getCoveredFields
+ */
+public class IndexOnlyScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private final IndexPredicate ipred;
+	private final TupleDesc myTd;
+	private final String tablename;
+	private final String alias;
+	private transient DbFileIterator it;
+
+	/**
+	 * Creates an index-only scan as a part of the specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to scan.
+	 * @param tableAlias
+	 *            the alias of the indexed table (needed by the parser); the
+	 *            returned tupleDesc has fields with name tableAlias.fieldName.
+	 * @param ipred
+	 *            The predicate on the indexed field that tuples must match. If
+	 *            null, the scan returns the covered fields of every tuple.
+	 */
+	public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		this.tablename = Database.getCatalog().getTableName(index.getTableId());
+
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		int[] covered = index.getCoveredFields();
+		String[] newNames = new String[covered.length];
+		Type[] newTypes = new Type[covered.length];
+		for (int i = 0; i < covered.length; i++) {
+			newNames[i] = tableAlias + "." + td.getFieldName(covered[i]);
+			newTypes[i] = td.getFieldType(covered[i]);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	/**
+	 * @return the name of the table the operator scans, as it appears in the catalog
+	 */
+	public String getTableName() {
+		return this.tablename;
+	}
+
+	/**
+	 * @return the alias of the table this operator scans
+	 */
+	public String getAlias() {
+		return this.alias;
+	}
+
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		DbFileIterator entries = ipred == null ? index.getFile().iterator(tid)
+				: index.getFile().indexIterator(tid, ipred);
+		it = new AbstractDbFileIterator() {
+			public void open() throws DbException, TransactionAbortedException {
+				entries.open();
+			}
+
+			protected Tuple readNext() throws DbException, TransactionAbortedException {
+				if (!entries.hasNext())
+					return null;
+				return index.coveredFieldsOf(entries.next(), myTd);
+			}
+
+			public void rewind() throws DbException, TransactionAbortedException {
+				close();
+				open();
+			}
+
+			public void close() {
+				super.close();
+				entries.close();
+			}
+		};
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the covered fields, with field names prefixed
+	 * with the tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		return it.next();
+	}
+
+	public void close() {
+		if (it != null)
+			it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
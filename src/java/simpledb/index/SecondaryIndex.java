@@ -0,0 +1,292 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * SecondaryIndex is a B+ tree over one field of a heap table.  For every tuple
+ * of the table, the tree holds an entry (key, page, slot): the value of the
+ * indexed field and the RecordId of the tuple within the heap file.  Entries
+ * with the same key are ordered arbitrarily.
+ * <p>
+ * A covering index also copies some other fields of the tuple, its included
+ * fields, into each entry after the slot.  A query that reads nothing but the
+ * key and included fields of a table can then be answered from the index
+ * alone, without visiting the heap file (see {@link IndexOnlyScan}).
+ * <p>
+ * Indexes are registered in the Catalog against their table, and the
+ * BufferPool keeps them up to date as tuples are inserted into and deleted
+ * from the table.  The tree itself is an ordinary BTreeFile, whose pages are
+ * read and locked through the BufferPool like those of any other file.
+ *
+ * @see simpledb.common.Catalog#addIndex
+ * @see SecondaryIndexScan
+ * @see IndexOnlyScan
+ */
+public class SecondaryIndex {
+
+	/** the fields of an entry, after the key */
+	private static final int PAGE_FIELD = 1;
+	private static final int SLOT_FIELD = 2;
+	private static final int FIRST_INCLUDED_FIELD = 3;
+
+	/** The default number of entries {@link #create} sorts in memory at a time */
+	public static final int DEFAULT_SORT_RUN_SIZE = 1 << 16;
+
+	private static volatile int sortRunSize = DEFAULT_SORT_RUN_SIZE;
+
+	/**
+	 * Set the number of entries that {@link #create} holds in memory while it
+	 * sorts the entries of a new index.  A table with more tuples is sorted in
+	 * runs of this size, which are spilled to temporary files and merged.
+	 */
+	public static void setSortRunSize(int entries) {
+		sortRunSize = entries;
+	}
+
+	public static int getSortRunSize() {
+		return sortRunSize;
+	}
+
+	private final String name;
+	private final int tableid;
+	private final int field;
+	private final int[] included;
+	private final BTreeFile file;
+
+	/**
+	 * Open an existing index.  Use {@link #create} to build a new one.
+	 *
+	 * @param name - the name of the index
+	 * @param tableid - the heap table that is indexed
+	 * @param field - the indexed field of the table
+	 * @param included - the fields of the table copied into each entry, in order
+	 * @param f - the file holding the B+ tree
+	 */
+	public SecondaryIndex(String name, int tableid, int field, int[] included, File f) {
+		this.name = name;
+		this.tableid = tableid;
+		this.field = field;
+		this.included = included.clone();
+
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		Type[] types = new Type[FIRST_INCLUDED_FIELD + included.length];
+		String[] names = new String[types.length];
+		types[0] = td.getFieldType(field);
+		names[0] = td.getFieldName(field);
+		types[PAGE_FIELD] = Type.INT_TYPE;
+		names[PAGE_FIELD] = "page";
+		types[SLOT_FIELD] = Type.INT_TYPE;
+		names[SLOT_FIELD] = "slot";
+		for(int i = 0; i < included.length; i++) {
+			types[FIRST_INCLUDED_FIELD + i] = td.getFieldType(included[i]);
+			names[FIRST_INCLUDED_FIELD + i] = td.getFieldName(included[i]);
+		}
+		this.file = new BTreeFile(f, 0, new TupleDesc(types, names));
+	}
+
+	/**
+	 * Open an existing index without included fields.
+	 */
+	public SecondaryIndex(String name, int tableid, int field, File f) {
+		this(name, tableid, field, new int[0], f);
+	}
+
+	/**
+	 * Build an index over the given field of a heap table from the tuples already in
+	 * it, and register it in the Catalog.  The entries are sorted, in runs of at
+	 * most {@link #getSortRunSize} entries that are merged from temporary files, and
+	 * bulk loaded into an empty B+ tree, which replaces whatever f held before.  Once the
+	 * tree is on disk the index is recorded in the schema file the Catalog was
+	 * loaded from, if any (see {@link simpledb.common.Catalog#saveIndex}).  If the
+	 * load fails the index is left out of the Catalog.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param name - the name of the new index
+	 * @param tableid - the table to index
+	 * @param field - the field to index
+	 * @param included - the fields to copy into each entry, in order
+	 * @param f - the file to hold the index
+	 * @return the new index
+	 * @throws DbException if the table is not a heap file
+	 */
+	public static SecondaryIndex create(TransactionId tid, String name, int tableid, int field, int[] included,
+			File f) throws DbException, IOException, TransactionAbortedException {
+		if(!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+			throw new DbException("secondary indexes need a heap table");
+		}
+		new FileOutputStream(f).close();
+		SecondaryIndex index = new SecondaryIndex(name, tableid, field, included, f);
+
+		boolean loaded = false;
+		try(ExternalSorter entries = new ExternalSorter(index.file.getTupleDesc(), 0, sortRunSize)) {
+			DbFileIterator it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+			it.open();
+			try {
+				while(it.hasNext()) {
+					entries.add(index.entryFor(it.next()));
+				}
+			} finally {
+				it.close();
+			}
+
+			// the load reads the new file through the buffer pool, which finds it in the
+			// Catalog, so the index is registered first and withdrawn if the load fails
+			Database.getCatalog().addIndex(index);
+			try {
+				index.file.bulkLoad(tid, entries.sorted(), 1.0);
+			} catch(UncheckedIOException e) {
+				throw e.getCause();
+			}
+			Database.getCatalog().saveIndex(index);
+			loaded = true;
+		} finally {
+			if(!loaded) {
+				Database.getCatalog().removeIndex(index);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Build an index without included fields.
+	 *
+	 * @see #create(TransactionId, String, int, int, int[], File)
+	 */
+	public static SecondaryIndex create(TransactionId tid, String name, int tableid, int field, File f)
+			throws DbException, IOException, TransactionAbortedException {
+		return create(tid, name, tableid, field, new int[0], f);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** @return the id of the indexed table */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/** @return the indexed field of the table */
+	public int getField() {
+		return field;
+	}
+
+	/** @return the fields of the table copied into each entry, in order */
+	public int[] getIncluded() {
+		return included.clone();
+	}
+
+	/**
+	 * @return the fields of the table an entry holds a copy of: the key first,
+	 * followed by the included fields
+	 */
+	public int[] getCoveredFields() {
+		int[] covered = new int[1 + included.length];
+		covered[0] = field;
+		System.arraycopy(included, 0, covered, 1, included.length);
+		return covered;
+	}
+
+	/**
+	 * @return true if every one of the given fields of the table can be read from
+	 * an entry of this index
+	 */
+	public boolean covers(Collection<Integer> fields) {
+		for(int f : fields) {
+			boolean found = f == field;
+			for(int i = 0; !found && i < included.length; i++) {
+				found = included[i] == f;
+			}
+			if(!found) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the covered fields of an entry, in the order of {@link #getCoveredFields}
+	 */
+	public Tuple coveredFieldsOf(Tuple entry, TupleDesc td) {
+		Tuple t = new Tuple(td);
+		t.setField(0, entry.getField(0));
+		for(int i = 0; i < included.length; i++) {
+			t.setField(1 + i, entry.getField(FIRST_INCLUDED_FIELD + i));
+		}
+		return t;
+	}
+
+	/** @return the B+ tree holding the entries of this index */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * Add the entry for a tuple that was just inserted into the table.
+	 *
+	 * @param tid - the transaction inserting the tuple
+	 * @param t - the tuple, with its RecordId set
+	 */
+	public void insertEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getBufferPool().insertTuple(tid, file.getId(), entryFor(t));
+	}
+
+	/**
+	 * Remove the entry for a tuple that was just deleted from the table.
+	 *
+	 * @param tid - the transaction deleting the tuple
+	 * @param t - the tuple, still carrying the RecordId it was deleted from
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public void deleteEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, t.getField(field)));
+		Tuple entry = null;
+		it.open();
+		while(entry == null && it.hasNext()) {
+			Tuple e = it.next();
+			if(((IntField) e.getField(PAGE_FIELD)).getValue() == rid.getPageId().getPageNumber()
+					&& ((IntField) e.getField(SLOT_FIELD)).getValue() == rid.getTupleNumber()) {
+				entry = e;
+			}
+		}
+		it.close();
+		if(entry == null) {
+			throw new DbException("index " + name + " has no entry for " + rid);
+		}
+		// the entry was just read, so its own RecordId is current
+		Database.getBufferPool().deleteTuple(tid, entry);
+	}
+
+	/**
+	 * @return the RecordId in the table that an entry of this index points to
+	 */
+	public RecordId recordIdOf(Tuple entry) {
+		return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(PAGE_FIELD)).getValue()),
+				((IntField) entry.getField(SLOT_FIELD)).getValue());
+	}
+
+	private Tuple entryFor(Tuple t) {
+		RecordId rid = t.getRecordId();
+		Tuple entry = new Tuple(file.getTupleDesc());
+		entry.setField(0, t.getField(field));
+		entry.setField(PAGE_FIELD, new IntField(rid.getPageId().getPageNumber()));
+		entry.setField(SLOT_FIELD, new IntField(rid.getTupleNumber()));
+		for(int i = 0; i < included.length; i++) {
+			entry.setField(FIRST_INCLUDED_FIELD + i, t.getField(included[i]));
+		}
+		return entry;
+	}
+}
@@ -0,0 +1,155 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * SecondaryIndexScan is an access method which reads the tuples of a heap
+ * table that match a predicate on an indexed field.  It finds the matching
+ * entries in a SecondaryIndex, in key order, and fetches the tuple each one
+ * points to from the heap file.
+ */
+public class SecondaryIndexScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private final IndexPredicate ipred;
+	private final TupleDesc myTd;
+	private final String tablename;
+	private final String alias;
+	private transient DbFileIterator it;
+
+	/**
+	 * Creates a scan through a secondary index as a part of the specified
+	 * transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to scan; the tuples come from the table it indexes.
+	 * @param tableAlias
+	 *            the alias of the table (needed by the parser); the returned
+	 *            tupleDesc has fields with name tableAlias.fieldName.
+	 * @param ipred
+	 *            The predicate on the indexed field that tuples must match.
+	 */
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		this.tablename = Database.getCatalog().getTableName(index.getTableId());
+
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		String[] newNames = new String[td.numFields()];
+		Type[] newTypes = new Type[td.numFields()];
+		for (int i = 0; i < td.numFields(); i++) {
+			newNames[i] = tableAlias + "." + td.getFieldName(i);
+			newTypes[i] = td.getFieldType(i);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	/**
+	 * @return the name of the table the operator scans, as it appears in the catalog
+	 */
+	public String getTableName() {
+		return this.tablename;
+	}
+
+	/**
+	 * @return the alias of the table this operator scans
+	 */
+	public String getAlias() {
+		return this.alias;
+	}
+
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		DbFileIterator entries = index.getFile().indexIterator(tid, ipred);
+		it = new AbstractDbFileIterator() {
+			public void open() throws DbException, TransactionAbortedException {
+				entries.open();
+			}
+
+			protected Tuple readNext() throws DbException, TransactionAbortedException {
+				if (!entries.hasNext())
+					return null;
+				RecordId rid = index.recordIdOf(entries.next());
+				HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+				Tuple t = page.getTuple(rid.getTupleNumber());
+				if (t == null)
+					throw new DbException("index " + index.getName() + " points at empty slot " + rid);
+				return t;
+			}
+
+			public void rewind() throws DbException, TransactionAbortedException {
+				close();
+				open();
+			}
+
+			public void close() {
+				super.close();
+				entries.close();
+			}
+		};
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the indexed table, with field names prefixed with
+	 * the tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		return it.next();
+	}
+
+	public void close() {
+		if (it != null)
+			it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
@@ -0,0 +1,213 @@
+package simpledb.optimizer;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Predicate;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the constants of the {@link CostModel} on the local machine.  A
+ * heap file of random tuples is written, and the time taken to read its
+ * pages in order and at random, to apply a predicate to its tuples and to
+ * hash them is measured at a few sizes.  The cost of one more page or tuple
+ * is the slope of a least squares line through those times, which leaves
+ * out the fixed cost of starting each run.
+ * <p>
+ * Pages are read through {@link HeapFile#readPage}, as the buffer pool reads
+ * them, and so through the operating system's cache: a file that fits in
+ * memory measures the cache, and one larger than memory the disk.
+ * <p>
+ * Run as <tt>simpledb calibrate catalogFile [pages]</tt>; the file is
+ * written in the directory of the catalog, and is in the catalog of this
+ * process only while it is read.  The constants are saved next to the catalog,
+ * where the parser loads them from.
+ */
+public class CostCalibrator {
+
+    /** The default number of pages of the file read */
+    public static final int DEFAULT_PAGES = 2000;
+
+    /** The number of times each size is measured; the fastest time counts */
+    private static final int RUNS = 3;
+
+    /** The largest number of tuples held in memory for the tuple benchmarks */
+    private static final int MAX_TUPLES = 100000;
+
+    private static final int FIELDS = 4;
+
+    /** Keeps the results of the benchmarks, so that their work is not optimized away */
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: calibrate catalogFile [pages]");
+            return;
+        }
+        File catalog = new File(args[0]).getAbsoluteFile();
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PAGES;
+        CostModel model = calibrate(catalog.getParentFile(), pages);
+        File costsFile = new File(catalog.getPath() + CostModel.COSTS_FILE_SUFFIX);
+        model.save(costsFile, "measured on " + pages + " pages");
+        System.out.println("Saved " + model + " to " + costsFile);
+    }
+
+    /**
+     * Measure the constants of the cost model.
+     *
+     * @param dir
+     *            the directory to write the file that is read in
+     * @param pages
+     *            the number of pages of the file; at least 4
+     * @return the cost model measured, in units of the cost of applying a
+     *         predicate to a tuple
+     */
+    public static CostModel calibrate(File dir, int pages) throws IOException {
+        if (pages < 4)
+            throw new IllegalArgumentException("at least 4 pages are needed: " + pages);
+        Random random = new Random(0);
+        File f = File.createTempFile("calibrate", ".dat", dir);
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(FIELDS));
+        // pages find their schema in the catalog
+        Database.getCatalog().addTable(hf, f.getName());
+        try {
+            writeFile(hf, pages, random);
+
+            long[] pageCounts = {pages / 4, pages / 2, pages};
+            double seqNanos = slope(pageCounts, n -> readPages(hf, n, null));
+            double randomNanos = slope(pageCounts, n -> readPages(hf, n, random));
+
+            List<Tuple> tuples = new ArrayList<>();
+            for (int p = 0; p < pages && tuples.size() < MAX_TUPLES; p++) {
+                Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), p))).iterator();
+                while (it.hasNext() && tuples.size() < MAX_TUPLES)
+                    tuples.add(it.next());
+            }
+            long[] tupleCounts = {tuples.size() / 4, tuples.size() / 2, tuples.size()};
+            Predicate pred = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(0));
+            double tupleNanos = slope(tupleCounts, n -> filter(tuples, n, pred));
+            // each tuple is added to the table and then probed
+            double hashNanos = slope(tupleCounts, n -> hash(tuples, n)) / 2;
+
+            return new CostModel(seqNanos / tupleNanos, randomNanos / tupleNanos, 1,
+                    hashNanos / tupleNanos);
+        } finally {
+            Database.getCatalog().removeTable(hf.getId());
+            f.delete();
+        }
+    }
+
+    /** Write a heap file of full pages of random tuples */
+    private static void writeFile(HeapFile hf, int pages, Random random) throws IOException {
+        TupleDesc td = hf.getTupleDesc();
+        int perPage = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(hf.getFile()))) {
+            for (int p = 0; p < pages; p++) {
+                HeapPage page = new HeapPage(new HeapPageId(hf.getId(), p),
+                        HeapPage.createEmptyPageData());
+                for (int i = 0; i < perPage; i++) {
+                    Tuple t = new Tuple(td);
+                    for (int j = 0; j < FIELDS; j++)
+                        t.setField(j, new IntField(random.nextInt()));
+                    page.insertTuple(t);
+                }
+                out.write(page.getPageData());
+            }
+        } catch (DbException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Read the first n pages of a file, in order or, given random, at random */
+    private static void readPages(HeapFile hf, long n, Random random) {
+        int[] order = new int[(int) n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        if (random != null) {
+            for (int i = order.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        }
+        for (int pgNo : order)
+            sink += hf.readPage(new HeapPageId(hf.getId(), pgNo)).getId().getPageNumber();
+    }
+
+    private static void filter(List<Tuple> tuples, long n, Predicate pred) {
+        for (int i = 0; i < n; i++) {
+            if (pred.filter(tuples.get(i)))
+                sink++;
+        }
+    }
+
+    private static void hash(List<Tuple> tuples, long n) {
+        Map<Field, List<Tuple>> map = new HashMap<>();
+        for (int i = 0; i < n; i++)
+            map.computeIfAbsent(tuples.get(i).getField(1), k -> new ArrayList<>()).add(tuples.get(i));
+        for (int i = 0; i < n; i++) {
+            List<Tuple> matches = map.get(tuples.get(i).getField(1));
+            if (matches != null)
+                sink += matches.size();
+        }
+    }
+
+    private interface Benchmark {
+        void run(long n);
+    }
+
+    /**
+     * Time a benchmark at each size, once to warm up and then the fastest of
+     * {@link #RUNS} runs, and fit a line through the times.
+     *
+     * @return the slope of the line: the time in nanoseconds of each unit of
+     *         size, and at least 1e-3
+     */
+    private static double slope(long[] sizes, Benchmark benchmark) {
+        double[] nanos = new double[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            benchmark.run(sizes[i]);
+            nanos[i] = Double.MAX_VALUE;
+            for (int r = 0; r < RUNS; r++) {
+                long start = System.nanoTime();
+                benchmark.run(sizes[i]);
+                nanos[i] = Math.min(nanos[i], System.nanoTime() - start);
+            }
+        }
+        double meanX = 0, meanY = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            meanX += sizes[i];
+            meanY += nanos[i];
+        }
+        meanX /= sizes.length;
+        meanY /= sizes.length;
+        double sxy = 0, sxx = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sxy += (sizes[i] - meanX) * (nanos[i] - meanY);
+            sxx += (sizes[i] - meanX) * (sizes[i] - meanX);
+        }
+        // a noisy fit can come out flat; a cost is never free
+        double slope = sxx > 0 ? sxy / sxx : meanY / Math.max(1, meanX);
+        return Math.max(slope, 1e-3);
+    }
+}
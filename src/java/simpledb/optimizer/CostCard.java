@@ -5,13 +5,14 @@ import simpledb.optimizer.LogicalJoinNode;
 import java.util.List;
 
 /** Class returned by {@link JoinOptimizer#computeCostAndCardOfSubplan} specifying the
-    cost and cardinality of the optimal plan represented by plan.
+    cost and cardinality of joining two subplans, and the joins between them.
 */
 public class CostCard {
     /** The cost of the optimal subplan */
     public double cost;
     /** The cardinality of the optimal subplan */
     public int card;
-    /** The optimal subplan */
+    /** The joins between the two subplans, the first one being the join
+        that is performed */
     public List<LogicalJoinNode> plan;
 }
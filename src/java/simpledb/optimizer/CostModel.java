@@ -0,0 +1,145 @@
+package simpledb.optimizer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * The constants of the cost model the optimizer compares plans with.  Costs
+ * are in units of the work of applying a predicate to one tuple: a
+ * sequential page read costs {@link #getSeqPageCost} of those, a page read
+ * at random {@link #getRandomPageCost}, and hashing a tuple into or probing
+ * it against a hash table {@link #getHashTupleCost}.
+ * <p>
+ * The default model charges 1000 for any page read and 1 for any tuple, as
+ * the optimizer always has.  {@link CostCalibrator} measures the constants
+ * on the local machine and saves them, and the parser loads them from the
+ * file next to the catalog, see {@link #load}.
+ */
+public class CostModel {
+
+    /** The suffix of the cost model file kept next to a catalog file */
+    public static final String COSTS_FILE_SUFFIX = ".costs";
+
+    public static final CostModel DEFAULT = new CostModel(1000, 1000, 1, 1);
+
+    private static volatile CostModel current = DEFAULT;
+
+    private final double seqPageCost;
+    private final double randomPageCost;
+    private final double tupleCost;
+    private final double hashTupleCost;
+
+    /**
+     * @param seqPageCost
+     *            the cost of reading a page after the one before it
+     * @param randomPageCost
+     *            the cost of reading a page at random
+     * @param tupleCost
+     *            the cost of applying a predicate to a tuple
+     * @param hashTupleCost
+     *            the cost of adding a tuple to a hash table, or of looking
+     *            it up in one
+     */
+    public CostModel(double seqPageCost, double randomPageCost, double tupleCost,
+                     double hashTupleCost) {
+        if (!(seqPageCost > 0 && randomPageCost > 0 && tupleCost > 0 && hashTupleCost > 0))
+            throw new IllegalArgumentException("costs must be positive: " + toString(
+                    seqPageCost, randomPageCost, tupleCost, hashTupleCost));
+        this.seqPageCost = seqPageCost;
+        this.randomPageCost = randomPageCost;
+        this.tupleCost = tupleCost;
+        this.hashTupleCost = hashTupleCost;
+    }
+
+    /** @return the cost model the optimizer uses */
+    public static CostModel get() {
+        return current;
+    }
+
+    /** Set the cost model the optimizer uses from now on */
+    public static void set(CostModel model) {
+        current = model;
+    }
+
+    public double getSeqPageCost() {
+        return seqPageCost;
+    }
+
+    public double getRandomPageCost() {
+        return randomPageCost;
+    }
+
+    public double getTupleCost() {
+        return tupleCost;
+    }
+
+    public double getHashTupleCost() {
+        return hashTupleCost;
+    }
+
+    /**
+     * @return the cost of a sequential page read, as the whole number
+     *         {@link TableStats} takes, at least 1
+     */
+    public int getIoCostPerPage() {
+        return (int) Math.max(1, Math.min(Math.round(seqPageCost), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Read a cost model from a file written by {@link #save}, and use it
+     * from now on.  If there is no such file, or it cannot be read, the
+     * model in use is kept.
+     *
+     * @param costsFile
+     *            the cost model file, which need not exist
+     * @return true if the model was read
+     */
+    public static boolean load(File costsFile) {
+        if (!costsFile.exists())
+            return false;
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(costsFile)) {
+            props.load(in);
+            set(new CostModel(cost(props, "seqPageCost"), cost(props, "randomPageCost"),
+                    cost(props, "tupleCost"), cost(props, "hashTupleCost")));
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Ignoring cost model file " + costsFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static double cost(Properties props, String name) {
+        String value = props.getProperty(name);
+        if (value == null)
+            throw new IllegalArgumentException("no " + name);
+        return Double.parseDouble(value.trim());
+    }
+
+    /** Write this cost model to a file, replacing it */
+    public void save(File costsFile, String comment) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("seqPageCost", Double.toString(seqPageCost));
+        props.setProperty("randomPageCost", Double.toString(randomPageCost));
+        props.setProperty("tupleCost", Double.toString(tupleCost));
+        props.setProperty("hashTupleCost", Double.toString(hashTupleCost));
+        try (OutputStream out = new FileOutputStream(costsFile)) {
+            props.store(out, comment);
+        }
+    }
+
+    private static String toString(double seqPageCost, double randomPageCost, double tupleCost,
+                                    double hashTupleCost) {
+        return String.format("sequential page %.2f, random page %.2f, tuple %.2f, hash %.2f",
+                seqPageCost, randomPageCost, tupleCost, hashTupleCost);
+    }
+
+    public String toString() {
+        return toString(seqPageCost, randomPageCost, tupleCost, hashTupleCost);
+    }
+}
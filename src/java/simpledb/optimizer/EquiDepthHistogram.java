@@ -0,0 +1,308 @@
+package simpledb.optimizer;
+
+import simpledb.execution.Predicate;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A histogram over a single integer field, built once from a sample of its
+ * values.  The most common values are kept with their frequencies in a list
+ * of their own; the other values are split into buckets that each hold about
+ * the same number of them, so that a skewed column gets narrow buckets where
+ * its values are dense and wide ones where they are sparse.  No value is
+ * split across two buckets.
+ */
+public class EquiDepthHistogram implements Histogram {
+
+    /** the most common values in ascending order, and their frequencies */
+    private final int[] mcvValues;
+    private final double[] mcvFreqs;
+
+    /** the smallest and largest value, number of values and number of
+        distinct values of each bucket, buckets in ascending order */
+    private final int[] lows;
+    private final int[] highs;
+    private final int[] counts;
+    private final int[] distincts;
+
+    /** the number of values the histogram was built from */
+    private final int total;
+
+    /**
+     * Create a histogram of the given values.
+     *
+     * @param buckets
+     *            the largest number of buckets to split the values that are
+     *            not most common into
+     * @param maxMcvs
+     *            the largest number of most common values to keep
+     * @param values
+     *            the values to build the histogram from; not modified
+     */
+    public EquiDepthHistogram(int buckets, int maxMcvs, int[] values) {
+        this(buckets, maxMcvs, values, Integer.MAX_VALUE, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Create a histogram of a sample of the values of a field.
+     *
+     * @param buckets
+     *            the largest number of buckets to split the values that are
+     *            not most common into
+     * @param maxMcvs
+     *            the largest number of most common values to keep
+     * @param values
+     *            the sample to build the histogram from; not modified
+     * @param min
+     *            the smallest value of the field, which the sample may have
+     *            missed; the first bucket is widened to start at it
+     * @param max
+     *            the largest value of the field; the last bucket is widened
+     *            to end at it
+     */
+    public EquiDepthHistogram(int buckets, int maxMcvs, int[] values, int min, int max) {
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        total = sorted.length;
+
+        // run-length encode the sorted values
+        int[] runValues = new int[total];
+        int[] runCounts = new int[total];
+        int runs = 0;
+        for (int i = 0; i < total; i++) {
+            if (runs > 0 && runValues[runs - 1] == sorted[i]) {
+                runCounts[runs - 1]++;
+            } else {
+                runValues[runs] = sorted[i];
+                runCounts[runs] = 1;
+                runs++;
+            }
+        }
+
+        // a value is common if it occurs more than once and clearly more
+        // often than the average value does
+        boolean[] common = new boolean[runs];
+        int numMcvs = 0;
+        if (maxMcvs > 0 && runs > 0) {
+            double threshold = Math.max(2, 1.25 * total / runs);
+            Integer[] byCount = new Integer[runs];
+            for (int r = 0; r < runs; r++)
+                byCount[r] = r;
+            Arrays.sort(byCount, (a, b) -> Integer.compare(runCounts[b], runCounts[a]));
+            while (numMcvs < Math.min(maxMcvs, runs) && runCounts[byCount[numMcvs]] >= threshold) {
+                common[byCount[numMcvs]] = true;
+                numMcvs++;
+            }
+        }
+        mcvValues = new int[numMcvs];
+        mcvFreqs = new double[numMcvs];
+        int rest = total;
+        for (int r = 0, m = 0; r < runs; r++) {
+            if (common[r]) {
+                mcvValues[m] = runValues[r];
+                mcvFreqs[m] = (double) runCounts[r] / total;
+                rest -= runCounts[r];
+                m++;
+            }
+        }
+
+        // fill each bucket up to its share of the remaining values
+        int maxBuckets = Math.max(1, Math.min(buckets, rest));
+        int[] lows = new int[maxBuckets], highs = new int[maxBuckets];
+        int[] counts = new int[maxBuckets], distincts = new int[maxBuckets];
+        int b = -1, placed = 0;
+        for (int r = 0; r < runs; r++) {
+            if (common[r])
+                continue;
+            if (b < 0 || (b < maxBuckets - 1 && placed >= (long) rest * (b + 1) / maxBuckets)) {
+                b++;
+                lows[b] = runValues[r];
+            }
+            highs[b] = runValues[r];
+            counts[b] += runCounts[r];
+            distincts[b]++;
+            placed += runCounts[r];
+        }
+        int numBuckets = b + 1;
+        if (numBuckets > 0) {
+            lows[0] = Math.min(lows[0], min);
+            highs[numBuckets - 1] = Math.max(highs[numBuckets - 1], max);
+        }
+        this.lows = Arrays.copyOf(lows, numBuckets);
+        this.highs = Arrays.copyOf(highs, numBuckets);
+        this.counts = Arrays.copyOf(counts, numBuckets);
+        this.distincts = Arrays.copyOf(distincts, numBuckets);
+    }
+
+    private EquiDepthHistogram(int[] mcvValues, double[] mcvFreqs, int[] lows, int[] highs,
+                               int[] counts, int[] distincts, int total) {
+        this.mcvValues = mcvValues;
+        this.mcvFreqs = mcvFreqs;
+        this.lows = lows;
+        this.highs = highs;
+        this.counts = counts;
+        this.distincts = distincts;
+        this.total = total;
+    }
+
+    /** Write this histogram in the form {@link #read} reads it back from */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(total);
+        out.writeInt(mcvValues.length);
+        for (int m = 0; m < mcvValues.length; m++) {
+            out.writeInt(mcvValues[m]);
+            out.writeDouble(mcvFreqs[m]);
+        }
+        out.writeInt(lows.length);
+        for (int b = 0; b < lows.length; b++) {
+            out.writeInt(lows[b]);
+            out.writeInt(highs[b]);
+            out.writeInt(counts[b]);
+            out.writeInt(distincts[b]);
+        }
+    }
+
+    /** Read a histogram written by {@link #write} */
+    static EquiDepthHistogram read(DataInputStream in) throws IOException {
+        int total = in.readInt();
+        int numMcvs = in.readInt();
+        int[] mcvValues = new int[numMcvs];
+        double[] mcvFreqs = new double[numMcvs];
+        for (int m = 0; m < numMcvs; m++) {
+            mcvValues[m] = in.readInt();
+            mcvFreqs[m] = in.readDouble();
+        }
+        int numBuckets = in.readInt();
+        int[] lows = new int[numBuckets], highs = new int[numBuckets];
+        int[] counts = new int[numBuckets], distincts = new int[numBuckets];
+        for (int b = 0; b < numBuckets; b++) {
+            lows[b] = in.readInt();
+            highs[b] = in.readInt();
+            counts[b] = in.readInt();
+            distincts[b] = in.readInt();
+        }
+        return new EquiDepthHistogram(mcvValues, mcvFreqs, lows, highs, counts, distincts, total);
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on the
+     * values of this histogram.
+     *
+     * @param op Operator
+     * @param v Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        if (total == 0)
+            return 0;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return equals(v);
+        case NOT_EQUALS:
+            return 1 - equals(v);
+        case LESS_THAN:
+            return lessThan(v);
+        case LESS_THAN_OR_EQ:
+            return clamp(lessThan(v) + equals(v));
+        case GREATER_THAN:
+            return clamp(1 - lessThan(v) - equals(v));
+        case GREATER_THAN_OR_EQ:
+            return clamp(1 - lessThan(v));
+        default:
+            throw new IllegalArgumentException("invalid op " + op);
+        }
+    }
+
+    private static double clamp(double selectivity) {
+        return Math.max(0, Math.min(1, selectivity));
+    }
+
+    /** @return the estimated fraction of the values equal to v */
+    private double equals(int v) {
+        int m = Arrays.binarySearch(mcvValues, v);
+        if (m >= 0)
+            return mcvFreqs[m];
+        int b = bucketOf(v);
+        if (b < 0)
+            return 0;
+        // the values of a bucket are spread evenly over its distinct values
+        return (double) counts[b] / distincts[b] / total;
+    }
+
+    /** @return the estimated fraction of the values less than v */
+    private double lessThan(int v) {
+        double sel = 0;
+        for (int m = 0; m < mcvValues.length && mcvValues[m] < v; m++)
+            sel += mcvFreqs[m];
+        double below = 0;
+        int b = 0;
+        for (; b < lows.length && highs[b] < v; b++)
+            below += counts[b];
+        if (b < lows.length && lows[b] < v) {
+            // the part of the bucket below v, assuming its values are spread
+            // evenly from its smallest to its largest one
+            double width = (double) highs[b] - lows[b] + 1;
+            below += counts[b] * ((double) v - lows[b]) / width;
+        }
+        return clamp(sel + below / total);
+    }
+
+    /** @return the index of the bucket whose range holds v, or -1 if none */
+    private int bucketOf(int v) {
+        int lo = 0, hi = highs.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (highs[mid] < v)
+                lo = mid + 1;
+            else if (lows[mid] > v)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the probability that two values drawn at random from the
+     *         histogram are equal, the selectivity of an equality join of
+     *         the field with itself
+     */
+    public double avgSelectivity() {
+        if (total == 0)
+            return 0;
+        double sel = 0;
+        for (double f : mcvFreqs)
+            sel += f * f;
+        for (int b = 0; b < counts.length; b++) {
+            double f = (double) counts[b] / distincts[b] / total;
+            sel += distincts[b] * f * f;
+        }
+        return sel;
+    }
+
+    /** @return the estimated number of distinct values of the field */
+    public int numDistinct() {
+        int n = mcvValues.length;
+        for (int d : distincts)
+            n += d;
+        return n;
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("mcv:");
+        for (int m = 0; m < mcvValues.length; m++)
+            sb.append(String.format(" %d=%.4f", mcvValues[m], mcvFreqs[m]));
+        sb.append("\nbuckets:");
+        for (int b = 0; b < lows.length; b++)
+            sb.append(String.format(" [%d,%d]:%d/%d", lows[b], highs[b], counts[b], distincts[b]));
+        return sb.append("\n").toString();
+    }
+}
@@ -0,0 +1,320 @@
+package simpledb.optimizer;
+
+import simpledb.execution.Predicate;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A histogram over a single String field, built once from a sample of its
+ * values.  Like {@link EquiDepthHistogram} it keeps the most common values
+ * and splits the others into buckets of about the same number of values,
+ * comparing whole strings rather than a prefix of them.  Within a bucket,
+ * strings are placed by the characters that follow the prefix its smallest
+ * and largest value share, so that buckets of strings with a long common
+ * prefix still tell their values apart.
+ * <p>
+ * The number of distinct values is taken from a {@link HyperLogLog} sketch
+ * of all the values read, since a sample misses most of the rare ones.
+ */
+public class EquiDepthStringHistogram implements Histogram {
+
+    /** The selectivity of a LIKE predicate on the values that are not most common */
+    static final double LIKE_SELECTIVITY = 0.1;
+
+    /** the number of characters after a shared prefix that place a string */
+    private static final int POSITION_CHARS = 6;
+
+    /** the most common values in ascending order, and their frequencies */
+    private final String[] mcvValues;
+    private final double[] mcvFreqs;
+
+    /** the smallest and largest value and number of values of each bucket,
+        buckets in ascending order */
+    private final String[] lows;
+    private final String[] highs;
+    private final int[] counts;
+
+    /** the number of values the histogram was built from */
+    private final int total;
+    /** the number of values that are not most common */
+    private final int rest;
+    private final long numDistinct;
+
+    /**
+     * Create a histogram of a sample of the values of a field.
+     *
+     * @param buckets
+     *            the largest number of buckets to split the values that are
+     *            not most common into
+     * @param maxMcvs
+     *            the largest number of most common values to keep
+     * @param values
+     *            the sample to build the histogram from; not modified
+     * @param numDistinct
+     *            the estimated number of distinct values of the field; the
+     *            number of distinct values in the sample is used if it is
+     *            larger
+     */
+    public EquiDepthStringHistogram(int buckets, int maxMcvs, String[] values, long numDistinct) {
+        String[] sorted = values.clone();
+        Arrays.sort(sorted);
+        total = sorted.length;
+
+        // run-length encode the sorted values
+        String[] runValues = new String[total];
+        int[] runCounts = new int[total];
+        int runs = 0;
+        for (int i = 0; i < total; i++) {
+            if (runs > 0 && runValues[runs - 1].equals(sorted[i])) {
+                runCounts[runs - 1]++;
+            } else {
+                runValues[runs] = sorted[i];
+                runCounts[runs] = 1;
+                runs++;
+            }
+        }
+        this.numDistinct = Math.max(numDistinct, runs);
+
+        // a value is common if it occurs more than once and clearly more
+        // often than the average value does
+        boolean[] common = new boolean[runs];
+        int numMcvs = 0;
+        if (maxMcvs > 0 && runs > 0) {
+            double threshold = Math.max(2, 1.25 * total / runs);
+            Integer[] byCount = new Integer[runs];
+            for (int r = 0; r < runs; r++)
+                byCount[r] = r;
+            Arrays.sort(byCount, (a, b) -> Integer.compare(runCounts[b], runCounts[a]));
+            while (numMcvs < Math.min(maxMcvs, runs) && runCounts[byCount[numMcvs]] >= threshold) {
+                common[byCount[numMcvs]] = true;
+                numMcvs++;
+            }
+        }
+        mcvValues = new String[numMcvs];
+        mcvFreqs = new double[numMcvs];
+        int rest = total;
+        for (int r = 0, m = 0; r < runs; r++) {
+            if (common[r]) {
+                mcvValues[m] = runValues[r];
+                mcvFreqs[m] = (double) runCounts[r] / total;
+                rest -= runCounts[r];
+                m++;
+            }
+        }
+        this.rest = rest;
+
+        // fill each bucket up to its share of the remaining values
+        int maxBuckets = Math.max(1, Math.min(buckets, rest));
+        String[] lows = new String[maxBuckets], highs = new String[maxBuckets];
+        int[] counts = new int[maxBuckets];
+        int b = -1, placed = 0;
+        for (int r = 0; r < runs; r++) {
+            if (common[r])
+                continue;
+            if (b < 0 || (b < maxBuckets - 1 && placed >= (long) rest * (b + 1) / maxBuckets)) {
+                b++;
+                lows[b] = runValues[r];
+            }
+            highs[b] = runValues[r];
+            counts[b] += runCounts[r];
+            placed += runCounts[r];
+        }
+        this.lows = Arrays.copyOf(lows, b + 1);
+        this.highs = Arrays.copyOf(highs, b + 1);
+        this.counts = Arrays.copyOf(counts, b + 1);
+    }
+
+    private EquiDepthStringHistogram(String[] mcvValues, double[] mcvFreqs, String[] lows,
+                                     String[] highs, int[] counts, int total, int rest,
+                                     long numDistinct) {
+        this.mcvValues = mcvValues;
+        this.mcvFreqs = mcvFreqs;
+        this.lows = lows;
+        this.highs = highs;
+        this.counts = counts;
+        this.total = total;
+        this.rest = rest;
+        this.numDistinct = numDistinct;
+    }
+
+    /** Write this histogram in the form {@link #read} reads it back from */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(total);
+        out.writeInt(rest);
+        out.writeLong(numDistinct);
+        out.writeInt(mcvValues.length);
+        for (int m = 0; m < mcvValues.length; m++) {
+            out.writeUTF(mcvValues[m]);
+            out.writeDouble(mcvFreqs[m]);
+        }
+        out.writeInt(lows.length);
+        for (int b = 0; b < lows.length; b++) {
+            out.writeUTF(lows[b]);
+            out.writeUTF(highs[b]);
+            out.writeInt(counts[b]);
+        }
+    }
+
+    /** Read a histogram written by {@link #write} */
+    static EquiDepthStringHistogram read(DataInputStream in) throws IOException {
+        int total = in.readInt();
+        int rest = in.readInt();
+        long numDistinct = in.readLong();
+        int numMcvs = in.readInt();
+        String[] mcvValues = new String[numMcvs];
+        double[] mcvFreqs = new double[numMcvs];
+        for (int m = 0; m < numMcvs; m++) {
+            mcvValues[m] = in.readUTF();
+            mcvFreqs[m] = in.readDouble();
+        }
+        int numBuckets = in.readInt();
+        String[] lows = new String[numBuckets], highs = new String[numBuckets];
+        int[] counts = new int[numBuckets];
+        for (int b = 0; b < numBuckets; b++) {
+            lows[b] = in.readUTF();
+            highs[b] = in.readUTF();
+            counts[b] = in.readInt();
+        }
+        return new EquiDepthStringHistogram(mcvValues, mcvFreqs, lows, highs, counts,
+                total, rest, numDistinct);
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on the
+     * values of this histogram.
+     *
+     * @param op Operator
+     * @param s Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, String s) {
+        if (total == 0)
+            return 0;
+        switch (op) {
+        case EQUALS:
+            return equals(s);
+        case NOT_EQUALS:
+            return 1 - equals(s);
+        case LIKE:
+            return like(s);
+        case LESS_THAN:
+            return lessThan(s);
+        case LESS_THAN_OR_EQ:
+            return clamp(lessThan(s) + equals(s));
+        case GREATER_THAN:
+            return clamp(1 - lessThan(s) - equals(s));
+        case GREATER_THAN_OR_EQ:
+            return clamp(1 - lessThan(s));
+        default:
+            throw new IllegalArgumentException("invalid op " + op);
+        }
+    }
+
+    private static double clamp(double selectivity) {
+        return Math.max(0, Math.min(1, selectivity));
+    }
+
+    /** @return the estimated fraction of the values equal to s */
+    private double equals(String s) {
+        int m = Arrays.binarySearch(mcvValues, s);
+        if (m >= 0)
+            return mcvFreqs[m];
+        if (lows.length == 0 || s.compareTo(lows[0]) < 0 || s.compareTo(highs[highs.length - 1]) > 0)
+            return 0;
+        // the values that are not common are spread evenly over the
+        // distinct values that are not
+        long others = Math.max(1, numDistinct - mcvValues.length);
+        return (double) rest / total / others;
+    }
+
+    /**
+     * @return the estimated fraction of the values containing s, which is
+     *         exact for the most common values and a fixed guess for the rest
+     */
+    private double like(String s) {
+        double sel = 0;
+        for (int m = 0; m < mcvValues.length; m++) {
+            if (mcvValues[m].contains(s))
+                sel += mcvFreqs[m];
+        }
+        return clamp(sel + LIKE_SELECTIVITY * rest / total);
+    }
+
+    /** @return the estimated fraction of the values less than s */
+    private double lessThan(String s) {
+        double sel = 0;
+        for (int m = 0; m < mcvValues.length && mcvValues[m].compareTo(s) < 0; m++)
+            sel += mcvFreqs[m];
+        double below = 0;
+        int b = 0;
+        for (; b < lows.length && highs[b].compareTo(s) < 0; b++)
+            below += counts[b];
+        if (b < lows.length && lows[b].compareTo(s) < 0) {
+            // every string between the bounds of the bucket starts with the
+            // prefix they share, so the characters after it place s
+            int prefix = commonPrefix(lows[b], highs[b]);
+            double low = position(lows[b], prefix), high = position(highs[b], prefix);
+            double fraction = high > low ? (position(s, prefix) - low) / (high - low) : 0.5;
+            below += counts[b] * clamp(fraction);
+        }
+        return clamp(sel + below / total);
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i))
+            i++;
+        return i;
+    }
+
+    /**
+     * @return the characters of s from index prefix on, read as a fraction
+     *         in [0, 1) whose digits in base 256 are the characters
+     */
+    private static double position(String s, int prefix) {
+        double pos = 0, scale = 1;
+        for (int i = prefix; i < prefix + POSITION_CHARS && i < s.length(); i++) {
+            scale /= 256;
+            pos += Math.min(s.charAt(i), 255) * scale;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the probability that two values drawn at random from the
+     *         histogram are equal
+     */
+    public double avgSelectivity() {
+        if (total == 0)
+            return 0;
+        double sel = 0;
+        for (double f : mcvFreqs)
+            sel += f * f;
+        long others = Math.max(1, numDistinct - mcvValues.length);
+        double f = (double) rest / total / others;
+        return sel + others * f * f;
+    }
+
+    /** @return the estimated number of distinct values of the field */
+    public long numDistinct() {
+        return numDistinct;
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("distinct: ").append(numDistinct).append("\nmcv:");
+        for (int m = 0; m < mcvValues.length; m++)
+            sb.append(String.format(" '%s'=%.4f", mcvValues[m], mcvFreqs[m]));
+        sb.append("\nbuckets:");
+        for (int b = 0; b < lows.length; b++)
+            sb.append(String.format(" ['%s','%s']:%d", lows[b], highs[b], counts[b]));
+        return sb.append("\n").toString();
+    }
+}
@@ -0,0 +1,140 @@
+package simpledb.optimizer;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A HyperLogLog sketch, which estimates the number of distinct values added
+ * to it in a fixed, small amount of space.  Each value is hashed to 64 bits;
+ * the first bits of the hash pick one of 2^precision registers, which keeps
+ * the longest run of leading zeros seen in the rest of the hashes it was
+ * picked for.  With the default precision of 12 the sketch takes 4KB and the
+ * estimate is typically within 2% of the true count.
+ */
+public class HyperLogLog {
+
+    /** The default number of hash bits that pick a register */
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision
+     *            the number of hash bits that pick a register, from 4 to 16;
+     *            the sketch has 2^precision registers
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16)
+            throw new IllegalArgumentException("precision must be between 4 and 16: " + precision);
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /** Create a sketch holding the same values as other */
+    public HyperLogLog(HyperLogLog other) {
+        this.precision = other.precision;
+        this.registers = other.registers.clone();
+    }
+
+    /** Write this sketch in the form {@link #read} reads it back from */
+    void write(DataOutputStream out) throws IOException {
+        out.writeByte(precision);
+        out.write(registers);
+    }
+
+    /** Read a sketch written by {@link #write} */
+    static HyperLogLog read(DataInputStream in) throws IOException {
+        HyperLogLog sketch = new HyperLogLog(in.readByte());
+        in.readFully(sketch.registers);
+        return sketch;
+    }
+
+    /** Add a value with the given 64-bit hash to the sketch */
+    public void addHash(long hash) {
+        int index = (int) (hash >>> (Long.SIZE - precision));
+        // the bit after the hash bits left ends the run of zeros
+        long rest = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index])
+            registers[index] = rank;
+    }
+
+    public void add(int v) {
+        addHash(fmix64(v));
+    }
+
+    public void add(String s) {
+        addHash(hash64(s));
+    }
+
+    public void add(Field f) {
+        if (f.getType() == Type.INT_TYPE)
+            add(((IntField) f).getValue());
+        else
+            add(((StringField) f).getValue());
+    }
+
+    /**
+     * Add the values added to another sketch to this one.
+     *
+     * @throws IllegalArgumentException if the sketches differ in precision
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision)
+            throw new IllegalArgumentException("cannot merge sketches of precision "
+                    + precision + " and " + other.precision);
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+
+    /** @return the estimated number of distinct values added to the sketch */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += Math.scalb(1.0, -r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = m >= 128 ? 0.7213 / (1 + 1.079 / m) : m >= 64 ? 0.709 : m >= 32 ? 0.697 : 0.673;
+        double e = alpha * m * m / sum;
+        // few values leave registers empty, and counting those is more exact
+        if (e <= 2.5 * m && zeros > 0)
+            e = m * Math.log((double) m / zeros);
+        return Math.round(e);
+    }
+
+    /** The finalizer of MurmurHash3, which spreads the bits of k over the whole hash */
+    static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /** @return a 64-bit hash of all the characters of s */
+    static long hash64(String s) {
+        long h = 0xcbf29ce484222325L; // FNV-1a
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return fmix64(h);
+    }
+}
@@ -3,14 +3,11 @@ package simpledb.optimizer;
 import simpledb.common.DbException;
 import simpledb.execution.Predicate;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Collectors;
-
 /** A class to represent a fixed-width histogram over a single integer-based field.
  */
 public class IntHistogram implements Histogram {
-    List<Integer> bucketList;
+    final int[] bucketList;
+    int nTups = 0;
     int width;
     int min;
     int max;
@@ -46,10 +43,7 @@ public class IntHistogram implements Histogram {
 
         width = (max - min + 1) / buckets;
 
-        bucketList = new ArrayList<>();
-        for (int i = 0; i < buckets; i++) {
-            bucketList.add(0);
-        }
+        bucketList = new int[buckets];
     }
 
     /**
@@ -59,7 +53,8 @@ public class IntHistogram implements Histogram {
     public void addValue(int v) {
         // some code goes here
         int index = (v - min) / width;
-        this.bucketList.set(index, this.bucketList.get(index) + 1);
+        this.bucketList[index]++;
+        this.nTups++;
     }
 
     /**
@@ -100,7 +95,7 @@ public class IntHistogram implements Histogram {
             return 0;
         }
         int index = (v - min) / width;
-        int h = this.bucketList.get(index);
+        int h = this.bucketList[index];
 
         return ((double)h / width) / nTups();
     }
@@ -120,14 +115,14 @@ public class IntHistogram implements Histogram {
         }
 
         int index = (v - min) / width;
-        int h = this.bucketList.get(index);
+        int h = this.bucketList[index];
 
         double b_f = (double) h / nTups();
         int b_right_len = width -  (v - min) % width + 1;
         if (withEqual) b_right_len++;
         double b_part = b_right_len / (double) width;
 
-        return b_f * b_part + getSelectivity(index + 1, this.bucketList.size() - 1);
+        return b_f * b_part + getSelectivity(index + 1, this.bucketList.length - 1);
     }
 
     private double estimateSelectivity_LessThan(int v, boolean withEqual) {
@@ -145,7 +140,7 @@ public class IntHistogram implements Histogram {
         }
 
         int index = (v - min) / width;
-        int h = this.bucketList.get(index);
+        int h = this.bucketList[index];
 
         double b_f = (double) h / nTups();
         int b_left_len = (v - min) % width;
@@ -159,16 +154,16 @@ public class IntHistogram implements Histogram {
     // [s, e]
     private double getSelectivity(int s, int e) {
         s = Math.max(s, 0);
-        e = Math.min(e, this.bucketList.size() - 1);
-        int sum = 0;
+        e = Math.min(e, this.bucketList.length - 1);
+        long sum = 0;
         for (int i = s; i <= e; i++) {
-            sum += this.bucketList.get(i);
+            sum += this.bucketList[i];
         }
         return sum / (double) nTups();
     }
 
     private int nTups() {
-        return this.bucketList.stream().reduce(0, Integer::sum);
+        return this.nTups;
     }
 
     /**
@@ -193,7 +188,8 @@ public class IntHistogram implements Histogram {
         StringBuffer sb = new StringBuffer();
         sb.append(String.format("min: %s \t max: %s \t width: %d\n",
             min, max, width));
-        bucketList.forEach(s -> sb.append(s).append("\t"));
+        for (int b : bucketList)
+            sb.append(b).append("\t");
         sb.append("\n");
         return sb.toString();
     }
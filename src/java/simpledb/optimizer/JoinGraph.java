@@ -0,0 +1,225 @@
+package simpledb.optimizer;
+
+import simpledb.ParsingException;
+
+import java.util.*;
+
+/**
+ * The join graph of a query: one vertex per table alias taking part in a
+ * join, and one per subquery, with an edge for every join.  A set of
+ * vertices is a long bitmask, bit i standing for vertex i, so a graph has
+ * at most {@link #MAX_VERTICES} vertices.
+ * <p>
+ * Vertices are numbered breadth first, one connected component after
+ * another, which is the numbering {@link #enumerateCsgCmpPairs} relies on.
+ */
+class JoinGraph {
+
+    /** The largest number of vertices a set of vertices can hold */
+    static final int MAX_VERTICES = Long.SIZE;
+
+    /** Visitor of the pairs enumerated by {@link #enumerateCsgCmpPairs} */
+    interface PairVisitor {
+        void visit(long s1, long s2) throws ParsingException;
+    }
+
+    private final List<LogicalJoinNode> joins;
+    /** vertex of the t1 and t2 side of each join, as one-bit sets */
+    private final long[] t1Sets, t2Sets;
+    /** the table alias of each vertex, or null for a subquery */
+    private final String[] aliases;
+    private final long[] neighbors;
+    private final List<Long> components = new ArrayList<>();
+
+    /**
+     * Build the join graph of a list of joins.
+     *
+     * @throws ParsingException if the joins have more than MAX_VERTICES
+     *         tables and subqueries
+     */
+    JoinGraph(List<LogicalJoinNode> joins) throws ParsingException {
+        this.joins = joins;
+
+        // adjacency by name first: a subquery is keyed by its join node
+        Map<Object, List<Object>> adjacent = new LinkedHashMap<>();
+        for (LogicalJoinNode j : joins) {
+            Object t1 = j.t1Alias;
+            Object t2 = j instanceof LogicalSubplanJoinNode ? j : j.t2Alias;
+            adjacent.computeIfAbsent(t1, k -> new ArrayList<>()).add(t2);
+            adjacent.computeIfAbsent(t2, k -> new ArrayList<>()).add(t1);
+        }
+        if (adjacent.size() > MAX_VERTICES)
+            throw new ParsingException("too many tables to join: " + adjacent.size());
+
+        Map<Object, Integer> vertexOf = new HashMap<>();
+        aliases = new String[adjacent.size()];
+        for (Object start : adjacent.keySet()) {
+            if (vertexOf.containsKey(start))
+                continue;
+            int first = vertexOf.size();
+            Deque<Object> queue = new ArrayDeque<>();
+            queue.add(start);
+            vertexOf.put(start, first);
+            while (!queue.isEmpty()) {
+                Object v = queue.poll();
+                aliases[vertexOf.get(v)] = v instanceof String ? (String) v : null;
+                for (Object w : adjacent.get(v)) {
+                    if (!vertexOf.containsKey(w)) {
+                        vertexOf.put(w, vertexOf.size());
+                        queue.add(w);
+                    }
+                }
+            }
+            components.add(range(first, vertexOf.size()));
+        }
+
+        neighbors = new long[aliases.length];
+        t1Sets = new long[joins.size()];
+        t2Sets = new long[joins.size()];
+        for (int i = 0; i < joins.size(); i++) {
+            LogicalJoinNode j = joins.get(i);
+            int v1 = vertexOf.get(j.t1Alias);
+            int v2 = vertexOf.get(j instanceof LogicalSubplanJoinNode ? j : j.t2Alias);
+            t1Sets[i] = 1L << v1;
+            t2Sets[i] = 1L << v2;
+            if (v1 != v2) {
+                neighbors[v1] |= t2Sets[i];
+                neighbors[v2] |= t1Sets[i];
+            }
+        }
+    }
+
+    /** @return the set of the vertices from first up to, but not including, end */
+    private static long range(int first, int end) {
+        long upTo = end == MAX_VERTICES ? -1L : (1L << end) - 1;
+        return upTo & ~((1L << first) - 1);
+    }
+
+    int numVertices() {
+        return aliases.length;
+    }
+
+    /** @return the table alias of vertex v, or null if v is a subquery */
+    String getAlias(int v) {
+        return aliases[v];
+    }
+
+    /** @return the vertex sets of the connected components of this graph */
+    List<Long> getComponents() {
+        return components;
+    }
+
+    /** @return the vertices outside s that share a join with a vertex in s */
+    long neighborhood(long s) {
+        long n = 0;
+        for (long rest = s; rest != 0; rest &= rest - 1) {
+            n |= neighbors[Long.numberOfTrailingZeros(rest)];
+        }
+        return n & ~s;
+    }
+
+    /** @return the set of the vertices the given joins join */
+    long vertices(Collection<LogicalJoinNode> js) {
+        long s = 0;
+        for (int i = 0; i < joins.size(); i++) {
+            if (js.contains(joins.get(i)))
+                s |= t1Sets[i] | t2Sets[i];
+        }
+        return s;
+    }
+
+    /**
+     * @return the joins with one side in s1 and the other in s2, turned
+     * around where needed so that their t1 side is in s1, or null if one of
+     * them is a subquery join whose table is in s2, which can only be the
+     * outer of its join
+     */
+    List<LogicalJoinNode> joinsBetween(long s1, long s2) {
+        List<LogicalJoinNode> between = new ArrayList<>(1);
+        for (int i = 0; i < joins.size(); i++) {
+            if ((t1Sets[i] & s1) != 0 && (t2Sets[i] & s2) != 0) {
+                between.add(joins.get(i));
+            } else if ((t2Sets[i] & s1) != 0 && (t1Sets[i] & s2) != 0) {
+                LogicalJoinNode j = joins.get(i);
+                if (j instanceof LogicalSubplanJoinNode)
+                    return null;
+                between.add(j.swapInnerOuter());
+            }
+        }
+        return between;
+    }
+
+    /** @return the joins with both sides in s that join a vertex to itself */
+    List<LogicalJoinNode> loopsIn(long s) {
+        List<LogicalJoinNode> loops = new ArrayList<>();
+        for (int i = 0; i < joins.size(); i++) {
+            if (t1Sets[i] == t2Sets[i] && (t1Sets[i] & s) != 0)
+                loops.add(joins.get(i));
+        }
+        return loops;
+    }
+
+    /** @return the joins with both sides in s */
+    List<LogicalJoinNode> joinsIn(long s) {
+        List<LogicalJoinNode> in = new ArrayList<>();
+        for (int i = 0; i < joins.size(); i++) {
+            if (((t1Sets[i] | t2Sets[i]) & ~s) == 0)
+                in.add(joins.get(i));
+        }
+        return in;
+    }
+
+    /**
+     * Enumerate every pair of disjoint, connected sets of vertices of a
+     * component that some join connects, each pair once and in an order fit
+     * for dynamic programming: the pairs making up a set come before any
+     * pair that joins that set to another one.  This is the DPccp
+     * enumeration of Moerkotte and Neumann; unlike enumerating all subsets
+     * it never produces a set that would need a cross product, so it does
+     * no work for the pairs a sparse (chain or star) join graph lacks.
+     *
+     * @param component the vertices of a connected component of this graph
+     * @param visitor called with each pair
+     */
+    void enumerateCsgCmpPairs(long component, PairVisitor visitor) throws ParsingException {
+        for (long rest = component; rest != 0; rest &= ~Long.highestOneBit(rest)) {
+            long v = Long.highestOneBit(rest);
+            emitCsg(v, visitor);
+            enumerateCsgRec(v, v | (v - 1), visitor);
+        }
+    }
+
+    /** Extend the connected set s by the neighbors it has outside x */
+    private void enumerateCsgRec(long s, long x, PairVisitor visitor) throws ParsingException {
+        long n = neighborhood(s) & ~x;
+        for (long sub = n & -n; sub != 0; sub = (sub - n) & n) {
+            emitCsg(s | sub, visitor);
+        }
+        for (long sub = n & -n; sub != 0; sub = (sub - n) & n) {
+            enumerateCsgRec(s | sub, x | n, visitor);
+        }
+    }
+
+    /** Visit the connected set s1 with every connected complement to it */
+    private void emitCsg(long s1, PairVisitor visitor) throws ParsingException {
+        long lowest = s1 & -s1;
+        long x = s1 | (lowest - 1);
+        long n = neighborhood(s1) & ~x;
+        for (long rest = n; rest != 0; rest &= ~Long.highestOneBit(rest)) {
+            long v = Long.highestOneBit(rest);
+            visitor.visit(s1, v);
+            enumerateCmpRec(s1, v, x | (n & (v | (v - 1))), visitor);
+        }
+    }
+
+    /** Extend the complement s2 of s1 by the neighbors it has outside x */
+    private void enumerateCmpRec(long s1, long s2, long x, PairVisitor visitor) throws ParsingException {
+        long n = neighborhood(s2) & ~x;
+        for (long sub = n & -n; sub != 0; sub = (sub - n) & n) {
+            visitor.visit(s1, s2 | sub);
+        }
+        for (long sub = n & -n; sub != 0; sub = (sub - n) & n) {
+            enumerateCmpRec(s1, s2 | sub, x | n, visitor);
+        }
+    }
+}
@@ -16,8 +16,17 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    /**
+     * Default value for the largest number of connected tables that are
+     * ordered by exhaustive dynamic programming
+     */
+    public static final int DEFAULT_DP_THRESHOLD = 14;
+
+    private static volatile int dpThreshold = DEFAULT_DP_THRESHOLD;
+
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
+    private double planCost = 0;
 
     /**
      * Constructor
@@ -32,6 +41,23 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * Set the largest number of tables connected by joins that
+     * {@link #orderJoins} orders by dynamic programming.  The time that takes
+     * grows exponentially with the number of tables, so larger groups of
+     * tables are ordered greedily instead.
+     * 
+     * @param tables
+     *            the largest number of tables to order exhaustively
+     */
+    public static void setDpThreshold(int tables) {
+        dpThreshold = tables;
+    }
+
+    public static int getDpThreshold() {
+        return dpThreshold;
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -93,6 +119,32 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * Return an iterator that applies a logical join to a plan that already
+     * holds both of its sides, keeping the tuples whose fields satisfy it.
+     *
+     * @param lj
+     *            The join being applied
+     * @param plan
+     *            The plan that joins both tables of lj
+     */
+    public static OpIterator instantiateJoinFilter(LogicalJoinNode lj,
+                                                   OpIterator plan) throws ParsingException {
+        TupleDesc td = plan.getTupleDesc();
+        int t1id, t2id;
+        try {
+            t1id = td.fieldNameToIndex(lj.f1QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f1QuantifiedName);
+        }
+        try {
+            t2id = td.fieldNameToIndex(lj.f2QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f2QuantifiedName);
+        }
+        return new JoinFilter(new JoinPredicate(t1id, lj.p, t2id), plan);
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -100,7 +152,9 @@ public class JoinOptimizer {
      * algorithms) that you implemented for Lab 2. It should be a function of
      * the amount of data that must be read over the course of the query, as
      * well as the number of CPU opertions performed by your join. Assume that
-     * the cost of a single predicate application is roughly 1.
+     * the cost of a single predicate application is roughly 1.  The costs of
+     * applying a predicate to a pair of tuples and of hashing a tuple are
+     * taken from the {@link CostModel}, which is in the same units.
      * 
      * 
      * @param j
@@ -125,12 +179,18 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
+        } else if (j.p == Predicate.Op.EQUALS) {
+            // instantiateJoin uses HashEquiJoin: the outer is read into hash
+            // tables of MAP_SIZE tuples, and the inner is probed against
+            // each of them in turn
+            double passes = Math.max(1, Math.ceil((double) card1 / (HashEquiJoin.MAP_SIZE + 1)));
+            double hash = CostModel.get().getHashTupleCost();
+            return cost1 + card1 * hash + passes * (cost2 + card2 * hash);
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            // nested loops: scan the outer once and the inner once per outer
+            // tuple, and apply the predicate to every pair
+            return cost1 + card1 * cost2
+                    + (double) card1 * card2 * CostModel.get().getTupleCost();
         }
     }
 
@@ -167,53 +227,78 @@ public class JoinOptimizer {
     }
 
     /**
-     * Estimate the join cardinality of two tables.
+     * Estimate the join cardinality of two tables.  An equality join uses
+     * the number of distinct values of the field on each side, which for a
+     * primary key is the cardinality of its side: every value of the side
+     * with fewer of them is assumed to occur on the other side, so the join
+     * keeps 1/max(distinct values) of the cross product.  Without statistics
+     * for a side, each tuple of the other side is assumed to match one
+     * primary key, or, without one, a single tuple.
      * */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
                                                    String table1Alias, String table2Alias, String field1PureName,
                                                    String field2PureName, int card1, int card2, boolean t1pkey,
                                                    boolean t2pkey, Map<String, TableStats> stats,
                                                    Map<String, Integer> tableAliasToId) {
-        int card = 1;
-        // some code goes here
-        return card <= 0 ? 1 : card;
+        double card;
+        if (joinOp == Predicate.Op.EQUALS) {
+            long ndv1 = t1pkey ? Math.max(1, card1)
+                    : distinctValues(table1Alias, field1PureName, card1, stats, tableAliasToId);
+            long ndv2 = t2pkey ? Math.max(1, card2)
+                    : distinctValues(table2Alias, field2PureName, card2, stats, tableAliasToId);
+            if (ndv1 > 0 && ndv2 > 0)
+                card = (double) card1 * card2 / Math.max(ndv1, ndv2);
+            else if (t1pkey)
+                card = card2;
+            else if (t2pkey)
+                card = card1;
+            else
+                card = Math.max(card1, card2);
+        } else if (joinOp == Predicate.Op.NOT_EQUALS) {
+            card = (double) card1 * card2;
+        } else {
+            // a range join keeps a fixed fraction of the cross product
+            card = 0.3 * card1 * card2;
+        }
+        if (card > Integer.MAX_VALUE)
+            return Integer.MAX_VALUE;
+        return card <= 0 ? 1 : (int) card;
     }
 
     /**
-     * Helper method to enumerate all of the subsets of a given size of a
-     * specified vector.
-     * 
-     * @param v
-     *            The vector whose subsets are desired
-     * @param size
-     *            The size of the subsets of interest
-     * @return a set of all subsets of the specified size
+     * @return the number of distinct values of a field of a table in a join
+     *         input of the given cardinality, which can be no more than that
+     *         cardinality, or 0 if the table has no statistics
      */
-    public <T> Set<Set<T>> enumerateSubsets(List<T> v, int size) {
-        Set<Set<T>> els = new HashSet<>();
-        els.add(new HashSet<>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
-        for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = new HashSet<>(s);
-                    if (news.add(t))
-                        newels.add(news);
-                }
-            }
-            els = newels;
+    private static long distinctValues(String tableAlias, String field, int card,
+                                             Map<String, TableStats> stats,
+                                             Map<String, Integer> tableAliasToId) {
+        Integer tableId = tableAliasToId == null ? null : tableAliasToId.get(tableAlias);
+        if (tableId == null)
+            return 0;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return 0;
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        int index;
+        try {
+            index = td.fieldNameToIndex(field);
+        } catch (NoSuchElementException e) {
+            return 0;
         }
-
-        return els;
-
+        return Math.max(1, Math.min(s.numDistinct(index), card));
     }
 
     /**
-     * Compute a logical, reasonably efficient join on the specified tables. See
-     * PS4 for hints on how this should be implemented.
+     * Compute a logical, reasonably efficient join on the specified tables.
+     * The best plan for each connected set of tables is found by dynamic
+     * programming over the pairs of connected sets that some join connects,
+     * enumerated by {@link JoinGraph#enumerateCsgCmpPairs}.  Either side of a
+     * join can itself be a join, so plans are bushy: two filtered groups of
+     * tables can be joined separately and their results joined.  A connected set of more than {@link #getDpThreshold} tables is ordered
+     * greedily instead, see {@link #orderJoinsGreedily}.  Tables that no chain
+     * of joins connects are planned separately and left to be joined by a
+     * cross product.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -225,183 +310,240 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A List<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A List<LogicalJoinNode> that stores joins in an order in which
+     *         they can be executed: each join comes after the joins that
+     *         produce its inputs, and a join between tables that earlier
+     *         joins have already brought together comes after those joins.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
-     *             join, or or when another internal error occurs
+     *             join, when the joins have more than
+     *             {@link JoinGraph#MAX_VERTICES} tables, or when another
+     *             internal error occurs
      */
     public List<LogicalJoinNode> orderJoins(
             Map<String, TableStats> stats,
             Map<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
+        JoinGraph graph = new JoinGraph(joins);
+        PlanCache pc = new PlanCache();
+        List<LogicalJoinNode> order = new ArrayList<>();
+        planCost = 0;
+
+        for (long component : graph.getComponents()) {
+            for (long rest = component; rest != 0; rest &= rest - 1) {
+                addScanPlan(stats, filterSelectivities, graph,
+                        Long.numberOfTrailingZeros(rest), pc);
+            }
+            if (Long.bitCount(component) > dpThreshold) {
+                orderJoinsGreedily(stats, graph, component, pc);
+            } else {
+                graph.enumerateCsgCmpPairs(component, (s1, s2) -> {
+                    // either side can be the outer of the join
+                    addJoinPlan(stats, graph, s1, s2, pc);
+                    addJoinPlan(stats, graph, s2, s1, pc);
+                });
+            }
+            planCost += pc.getCost(component);
+            order.addAll(pc.getOrder(component));
+            // a join of a table with itself never connects two sets
+            order.addAll(graph.loopsIn(component));
+        }
+
+        if (explain)
+            printJoins(order, pc, graph, stats, filterSelectivities);
+        return order;
+    }
 
-        // some code goes here
-        //Replace the following
-        return joins;
+    /**
+     * @return the estimated cost of the joins the last call to
+     *         {@link #orderJoins} returned, summed over the groups of tables
+     *         that no join connects
+     */
+    public double getPlanCost() {
+        return planCost;
     }
 
     // ===================== Private Methods =================================
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * Add the plan that scans a single table, or reads a subquery, to pc.
+     * 
+     * @throws ParsingException
+     *             when stats or filterSelectivities is missing the table
+     */
+    private void addScanPlan(Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities, JoinGraph graph, int v,
+            PlanCache pc) throws ParsingException {
+        String alias = graph.getAlias(v);
+        if (alias == null) {
+            // a subquery is the inner of its join, which accounts for it
+            pc.addPlan(1L << v, 0, 0, 0, null);
+            return;
+        }
+        Integer tableId = this.p.getTableId(alias);
+        if (tableId == null)
+            throw new ParsingException("Unknown table " + alias);
+        String tableName = Database.getCatalog().getTableName(tableId);
+        TableStats s = stats.get(tableName);
+        Double selectivity = filterSelectivities.get(alias);
+        if (s == null || selectivity == null)
+            throw new ParsingException("No statistics for table " + alias);
+        pc.addPlan(1L << v, s.estimateScanCost(),
+                s.estimateTableCardinality(selectivity), 0, null);
+    }
+
+    /**
+     * Add the plan that joins the best plan for left, as the outer, to the
+     * best plan for right to pc, if it beats the best plan pc has so far for
+     * their union.
+     */
+    private void addJoinPlan(Map<String, TableStats> stats, JoinGraph graph,
+            long left, long right, PlanCache pc) {
+        long s = left | right;
+        double bestCostSoFar = pc.contains(s) ? pc.getCost(s)
+                : Double.POSITIVE_INFINITY;
+        CostCard cc = computeCostAndCardOfSubplan(stats, graph, left, right,
+                bestCostSoFar, pc);
+        if (cc != null)
+            pc.addPlan(s, cc.cost, cc.card, left, cc.plan);
+    }
+
+    /**
+     * Order the joins of a connected set of tables by greedy operator
+     * ordering: starting from plans that scan single tables, repeatedly make
+     * the join that has the smallest estimated result, breaking ties by cost,
+     * until a single plan joins every table.  This takes time polynomial in
+     * the number of tables, but the plan can be worse than the one dynamic
+     * programming finds; JoinOptimizerTest reports by how much.  Any two
+     * plans that a join connects can be joined, so plans are bushy.
      * 
      * @param stats
      *            table stats for all of the tables, referenced by table names
-     *            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
+     *            rather than alias
+     * @param graph
+     *            the join graph
+     * @param component
+     *            the tables to join, a connected set of vertices of graph
      * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     *            the PlanCache to add the plans made to; should have the
+     *            plans that scan each table
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
-            Map<String, TableStats> stats,
-            Map<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        List<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = new HashSet<>(joinSet);
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new ArrayList<>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias != null && isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+    private void orderJoinsGreedily(Map<String, TableStats> stats,
+            JoinGraph graph, long component, PlanCache pc)
+            throws ParsingException {
+        List<Long> plans = new ArrayList<>();
+        for (long rest = component; rest != 0; rest &= rest - 1) {
+            plans.add(rest & -rest);
+        }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+        while (plans.size() > 1) {
+            CostCard best = null;
+            long bestLeft = 0, bestRight = 0;
+            for (int i = 0; i < plans.size(); i++) {
+                for (int k = 0; k < plans.size(); k++) {
+                    long left = plans.get(i), right = plans.get(k);
+                    if (i == k || (graph.neighborhood(left) & right) == 0)
+                        continue;
+                    CostCard cc = computeCostAndCardOfSubplan(stats, graph,
+                            left, right, Double.POSITIVE_INFINITY, pc);
+                    if (cc != null && (best == null || cc.card < best.card
+                            || (cc.card == best.card && cc.cost < best.cost))) {
+                        best = cc;
+                        bestLeft = left;
+                        bestRight = right;
+                    }
+                }
             }
+            if (best == null)
+                throw new ParsingException("Cannot join tables "
+                        + Long.toBinaryString(component));
+
+            long joined = bestLeft | bestRight;
+            pc.addPlan(joined, best.cost, best.card, bestLeft, best.plan);
+            plans.remove(Long.valueOf(bestLeft));
+            plans.remove(Long.valueOf(bestRight));
+            plans.add(joined);
+        }
+    }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias != null && isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+    /**
+     * This is a helper method that computes the cost and cardinality of
+     * joining the best plan for the set of tables left, as the outer, to the
+     * best plan for the set of tables right, both of which must already be
+     * stored in PlanCache pc.
+     * 
+     * @param stats
+     *            table stats for all of the tables, referenced by table names
+     *            rather than alias (see {@link #orderJoins})
+     * @param graph
+     *            the join graph the sets of tables are sets of vertices of
+     * @param left
+     *            the tables of the outer
+     * @param right
+     *            the tables of the inner
+     * @param bestCostSoFar
+     *            the cost of the best way to join left and right found so far
+     * @param pc
+     *            the PlanCache for this join; should have plans for left and
+     *            right
+     * @return A {@link CostCard} object describing the cost and cardinality
+     *         of the plan and the joins between left and right, or null if
+     *         the plan is no cheaper than bestCostSoFar or cannot be built
+     *         with left as the outer
+     */
+    private CostCard computeCostAndCardOfSubplan(
+            Map<String, TableStats> stats, JoinGraph graph, long left,
+            long right, double bestCostSoFar, PlanCache pc) {
+        List<LogicalJoinNode> between = graph.joinsBetween(left, right);
+        if (between == null || between.isEmpty())
+            return null;
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+        double t1cost = pc.getCost(left), t2cost = pc.getCost(right);
+        int t1card = pc.getCard(left), t2card = pc.getCard(right);
+
+        // perform the join that gives the cheapest plan, and apply any others
+        // between the same tables after it
+        CostCard cc = null;
+        LogicalJoinNode best = null;
+        int[] cards = new int[between.size()];
+        for (int i = 0; i < between.size(); i++) {
+            LogicalJoinNode j = between.get(i);
+            boolean leftPkey = Long.bitCount(left) == 1 ? isPkey(j.t1Alias,
+                    j.f1PureName) : hasPkey(graph.joinsIn(left));
+            boolean rightPkey = j.t2Alias != null
+                    && (Long.bitCount(right) == 1 ? isPkey(j.t2Alias,
+                            j.f2PureName) : hasPkey(graph.joinsIn(right)));
+            double cost = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+            cards[i] = estimateJoinCardinality(j, t1card, t2card, leftPkey,
+                    rightPkey, stats);
+            if (cost >= bestCostSoFar)
+                continue;
+            if (cc == null || cost < cc.cost
+                    || (cost == cc.cost && cards[i] < cc.card)) {
+                cc = new CostCard();
+                cc.cost = cost;
+                cc.card = cards[i];
+                best = j;
             }
         }
-
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
-        }
-        if (cost1 >= bestCostSoFar)
+        if (cc == null)
             return null;
 
-        CostCard cc = new CostCard();
-
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = new ArrayList<>(prevBest);
-        cc.plan.add(j); // prevbest is left -- add new join to end
-        return cc;
-    }
-
-    /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
-     */
-    private boolean doesJoin(List<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+        // the other joins filter the result of the first one, each keeping
+        // the fraction of the pairs of tuples it would keep on its own
+        cc.plan = new ArrayList<>(between.size());
+        cc.plan.add(best);
+        double card = cc.card;
+        for (int i = 0; i < between.size(); i++) {
+            LogicalJoinNode j = between.get(i);
+            if (j == best)
+                continue;
+            cc.plan.add(j);
+            cc.cost += card * CostModel.get().getTupleCost();
+            card *= Math.min(1, cards[i] / Math.max(1, (double) t1card * t2card));
         }
-        return false;
+        cc.card = card < 1 ? 1 : (int) card;
+        return cc;
     }
 
     /**
@@ -443,6 +585,9 @@ public class JoinOptimizer {
      *            the join plan to visualize
      * @param pc
      *            the PlanCache accumulated whild building the optimal plan
+     * @param graph
+     *            the join graph the sets of tables in pc are sets of
+     *            vertices of
      * @param stats
      *            table statistics for base tables
      * @param selectivities
@@ -451,7 +596,7 @@ public class JoinOptimizer {
      *            alias is given)
      */
     private void printJoins(List<LogicalJoinNode> js, PlanCache pc,
-            Map<String, TableStats> stats,
+            JoinGraph graph, Map<String, TableStats> stats,
             Map<String, Double> selectivities) {
 
         JFrame f = new JFrame("Join Plan for " + p.getQuery());
@@ -483,12 +628,12 @@ public class JoinOptimizer {
             String table2Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t2Alias));
 
-            // Double c = pc.getCost(pathSoFar);
+            long joined = graph.vertices(pathSoFar);
             neither = true;
 
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
+            root = new DefaultMutableTreeNode("Join " + j + (pc.contains(joined)
+                    ? " (Cost =" + pc.getCost(joined) + ", card = "
+                            + pc.getCard(joined) + ")" : ""));
             DefaultMutableTreeNode n = m.get(j.t1Alias);
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
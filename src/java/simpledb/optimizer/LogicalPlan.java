@@ -4,6 +4,11 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.HashFile;
+import simpledb.index.HashScan;
+import simpledb.index.IndexOnlyScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -274,6 +279,158 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** The filter operators a secondary index can answer with a range of keys */
+    private static final Set<Predicate.Op> INDEXABLE_OPS = EnumSet.of(Predicate.Op.EQUALS,
+            Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+            Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ);
+
+    /** Convert the constant of filter lf into a Field of type ftyp */
+    private static Field filterConstant(LogicalFilterNode lf, Type ftyp) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c));
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /** Collect the fields of the table with the given alias that the query reads
+     *  anywhere: in its select list, filters, joins, aggregate, grouping or ordering.
+     *  @return the indexes of the fields in the table, or null if the query reads
+     *    all of them through a *
+     */
+    private Set<Integer> referencedFields(LogicalScanNode table) {
+        List<String> names = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return null;
+            names.add(si.fname);
+        }
+        names.add(groupByField);
+        if (hasAgg)
+            names.add(aggField);
+        if (hasOrderBy)
+            names.add(oByField);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.t1Alias + "." + lj.f1PureName);
+            names.add(lj.t2Alias + "." + lj.f2PureName);
+        }
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        Set<Integer> fields = new HashSet<>();
+        for (String name : names) {
+            if (name == null)
+                continue;
+            String[] parts = name.split("[.]");
+            if (parts.length == 2 && parts[0].equals(table.alias)) {
+                try {
+                    fields.add(td.fieldNameToIndex(parts[1]));
+                } catch (NoSuchElementException e) {
+                    return null; // reported when the plan is built
+                }
+            }
+        }
+        return fields;
+    }
+
+    /** Choose how to read the given table.  A filter on an indexed field can be
+     *  answered through the index, and if the query reads no field of the table
+     *  that an index does not cover, the index alone can stand in for the table.
+     *  A table stored in a {@link HashFile} answers an equality on its key by
+     *  reading one bucket.  The cheapest of these, by the table's statistics, is compared with a
+     *  sequential scan.  Of several filters only one is answered by the scan;
+     *  the others are still applied on top of it.
+     *  @param t The transaction that the scan will run as a part of
+     *  @param table the table to scan
+     *  @param s the statistics of the table, or null if there are none
+     *  @param indexedFilters the set to add the filter answered by the scan to
+     *  @return the scan through an index, or null if the table is best scanned
+     *    sequentially
+     */
+    private OpIterator chooseAccessPath(TransactionId t, LogicalScanNode table, TableStats s,
+                                        Set<LogicalFilterNode> indexedFilters) {
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        if (s == null || (Database.getCatalog().getIndexes(table.t).isEmpty() && !(file instanceof HashFile)))
+            return null;
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        Set<Integer> used = referencedFields(table);
+        SecondaryIndex bestIndex = null;
+        LogicalFilterNode bestFilter = null;
+        Field bestConstant = null;
+        boolean bestCovering = false;
+        double bestCost = s.estimateScanCost();
+        if (file instanceof HashFile) {
+            // a hash file answers an equality on its key from one bucket
+            int key = ((HashFile) file).keyField();
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(table.alias) || lf.p != Predicate.Op.EQUALS)
+                    continue;
+                try {
+                    if (td.fieldNameToIndex(lf.fieldPureName) != key)
+                        continue;
+                } catch (NoSuchElementException e) {
+                    continue;
+                }
+                Field c = filterConstant(lf, td.getFieldType(key));
+                double cost = s.estimateHashLookupCost(s.estimateSelectivity(key, lf.p, c));
+                if (cost < bestCost) {
+                    bestFilter = lf;
+                    bestConstant = c;
+                    bestCost = cost;
+                }
+            }
+        }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+            boolean covering = used != null && index.covers(used);
+            int indexPages = index.getFile().numPages();
+            if (covering && s.estimateIndexOnlyScanCost(indexPages, 1.0) < bestCost) {
+                bestIndex = index;
+                bestFilter = null;
+                bestCovering = true;
+                bestCost = s.estimateIndexOnlyScanCost(indexPages, 1.0);
+            }
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(table.alias) || !INDEXABLE_OPS.contains(lf.p))
+                    continue;
+                int field;
+                try {
+                    field = td.fieldNameToIndex(lf.fieldPureName);
+                } catch (NoSuchElementException e) {
+                    continue; // reported when the filter itself is planned
+                }
+                if (index.getField() != field)
+                    continue;
+                Field c = filterConstant(lf, td.getFieldType(field));
+                double sel = s.estimateSelectivity(field, lf.p, c);
+                double cost = covering ? s.estimateIndexOnlyScanCost(indexPages, sel)
+                        : s.estimateIndexScanCost(sel);
+                if (cost < bestCost) {
+                    bestIndex = index;
+                    bestFilter = lf;
+                    bestConstant = c;
+                    bestCovering = covering;
+                    bestCost = cost;
+                }
+            }
+        }
+        if (bestIndex == null) {
+            if (bestFilter == null)
+                return null;
+            indexedFilters.add(bestFilter);
+            return new HashScan(t, table.t, table.alias, new IndexPredicate(bestFilter.p, bestConstant));
+        }
+
+        IndexPredicate ipred = null;
+        if (bestFilter != null) {
+            indexedFilters.add(bestFilter);
+            ipred = new IndexPredicate(bestFilter.p, bestConstant);
+        }
+        if (bestCovering)
+            return new IndexOnlyScan(t, bestIndex, table.alias, ipred);
+        return new SecondaryIndexScan(t, bestIndex, table.alias, ipred);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -292,6 +449,7 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        Set<LogicalFilterNode> indexedFilters = new HashSet<>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -302,8 +460,9 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
-            subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
+            OpIterator is = chooseAccessPath(t, table, baseTableStats.get(baseTableName), indexedFilters);
+            subplanMap.put(table.alias, is != null ? is : ss);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
 
@@ -324,10 +483,7 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(lf, ftyp);
 
             Predicate p = null;
             try {
@@ -335,11 +491,16 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // a filter answered by the table's index scan needs no Filter of its own
+            if (!indexedFilters.contains(lf))
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // the statistics are kept by field of the table, which an index-only
+            // scan does not return in full
+            double sel = s.estimateSelectivity(Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias))
+                    .fieldNameToIndex(lf.fieldPureName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -380,6 +541,13 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
+            if (!isSubqueryJoin && t1name.equals(t2name)) {
+                // earlier joins already brought both tables into one plan, as
+                // for a second join between two tables or one closing a cycle
+                subplanMap.put(t1name, JoinOptimizer.instantiateJoinFilter(lj, plan1));
+                continue;
+            }
+
             OpIterator j;
             j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
             subplanMap.put(t1name, j);
@@ -5,6 +5,8 @@ import java.util.Arrays;
 import java.util.Iterator;
 
 import simpledb.execution.*;
+import simpledb.index.IndexOnlyScan;
+import simpledb.index.SecondaryIndexScan;
 import simpledb.storage.TupleDesc;
 import simpledb.storage.TupleDesc.TDItem;
 
@@ -16,6 +18,8 @@ public class QueryPlanVisualizer {
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "scan[%s]";
+    static final String INDEX_ONLY_SCAN = "index[%s]";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -67,24 +71,41 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof SecondaryIndexScan
+                || queryPlan instanceof IndexOnlyScan) {
+            String tableName;
+            String alias;
+            String scan;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = SCAN;
+            } else if (queryPlan instanceof SecondaryIndexScan) {
+                SecondaryIndexScan s = (SecondaryIndexScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = String.format(INDEX_SCAN, s.getIndex().getName());
+            } else {
+                IndexOnlyScan s = (IndexOnlyScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = String.format(INDEX_ONLY_SCAN, s.getIndex().getName());
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -219,6 +240,26 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof JoinFilter) {
+                JoinPredicate jp = ((JoinFilter) plan).getJoinPredicate();
+                TupleDesc td = children[0].getTupleDesc();
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT,
+                        td.getFieldName(jp.getField1()) + jp.getOperator()
+                        + td.getFieldName(jp.getField2()),plan.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (SELECT.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = SELECT.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - SELECT.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof OrderBy) {
                 OrderBy o = (OrderBy) plan;
                 thisNode.text = String.format(
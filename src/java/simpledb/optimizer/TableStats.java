@@ -2,6 +2,7 @@ package simpledb.optimizer;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
@@ -10,13 +11,36 @@ import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -28,8 +52,6 @@ public class TableStats {
 
     private static final ConcurrentMap<String, TableStats> statsMap = new ConcurrentHashMap<>();
 
-    static final int IOCOSTPERPAGE = 1000;
-
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
@@ -60,12 +82,212 @@ public class TableStats {
         System.out.println("Computing table stats.");
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
+            TableStats s = new TableStats(tableid, CostModel.get().getIoCostPerPage());
             setTableStats(Database.getCatalog().getTableName(tableid), s);
         }
         System.out.println("Done.");
     }
 
+    /** The suffix of the statistics file kept next to a catalog file */
+    public static final String STATS_FILE_SUFFIX = ".stats";
+
+    /** The first bytes of a statistics file, and the version of its format */
+    private static final int STATS_MAGIC = 0x53444253;
+    static final int STATS_VERSION = 2;
+
+    /**
+     * Set the statistics of every table in the catalog, reading them from a
+     * file written by {@link #saveStatistics} where it can and computing
+     * them where it cannot, as {@link #computeStatistics} does.  The
+     * statistics of a table are read only if the file holds them for a
+     * table of that name and schema whose heap file has not been written
+     * since they were built, with as many pages, and with no more tuples
+     * than fit in them; they go on counting the changes committed between
+     * when they were built and when they were saved.
+     * A file of another version, or that cannot be read, is ignored.  If
+     * any statistics were computed, the file is written again.
+     *
+     * @param statsFile
+     *            the statistics file, which need not exist
+     * @return the number of tables whose statistics were computed
+     */
+    public static int loadStatistics(File statsFile) {
+        Map<String, TableStats> stored = readStatistics(statsFile);
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        int computed = 0;
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats s = stored.get(name);
+            if (s == null) {
+                s = new TableStats(tableid, CostModel.get().getIoCostPerPage());
+                computed++;
+            }
+            setTableStats(name, s);
+        }
+        System.out.println("Loaded stats of " + (stored.size()) + " tables, computed "
+                + computed + ".");
+        if (computed > 0) {
+            try {
+                saveStatistics(statsFile);
+            } catch (IOException e) {
+                System.out.println("Could not save table stats: " + e.getMessage());
+            }
+        }
+        return computed;
+    }
+
+    /**
+     * Write the statistics of the tables in the catalog that are stored in
+     * heap files to a file, replacing it.  With the statistics go the page
+     * count and time of last change the heap file had when they were built,
+     * and the tuples committed transactions have inserted and deleted since.
+     * Those changes may still be only in the log and the buffer pool, with
+     * the heap file as it was; the statistics read back count them all the
+     * same.  Changes not yet committed are left out, as the check of the
+     * heap file when the statistics are read sees the pages they are
+     * written to.
+     *
+     * @param statsFile
+     *            the file to write
+     */
+    public static void saveStatistics(File statsFile) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<byte[]> bodies = new ArrayList<>();
+        for (Map.Entry<String, TableStats> e : statsMap.entrySet()) {
+            TableStats s = e.getValue();
+            if (!(s.dbFile instanceof HeapFile) || !isTable(e.getKey(), s.tableId))
+                continue;
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            s.write(new DataOutputStream(body));
+            names.add(e.getKey());
+            bodies.add(body.toByteArray());
+        }
+
+        File dir = statsFile.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(statsFile.getName(), ".tmp", dir);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(STATS_MAGIC);
+            out.writeInt(STATS_VERSION);
+            out.writeInt(BufferPool.getPageSize());
+            out.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                out.writeUTF(names.get(i));
+                out.writeInt(bodies.get(i).length);
+                out.write(bodies.get(i));
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), statsFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean isTable(String name, int tableid) {
+        try {
+            return Database.getCatalog().getTableId(name) == tableid;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the statistics in a statistics file that are still current,
+     *         by table name; none if the file does not exist, is of another
+     *         version or cannot be read
+     */
+    private static Map<String, TableStats> readStatistics(File statsFile) {
+        Map<String, TableStats> stored = new HashMap<>();
+        if (!statsFile.exists())
+            return stored;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(statsFile)))) {
+            if (in.readInt() != STATS_MAGIC || in.readInt() != STATS_VERSION
+                    || in.readInt() != BufferPool.getPageSize())
+                return stored;
+            int tables = in.readInt();
+            for (int i = 0; i < tables; i++) {
+                String name = in.readUTF();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                TableStats s = read(name, new DataInputStream(new ByteArrayInputStream(body)));
+                if (s != null)
+                    stored.put(name, s);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring table stats file " + statsFile + ": " + e);
+            stored.clear();
+        }
+        return stored;
+    }
+
+    /**
+     * Write the part of a statistics file that holds these statistics: the
+     * schema and state of the heap file they were built from, the changes
+     * committed since, then the statistics of each field.
+     */
+    private void write(DataOutputStream out) throws IOException {
+        TupleDesc td = dbFile.getTupleDesc();
+        out.writeInt(td.numFields());
+        for (int i = 0; i < td.numFields(); i++)
+            out.writeByte(td.getFieldType(i).ordinal());
+        out.writeInt(dataPages);
+        out.writeLong(dataModified);
+        out.writeInt(tableTupleNums);
+        out.writeLong(inserted.get());
+        out.writeLong(deleted.get());
+        for (int i = 0; i < td.numFields(); i++) {
+            out.writeLong(numDistinct[i]);
+            distinctSketches[i].write(out);
+            if (td.getFieldType(i).equals(Type.INT_TYPE))
+                ((EquiDepthHistogram) tableStats.get(i)).write(out);
+            else
+                ((EquiDepthStringHistogram) tableStats.get(i)).write(out);
+        }
+    }
+
+    /**
+     * Read the statistics of a table written by {@link #write}.
+     *
+     * @return the statistics, or null if there is no table of that name
+     *         in a heap file, or they are not current
+     */
+    private static TableStats read(String name, DataInputStream in) throws IOException {
+        int tableid;
+        try {
+            tableid = Database.getCatalog().getTableId(name);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile))
+            return null;
+        HeapFile hf = (HeapFile) file;
+        TupleDesc td = hf.getTupleDesc();
+        if (in.readInt() != td.numFields())
+            return null;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (in.readByte() != td.getFieldType(i).ordinal())
+                return null;
+        }
+        int pages = in.readInt();
+        long modified = in.readLong();
+        int tuples = in.readInt();
+        long inserted = in.readLong();
+        long deleted = in.readLong();
+        int perPage = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+        if (pages != hf.numPages() || modified != hf.getFile().lastModified()
+                || tuples < 0 || tuples > (long) pages * perPage || inserted < 0 || deleted < 0)
+            return null;
+        TableStats s = new TableStats(tableid, CostModel.get().getIoCostPerPage(), pages, modified,
+                tuples, in);
+        s.inserted.set(inserted);
+        s.deleted.set(deleted);
+        return s;
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -73,14 +295,142 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /** The largest number of most common values an integer field's histogram keeps */
+    static final int NUM_MCVS = 100;
+
+    /**
+     * The most distinct values of a field that are counted exactly while a
+     * table is read in full; a field with more is counted by its sketch
+     */
+    static final int MAX_EXACT_DISTINCT = 1 << 16;
+
+    /** The default number of tuples kept in the sample the histograms are built from */
+    public static final int DEFAULT_SAMPLE_SIZE = 30000;
+
+    /**
+     * The default number of pages read from a heap file with more pages than
+     * that; smaller files are read in full
+     */
+    public static final int DEFAULT_SAMPLE_PAGES = 1000;
+
+    private static volatile int sampleSize = DEFAULT_SAMPLE_SIZE;
+    private static volatile int samplePages = DEFAULT_SAMPLE_PAGES;
+
+    /**
+     * Set the number of tuples kept in the sample that the histograms of
+     * tables created after this call are built from.
+     */
+    public static void setSampleSize(int tuples) {
+        sampleSize = tuples;
+    }
+
+    public static int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Set the number of pages read from a heap file with more pages than
+     * that, for tables created after this call.  The pages are picked at
+     * random, and the number of tuples is estimated from them.
+     */
+    public static void setSamplePages(int pages) {
+        samplePages = pages;
+    }
+
+    public static int getSamplePages() {
+        return samplePages;
+    }
+
+    /**
+     * The default fraction of a table's tuples that can be inserted or
+     * deleted before its statistics are rebuilt
+     */
+    public static final double DEFAULT_REANALYZE_FRACTION = 0.2;
+
+    /** The fewest changes to a table that rebuild its statistics, however small it is */
+    static final int REANALYZE_MIN_CHANGES = 500;
+
+    private static volatile double reanalyzeFraction = DEFAULT_REANALYZE_FRACTION;
+
+    /**
+     * Set the fraction of a table's tuples, as of when its statistics were
+     * built, that can be inserted or deleted before the statistics are
+     * rebuilt in the background; at least {@link #REANALYZE_MIN_CHANGES}
+     * changes are always needed.
+     */
+    public static void setReanalyzeFraction(double fraction) {
+        reanalyzeFraction = fraction;
+    }
+
+    public static double getReanalyzeFraction() {
+        return reanalyzeFraction;
+    }
+
+    /** Statistics waiting to be rebuilt, and the daemon thread rebuilding
+        them, null once stopped; both guarded by reanalyzeQueue. */
+    private static final Deque<TableStats> reanalyzeQueue = new ArrayDeque<>();
+    private static Thread reanalyzer;
+
+    /** The tuples each running transaction inserted into and deleted from
+        each table, by table id, not yet counted in its statistics */
+    private static final ConcurrentMap<TransactionId, Map<Integer, Changes>> pending =
+            new ConcurrentHashMap<>();
+
+    /** What a transaction did to a table, and a sketch of the values of
+        each field of the tuples it inserted */
+    private static class Changes {
+        long inserted = 0;
+        long deleted = 0;
+        final HyperLogLog[] sketches;
+
+        Changes(int numFields) {
+            sketches = new HyperLogLog[numFields];
+            for (int i = 0; i < numFields; i++)
+                sketches[i] = new HyperLogLog();
+        }
+    }
+
     DbFile dbFile;
+    private final int tableId;
+    /** the number of pages and time of last change of the heap file these
+        statistics were built from, as they were before it was read */
+    private final int dataPages;
+    private final long dataModified;
     private List<Histogram> tableStats;
+    private HyperLogLog[] distinctSketches;
+    private long[] numDistinct;
     private int tableTupleNums = 0;
     private int ioCostPerPage;
 
+    /** the tuples inserted into and deleted from the table by transactions
+        that committed since these statistics were built */
+    private final AtomicLong inserted = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicBoolean reanalyzing = new AtomicBoolean();
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
-     * column of a table
+     * column of a table.
+     * <p>
+     * The table is read once.  Its tuples are counted and the minimum and
+     * maximum of each integer field kept as they stream by, while a
+     * reservoir sample of at most {@link #getSampleSize} tuples is drawn for
+     * the histograms; an integer field gets an {@link EquiDepthHistogram},
+     * with a list of its most common values, and a string field an
+     * {@link EquiDepthStringHistogram}.  Every value read is added to a
+     * {@link HyperLogLog} sketch of its field.  The distinct values of a
+     * field of a table read in full are counted exactly, unless there are
+     * more than {@link #MAX_EXACT_DISTINCT} of them, when the sketch counts
+     * them to within a few percent; so the same table always gets the same
+     * counts, and small tables get the true ones.  A heap file of more than {@link #getSamplePages}
+     * pages is not read in full: that many of its pages are read, picked at
+     * random, so the cost of building statistics does not grow with the
+     * size of the table.
+     * <p>
+     * Tuples inserted and deleted through the buffer pool afterwards are
+     * counted, and inserted ones added to the sketches, when their
+     * transaction commits, see {@link #transactionComplete}; the histograms stay as built until enough of
+     * the table has changed that new statistics are built in the background.
      * 
      * @param tableid
      *            The table over which to compute statistics
@@ -89,67 +439,383 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
         this.ioCostPerPage = ioCostPerPage;
+        this.tableId = tableid;
         this.dbFile = Database.getCatalog().getDatabaseFile(tableid);
+        if (dbFile instanceof HeapFile) {
+            this.dataModified = ((HeapFile) dbFile).getFile().lastModified();
+            this.dataPages = ((HeapFile) dbFile).numPages();
+        } else {
+            this.dataModified = 0;
+            this.dataPages = 0;
+        }
+
+        TupleDesc td = dbFile.getTupleDesc();
+        // seeded by table, so that the same table gives the same statistics
+        Random random = new Random(tableid);
+        Sampler sampler = new Sampler(td, Math.max(1, sampleSize), random);
+        TransactionId tid = new TransactionId();
+
+        Collection<Integer> pages = samplePageNumbers(random);
+        if (pages == null) {
+            DbFileIterator it = dbFile.iterator(tid);
+            try {
+                it.open();
+                while (it.hasNext()) {
+                    sampler.add(it.next());
+                }
+            } catch (DbException | TransactionAbortedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                it.close();
+            }
+            tableTupleNums = (int) Math.min(sampler.seen, Integer.MAX_VALUE);
+        } else {
+            try {
+                for (int pgNo : pages) {
+                    HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                            new HeapPageId(tableid, pgNo), Permissions.READ_ONLY);
+                    Iterator<Tuple> it = page.iterator();
+                    while (it.hasNext()) {
+                        sampler.add(it.next());
+                    }
+                }
+            } catch (DbException | TransactionAbortedException e) {
+                throw new RuntimeException(e);
+            }
+            double perPage = (double) sampler.seen / pages.size();
+            tableTupleNums = (int) Math.min(
+                    Math.round(perPage * dbFile.numPages()), Integer.MAX_VALUE);
+        }
+
+        distinctSketches = sampler.distinct;
+        numDistinct = new long[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            long n;
+            if (pages == null && sampler.exact.get(i) != null)
+                n = sampler.exact.get(i).size();
+            else if (pages == null)
+                n = sampler.distinct[i].estimate();
+            else
+                n = Math.max(sampler.distinct[i].estimate(),
+                        scaleDistinct(sampler.sample, i, tableTupleNums));
+            numDistinct[i] = Math.max(1, Math.min(n, tableTupleNums));
+        }
 
         tableStats = new ArrayList<>();
-        int[] minVal = new int[dbFile.getTupleDesc().numFields()];
-        int[] maxVal = new int[dbFile.getTupleDesc().numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i).equals(Type.INT_TYPE)) {
+                int[] values = new int[sampler.sample.size()];
+                for (int k = 0; k < values.length; k++)
+                    values[k] = ((IntField) sampler.sample.get(k).getField(i)).getValue();
+                tableStats.add(new EquiDepthHistogram(NUM_HIST_BINS, NUM_MCVS, values,
+                        sampler.minVal[i], sampler.maxVal[i]));
+            } else {
+                String[] values = new String[sampler.sample.size()];
+                for (int k = 0; k < values.length; k++)
+                    values[k] = ((StringField) sampler.sample.get(k).getField(i)).getValue();
+                tableStats.add(new EquiDepthStringHistogram(NUM_HIST_BINS, NUM_MCVS, values,
+                        numDistinct[i]));
+            }
+        }
+    }
 
-        DbFileIterator it = dbFile.iterator(new TransactionId());
-        try {
-            it.open();
-            while (it.hasNext()) {
-                addTuple(dbFile.getTupleDesc(), it.next(), minVal, maxVal);
-                tableTupleNums++;
+    /**
+     * Create the statistics of a table read from a statistics file, whose
+     * header has been checked already; see {@link #write}.
+     */
+    private TableStats(int tableid, int ioCostPerPage, int dataPages, long dataModified,
+                       int tuples, DataInputStream in) throws IOException {
+        this.ioCostPerPage = ioCostPerPage;
+        this.tableId = tableid;
+        this.dbFile = Database.getCatalog().getDatabaseFile(tableid);
+        this.dataPages = dataPages;
+        this.dataModified = dataModified;
+        this.tableTupleNums = tuples;
+        TupleDesc td = dbFile.getTupleDesc();
+        numDistinct = new long[td.numFields()];
+        distinctSketches = new HyperLogLog[td.numFields()];
+        tableStats = new ArrayList<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            numDistinct[i] = in.readLong();
+            distinctSketches[i] = HyperLogLog.read(in);
+            if (td.getFieldType(i).equals(Type.INT_TYPE))
+                tableStats.add(EquiDepthHistogram.read(in));
+            else
+                tableStats.add(EquiDepthStringHistogram.read(in));
+        }
+    }
+
+    /**
+     * Estimate the number of distinct values of a field of a table from a
+     * sample of its tuples, with the Duj1 estimator of Haas et al.: the
+     * values seen once in the sample stand for the values it missed.  The
+     * sketch of the pages read cannot see the values on the pages that were
+     * not, so this is used when only some of the pages were read.
+     *
+     * @param sample
+     *            a uniform random sample of the tuples of the table
+     * @param field
+     *            the index of the field
+     * @param total
+     *            the estimated number of tuples of the table
+     * @return the estimated number of distinct values of the field
+     */
+    private static long scaleDistinct(List<Tuple> sample, int field, long total) {
+        int n = sample.size();
+        if (n == 0)
+            return 0;
+        Map<Field, Integer> counts = new HashMap<>();
+        for (Tuple t : sample)
+            counts.merge(t.getField(field), 1, Integer::sum);
+        int once = 0;
+        for (int c : counts.values()) {
+            if (c == 1)
+                once++;
+        }
+        double d = counts.size();
+        return Math.round(n * d / (n - once + once * (double) n / Math.max(total, n)));
+    }
+
+    /**
+     * Keeps the minimum and maximum of each integer field of the tuples
+     * added to it, a sketch of the distinct values of each field, the
+     * distinct values themselves until there are more than
+     * {@link #MAX_EXACT_DISTINCT} of them, and a uniform random sample of at
+     * most capacity of the tuples.
+     */
+    private static class Sampler {
+        final TupleDesc td;
+        final int capacity;
+        final Random random;
+        final int[] minVal, maxVal;
+        final HyperLogLog[] distinct;
+        /** the distinct values of each field, or null once there are too many */
+        final List<Set<Field>> exact = new ArrayList<>();
+        final List<Tuple> sample = new ArrayList<>();
+        long seen = 0;
+
+        Sampler(TupleDesc td, int capacity, Random random) {
+            this.td = td;
+            this.capacity = capacity;
+            this.random = random;
+            minVal = new int[td.numFields()];
+            maxVal = new int[td.numFields()];
+            Arrays.fill(minVal, Integer.MAX_VALUE);
+            Arrays.fill(maxVal, Integer.MIN_VALUE);
+            distinct = new HyperLogLog[td.numFields()];
+            for (int i = 0; i < td.numFields(); i++) {
+                distinct[i] = new HyperLogLog();
+                exact.add(new HashSet<>());
             }
-        } catch (DbException | TransactionAbortedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            it.close();
         }
 
-        for (int i = 0; i < dbFile.getTupleDesc().numFields(); i++) {
-            Histogram h;
-            if (dbFile.getTupleDesc().getFieldType(i).equals(Type.INT_TYPE)) {
-                h = new IntHistogram(NUM_HIST_BINS, minVal[i], maxVal[i]);
+        void add(Tuple t) {
+            for (int i = 0; i < td.numFields(); i++) {
+                distinct[i].add(t.getField(i));
+                Set<Field> values = exact.get(i);
+                if (values != null && values.add(t.getField(i)) && values.size() > MAX_EXACT_DISTINCT)
+                    exact.set(i, null);
+                if (!td.getFieldType(i).equals(Type.INT_TYPE))
+                    continue;
+                int val = ((IntField) t.getField(i)).getValue();
+                minVal[i] = Math.min(minVal[i], val);
+                maxVal[i] = Math.max(maxVal[i], val);
+            }
+            // reservoir sampling: the tuple takes the place of a random one
+            // in the sample with probability capacity / (seen + 1)
+            if (sample.size() < capacity) {
+                sample.add(t);
             } else {
-                h = new StringHistogram(NUM_HIST_BINS);
+                long r = (long) (random.nextDouble() * (seen + 1));
+                if (r < capacity)
+                    sample.set((int) r, t);
+            }
+            seen++;
+        }
+    }
+
+    /**
+     * Note that a transaction inserted a tuple into a table.  Called by
+     * {@link simpledb.storage.BufferPool#insertTuple} for a heap file; the
+     * statistics of the table count the tuple once the transaction commits,
+     * see {@link #transactionComplete}.
+     *
+     * @param tid
+     *            the transaction that inserted the tuple
+     * @param tableId
+     *            the table the tuple was inserted into
+     * @param t
+     *            the tuple inserted
+     */
+    public static void tupleInserted(TransactionId tid, int tableId, Tuple t) {
+        Changes c = pendingChanges(tid, tableId, t.getTupleDesc().numFields());
+        c.inserted++;
+        for (int i = 0; i < c.sketches.length; i++)
+            c.sketches[i].add(t.getField(i));
+    }
+
+    /**
+     * Note that a transaction deleted a tuple from a table.  Called by
+     * {@link simpledb.storage.BufferPool#deleteTuple} for a heap file; the
+     * statistics of the table stop counting the tuple once the transaction
+     * commits, see {@link #transactionComplete}.
+     *
+     * @param tid
+     *            the transaction that deleted the tuple
+     * @param tableId
+     *            the table the tuple was deleted from
+     * @param t
+     *            the tuple deleted
+     */
+    public static void tupleDeleted(TransactionId tid, int tableId, Tuple t) {
+        pendingChanges(tid, tableId, t.getTupleDesc().numFields()).deleted++;
+    }
+
+    private static Changes pendingChanges(TransactionId tid, int tableId, int numFields) {
+        return pending.computeIfAbsent(tid, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(tableId, k -> new Changes(numFields));
+    }
+
+    /**
+     * Count the tuples a transaction inserted and deleted in the statistics
+     * of their tables if it committed, or forget them if it aborted.  Called
+     * by {@link simpledb.storage.BufferPool#transactionComplete} once the
+     * transaction is over.
+     *
+     * @param tid
+     *            the transaction
+     * @param commit
+     *            whether it committed
+     */
+    public static void transactionComplete(TransactionId tid, boolean commit) {
+        Map<Integer, Changes> changes = pending.remove(tid);
+        if (changes == null || !commit)
+            return;
+        for (Map.Entry<Integer, Changes> e : changes.entrySet()) {
+            String name;
+            try {
+                name = Database.getCatalog().getTableName(e.getKey());
+            } catch (NoSuchElementException ex) {
+                continue;
+            }
+            TableStats s = getTableStats(name);
+            if (s == null)
+                continue;
+            Changes c = e.getValue();
+            if (c.inserted > 0) {
+                synchronized (s.distinctSketches) {
+                    for (int i = 0; i < s.distinctSketches.length; i++)
+                        s.distinctSketches[i].merge(c.sketches[i]);
+                }
             }
-            tableStats.add(h);
+            s.inserted.addAndGet(c.inserted);
+            s.deleted.addAndGet(c.deleted);
+            s.checkDrift();
         }
+    }
 
-        // add value
-        it = dbFile.iterator(new TransactionId());
-        try {
-            it.open();
-            while (it.hasNext()) {
-                Tuple t = it.next();
-                for (int i = 0; i < dbFile.getTupleDesc().numFields(); i++) {
-                    Field f = t.getField(i);
-                    if (f.getType().equals(Type.INT_TYPE)) {
-                        int v = ((IntField) f).getValue();
-                        ((IntHistogram) tableStats.get(i)).addValue(v);
-                    } else {
-                        String v = ((StringField) f).getValue();
-                        ((StringHistogram) tableStats.get(i)).addValue(v);
+    /**
+     * Stop the daemon thread that rebuilds statistics in the background, if
+     * it is running, and wait for it to finish the table it is reading.
+     * Statistics still waiting are dropped, and queued again after the next
+     * change to their table, and the changes of transactions still running
+     * are forgotten.  The next statistics to go stale start a new thread.
+     * Called when the database is reset or shut down.
+     */
+    public static void stopReanalyzer() {
+        Thread thread;
+        synchronized (reanalyzeQueue) {
+            thread = reanalyzer;
+            reanalyzer = null;
+            for (TableStats s : reanalyzeQueue)
+                s.reanalyzing.set(false);
+            reanalyzeQueue.clear();
+            reanalyzeQueue.notifyAll();
+        }
+        pending.clear();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Queue these statistics to be rebuilt once the table has changed by
+     * more than {@link #getReanalyzeFraction} of its tuples.  Queries go on
+     * planning with these statistics until the new ones replace them.
+     */
+    private void checkDrift() {
+        long changes = inserted.get() + deleted.get();
+        if (changes < Math.max(REANALYZE_MIN_CHANGES, reanalyzeFraction * tableTupleNums))
+            return;
+        if (!reanalyzing.compareAndSet(false, true))
+            return;
+        synchronized (reanalyzeQueue) {
+            reanalyzeQueue.add(this);
+            if (reanalyzer == null) {
+                reanalyzer = new Thread(TableStats::reanalyze, "TableStats-reanalyze");
+                reanalyzer.setDaemon(true);
+                reanalyzer.start();
+            }
+            reanalyzeQueue.notifyAll();
+        }
+    }
+
+    private static void reanalyze() {
+        while (true) {
+            TableStats stale;
+            synchronized (reanalyzeQueue) {
+                while (reanalyzeQueue.isEmpty() && reanalyzer == Thread.currentThread()) {
+                    try {
+                        reanalyzeQueue.wait();
+                    } catch (InterruptedException e) {
+                        return;
                     }
                 }
-                addTuple(dbFile.getTupleDesc(), it.next(), minVal, maxVal);
+                if (reanalyzer != Thread.currentThread())
+                    return;
+                stale = reanalyzeQueue.poll();
             }
-        } catch (DbException | TransactionAbortedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            it.close();
+            try {
+                String name = Database.getCatalog().getTableName(stale.tableId);
+                TableStats fresh = new TableStats(stale.tableId, stale.ioCostPerPage);
+                // unless the statistics were replaced some other way meanwhile
+                statsMap.replace(name, stale, fresh);
+            } catch (RuntimeException e) {
+                // the table was dropped, or could not be read; try again
+                // after the next change
+                e.printStackTrace();
+                stale.reanalyzing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Pick the pages of a heap file to read, if it has more pages than
+     * {@link #getSamplePages}.
+     *
+     * @return the numbers of the pages to read in ascending order, or null
+     *         if the whole file is to be read
+     */
+    private Collection<Integer> samplePageNumbers(Random random) {
+        if (!(dbFile instanceof HeapFile))
+            return null;
+        int numPages = dbFile.numPages();
+        int k = samplePages;
+        if (k <= 0 || numPages <= k)
+            return null;
+        // Floyd's algorithm: k distinct numbers below numPages
+        TreeSet<Integer> chosen = new TreeSet<>();
+        for (int j = numPages - k; j < numPages; j++) {
+            int p = random.nextInt(j + 1);
+            if (!chosen.add(p))
+                chosen.add(j);
         }
+        return chosen;
     }
 
     /**
@@ -165,9 +831,56 @@ public class TableStats {
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
-        // some code goes here
-        // TODO: jianqi cast to HeapFile recklessly
-        return ((HeapFile) this.dbFile).numPages() * this.ioCostPerPage;
+        return (double) this.dbFile.numPages() * this.ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading the tuples that satisfy a predicate with
+     * selectivity selectivityFactor through a secondary index.  Each of those
+     * tuples may sit on a different page, so each is charged a page read of
+     * its own, at the cost of a random read in the {@link CostModel}
+     * relative to a sequential one; the index pages are few in comparison
+     * and are not counted.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the predicate answered by the index
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(double selectivityFactor) {
+        CostModel model = CostModel.get();
+        return estimateTableCardinality(selectivityFactor) * (double) this.ioCostPerPage
+                * model.getRandomPageCost() / model.getSeqPageCost();
+    }
+
+    /**
+     * Estimates the cost of looking up the tuples with one key in a hash
+     * file.  All of them are in the bucket the key hashes to, so the lookup
+     * reads one page, or as many overflow pages as it takes to hold the
+     * matching fraction of the file.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the equality predicate on the hash key
+     * @return The estimated cost of the lookup.
+     */
+    public double estimateHashLookupCost(double selectivityFactor) {
+        return Math.max(1.0, Math.ceil(this.dbFile.numPages() * selectivityFactor)) * this.ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading the entries that satisfy a predicate with
+     * selectivity selectivityFactor from an index alone, without visiting the
+     * table.  Matching entries sit next to each other in the index, so only
+     * that fraction of its pages is read.
+     *
+     * @param indexPages
+     *            The number of pages of the index
+     * @param selectivityFactor
+     *            The selectivity of the predicate answered by the index, or 1
+     *            to read the whole index
+     * @return The estimated cost of the index-only scan.
+     */
+    public double estimateIndexOnlyScanCost(int indexPages, double selectivityFactor) {
+        return Math.ceil(indexPages * selectivityFactor) * this.ioCostPerPage;
     }
 
     /**
@@ -181,7 +894,7 @@ public class TableStats {
      */
     public int estimateTableCardinality(double selectivityFactor) {
         // some code goes here
-        return (int) (this.tableTupleNums * selectivityFactor);
+        return (int) (totalTuples() * selectivityFactor);
     }
 
     /**
@@ -195,7 +908,11 @@ public class TableStats {
      * expected selectivity. You may estimate this value from the histograms.
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
+        Histogram h = this.tableStats.get(field);
+        if (op == Predicate.Op.EQUALS && h instanceof EquiDepthHistogram)
+            return ((EquiDepthHistogram) h).avgSelectivity();
+        if (op == Predicate.Op.EQUALS && h instanceof EquiDepthStringHistogram)
+            return ((EquiDepthStringHistogram) h).avgSelectivity();
         return 1.0;
     }
 
@@ -216,38 +933,53 @@ public class TableStats {
         // some code goes here
         Histogram h = this.tableStats.get(field);
         if (constant.getType().equals(Type.INT_TYPE)) {
-            return ((IntHistogram) h).estimateSelectivity(op, ((IntField) constant).getValue());
+            return ((EquiDepthHistogram) h).estimateSelectivity(op, ((IntField) constant).getValue());
         } else {
-            return ((StringHistogram) h).estimateSelectivity(op, ((StringField) constant).getValue());
+            return ((EquiDepthStringHistogram) h).estimateSelectivity(op, ((StringField) constant).getValue());
         }
     }
 
     /**
-     * return the total number of tuples in this table
-     * */
-    public int totalTuples() {
-        // some code goes here
-        return 0;
+     * Estimate the number of distinct values of a field.  This counts every
+     * value read, not only the sampled ones, and every value inserted
+     * since, and is no more than the number of tuples of the table.
+     *
+     * @param field
+     *            The index of the field
+     * @return the estimated number of distinct values, at least 1
+     */
+    public long numDistinct(int field) {
+        long n = this.numDistinct[field];
+        if (inserted.get() > 0) {
+            synchronized (distinctSketches) {
+                n = Math.max(n, distinctSketches[field].estimate());
+            }
+        }
+        return Math.max(1, Math.min(n, totalTuples()));
     }
 
-    private void addTuple(TupleDesc td, Tuple t, int[] minVal, int[] maxVal) {
-        for (int i = 0; i < td.numFields(); i++) {
-            int val;
-            if (td.getFieldType(i).equals(Type.STRING_TYPE)) {
-                val = StringHistogram.stringToInt(
-                    ((StringField) t.getField(i)).getValue()
-                );
-            } else {
-                val = ((IntField) t.getField(i)).getValue();
-            }
-            if (val < minVal[i]) {
-                minVal[i] = val;
-            }
-            if (val > maxVal[i]) {
-                maxVal[i] = val;
-            }
+    /**
+     * Return a copy of the sketch of the distinct values of a field read
+     * when these statistics were built.  Sketches of the same field of the
+     * parts of a table can be merged with {@link HyperLogLog#merge} to count
+     * the distinct values of the whole table.
+     *
+     * @param field
+     *            The index of the field
+     */
+    public HyperLogLog getDistinctSketch(int field) {
+        synchronized (distinctSketches) {
+            return new HyperLogLog(this.distinctSketches[field]);
         }
+    }
 
+    /**
+     * return the total number of tuples in this table, counting the tuples
+     * inserted and deleted since these statistics were built
+     * */
+    public int totalTuples() {
+        long n = this.tableTupleNums + inserted.get() - deleted.get();
+        return (int) Math.max(0, Math.min(n, Integer.MAX_VALUE));
     }
 
 }
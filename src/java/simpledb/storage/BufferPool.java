@@ -5,15 +5,22 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.TableStats;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -40,6 +47,37 @@ public class BufferPool {
     private int numPages;
     private Map<PageId, Page> buffer;
 
+    /** Dirty page table: for every cached page whose logged changes have
+        not reached disk yet, the LSN of the first such log record (recLSN).
+        Written into checkpoints so that redo can start from the oldest
+        recLSN instead of the start of the log. */
+    private final Map<PageId, Long> dirtyPageTable;
+
+    /** Pages a checkpoint asked to be written out in the background, and
+        the daemon thread doing so; both guarded by this. */
+    private final Deque<PageId> trickleQueue = new ArrayDeque<>();
+    private Thread trickleWriter;
+    private boolean trickleStopped;
+
+    /** Chains of pages to be read ahead by a background thread, and the
+        daemon thread doing so; both guarded by this. */
+    private final Deque<ReadAhead> prefetchQueue = new ArrayDeque<>();
+    private Thread prefetcher;
+    private boolean prefetchStopped;
+
+    /** A request to read up to count pages along a chain, from first on */
+    private static class ReadAhead {
+        final PageId first;
+        final int count;
+        final Function<Page, PageId> next;
+
+        ReadAhead(PageId first, int count, Function<Page, PageId> next) {
+            this.first = first;
+            this.count = count;
+            this.next = next;
+        }
+    }
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -49,6 +87,7 @@ public class BufferPool {
         // some code goes here
         this.numPages = numPages;
         this.buffer = new HashMap<>();
+        this.dirtyPageTable = new ConcurrentHashMap<>();
     }
     
     public static int getPageSize() {
@@ -83,20 +122,22 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        if (this.buffer.containsKey(pid)) {
-            return this.buffer.get(pid);
-        }
+        synchronized (this) {
+            if (this.buffer.containsKey(pid)) {
+                return this.buffer.get(pid);
+            }
 
-        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page p = null;
-        try {
-            p = file.readPage(pid);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            Page p = null;
+            try {
+                p = file.readPage(pid);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
 
-        addPage(p);
-        return p;
+            addPage(p);
+            return p;
+        }
     }
 
     /**
@@ -121,6 +162,7 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
@@ -140,6 +182,60 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        synchronized (this) {
+            try {
+                if (commit) {
+                    // NO-FORCE: log the final image of every page the
+                    // transaction dirtied, but leave the pages in the pool;
+                    // redo recovers them if we crash before they are flushed.
+                    // The log itself is forced by LogFile.logCommit.  From
+                    // here on the page only needs writing, which the dirty
+                    // page table remembers.
+                    for (Page p : pagesDirtiedBy(tid)) {
+                        long lsn = Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+                        p.setLSN(lsn);
+                        dirtyPageTable.putIfAbsent(p.getId(), lsn);
+                        p.setBeforeImage();
+                        p.markDirty(false, null);
+                    }
+                } else {
+                    // changes that were stolen to disk have been undone by
+                    // LogFile.rollback; drop the in-memory versions. A page
+                    // that also carries committed but unflushed changes gets
+                    // its committed image written back, which the forced
+                    // commit record already covers.
+                    for (Page p : pagesDirtiedBy(tid)) {
+                        PageId pid = p.getId();
+                        if (dirtyPageTable.containsKey(pid)) {
+                            Database.getCatalog().getDatabaseFile(pid.getTableId())
+                                    .writePage(p.getBeforeImage());
+                        }
+                        discardPage(pid);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        TableStats.transactionComplete(tid, commit);
+    }
+
+    private List<Page> pagesDirtiedBy(TransactionId tid) {
+        List<Page> pages = new ArrayList<>();
+        for (Page p : this.buffer.values()) {
+            if (tid.equals(p.isDirty())) {
+                pages.add(p);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Return a snapshot of the dirty page table, mapping each page whose
+     * logged changes are not yet on disk to its recovery LSN.
+     */
+    public synchronized Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<>(dirtyPageTable);
     }
 
     /**
@@ -153,6 +249,9 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * Adds an entry for the tuple to every secondary index of the table,
+     * and counts it in the statistics of the table once tid commits.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -164,7 +263,14 @@ public class BufferPool {
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> pages = dbFile.insertTuple(tid, t);
         for (Page p: pages) {
-            this.addPage(p);
+            p.markDirty(true, tid);
+            this.cachePage(p);
+        }
+        if (dbFile instanceof HeapFile) {
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+                index.insertEntry(tid, t);
+            }
+            TableStats.tupleInserted(tid, tableId, t);
         }
     }
 
@@ -178,6 +284,10 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * Removes the tuple's entry from every secondary index of the table,
+     * and no longer counts it in the statistics of the table once tid
+     * commits.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
@@ -185,10 +295,18 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> pages = dbFile.deleteTuple(tid, t);
         for (Page p: pages) {
-            this.addPage(p);
+            p.markDirty(true, tid);
+            this.cachePage(p);
+        }
+        if (dbFile instanceof HeapFile) {
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+                index.deleteEntry(tid, t);
+            }
+            TableStats.tupleDeleted(tid, tableId, t);
         }
     }
 
@@ -200,15 +318,9 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        this.buffer.keySet().forEach(
-            key -> {
-                try {
-                    this.flushPage(key);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        );
+        for (PageId pid : new ArrayList<>(this.buffer.keySet())) {
+            this.flushPage(pid);
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -223,6 +335,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         this.buffer.remove(pid);
+        this.dirtyPageTable.remove(pid);
     }
 
     /**
@@ -233,11 +346,29 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         Page p = this.buffer.get(pid);
-        if (p.isDirty() != null) {
+        if (p == null) {
+            return;
+        }
+        TransactionId dirtier = p.isDirty();
+        if (dirtier != null) {
+            // write-ahead: the update record must be durable before the page
+            LogFile log = Database.getLogFile();
+            long lsn = log.logWrite(dirtier, p.getBeforeImage(), p);
+            log.force(lsn);
+            p.setLSN(lsn);
+            // the next update record of this page must undo to this image
+            p.setBeforeImage();
+        }
+        if (dirtier != null || this.dirtyPageTable.containsKey(pid)) {
             DbFile dbFile = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
             dbFile.writePage(p);
+            if (p.getLSN() != LogFile.NO_LSN) {
+                // the page format has no room for its LSN; tell redo
+                Database.getLogFile().logPageWrite(pid, p.getLSN());
+            }
             p.markDirty(false, null);
         }
+        this.dirtyPageTable.remove(pid);
     }
 
     /** Write all pages of the specified transaction to disk.
@@ -245,6 +376,197 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        for (Page p : pagesDirtiedBy(tid)) {
+            flushPage(p.getId());
+        }
+    }
+
+    /**
+     * Queue pages to be written out by a background thread, one at a time,
+     * so that their recovery LSNs advance without a checkpoint having to
+     * stall transactions on a full flush.  Only pages holding nothing but
+     * committed changes are written; pages a running transaction has
+     * dirtied are left for eviction or a later checkpoint.
+     */
+    public synchronized void trickleFlush(Collection<PageId> pids) {
+        if (trickleStopped) {
+            return;
+        }
+        trickleQueue.addAll(pids);
+        if (trickleWriter == null) {
+            trickleWriter = new Thread(this::trickle, "BufferPool-trickle");
+            trickleWriter.setDaemon(true);
+            trickleWriter.start();
+        }
+        notifyAll();
+    }
+
+    private void trickle() {
+        while (true) {
+            synchronized (this) {
+                while (trickleQueue.isEmpty() && !trickleStopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (trickleStopped) {
+                    return;
+                }
+                PageId pid = trickleQueue.poll();
+                Page p = this.buffer.get(pid);
+                if (p != null && p.isDirty() == null && this.dirtyPageTable.containsKey(pid)) {
+                    try {
+                        flushPage(pid);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            // let foreground work at the monitor between pages
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Stop the background writer started by {@link #trickleFlush} and wait
+     * for it to finish the page it is writing.  Called when this buffer
+     * pool is being replaced.
+     */
+    public void stopTrickleFlush() {
+        Thread writer;
+        synchronized (this) {
+            trickleStopped = true;
+            trickleQueue.clear();
+            writer = trickleWriter;
+            notifyAll();
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Read pages into the buffer pool ahead of their use, on a background
+     * thread, so that a scan can go on with the tuples it already has while
+     * the next pages come off disk.  Starting from pid, up to count pages are
+     * read along a chain, next giving for each page the id of the one after
+     * it, or null at the end of the chain; pages already cached count
+     * without being read again.  A newer request along the same chain, with
+     * the same next, replaces one still waiting.
+     * <p>
+     * Pages are read without locks, as no transaction sees them until it
+     * asks for them through getPage.  A prefetched page only ever takes the
+     * place of a clean page; once there is none to evict, the read-ahead
+     * stops.
+     */
+    public synchronized void prefetch(PageId pid, int count, Function<Page, PageId> next) {
+        if (prefetchStopped || pid == null || count <= 0) {
+            return;
+        }
+        prefetchQueue.removeIf(r -> r.next == next);
+        prefetchQueue.add(new ReadAhead(pid, count, next));
+        if (prefetcher == null) {
+            prefetcher = new Thread(this::readAhead, "BufferPool-prefetch");
+            prefetcher.setDaemon(true);
+            prefetcher.start();
+        }
+        notifyAll();
+    }
+
+    private void readAhead() {
+        while (true) {
+            ReadAhead request;
+            synchronized (this) {
+                while (prefetchQueue.isEmpty() && !prefetchStopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (prefetchStopped) {
+                    return;
+                }
+                request = prefetchQueue.poll();
+            }
+            PageId pid = request.first;
+            for (int i = 0; pid != null && i < request.count; i++) {
+                synchronized (this) {
+                    if (prefetchStopped) {
+                        return;
+                    }
+                    pid = readAhead(pid, request.next);
+                }
+                // let foreground work at the monitor between pages
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Cache one page of a read-ahead chain.
+     *
+     * @return the id of the next page of the chain, or null to stop
+     */
+    private synchronized PageId readAhead(PageId pid, Function<Page, PageId> next) {
+        Page p = this.buffer.get(pid);
+        if (p == null) {
+            if (this.buffer.size() >= this.numPages && !evictCleanPage()) {
+                return null;
+            }
+            try {
+                p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            } catch (RuntimeException | IOException | DbException | TransactionAbortedException e) {
+                // the chain led somewhere that is no longer there; the scan
+                // will find out for itself
+                return null;
+            }
+            this.buffer.put(pid, p);
+        }
+        return next.apply(p);
+    }
+
+    /**
+     * Evict a page with no changes to write out, if there is one.
+     *
+     * @return true if a page was evicted
+     */
+    private boolean evictCleanPage() {
+        for (Map.Entry<PageId, Page> e : this.buffer.entrySet()) {
+            if (e.getValue().isDirty() == null && !this.dirtyPageTable.containsKey(e.getKey())) {
+                this.buffer.remove(e.getKey());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stop the background reader started by {@link #prefetch} and wait for
+     * it to finish the page it is reading.  Called when this buffer pool is
+     * being replaced.
+     */
+    public void stopPrefetch() {
+        Thread reader;
+        synchronized (this) {
+            prefetchStopped = true;
+            prefetchQueue.clear();
+            reader = prefetcher;
+            notifyAll();
+        }
+        if (reader != null) {
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     /**
@@ -254,9 +576,36 @@ public class BufferPool {
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (this.buffer.size() > 0) {
-            this.buffer.remove(this.buffer.keySet().stream().findAny().orElse(null));
+        // STEAL: prefer a clean victim, then one only carrying committed
+        // changes, which no running operation is modifying any more.  A page
+        // dirtied by a running transaction may still be written out as a last
+        // resort, since flushPage logs its before image for undo
+        PageId clean = null;
+        PageId committed = null;
+        PageId any = null;
+        for (Map.Entry<PageId, Page> e : this.buffer.entrySet()) {
+            PageId pid = e.getKey();
+            any = pid;
+            if (e.getValue().isDirty() == null) {
+                if (!this.dirtyPageTable.containsKey(pid)) {
+                    clean = pid;
+                    break;
+                }
+                if (committed == null) {
+                    committed = pid;
+                }
+            }
         }
+        PageId victim = clean != null ? clean : committed != null ? committed : any;
+        if (victim == null) {
+            throw new DbException("no page to evict");
+        }
+        try {
+            flushPage(victim);
+        } catch (IOException e) {
+            throw new DbException("unable to flush evicted page: " + e.getMessage());
+        }
+        this.buffer.remove(victim);
     }
 
     private void addPage(Page p) {
@@ -270,4 +619,12 @@ public class BufferPool {
         this.buffer.put(p.getId(), p);
     }
 
+    private synchronized void cachePage(Page p) {
+        if (this.buffer.containsKey(p.getId())) {
+            this.buffer.put(p.getId(), p);
+        } else {
+            addPage(p);
+        }
+    }
+
 }
@@ -93,4 +93,13 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     TupleDesc getTupleDesc();
+
+    /**
+     * Returns the number of pages in this DbFile, counting any pages that
+     * hold metadata rather than tuples.  A scan of the file reads about this
+     * many pages.
+     *
+     * @return the number of pages in this DbFile.
+     */
+    int numPages();
 }
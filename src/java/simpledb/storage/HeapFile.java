@@ -81,8 +81,7 @@ public class HeapFile implements DbFile {
         byte[] page = new byte[len];
 
         int count = -1;
-        try {
-            RandomAccessFile raf =new RandomAccessFile(this.getFile(), "r");
+        try (RandomAccessFile raf = new RandomAccessFile(this.getFile(), "r")) {
             raf.seek(offset);
             count = raf.read(page, 0, len);
             if (count == -1) {
@@ -127,21 +126,24 @@ public class HeapFile implements DbFile {
 
         for (int i = 0; i < numPages(); i++) {
             HeapPage hp = (HeapPage)Database.getBufferPool().getPage(
-                tid, new HeapPageId(getId(), i), null);
+                tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
             if (hp.getNumEmptySlots() != 0) {
                 hp.insertTuple(t);
-                writePage(hp);
-                hp.markDirty(false, tid);
                 return new ArrayList<>(Collections.singletonList(hp));
             }
         }
-        // add new page
-        HeapPage hp = new HeapPage(
-            new HeapPageId(getId(), numPages()),
-            HeapPage.createEmptyPageData());
+        // add new page: append it to the file so that the buffer pool can
+        // read it back, then insert through the cached copy
+        int pgNo;
+        synchronized (this) {
+            BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true));
+            bw.write(HeapPage.createEmptyPageData());
+            bw.close();
+            pgNo = numPages() - 1;
+        }
+        HeapPage hp = (HeapPage)Database.getBufferPool().getPage(
+            tid, new HeapPageId(getId(), pgNo), Permissions.READ_WRITE);
         hp.insertTuple(t);
-        writePage(hp);
-        hp.markDirty(false, tid);
 
         return new ArrayList<>(Collections.singletonList(hp));
         // not necessary for lab1
@@ -153,15 +155,8 @@ public class HeapFile implements DbFile {
         // some code goes here
         RecordId rid = t.getRecordId();
 
-        HeapPage hp = (HeapPage)Database.getBufferPool().getPage(tid, rid.getPageId(), null);
+        HeapPage hp = (HeapPage)Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
         hp.deleteTuple(t);
-        try {
-            writePage(hp);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        hp.markDirty(false, tid);
-//        hp.markDirty(true, tid);
 
         return new ArrayList<>(Collections.singletonList(hp));
         // not necessary for lab1
@@ -1,6 +1,5 @@
 package simpledb.storage;
 
-import com.sun.prism.impl.Disposer;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
@@ -29,6 +28,7 @@ public class HeapPage implements Page {
 
     boolean dirty = false;
     TransactionId lastDirtied = null;
+    volatile long lsn = LogFile.NO_LSN;
 
     byte[] oldData;
     private final Byte oldDataLock= (byte) 0;
@@ -114,6 +114,14 @@ public class HeapPage implements Page {
         }
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -338,6 +346,13 @@ public class HeapPage implements Page {
         return ((b >>> (byte)(i % 8)) & 1) == 1;
     }
 
+    /**
+     * Returns the tuple in the given slot of this page, or null if the slot is empty.
+     */
+    public Tuple getTuple(int i) {
+        return isSlotUsed(i) ? this.tuples[i] : null;
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
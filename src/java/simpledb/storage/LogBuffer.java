@@ -0,0 +1,197 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.TreeMap;
+
+/**
+ * LogBuffer is the in-memory tail of the log.  Appending a record is split
+ * in two: {@link #reserve} hands out the next LSN range under a short lock,
+ * and {@link #copyIn} copies the serialized record into the ring without
+ * one, so several threads can fill their ranges at the same time.  A single
+ * writer thread drains the completely filled prefix of the ring to the
+ * segment files in large sequential writes, and issues an fsync only when
+ * some caller of {@link #force} is waiting for LSNs it has not made durable
+ * yet; concurrent commits therefore share one fsync.
+ * <p>
+ * LSNs below {@code written} can be read back from the segments; LSNs below
+ * {@code durable} are on stable storage.  Both always fall on record
+ * boundaries, since a record only counts as filled once it is fully copied.
+ */
+class LogBuffer {
+
+    /** Default ring capacity */
+    static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private final LogSegments segments;
+    private final byte[] ring;
+
+    // all guarded by this
+    private long reserved;
+    private long filled;
+    private long written;
+    private long durable;
+    private long forceTarget;
+    /** ranges copied in out of order: start LSN -> end LSN */
+    private final TreeMap<Long, Long> completed = new TreeMap<>();
+    private IOException failure;
+    private boolean closed;
+
+    private final Thread writer;
+
+    /**
+     * @param segments where drained records go
+     * @param capacity ring size; must exceed the largest record
+     */
+    LogBuffer(LogSegments segments, int capacity) {
+        this.segments = segments;
+        this.ring = new byte[capacity];
+        reset(segments.length());
+        writer = new Thread(this::drain, "LogBuffer-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Restart an empty buffer at lsn; only valid while nothing is pending */
+    synchronized void reset(long lsn) {
+        reserved = filled = written = durable = forceTarget = lsn;
+        completed.clear();
+    }
+
+    /** LSN the next reserved record will get */
+    synchronized long tail() {
+        return reserved;
+    }
+
+    /**
+     * Reserve len bytes at the end of the log, waiting for the writer to
+     * free space in the ring if needed.
+     *
+     * @return the LSN of the first reserved byte
+     */
+    synchronized long reserve(int len) throws IOException {
+        if (len > ring.length) {
+            throw new IOException("log record of " + len + " bytes exceeds the log buffer");
+        }
+        // no need to wake the writer: whatever holds the space up is
+        // either filled already or will be, and copyIn wakes it then
+        while (reserved + len - written > ring.length) {
+            checkFailure();
+            waitUninterruptibly();
+        }
+        long lsn = reserved;
+        reserved += len;
+        return lsn;
+    }
+
+    /** Copy a record into the range reserved for it at lsn */
+    void copyIn(long lsn, byte[] rec) {
+        int at = (int) (lsn % ring.length);
+        int first = Math.min(rec.length, ring.length - at);
+        System.arraycopy(rec, 0, ring, at, first);
+        System.arraycopy(rec, first, ring, 0, rec.length - first);
+        synchronized (this) {
+            completed.put(lsn, lsn + rec.length);
+            Long end;
+            while ((end = completed.remove(filled)) != null) {
+                filled = end;
+            }
+            notifyAll();
+        }
+    }
+
+    /** Wait until every byte below lsn can be read from the segments */
+    synchronized void flush(long lsn) throws IOException {
+        while (written < lsn) {
+            checkFailure();
+            waitUninterruptibly();
+        }
+    }
+
+    /** Wait until the record starting at lsn, and every earlier one, is
+        on stable storage */
+    synchronized void force(long lsn) throws IOException {
+        while (durable <= lsn && durable < reserved) {
+            checkFailure();
+            if (forceTarget <= lsn) {
+                forceTarget = lsn + 1;
+                notifyAll();
+            }
+            waitUninterruptibly();
+        }
+    }
+
+    /** Drain everything and stop the writer */
+    void close() throws IOException {
+        synchronized (this) {
+            flush(reserved);
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("log writer failed", failure);
+        }
+    }
+
+    private void waitUninterruptibly() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            long from;
+            long to;
+            boolean sync;
+            synchronized (this) {
+                // a force of a record still being copied in waits for it
+                // to be filled, rather than syncing what is durable already
+                while (filled == written && (forceTarget <= durable || filled == durable)
+                        && !closed) {
+                    waitUninterruptibly();
+                }
+                if (closed && filled == written) {
+                    return;
+                }
+                from = written;
+                to = filled;
+                sync = forceTarget > durable && to > durable;
+            }
+            try {
+                // [from, to) is filled and cannot be reused until written
+                // moves, so it is copied out without holding the lock
+                int at = (int) (from % ring.length);
+                int len = (int) (to - from);
+                int first = Math.min(len, ring.length - at);
+                segments.append(ring, at, first);
+                segments.append(ring, 0, len - first);
+                if (sync) {
+                    segments.force();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                written = to;
+                if (sync) {
+                    durable = to;
+                }
+                notifyAll();
+            }
+        }
+    }
+}
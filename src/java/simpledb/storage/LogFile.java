@@ -1,7 +1,9 @@
-
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
@@ -43,40 +45,78 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself is a small control file holding two long
+integers: the LSN of the BEGIN_CHECKPOINT record of the last complete
+checkpoint, or -1 if there are no checkpoints, and the size of the
+log's segments.
+
+<li> Log records are stored in fixed-size segment files next to it (see
+LogSegments).  Every record is identified by its LSN, its byte address
+in the concatenation of all segments, which never changes once the
+record is written.  Truncation deletes whole segments at the head of
+the log.
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id and the LSN of the previous record written by the same
+transaction (-1 for the first one), so that the records of every
+transaction form a backwards chain.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer holding the LSN of the
+record, so the log can also be walked backwards.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+BEGIN_CHECKPOINT, CHECKPOINT, CLR and PAGE_WRITE
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li> ABORT, COMMIT, BEGIN and BEGIN_CHECKPOINT records contain no
+additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS are physiological: they name the page and hold only
+the byte ranges of its serialized form that changed, with their before
+and after contents, so a tuple insert costs a slot rather than two page
+images.  See LogFile.PageDelta and LogFile.print() for an example.
+
+<li> CLR (compensation) records are written while undoing an UPDATE.
+They hold the restored byte ranges, which are redo-only information,
+and the LSN of the next record of the transaction that remains to be
+undone.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first and last log records, followed
+by the dirty page table of the buffer pool.  The format of the record is
+an integer count of the number of transactions, a long integer
+transaction id, first record LSN and last record LSN for each active
+transaction, an integer count of dirty pages and a serialized page id
+plus recovery LSN for each of them.
+
+<li> PAGE_WRITE records are appended after a page has been written to
+its file, and hold the serialized page id and the LSN the written image
+carries.  The page formats have no room for an LSN, so these records are
+how recovery learns the LSN of the image on disk.  They belong to no
+transaction and are never forced; one lost in a crash only makes redo
+reapply changes the page already has, which is harmless since redo
+installs after images.
 
 </ul>
+
+<p> Checkpoints are fuzzy: the tables of a CHECKPOINT record are
+snapshots taken while other transactions keep logging, and are
+reconciled with the records that follow its BEGIN_CHECKPOINT.
+
+<p> Recovery follows ARIES: an analysis pass from the last checkpoint
+rebuilds the active transaction and dirty page tables, a redo pass
+repeats history from the oldest recovery LSN, skipping records whose
+page is not dirty or was written to disk with a newer LSN, and an undo pass rolls
+back the losers by following their record chains.
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final RandomAccessFile control;
+    private final LogSegments raf;
+    private final LogBuffer buffer;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,16 +124,34 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
+    static final int BEGIN_CHECKPOINT_RECORD = 7;
+    static final int PAGE_WRITE_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** LSN value meaning "no log record" */
+    public static final long NO_LSN = -1;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+
+    /** Default size of a log segment file */
+    public static final long DEFAULT_SEGMENT_SIZE = 1 << 24;
 
-    long currentOffset = -1;//protected by this
+    private static long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    long currentOffset = -1;//end of the reserved log, protected by this
+    private long retentionBytes = 0;//protected by this
+    private SegmentArchiver archiver;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
+    // run by logCheckpoint once BEGIN_CHECKPOINT is appended, holding no
+    // monitor, so tests can stall or crash a checkpoint midway
+    volatile Runnable checkpointHook;
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    final Map<Long,Long> tidToLastLogRecord = new HashMap<>();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -108,7 +166,15 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        control = new RandomAccessFile(f, "rw");
+        long size = segmentSize;
+        if (control.length() >= HEADER_SIZE) {
+            // an existing log keeps the segment size it was written with
+            control.seek(LONG_SIZE);
+            size = control.readLong();
+        }
+        raf = new LogSegments(f, size);
+        buffer = new LogBuffer(raf, Math.max(LogBuffer.DEFAULT_CAPACITY, 4 * BufferPool.getPageSize()));
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -126,21 +192,132 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            raf.clear();
+            buffer.reset(raf.length());
+            writeHeader(NO_CHECKPOINT_ID);
+            currentOffset = raf.length();
+        }
+    }
+
+    /** Point the control file at the checkpoint begun at cpLsn */
+    private void writeHeader(long cpLsn) throws IOException {
+        control.seek(0);
+        control.writeLong(cpLsn);
+        control.writeLong(raf.getSegmentSize());
+        control.getChannel().force(true);
+    }
+
+    private long readCheckpointLsn() throws IOException {
+        if (control.length() < HEADER_SIZE) {
+            return NO_CHECKPOINT_ID;
         }
+        control.seek(0);
+        return control.readLong();
+    }
+
+    /** Receives log segments that are no longer needed for recovery
+        before they are deleted, e.g. to copy them to backup storage. */
+    public interface SegmentArchiver {
+        /**
+         * @param segment the segment file, deleted once this returns
+         * @param startLsn LSN of the first byte in the segment
+         * @param endLsn LSN one past the last byte the segment can hold
+         */
+        void archive(File segment, long startLsn, long endLsn) throws IOException;
+    }
+
+    /** Set the size of the segment files of logs created from now on.
+        Existing logs keep the size recorded in their control file. */
+    public static void setSegmentSize(long size) {
+        segmentSize = size;
+    }
+
+    public static void resetSegmentSize() {
+        segmentSize = DEFAULT_SEGMENT_SIZE;
+    }
+
+    /** Keep up to the given number of bytes of segments that recovery no
+        longer needs instead of deleting them at the next truncation. */
+    public synchronized void setRetentionBytes(long bytes) {
+        retentionBytes = bytes;
+    }
+
+    /** Hand every segment dropped by truncation to archiver first */
+    public synchronized void setSegmentArchiver(SegmentArchiver archiver) {
+        this.archiver = archiver;
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
+    /** A record being serialized before it has been given an LSN.  The
+        common header is written up front with placeholders for the
+        previous LSN of the transaction, which append fills in. */
+    private static class RecordBuilder {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final int type;
+        final long tid;
+
+        RecordBuilder(int type, long tid) throws IOException {
+            this.type = type;
+            this.tid = tid;
+            out.writeInt(type);
+            out.writeLong(tid);
+            out.writeLong(NO_LSN);
+        }
+    }
+
+    private static void putLong(byte[] b, int at, long v) {
+        for (int i = at + LONG_SIZE - 1; i >= at; i--) {
+            b[i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    /** Append a record to the log buffer, linking it into the record chain
+        of its transaction.  Only the LSN reservation happens under the
+        monitor; the copy into the buffer does not, so concurrent appends
+        overlap.  The record is not durable until force() covers it.
+        @param ends whether this record ends the transaction (COMMIT or
+        ABORT), in which case it leaves the active transaction table in the
+        same step, so no checkpoint can see it active after its end record
+        @return the LSN of the new record
+    */
+    private long append(RecordBuilder r, boolean ends) throws IOException {
+        r.out.writeLong(NO_LSN);
+        byte[] rec = r.bytes.toByteArray();
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            if (r.type != PAGE_WRITE_RECORD) {
+                totalRecords++; // PatchTest counts the records of transactions
+            }
+            lsn = buffer.reserve(rec.length);
+            currentOffset = lsn + rec.length;
+            Long prev = tidToLastLogRecord.get(r.tid);
+            putLong(rec, INT_SIZE + LONG_SIZE, prev == null ? NO_LSN : prev);
+            if (ends) {
+                tidToFirstLogRecord.remove(r.tid);
+                tidToLastLogRecord.remove(r.tid);
+            } else if (r.tid != NO_LSN) {
+                tidToFirstLogRecord.putIfAbsent(r.tid, lsn);
+                tidToLastLogRecord.put(r.tid, lsn);
+            }
+        }
+        putLong(rec, rec.length - LONG_SIZE, lsn);
+        buffer.copyIn(lsn, rec);
+        return lsn;
+    }
+
+    /** Make every record appended so far readable from the segments */
+    private void flushBuffer() throws IOException {
+        buffer.flush(currentOffset);
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -157,15 +334,11 @@ public class LogFile {
                 //should we verify that this is a live transaction?
 
                 // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
+                // live transactions (needs tidToLastLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
+                long lsn = append(new RecordBuilder(ABORT_RECORD, tid.getId()), true);
+                force(lsn);
             }
         }
     }
@@ -175,17 +348,12 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
+    public void logCommit(TransactionId tid) throws IOException {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        long lsn = append(new RecordBuilder(COMMIT_RECORD, tid.getId()), true);
+        force(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -193,99 +361,241 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the update record, which the caller should
+        stamp on the page
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
+        Debug.log("WRITE, tid = " + tid.getId());
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
+           previous LSN of the transaction
+           page delta with before and after bytes (see PageDelta)
+           LSN
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        RecordBuilder r = new RecordBuilder(UPDATE_RECORD, tid.getId());
+        PageDelta.diff(before, after).write(r.out, true);
+        long lsn = append(r, false);
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        Debug.log("WRITE LSN = " + lsn);
+        return lsn;
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** Write a PAGE_WRITE record saying that the image of a page carrying
+        pageLsn has been written to its file.  Call only once the write
+        has returned; the record is not forced.
+        @param pid the page written
+        @param pageLsn the LSN of the written image, see Page#getLSN
+    */
+    public void logPageWrite(PageId pid, long pageLsn) throws IOException {
+        RecordBuilder r = new RecordBuilder(PAGE_WRITE_RECORD, NO_LSN);
+        writePageId(r.out, pid);
+        r.out.writeLong(pageLsn);
+        append(r, false);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
+    /** Write a compensation record for tid, describing the bytes that
+        were restored while undoing one of its updates.
+        @param undoNextLsn the next record of tid that still needs undoing
+        @return the LSN of the compensation record
+    */
+    private long logClr(long tid, PageDelta restored, long undoNextLsn) throws IOException {
+        RecordBuilder r = new RecordBuilder(CLR_RECORD, tid);
+        restored.write(r.out, false);
+        r.out.writeLong(undoNextLsn);
+        return append(r, false);
+    }
+
+    /**
+     * The physiological body of UPDATE and CLR records: the page a change
+     * applies to and the byte ranges of its serialized form that changed.
+     * A tuple insert or delete on a heap page touches one header byte and
+     * one slot, so its delta is a few hundred bytes instead of two full page
+     * images.  When a change is scattered enough that the ranges would cost
+     * more than the whole page, a single range covering the page is logged.
+     */
+    static class PageDelta {
+        /** ranges closer than this are merged, since each costs two ints */
+        static final int MERGE_GAP = 2 * INT_SIZE;
+
+        final String pageClassName;
+        final PageId pid;
+        final int[] offsets;
+        final byte[][] before;
+        final byte[][] after;
+
+        PageDelta(String pageClassName, PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+            this.pageClassName = pageClassName;
+            this.pid = pid;
+            this.offsets = offsets;
+            this.before = before;
+            this.after = after;
+        }
 
-        //page data is:
+        /** Compute the delta that turns before into after */
+        static PageDelta diff(Page before, Page after) {
+            byte[] b = before.getPageData();
+            byte[] a = after.getPageData();
+            List<int[]> ranges = new ArrayList<>();
+            int i = 0;
+            while (i < a.length) {
+                if (a[i] == b[i]) {
+                    i++;
+                    continue;
+                }
+                int from = i;
+                int to = i + 1; // exclusive end of the current range
+                for (int j = to; j < a.length && j - to <= MERGE_GAP; j++) {
+                    if (a[j] != b[j]) {
+                        to = j + 1;
+                    }
+                }
+                ranges.add(new int[] { from, to - from });
+                i = to;
+            }
+
+            long deltaSize = 0;
+            for (int[] r : ranges) {
+                deltaSize += 2 * INT_SIZE + 2L * r[1];
+            }
+            if (deltaSize > 2 * INT_SIZE + 2L * a.length) {
+                ranges.clear();
+                ranges.add(new int[] { 0, a.length });
+            }
+
+            int n = ranges.size();
+            int[] offsets = new int[n];
+            byte[][] bs = new byte[n][];
+            byte[][] as = new byte[n][];
+            for (int k = 0; k < n; k++) {
+                int[] r = ranges.get(k);
+                offsets[k] = r[0];
+                bs[k] = Arrays.copyOfRange(b, r[0], r[0] + r[1]);
+                as[k] = Arrays.copyOfRange(a, r[0], r[0] + r[1]);
+            }
+            return new PageDelta(after.getClass().getName(), after.getId(), offsets, bs, as);
+        }
+
+        /** The delta that undoes this one, carrying only the restored bytes */
+        PageDelta inverse() {
+            return new PageDelta(pageClassName, pid, offsets, null, before);
+        }
+
+        int size() {
+            int size = 0;
+            for (byte[] range : after) {
+                size += range.length;
+            }
+            return size;
+        }
+
+        //delta data is:
         // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+        // page id (see writePageId)
+        // number of ranges
+        // for each range: offset, length, before bytes (UPDATE only), after bytes
+        void write(DataOutput out, boolean withBefore) throws IOException {
+            out.writeUTF(pageClassName);
+            writePageId(out, pid);
+            out.writeInt(offsets.length);
+            for (int k = 0; k < offsets.length; k++) {
+                out.writeInt(offsets[k]);
+                out.writeInt(after[k].length);
+                if (withBefore) {
+                    out.write(before[k]);
+                }
+                out.write(after[k]);
+            }
+        }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        static PageDelta read(LogFile log, LogSegments raf, boolean withBefore) throws IOException {
+            String pageClassName = raf.readUTF();
+            PageId pid = log.readPageId(raf);
+            int n = raf.readInt();
+            int[] offsets = new int[n];
+            byte[][] before = withBefore ? new byte[n][] : null;
+            byte[][] after = new byte[n][];
+            for (int k = 0; k < n; k++) {
+                offsets[k] = raf.readInt();
+                int len = raf.readInt();
+                if (withBefore) {
+                    before[k] = new byte[len];
+                    raf.readFully(before[k]);
+                }
+                after[k] = new byte[len];
+                raf.readFully(after[k]);
+            }
+            return new PageDelta(pageClassName, pid, offsets, before, after);
+        }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        /** Apply the after bytes of this delta to a serialized page */
+        void applyTo(byte[] pageData) {
+            for (int k = 0; k < offsets.length; k++) {
+                System.arraycopy(after[k], 0, pageData, offsets[k], after[k].length);
+            }
+        }
+    }
 
-        raf.writeInt(pageInfo.length);
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
         for (int j : pageInfo) {
-            raf.writeInt(j);
+            out.writeInt(j);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
+    PageId readPageId(LogSegments raf) throws IOException {
         String idClassName = raf.readUTF();
-
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
             Object[] idArgs = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
                 idArgs[i] = raf.readInt();
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+    /** Build a page of the named class from its serialized form.  B-tree
+        data pages also need the key field of the file they belong to. */
+    Page newPage(String pageClassName, PageId pid, byte[] pageData) throws IOException {
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[1] == byte[].class) {
+                    return (Page) c.newInstance(pid, pageData);
+                }
+                if (params.length == 3 && params[1] == byte[].class) {
+                    BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    return (Page) c.newInstance(pid, pageData, f.keyField());
+                }
+            }
+            throw new IOException("no constructor from page data for " + pageClassName);
         } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
+    }
 
+    /** Read the current on-disk image of a page, bypassing the buffer pool */
+    byte[] readDiskPage(PageId pid) throws IOException {
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+        } catch (TransactionAbortedException | DbException e) {
+            throw new IOException(e);
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -299,150 +609,120 @@ public class LogFile {
             System.err.print("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = append(new RecordBuilder(BEGIN_RECORD, tid.getId()), false);
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN LSN = " + lsn);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Take a fuzzy checkpoint.  A BEGIN_CHECKPOINT record marks where
+        analysis will start; the active transaction and dirty page tables
+        are then snapshotted and logged in a CHECKPOINT record, and only
+        after that is forced does the header start pointing at the new
+        checkpoint.  No page is written here and neither monitor is held
+        for longer than one record append, so transactions keep running;
+        the dirty pages are handed to the buffer pool to trickle out in
+        the background, which lets later checkpoints truncate more log. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        BufferPool pool = Database.getBufferPool();
+        long beginLsn = append(new RecordBuilder(BEGIN_CHECKPOINT_RECORD, NO_LSN), false);
+        Runnable hook = checkpointHook;
+        if (hook != null) {
+            hook.run();
+        }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        // taken under the buffer pool monitor, so any page whose update
+        // record precedes beginLsn is already in the table
+        Map<PageId, Long> dirtyPages = pool.getDirtyPageTable();
+
+        long cpLsn;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            RecordBuilder r = new RecordBuilder(CHECKPOINT_RECORD, NO_LSN);
+
+            //write list of outstanding transactions
+            r.out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                r.out.writeLong(e.getKey());
+                r.out.writeLong(e.getValue());
+                r.out.writeLong(tidToLastLogRecord.get(e.getKey()));
             }
+
+            //and the dirty page table, so redo knows where to start
+            r.out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                writePageId(r.out, e.getKey());
+                r.out.writeLong(e.getValue());
+            }
+            // appended while the tables cannot change
+            cpLsn = append(r, false);
+        }
+        force(cpLsn);
+
+        synchronized (this) {
+            //once the CP is durable, make sure the CP location in the
+            // control file is updated
+            writeHeader(beginLsn);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
+        pool.trickleFlush(dirtyPages.keySet());
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Whole segments before the oldest record recovery may
+        still read are archived and deleted, beyond the configured
+        retention; the tail segment is never rewritten. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
+        flushBuffer();
+        long cpLsn = readCheckpointLsn();
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        if (cpLsn == NO_CHECKPOINT_ID) {
+            return;
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
+        long minLogRecord = cpLsn;
 
-        //have to rewrite log records since offsets are different after truncation
+        // find the CHECKPOINT record that completes the one begun at cpLsn
+        raf.seek(cpLsn);
+        if (raf.readInt() != BEGIN_CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        raf.seek(cpLsn);
+        int cpType;
         while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
+            cpType = raf.readInt();
+            raf.readLong();
+            raf.readLong();
+            if (cpType == CHECKPOINT_RECORD) {
                 break;
             }
+            skipRecordBody(cpType);
+            raf.readLong();
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        // undo may need everything back to the first record of any
+        // active transaction, and redo everything back to the oldest
+        // recovery LSN of a dirty page
+        int numOutstanding = raf.readInt();
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = raf.readLong();
+            long firstLogRecord = raf.readLong();
+            raf.readLong();
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
+        int numDirty = raf.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            readPageId(raf);
+            minLogRecord = Math.min(minLogRecord, raf.readLong());
+        }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        int removed = raf.dropBefore(minLogRecord, retentionBytes, archiver);
 
-        currentOffset = raf.getFilePointer();
+        Debug.log("TRUNCATING LOG; REMOVED " + removed + " SEGMENTS ; NEW START : " + raf.start());
         //print();
     }
 
@@ -459,19 +739,71 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
+                flushBuffer();
                 // some code goes here
+                Long lsn = tidToLastLogRecord.get(tid.getId());
+                if (lsn == null) {
+                    throw new NoSuchElementException("no log records for transaction " + tid.getId());
+                }
+                long next = lsn;
+                while (next != NO_LSN) {
+                    next = undoRecord(tid.getId(), next);
+                }
             }
         }
     }
 
+    /** Undo a single record of a transaction's chain: an UPDATE is
+        reverted by installing its before image and logging a CLR, a CLR
+        is skipped over, and a BEGIN ends the chain.
+        @param tid the transaction being rolled back
+        @param lsn the record to undo
+        @return the LSN of the next record of tid to undo, or NO_LSN
+    */
+    private long undoRecord(long tid, long lsn) throws IOException {
+        raf.seek(lsn);
+        int type = raf.readInt();
+        raf.readLong();
+        long prev = raf.readLong();
+
+        switch (type) {
+        case UPDATE_RECORD:
+            PageDelta undo = PageDelta.read(this, raf, true).inverse();
+            long clrLsn = logClr(tid, undo, prev);
+            installDelta(undo, clrLsn);
+            return prev;
+        case CLR_RECORD:
+            PageDelta.read(this, raf, false);
+            return raf.readLong();
+        case BEGIN_RECORD:
+            return NO_LSN;
+        default:
+            return prev;
+        }
+    }
+
+    /** Apply a delta produced by redo or undo to the on-disk image of its
+        page, stamping the page with the LSN of the record it came from, and
+        make sure no stale copy stays in the buffer pool. */
+    private void installDelta(PageDelta delta, long lsn) throws IOException {
+        PageId pid = delta.pid;
+        byte[] data = readDiskPage(pid);
+        delta.applyTo(data);
+        Page p = newPage(delta.pageClassName, pid, data);
+        p.setLSN(lsn);
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+        logPageWrite(pid, lsn);
+        Database.getBufferPool().discardPage(pid);
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -481,81 +813,296 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        Every table and index the log holds changes to must already be
+        in the Catalog, as {@link simpledb.common.Catalog#loadSchema} puts them.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (control.length() < HEADER_SIZE) {
+                    raf.clear();
+                    buffer.reset(raf.length());
+                    writeHeader(NO_CHECKPOINT_ID);
+                    currentOffset = raf.length();
+                    return;
+                }
+                long cpLsn = readCheckpointLsn();
+                currentOffset = raf.length();
+                tidToFirstLogRecord.clear();
+                tidToLastLogRecord.clear();
+
+                Map<PageId, Long> dirtyPages = new HashMap<>();
+                Map<PageId, Long> pageLsns = new HashMap<>();
+                analyze(cpLsn, dirtyPages, pageLsns);
+                // new records, starting with the CLRs of undo, go after
+                // whatever analysis found to be the intact end of the log
+                buffer.reset(currentOffset);
+                redo(dirtyPages, pageLsns, currentOffset);
+                undoLosers();
+
+                force();
             }
          }
     }
 
+    /** Analysis pass: starting from the last checkpoint (or the head of
+        the log), rebuild the table of transactions that were active at
+        the crash and the dirty page table, and collect the newest LSN
+        each page is known to have been written to disk with. */
+    private void analyze(long cpLsn, Map<PageId, Long> dirtyPages, Map<PageId, Long> pageLsns)
+        throws IOException {
+        long start = cpLsn != NO_CHECKPOINT_ID ? cpLsn : raf.start();
+
+        raf.seek(start);
+        while (raf.getFilePointer() < currentOffset) {
+            long lsn = raf.getFilePointer();
+            int type;
+            long tid;
+            try {
+                type = raf.readInt();
+                tid = raf.readLong();
+                raf.readLong();
+                switch (type) {
+                case UPDATE_RECORD:
+                    dirtyPages.putIfAbsent(PageDelta.read(this, raf, true).pid, lsn);
+                    break;
+                case CLR_RECORD:
+                    dirtyPages.putIfAbsent(PageDelta.read(this, raf, false).pid, lsn);
+                    raf.readLong();
+                    break;
+                case CHECKPOINT_RECORD:
+                    readCheckpointBody(dirtyPages);
+                    break;
+                case PAGE_WRITE_RECORD:
+                    pageLsns.merge(readPageId(raf), raf.readLong(), Math::max);
+                    break;
+                }
+                raf.readLong();
+            } catch (EOFException e) {
+                // torn record at the tail of the log; ignore it
+                currentOffset = lsn;
+                raf.setLength(currentOffset);
+                break;
+            }
+
+            switch (type) {
+            case COMMIT_RECORD:
+            case ABORT_RECORD:
+                tidToFirstLogRecord.remove(tid);
+                tidToLastLogRecord.remove(tid);
+                break;
+            case CHECKPOINT_RECORD:
+            case BEGIN_CHECKPOINT_RECORD:
+            case PAGE_WRITE_RECORD:
+                break;
+            default:
+                tidToFirstLogRecord.putIfAbsent(tid, lsn);
+                tidToLastLogRecord.put(tid, lsn);
+            }
+        }
+    }
+
+    /** Merge the tables of a CHECKPOINT record into the ones analysis has
+        built so far.  The tables were snapshotted while transactions kept
+        logging, so records scanned since BEGIN_CHECKPOINT may be newer for
+        a transaction, and older for a page, than what the record holds. */
+    private void readCheckpointBody(Map<PageId, Long> dirtyPages) throws IOException {
+        int numXactions = raf.readInt();
+        for (int i = 0; i < numXactions; i++) {
+            long tid = raf.readLong();
+            long first = raf.readLong();
+            long last = raf.readLong();
+            tidToFirstLogRecord.merge(tid, first, Math::min);
+            tidToLastLogRecord.merge(tid, last, Math::max);
+        }
+        int numDirty = raf.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            PageId pid = readPageId(raf);
+            dirtyPages.merge(pid, raf.readLong(), Math::min);
+        }
+    }
+
+    /** Skip the type specific part of a record whose common header has
+        just been read, leaving the file at its trailing LSN */
+    private void skipRecordBody(int type) throws IOException {
+        switch (type) {
+        case UPDATE_RECORD:
+            PageDelta.read(this, raf, true);
+            break;
+        case CLR_RECORD:
+            PageDelta.read(this, raf, false);
+            raf.readLong();
+            break;
+        case CHECKPOINT_RECORD:
+            skipCheckpointBody();
+            break;
+        case PAGE_WRITE_RECORD:
+            readPageId(raf);
+            raf.readLong();
+            break;
+        }
+    }
+
+    private void skipCheckpointBody() throws IOException {
+        int numXactions = raf.readInt();
+        raf.seek(raf.getFilePointer() + (long) numXactions * 3 * LONG_SIZE);
+        int numDirty = raf.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            readPageId(raf);
+            raf.readLong();
+        }
+    }
+
+    /** Redo pass: repeat history from the oldest recovery LSN in the
+        dirty page table, reapplying the after bytes of every UPDATE and
+        CLR whose page may not reflect them yet.
+        @param pageLsns the LSNs pages were last written to disk with, as
+        found by analysis; updated as redo writes pages
+        @param end the end of the log analysis found; PAGE_WRITE records
+        appended by redo itself go after it
+    */
+    private void redo(Map<PageId, Long> dirtyPages, Map<PageId, Long> pageLsns, long end)
+        throws IOException {
+        if (dirtyPages.isEmpty()) {
+            return;
+        }
+        long redoLsn = Collections.min(dirtyPages.values());
+
+        raf.seek(redoLsn);
+        while (raf.getFilePointer() < end) {
+            long lsn = raf.getFilePointer();
+            int type = raf.readInt();
+            raf.readLong();
+            raf.readLong();
+            PageDelta delta = null;
+            switch (type) {
+            case UPDATE_RECORD:
+                delta = PageDelta.read(this, raf, true);
+                break;
+            case CLR_RECORD:
+                delta = PageDelta.read(this, raf, false);
+                raf.readLong();
+                break;
+            default:
+                skipRecordBody(type);
+            }
+            raf.readLong();
+
+            if (delta == null) {
+                continue;
+            }
+            PageId pid = delta.pid;
+            Long recLsn = dirtyPages.get(pid);
+            if (recLsn == null || lsn < recLsn) {
+                continue; // this change reached disk before the page was last cleaned
+            }
+            Long pageLsn = pageLsns.get(pid);
+            if (pageLsn != null && pageLsn >= lsn) {
+                continue;
+            }
+            long pos = raf.getFilePointer();
+            installDelta(delta, lsn);
+            pageLsns.put(pid, lsn);
+            raf.seek(pos);
+        }
+    }
+
+    /** Undo pass: roll back every transaction still active after
+        analysis, always undoing the record with the largest LSN next so
+        the log is read backwards once, and close each with an ABORT. */
+    private void undoLosers() throws IOException {
+        PriorityQueue<long[]> toUndo = new PriorityQueue<>((a, b) -> Long.compare(b[0], a[0]));
+        for (Map.Entry<Long, Long> e : tidToLastLogRecord.entrySet()) {
+            toUndo.add(new long[] { e.getValue(), e.getKey() });
+        }
+        while (!toUndo.isEmpty()) {
+            long[] next = toUndo.poll();
+            long tid = next[1];
+            long prev = undoRecord(tid, next[0]);
+            if (prev != NO_LSN) {
+                toUndo.add(new long[] { prev, tid });
+            } else {
+                append(new RecordBuilder(ABORT_RECORD, tid), true);
+            }
+        }
+    }
+
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
+    public synchronized void print() throws IOException {
+        flushBuffer();
         long curOffset = raf.getFilePointer();
 
-        raf.seek(0);
+        System.out.println("checkpoint record at LSN " + readCheckpointLsn());
+        System.out.println("first record LSN " + raf.start() + ", segment size " + raf.getSegmentSize());
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        raf.seek(raf.start());
 
         while (true) {
             try {
+                long lsn = raf.getFilePointer();
                 int cpType = raf.readInt();
                 long cpTid = raf.readLong();
+                long prev = raf.readLong();
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println(lsn + ": RECORD TYPE " + cpType);
+                System.out.println(lsn + ": TID " + cpTid + ", PREVIOUS LSN " + prev);
 
                 switch (cpType) {
                 case BEGIN_RECORD:
                     System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
                 case ABORT_RECORD:
                     System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
 
+                case BEGIN_CHECKPOINT_RECORD:
+                    System.out.println(" (BEGIN CHECKPOINT)");
+                    break;
+                case PAGE_WRITE_RECORD:
+                    System.out.println(" (PAGE WRITE)");
+                    PageId written = readPageId(raf);
+                    System.out.println("PAGE: table " + written.getTableId() + " page " + written.getPageNumber() + " PAGE LSN: " + raf.readLong());
+                    break;
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
                     int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                    System.out.println("NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                     while (numTransactions-- > 0) {
                         long tid = raf.readLong();
                         long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        long lastRecord = raf.readLong();
+                        System.out.println("TID: " + tid + " FIRST LOG RECORD: " + firstRecord + " LAST LOG RECORD: " + lastRecord);
+                    }
+                    int numDirty = raf.readInt();
+                    System.out.println("NUMBER OF DIRTY PAGES: " + numDirty);
+                    while (numDirty-- > 0) {
+                        PageId pid = readPageId(raf);
+                        System.out.println("PAGE: table " + pid.getTableId() + " page " + pid.getPageNumber() + " RECOVERY LSN: " + raf.readLong());
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
-
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
-
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
-
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    PageDelta update = PageDelta.read(this, raf, true);
+                    System.out.println("table id " + update.pid.getTableId() + " page number " + update.pid.getPageNumber()
+                            + ": " + update.offsets.length + " changed ranges, " + update.size() + " bytes");
+                    break;
+                case CLR_RECORD:
+                    System.out.println(" (CLR)");
 
+                    PageDelta restored = PageDelta.read(this, raf, false);
+                    System.out.println("restored table id " + restored.pid.getTableId() + " page number " + restored.pid.getPageNumber()
+                            + ": " + restored.offsets.length + " ranges, " + restored.size() + " bytes");
+                    System.out.println("UNDO NEXT LSN: " + raf.readLong());
                     break;
                 }
+                System.out.println("RECORD LSN: " + raf.readLong());
 
             } catch (EOFException e) {
                 //e.printStackTrace();
@@ -567,8 +1114,25 @@ public class LogFile {
         raf.seek(curOffset);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force every record appended so far to disk */
+    public void force() throws IOException {
+        buffer.force(buffer.tail() - 1);
+    }
+
+    /** Force the record at lsn, and every record before it, to disk.  The
+        fsync is issued by the log writer, so concurrent callers share it. */
+    public void force(long lsn) throws IOException {
+        buffer.force(lsn);
+    }
+
+    /** Write out the log buffer, stop the log writer and close the log's
+        files, without taking a checkpoint. */
+    public void close() throws IOException {
+        buffer.close();
+        synchronized (this) {
+            raf.close();
+            control.close();
+        }
     }
 
 }
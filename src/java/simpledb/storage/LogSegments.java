@@ -0,0 +1,268 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * LogSegments presents a sequence of fixed-size segment files as a single
+ * append-only byte stream addressed by LSN.  The segment holding LSN l is
+ * named {@code <log>.<start>} where start is l rounded down to a multiple of
+ * the segment size, so a record may continue from one segment into the next
+ * and any LSN can be located without an index.
+ * <p>
+ * Appends only ever touch the tail segment.  Dropping the head of the log is
+ * a matter of deleting whole segments, optionally after handing them to an
+ * {@link LogFile.SegmentArchiver}.
+ * <p>
+ * The read methods mirror those of {@link RandomAccessFile} so LogFile can
+ * parse records the same way it would from a single file; the read position
+ * belongs to LogFile, which serializes readers.  Appends come from the
+ * {@link LogBuffer} writer thread.  Both use positional channel I/O, and the
+ * segment map is guarded by this, so one reader and the writer can work at
+ * the same time.
+ */
+class LogSegments {
+
+    private final File dir;
+    private final String prefix;
+    private final long segmentSize;
+
+    /** open segments, keyed by their start LSN; guarded by this */
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<>();
+
+    private long pos;
+    private volatile long end;
+
+    /**
+     * Open the segments of the log whose control file is base, creating
+     * none until the first write.
+     */
+    LogSegments(File base, long segmentSize) throws IOException {
+        File parent = base.getAbsoluteFile().getParentFile();
+        this.dir = parent;
+        this.prefix = base.getName() + ".";
+        this.segmentSize = segmentSize;
+
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+        if (files != null) {
+            for (File f : files) {
+                try {
+                    long start = Long.parseLong(f.getName().substring(prefix.length()));
+                    segments.put(start, new RandomAccessFile(f, "rw"));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        if (!segments.isEmpty()) {
+            Map.Entry<Long, RandomAccessFile> last = segments.lastEntry();
+            end = last.getKey() + last.getValue().length();
+            pos = end;
+        }
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    File segmentFile(long start) {
+        return new File(dir, prefix + String.format("%020d", start));
+    }
+
+    /** LSN of the first byte still stored */
+    synchronized long start() {
+        return segments.isEmpty() ? end : segments.firstKey();
+    }
+
+    /** LSN one past the last byte written */
+    long length() {
+        return end;
+    }
+
+    long getFilePointer() {
+        return pos;
+    }
+
+    void seek(long lsn) {
+        pos = lsn;
+    }
+
+    private long segmentStart(long lsn) {
+        return lsn - lsn % segmentSize;
+    }
+
+    int read(byte[] b, int off, int len) throws IOException {
+        if (pos >= end) {
+            return -1;
+        }
+        int total = 0;
+        while (len > 0 && pos < end) {
+            long start = segmentStart(pos);
+            RandomAccessFile seg;
+            synchronized (this) {
+                seg = segments.get(start);
+            }
+            if (seg == null) {
+                throw new IOException("log segment for LSN " + pos + " has been removed");
+            }
+            int n = (int) Math.min(len, Math.min(start + segmentSize, end) - pos);
+            ByteBuffer buf = ByteBuffer.wrap(b, off, n);
+            while (buf.hasRemaining()) {
+                if (seg.getChannel().read(buf, pos - start + buf.position() - off) < 0) {
+                    throw new EOFException();
+                }
+            }
+            pos += n;
+            off += n;
+            len -= n;
+            total += n;
+        }
+        return total;
+    }
+
+    void readFully(byte[] b) throws IOException {
+        if (b.length > 0 && read(b, 0, b.length) != b.length) {
+            throw new EOFException();
+        }
+    }
+
+    private final byte[] scratch = new byte[8];
+
+    int readInt() throws IOException {
+        if (read(scratch, 0, 4) != 4) {
+            throw new EOFException();
+        }
+        return ((scratch[0] & 0xff) << 24) | ((scratch[1] & 0xff) << 16)
+                | ((scratch[2] & 0xff) << 8) | (scratch[3] & 0xff);
+    }
+
+    long readLong() throws IOException {
+        if (read(scratch, 0, 8) != 8) {
+            throw new EOFException();
+        }
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (scratch[i] & 0xff);
+        }
+        return v;
+    }
+
+    String readUTF() throws IOException {
+        if (read(scratch, 0, 2) != 2) {
+            throw new EOFException();
+        }
+        int len = ((scratch[0] & 0xff) << 8) | (scratch[1] & 0xff);
+        byte[] buf = new byte[len + 2];
+        buf[0] = scratch[0];
+        buf[1] = scratch[1];
+        if (len > 0 && read(buf, 2, len) != len) {
+            throw new EOFException();
+        }
+        return new DataInputStream(new ByteArrayInputStream(buf)).readUTF();
+    }
+
+    /** Append len bytes at the end of the log */
+    void append(byte[] b, int off, int len) throws IOException {
+        long at = end;
+        while (len > 0) {
+            long start = segmentStart(at);
+            RandomAccessFile seg;
+            synchronized (this) {
+                seg = segments.get(start);
+                if (seg == null) {
+                    seg = new RandomAccessFile(segmentFile(start), "rw");
+                    seg.setLength(0);
+                    Map.Entry<Long, RandomAccessFile> prev = segments.lastEntry();
+                    segments.put(start, seg);
+                    if (prev != null) {
+                        // the previous segment is sealed from here on
+                        prev.getValue().getChannel().force(true);
+                    }
+                }
+            }
+            int n = (int) Math.min(len, start + segmentSize - at);
+            ByteBuffer buf = ByteBuffer.wrap(b, off, n);
+            while (buf.hasRemaining()) {
+                seg.getChannel().write(buf, at - start + buf.position() - off);
+            }
+            at += n;
+            end = at;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Force the tail segment to disk; earlier ones were forced when sealed */
+    void force() throws IOException {
+        RandomAccessFile tail;
+        synchronized (this) {
+            if (segments.isEmpty()) {
+                return;
+            }
+            tail = segments.lastEntry().getValue();
+        }
+        tail.getChannel().force(true);
+    }
+
+    /** Cut the log back to lsn, discarding a torn record at its tail */
+    synchronized void setLength(long lsn) throws IOException {
+        while (!segments.isEmpty() && segments.lastKey() > segmentStart(lsn)) {
+            Map.Entry<Long, RandomAccessFile> last = segments.pollLastEntry();
+            last.getValue().close();
+            segmentFile(last.getKey()).delete();
+        }
+        if (!segments.isEmpty() && segments.lastKey() == segmentStart(lsn)) {
+            segments.lastEntry().getValue().setLength(lsn - segments.lastKey());
+        }
+        end = lsn;
+        pos = Math.min(pos, end);
+    }
+
+    /** Remove every segment and start an empty log at LSN 0 */
+    synchronized void clear() throws IOException {
+        for (Map.Entry<Long, RandomAccessFile> e : segments.entrySet()) {
+            e.getValue().close();
+            segmentFile(e.getKey()).delete();
+        }
+        segments.clear();
+        pos = end = 0;
+    }
+
+    /**
+     * Drop the segments that lie entirely before lsn.  The newest of them
+     * are kept as long as they add up to at most retainBytes; the others
+     * are passed to archiver, if there is one, and deleted.
+     *
+     * @return the number of segments removed
+     */
+    synchronized int dropBefore(long lsn, long retainBytes, LogFile.SegmentArchiver archiver) throws IOException {
+        List<Long> droppable = new ArrayList<>(segments.headMap(segmentStart(lsn)).keySet());
+        Collections.reverse(droppable);
+        long retained = 0;
+        int removed = 0;
+        for (long start : droppable) {
+            RandomAccessFile seg = segments.get(start);
+            retained += seg.length();
+            if (retained <= retainBytes) {
+                continue;
+            }
+            seg.close();
+            segments.remove(start);
+            File f = segmentFile(start);
+            if (archiver != null) {
+                archiver.archive(f, start, start + segmentSize);
+            }
+            f.delete();
+            removed++;
+        }
+        return removed;
+    }
+
+    synchronized void close() throws IOException {
+        for (RandomAccessFile seg : segments.values()) {
+            seg.close();
+        }
+        segments.clear();
+    }
+}
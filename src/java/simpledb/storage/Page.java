@@ -58,4 +58,23 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Get the LSN of the last log record that was applied to this page, or
+     * {@link LogFile#NO_LSN} if no logged change has been applied since the
+     * page was read from disk.  The page formats have no room for it, so
+     * whenever a page is written the LSN it carries is logged in a
+     * PAGE_WRITE record, which recovery uses to skip redo of records the
+     * page on disk already reflects.
+     *
+     * @return the page LSN
+     */
+    long getLSN();
+
+    /**
+     * Stamp this page with the LSN of a log record describing it.
+     *
+     * @param lsn the LSN of the log record
+     */
+    void setLSN(long lsn);
 }
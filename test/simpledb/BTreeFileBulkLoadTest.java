@@ -0,0 +1,201 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.IndexPredicate;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.execution.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreeFileBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private final Random r = new Random(6830);
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private BTreeFile createEmptyFile() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		return BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+	}
+
+	private List<Tuple> sortedTuples(int n) {
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i = 0; i < n; i++) {
+			tuples.add(BTreeUtility.getBTreeTuple(new int[]{r.nextInt(BTreeUtility.MAX_RAND_VALUE),
+					r.nextInt(BTreeUtility.MAX_RAND_VALUE)}));
+		}
+		tuples.sort(Comparator.comparingInt(t -> ((IntField) t.getField(0)).getValue()));
+		return tuples;
+	}
+
+	private void checkContents(BTreeFile bf, List<Tuple> expected) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		Field prev = null;
+		while(it.hasNext()) {
+			Field key = it.next().getField(0);
+			if(prev != null) {
+				assertTrue(prev.compare(Op.LESS_THAN_OR_EQ, key));
+			}
+			prev = key;
+			count++;
+		}
+		it.close();
+		assertEquals(expected.size(), count);
+	}
+
+	@Test
+	public void testLoadThreeLevels() throws Exception {
+		// small pages give a tree with a root, a level of internal pages and leaves
+		BufferPool.setPageSize(1024);
+		BTreeFile bf = createEmptyFile();
+		List<Tuple> tuples = sortedTuples(31000);
+		RecordId rid = tuples.get(0).getRecordId();
+		bf.bulkLoad(tid, tuples.iterator(), 1.0);
+		checkContents(bf, tuples);
+
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), simpledb.common.Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+
+		// every key can be found through the index
+		for(int i = 0; i < 100; i++) {
+			Tuple t = tuples.get(r.nextInt(tuples.size()));
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, t.getField(0)));
+			it.open();
+			boolean found = false;
+			while(it.hasNext()) {
+				if(BTreeUtility.tupleToList(it.next()).equals(BTreeUtility.tupleToList(t))) {
+					found = true;
+				}
+			}
+			it.close();
+			assertTrue(found);
+		}
+
+		// the input tuples keep their own record ids
+		assertSame(rid, tuples.get(0).getRecordId());
+	}
+
+	@Test
+	public void testLoadEdgeSizes() throws Exception {
+		BufferPool.setPageSize(1024);
+		int leaf = BTreeUtility.getNumTuplesPerPage(2);
+		int[] sizes = {0, 1, 2, leaf - 1, leaf, leaf + 1, 2 * leaf + 1, 125 * leaf, 125 * leaf + 1, 126 * leaf + 1};
+		for(int n : sizes) {
+			Database.reset();
+			BTreeFile bf = createEmptyFile();
+			List<Tuple> tuples = sortedTuples(n);
+			bf.bulkLoad(tid, tuples.iterator(), 1.0);
+			checkContents(bf, tuples);
+		}
+	}
+
+	@Test
+	public void testFillFactor() throws Exception {
+		BufferPool.setPageSize(1024);
+		List<Tuple> tuples = sortedTuples(10000);
+		BTreeFile full = createEmptyFile();
+		full.bulkLoad(tid, tuples.iterator(), 1.0);
+		checkContents(full, tuples);
+
+		BTreeFile half = createEmptyFile();
+		half.bulkLoad(tid, tuples.iterator(), 0.5);
+		checkContents(half, tuples);
+		assertTrue(half.numPages() >= 2 * full.numPages() - 2);
+
+		// pages with room left over take inserts without splitting
+		int before = half.numPages();
+		for(int i = 0; i < 100; i++) {
+			Database.getBufferPool().insertTuple(tid, half.getId(), BTreeUtility.getBTreeTuple(
+					new int[]{r.nextInt(BTreeUtility.MAX_RAND_VALUE), 0}));
+		}
+		assertEquals(before, half.numPages());
+	}
+
+	@Test
+	public void testUpdatesAfterLoad() throws Exception {
+		BufferPool.setPageSize(1024);
+		BTreeFile bf = createEmptyFile();
+		List<Tuple> tuples = sortedTuples(5000);
+		bf.bulkLoad(tid, tuples.iterator(), 0.9);
+
+		List<Tuple> expected = new ArrayList<>(tuples);
+		for(int i = 0; i < 500; i++) {
+			Tuple t = BTreeUtility.getBTreeTuple(new int[]{r.nextInt(BTreeUtility.MAX_RAND_VALUE), i});
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+			expected.add(t);
+		}
+		// tuples move between pages as the tree rebalances, so look each one up
+		// again right before deleting it
+		Collections.shuffle(expected, r);
+		List<Tuple> toDelete = expected.subList(0, expected.size() / 2);
+		for(Tuple t : toDelete) {
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, t.getField(0)));
+			it.open();
+			Tuple found = null;
+			while(found == null && it.hasNext()) {
+				Tuple next = it.next();
+				if(BTreeUtility.tupleToList(next).equals(BTreeUtility.tupleToList(t))) {
+					found = next;
+				}
+			}
+			it.close();
+			assertNotNull(found);
+			Database.getBufferPool().deleteTuple(tid, found);
+		}
+		checkContents(bf, expected.subList(toDelete.size(), expected.size()));
+	}
+
+	@Test(expected = DbException.class)
+	public void testUnsortedInput() throws Exception {
+		BTreeFile bf = createEmptyFile();
+		List<Tuple> tuples = sortedTuples(100);
+		Collections.reverse(tuples);
+		bf.bulkLoad(tid, tuples.iterator(), 1.0);
+	}
+
+	@Test(expected = DbException.class)
+	public void testNonEmptyTree() throws Exception {
+		BTreeFile bf = createEmptyFile();
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(1, 2));
+		bf.bulkLoad(tid, sortedTuples(10).iterator(), 1.0);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeFileBulkLoadTest.class);
+	}
+}
@@ -374,6 +374,30 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		}
 	}    
 
+	/**
+	 * Unit test for BTreeFile.getEmptyPageNo() after the transaction that allocated a page aborts
+	 */
+	@Test
+	public void testReuseEmptyPagesAfterAbort() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3);
+
+		empty.setEmptyPage(tid, new HashMap<>(), 2);
+		empty.setEmptyPage(tid, new HashMap<>(), 3);
+		Database.getBufferPool().transactionComplete(tid);
+
+		TransactionId aborted = new TransactionId();
+		assertEquals(2, empty.getEmptyPageNo(aborted, new HashMap<>()));
+		Database.getBufferPool().transactionComplete(aborted, false);
+
+		// the header page went back to its committed state, and so did the free pages
+		assertEquals(2, empty.getEmptyPageNo(tid, new HashMap<>()));
+		assertEquals(3, empty.getEmptyPageNo(tid, new HashMap<>()));
+		assertEquals(empty.numPages() + 1, empty.getEmptyPageNo(tid, new HashMap<>()));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -23,6 +23,7 @@ import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.transaction.TransactionId;
 
@@ -321,6 +322,120 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Check findChildIndex() and lowerBound() for the given key against a walk
+	 * of the entries of the page.  The child in slot 0 is the left-most one, and
+	 * each entry's RecordId names the slot of its right child.
+	 */
+	private static void assertDescends(BTreeInternalPage page, int key) {
+		Map<Integer, BTreePageId> children = new HashMap<>();
+		BTreePageId expected = null;
+		int less = 0;
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (children.isEmpty()) {
+				children.put(0, e.getLeftChild());
+				expected = e.getLeftChild();
+			}
+			children.put(e.getRecordId().getTupleNumber(), e.getRightChild());
+			if (((IntField) e.getKey()).getValue() < key) {
+				expected = e.getRightChild();
+				less++;
+			}
+		}
+		assertEquals(less, page.lowerBound(new IntField(key)));
+		assertEquals(expected, children.get(page.findChildIndex(new IntField(key))));
+	}
+
+	private static List<Integer> keysOf(BTreeInternalPage page) {
+		List<Integer> keys = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			keys.add(((IntField) it.next().getKey()).getValue());
+		return keys;
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.lowerBound() and findChildIndex() on an
+	 * empty page
+	 */
+	@Test public void findChildIndexEmptyPage() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		assertEquals(0, page.lowerBound(new IntField(0)));
+		try {
+			page.findChildIndex(new IntField(0));
+			fail("an empty page has no child to descend into");
+		} catch (NoSuchElementException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.lowerBound() and findChildIndex() at every
+	 * key of a page, including the first and the last, and between them
+	 */
+	@Test public void findChildIndex() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		List<Integer> keys = keysOf(page);
+		assertEquals(0, page.findChildIndex(null));
+		assertEquals(0, page.findChildIndex(new IntField(keys.get(0))));
+		assertEquals(0, page.lowerBound(new IntField(Integer.MIN_VALUE)));
+		assertEquals(keys.size(), page.lowerBound(new IntField(Integer.MAX_VALUE)));
+		for (int key : keys) {
+			assertDescends(page, key - 1);
+			assertDescends(page, key);
+			assertDescends(page, key + 1);
+		}
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChildIndex() with duplicate keys, which
+	 * descends to the left-most child that may hold the key
+	 */
+	@Test public void findChildIndexDuplicateKeys() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		int[] keys = {10, 20, 20, 20, 30};
+		for (int i = 0; i < keys.length; i++) {
+			page.insertEntry(new BTreeEntry(new IntField(keys[i]),
+					new BTreePageId(-1, i + 1, BTreePageId.LEAF), new BTreePageId(-1, i + 2, BTreePageId.LEAF)));
+		}
+		assertEquals(Arrays.asList(10, 20, 20, 20, 30), keysOf(page));
+		assertEquals(1, page.lowerBound(new IntField(20)));
+		assertEquals(4, page.upperBound(new IntField(20)));
+		for (int key : new int[] {5, 10, 15, 20, 25, 30, 35})
+			assertDescends(page, key);
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChildIndex() across the gaps that
+	 * deleting entries leaves, including at the first and last slots
+	 */
+	@Test public void findChildIndexAfterDelete() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		List<BTreeEntry> entries = new ArrayList<>();
+		page.iterator().forEachRemaining(entries::add);
+		List<Integer> keys = keysOf(page);
+
+		page.deleteKeyAndLeftChild(entries.get(0));
+		page.deleteKeyAndRightChild(entries.get(10));
+		page.deleteKeyAndRightChild(entries.get(entries.size() - 1));
+		List<Integer> remaining = keysOf(page);
+		assertEquals(keys.size() - 3, remaining.size());
+		for (int key : keys) {
+			assertDescends(page, key - 1);
+			assertDescends(page, key);
+			assertDescends(page, key + 1);
+		}
+
+		// an entry inserted again is seen by the next search
+		BTreeEntry last = entries.get(entries.size() - 1);
+		page.insertEntry(new BTreeEntry(last.getKey(), last.getLeftChild(), last.getRightChild()));
+		assertEquals(keys.size() - 2, keysOf(page).size());
+		for (int key : keys)
+			assertDescends(page, key);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -347,6 +347,76 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	private static List<Integer> keysFrom(Iterator<Tuple> it) {
+		List<Integer> keys = new ArrayList<>();
+		while (it.hasNext())
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		return keys;
+	}
+
+	/**
+	 * Unit test for BTreeLeafPage.lowerBound() and iterator(int) on an empty page
+	 */
+	@Test public void lowerBoundEmptyPage() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), 0);
+		assertEquals(page.getMaxTuples(), page.lowerBound(new IntField(0)));
+		assertFalse(page.iterator(page.lowerBound(new IntField(0))).hasNext());
+		assertFalse(page.iterator(0).hasNext());
+	}
+
+	/**
+	 * Unit test for BTreeLeafPage.lowerBound() with duplicate keys
+	 */
+	@Test public void lowerBoundDuplicateKeys() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), 0);
+		int[] keys = {7, 3, 5, 5, 9, 5, 3};
+		for (int i = 0; i < keys.length; i++)
+			page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{keys[i], i}));
+
+		// the search stops at the first of the equal keys
+		assertEquals(Arrays.asList(5, 5, 5, 7, 9), keysFrom(page.iterator(page.lowerBound(new IntField(5)))));
+		assertEquals(page.lowerBound(new IntField(5)), page.lowerBound(new IntField(4)));
+		assertEquals(Arrays.asList(3, 3, 5, 5, 5, 7, 9), keysFrom(page.iterator(page.lowerBound(new IntField(3)))));
+		assertEquals(Arrays.asList(3, 3, 5, 5, 5, 7, 9), keysFrom(page.iterator(page.lowerBound(new IntField(-1)))));
+		assertEquals(Collections.singletonList(9), keysFrom(page.iterator(page.lowerBound(new IntField(8)))));
+		assertEquals(page.getMaxTuples(), page.lowerBound(new IntField(10)));
+	}
+
+	/**
+	 * Unit test for BTreeLeafPage.lowerBound() and iterator(int) at the first and
+	 * last slots, and across the gaps that deleting tuples leaves
+	 */
+	@Test public void lowerBoundAfterDelete() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		List<Tuple> tuples = new ArrayList<>();
+		page.iterator().forEachRemaining(tuples::add);
+		List<Integer> keys = keysFrom(tuples.iterator());
+
+		// the example tuples fill slots 0 to 19 in order of their keys
+		assertEquals(0, page.lowerBound(tuples.get(0).getField(0)));
+		assertEquals(19, page.lowerBound(tuples.get(19).getField(0)));
+		assertEquals(keys, keysFrom(page.iterator(0)));
+		assertEquals(keys.subList(19, 20), keysFrom(page.iterator(19)));
+
+		page.deleteTuple(tuples.get(0));
+		page.deleteTuple(tuples.get(10));
+		page.deleteTuple(tuples.get(19));
+		// searches must not land on the emptied slots
+		assertEquals(1, page.lowerBound(tuples.get(0).getField(0)));
+		assertEquals(11, page.lowerBound(tuples.get(10).getField(0)));
+		assertEquals(page.getMaxTuples(), page.lowerBound(tuples.get(19).getField(0)));
+		List<Integer> remaining = new ArrayList<>(keys.subList(1, 19));
+		remaining.remove(keys.get(10));
+		assertEquals(remaining, keysFrom(page.iterator(0)));
+		assertEquals(remaining.subList(9, 17), keysFrom(page.iterator(10)));
+
+		// a tuple inserted again fills one of the gaps, and is found
+		int key = keys.get(10);
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{key, 0}));
+		assertEquals(key, ((IntField) page.iterator(page.lowerBound(new IntField(key))).next().getField(0)).getValue());
+		assertEquals(keys.subList(1, 19), keysFrom(page.iterator()));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
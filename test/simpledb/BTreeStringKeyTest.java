@@ -0,0 +1,257 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+
+	private TransactionId tid;
+	private final Random r = new Random(6830);
+
+	@Before
+	public void setUp() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private BTreeFile createEmptyFile() throws Exception {
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf);
+		return bf;
+	}
+
+	private static Tuple tuple(String key, int value) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(key, Type.STRING_LEN));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	private String randomKey() {
+		// a small alphabet gives shared prefixes and duplicates
+		int len = 1 + r.nextInt(20);
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < len; i++) {
+			sb.append((char) ('a' + r.nextInt(4)));
+		}
+		return sb.toString();
+	}
+
+	private Tuple find(BTreeFile bf, Tuple t) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, t.getField(0)));
+		it.open();
+		Tuple found = null;
+		while(found == null && it.hasNext()) {
+			Tuple next = it.next();
+			if(next.getField(1).equals(t.getField(1))) {
+				found = next;
+			}
+		}
+		it.close();
+		return found;
+	}
+
+	private int count(BTreeFile bf) throws Exception {
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		Field prev = null;
+		while(it.hasNext()) {
+			Field key = it.next().getField(0);
+			if(prev != null) {
+				assertTrue(prev.compare(Op.LESS_THAN_OR_EQ, key));
+			}
+			prev = key;
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	/** Short string keys give internal pages a much larger fanout, and survive a round trip to disk */
+	@Test
+	public void testSlottedInternalPage() throws Exception {
+		BTreeFile bf = createEmptyFile();
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		int fixedFanout = (BufferPool.getPageSize() * 8 - 73) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+
+		int n = 0;
+		while(page.getNumEmptySlots() > 0) {
+			String key = String.format("key%05d", n);
+			page.insertEntry(new BTreeEntry(new StringField(key, Type.STRING_LEN),
+					new BTreePageId(bf.getId(), n + 2, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), n + 3, BTreePageId.LEAF)));
+			n++;
+		}
+		assertEquals(n, page.getNumEntries());
+		assertTrue(n > 5 * fixedFanout);
+
+		BTreeInternalPage read = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertEquals(n, read.getNumEntries());
+		Iterator<BTreeEntry> expected = page.iterator();
+		Iterator<BTreeEntry> actual = read.iterator();
+		while(expected.hasNext()) {
+			BTreeEntry e = expected.next();
+			BTreeEntry a = actual.next();
+			assertEquals(e.getKey(), a.getKey());
+			assertEquals(e.getLeftChild(), a.getLeftChild());
+			assertEquals(e.getRightChild(), a.getRightChild());
+		}
+		assertFalse(actual.hasNext());
+		assertArrayEquals(page.getPageData(), read.getPageData());
+	}
+
+	/** Separators copied up from the leaves are only as long as they need to be */
+	@Test
+	public void testSeparatorsAreTruncated() throws Exception {
+		BTreeFile bf = createEmptyFile();
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i = 0; i < 4000; i++) {
+			tuples.add(tuple(String.format("customer#%09d", i * 7), i));
+		}
+		bf.bulkLoad(tid, tuples.iterator(), 1.0);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		// the leaves all hang off the root, which a fixed-width page could not manage
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = root.iterator();
+		int entries = 0;
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			assertEquals(BTreePageId.LEAF, e.getLeftChild().pgcateg());
+			assertTrue(((StringField) e.getKey()).getValue().length() < "customer#000000000".length());
+			entries++;
+		}
+		assertTrue(entries > root.getMaxEntries());
+
+		for(int i = 0; i < 200; i++) {
+			Tuple t = tuples.get(r.nextInt(tuples.size()));
+			assertNotNull(find(bf, t));
+		}
+		assertNull(find(bf, tuple("customer#000000001", 0)));
+	}
+
+	/** Inserts and deletes keep a tree of string keys valid through splits, steals and merges */
+	@Test
+	public void testInsertAndDelete() throws Exception {
+		BufferPool.setPageSize(1024);
+		BTreeFile bf = createEmptyFile();
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i = 0; i < 3000; i++) {
+			Tuple t = tuple(randomKey(), i);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+			tuples.add(t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(tuples.size(), count(bf));
+
+		// tuples move between pages as the tree rebalances, so look each one up
+		// again right before deleting it
+		Collections.shuffle(tuples, r);
+		List<Tuple> toDelete = tuples.subList(0, tuples.size() * 2 / 3);
+		for(Tuple t : toDelete) {
+			Tuple found = find(bf, t);
+			assertNotNull(found);
+			Database.getBufferPool().deleteTuple(tid, found);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<Tuple> remaining = tuples.subList(toDelete.size(), tuples.size());
+		assertEquals(remaining.size(), count(bf));
+		for(Tuple t : remaining) {
+			assertNotNull(find(bf, t));
+		}
+	}
+
+	private static String repeat(char c, int n) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < n; i++) {
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	/** A steal that lengthens the separator in a nearly full parent splits the parent */
+	@Test
+	public void testLongerSeparatorSplitsParent() throws Exception {
+		BufferPool.setPageSize(1024);
+		BTreeFile bf = createEmptyFile();
+		assertEquals(7, new BTreeLeafPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), 0).getMaxTuples());
+
+		// the first two leaves are told apart by one character, the last thirteen by 57
+		String x = repeat('x', 100);
+		List<String> keys = new ArrayList<>(Arrays.asList("a0", "a1", "a2", "a3", "a4", "a5", "a6",
+				"c", "d" + x, "d" + x + "y", "d" + x + "z", "e1", "e2", "e3"));
+		for(char leaf = 'A'; leaf < 'A' + 13; leaf++) {
+			for(int i = 0; i < 7; i++) {
+				keys.add("h" + repeat('x', 55) + leaf + i);
+			}
+		}
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i = 0; i < keys.size(); i++) {
+			tuples.add(tuple(keys.get(i), i));
+		}
+		bf.bulkLoad(tid, tuples.iterator(), 1.0);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		BTreePageId rootId = ((BTreeRootPtrPage) Database.getBufferPool().getPage(tid, rootPtrId,
+				Permissions.READ_ONLY)).getRootId();
+		assertEquals(14, ((BTreeInternalPage) Database.getBufferPool().getPage(tid, rootId,
+				Permissions.READ_ONLY)).getNumEntries());
+
+		// emptying the first leaf steals from the second, and the key between them
+		// grows to 102 characters
+		for(int i = 0; i < 5; i++) {
+			Database.getBufferPool().deleteTuple(tid, find(bf, tuples.get(i)));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		BTreePageId newRootId = ((BTreeRootPtrPage) Database.getBufferPool().getPage(tid, rootPtrId,
+				Permissions.READ_ONLY)).getRootId();
+		BTreeInternalPage newRoot = (BTreeInternalPage) Database.getBufferPool().getPage(tid, newRootId,
+				Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, newRoot.iterator().next().getLeftChild().pgcateg());
+
+		assertEquals(tuples.size() - 5, count(bf));
+		for(Tuple t : tuples.subList(5, tuples.size())) {
+			assertNotNull(find(bf, t));
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+	}
+}
@@ -97,6 +97,32 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Unit test for Catalog.removeTable(); a name taken over by another
+     * table stays with that table
+     */
+    @Test public void removeTable() {
+    	Database.getCatalog().removeTable(id1);
+    	try {
+    		Database.getCatalog().getTableId(nameThisTestRun);
+    		Assert.fail("Should not find a removed table");
+    	} catch (NoSuchElementException e) {
+    		// Expected to get here
+    	}
+    	try {
+    		Database.getCatalog().getDatabaseFile(id1);
+    		Assert.fail("Should not find a removed table");
+    	} catch (NoSuchElementException e) {
+    		// Expected to get here
+    	}
+
+    	int id3 = r.nextInt();
+    	Database.getCatalog().addTable(new SkeletonFile(id3, Utility.getTupleDesc(2)), name);
+    	Database.getCatalog().removeTable(id2);
+    	assertEquals(id3, Database.getCatalog().getTableId(name));
+    	Database.getCatalog().removeTable(id2);
+    }
+
     /**
      * JUnit suite target
      */
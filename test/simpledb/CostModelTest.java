@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Predicate;
+import simpledb.optimizer.CostCalibrator;
+import simpledb.optimizer.CostModel;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CostModelTest extends SimpleDbTestBase {
+
+	@After public void tearDown() {
+		CostModel.set(CostModel.DEFAULT);
+	}
+
+	/**
+	 * A cost model is saved and read back whole; a file that is missing or
+	 * cannot be read leaves the model in use alone
+	 */
+	@Test public void saveAndLoadTest() throws IOException {
+		File costsFile = File.createTempFile("catalog", CostModel.COSTS_FILE_SUFFIX);
+		costsFile.deleteOnExit();
+		new CostModel(200, 900, 1, 3.5).save(costsFile, null);
+		Assert.assertTrue(CostModel.load(costsFile));
+		Assert.assertEquals(200, CostModel.get().getSeqPageCost(), 0.0);
+		Assert.assertEquals(900, CostModel.get().getRandomPageCost(), 0.0);
+		Assert.assertEquals(1, CostModel.get().getTupleCost(), 0.0);
+		Assert.assertEquals(3.5, CostModel.get().getHashTupleCost(), 0.0);
+		Assert.assertEquals(200, CostModel.get().getIoCostPerPage());
+
+		CostModel loaded = CostModel.get();
+		Assert.assertFalse(CostModel.load(new File(costsFile.getPath() + ".missing")));
+		try (FileWriter w = new FileWriter(costsFile)) {
+			w.write("seqPageCost=-1\n");
+		}
+		Assert.assertFalse(CostModel.load(costsFile));
+		Assert.assertSame(loaded, CostModel.get());
+	}
+
+	/**
+	 * Join costs charge the tuple and hash costs of the model in use
+	 */
+	@Test public void joinCostTest() {
+		JoinOptimizer j = new JoinOptimizer(null, new ArrayList<>());
+		LogicalJoinNode equals = new LogicalJoinNode("a", "b", "x", "y", Predicate.Op.EQUALS);
+		LogicalJoinNode less = new LogicalJoinNode("a", "b", "x", "y", Predicate.Op.LESS_THAN);
+		Assert.assertEquals(10 + 100 + 20 + 200, j.estimateJoinCost(equals, 100, 200, 10, 20), 1e-9);
+		Assert.assertEquals(10 + 100 * 20 + 100 * 200, j.estimateJoinCost(less, 100, 200, 10, 20), 1e-9);
+
+		CostModel.set(new CostModel(1000, 1000, 2, 5));
+		Assert.assertEquals(10 + 500 + 20 + 1000, j.estimateJoinCost(equals, 100, 200, 10, 20), 1e-9);
+		Assert.assertEquals(10 + 100 * 20 + 2 * 100 * 200, j.estimateJoinCost(less, 100, 200, 10, 20), 1e-9);
+	}
+
+	/**
+	 * Calibration measures a usable model, in units of a predicate applied
+	 * to a tuple, and leaves no file or table behind; the values themselves
+	 * depend on the machine
+	 */
+	@Test public void calibrateTest() throws IOException {
+		File dir = Files.createTempDirectory("calibrate").toFile();
+		dir.deleteOnExit();
+		CostModel model = CostCalibrator.calibrate(dir, 64);
+		Assert.assertEquals(1, model.getTupleCost(), 0.0);
+		for (double cost : new double[] {model.getSeqPageCost(), model.getRandomPageCost(),
+				model.getHashTupleCost()}) {
+			Assert.assertTrue(cost > 0 && !Double.isInfinite(cost));
+		}
+		Assert.assertEquals(0, dir.list().length);
+		Assert.assertFalse(Database.getCatalog().tableIdIterator().hasNext());
+	}
+}
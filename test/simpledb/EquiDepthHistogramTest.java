@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.optimizer.EquiDepthHistogram;
+import simpledb.optimizer.IntHistogram;
+import simpledb.storage.IntField;
+
+public class EquiDepthHistogramTest {
+
+	/**
+	 * Values 0..999 with Zipf-like frequencies: value v occurs about 1/(v+1)
+	 * as often as value 0, on top of a uniform background.
+	 */
+	private static int[] skewedValues(int n, Random random) {
+		double[] cumulative = new double[1000];
+		double sum = 0;
+		for (int v = 0; v < cumulative.length; v++) {
+			sum += 1.0 / (v + 1);
+			cumulative[v] = sum;
+		}
+		int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			if (random.nextInt(4) == 0) {
+				values[i] = random.nextInt(1000);
+			} else {
+				double u = random.nextDouble() * sum;
+				int v = 0;
+				while (cumulative[v] < u)
+					v++;
+				values[i] = v;
+			}
+		}
+		return values;
+	}
+
+	private static double truth(int[] values, Op op, int c) {
+		int matches = 0;
+		for (int v : values) {
+			if (new IntField(v).compare(op, new IntField(c)))
+				matches++;
+		}
+		return (double) matches / values.length;
+	}
+
+	/**
+	 * Compare the estimates of a histogram built from a sample of skewed
+	 * values with the true selectivities, and with the estimates of a
+	 * fixed-width histogram built from all of them.
+	 */
+	@Test public void skewedAccuracyTest() {
+		Random random = new Random(45);
+		int[] values = skewedValues(100000, random);
+		int[] sample = new int[20000];
+		for (int i = 0; i < sample.length; i++)
+			sample[i] = values[random.nextInt(values.length)];
+
+		EquiDepthHistogram ed = new EquiDepthHistogram(100, 100, sample, 0, 999);
+		IntHistogram fw = new IntHistogram(100, 0, 999);
+		for (int v : values)
+			fw.addValue(v);
+
+		double edError = 0, fwError = 0;
+		for (int c = 0; c < 20; c++) {
+			double t = truth(values, Op.EQUALS, c);
+			double e = ed.estimateSelectivity(Op.EQUALS, c);
+			// within four standard deviations of the sampling error
+			Assert.assertEquals(t, e, 4 * Math.sqrt(t * (1 - t) / sample.length));
+			edError += Math.abs(e - t);
+			fwError += Math.abs(fw.estimateSelectivity(Op.EQUALS, c) - t);
+		}
+		Assert.assertTrue(edError < fwError / 5);
+
+		for (int c = 0; c <= 1000; c += 37) {
+			for (Op op : new Op[]{Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ}) {
+				Assert.assertEquals(truth(values, op, c), ed.estimateSelectivity(op, c), 0.02);
+			}
+		}
+		for (int c = 100; c < 1000; c += 89) {
+			Assert.assertEquals(truth(values, Op.EQUALS, c), ed.estimateSelectivity(Op.EQUALS, c), 0.001);
+		}
+	}
+
+	/**
+	 * Make sure that the estimates of a small histogram are exact where they
+	 * can be.
+	 */
+	@Test public void smallHistogramTest() {
+		EquiDepthHistogram h = new EquiDepthHistogram(10, 10, new int[]{3, 3, 3, 1, 10});
+
+		Assert.assertEquals(0.6, h.estimateSelectivity(Op.EQUALS, 3), 1e-9);
+		Assert.assertEquals(0.4, h.estimateSelectivity(Op.NOT_EQUALS, 3), 1e-9);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, 12), 1e-9);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.GREATER_THAN, -1), 1e-9);
+		Assert.assertEquals(0.8, h.estimateSelectivity(Op.GREATER_THAN, 2), 1e-9);
+		Assert.assertEquals(0.8, h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, 3), 1e-9);
+		Assert.assertEquals(0.2, h.estimateSelectivity(Op.GREATER_THAN, 4), 1e-9);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.GREATER_THAN, 10), 1e-9);
+		Assert.assertEquals(0.2, h.estimateSelectivity(Op.LESS_THAN, 2), 1e-9);
+		Assert.assertEquals(0.8, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, 3), 1e-9);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, 10), 1e-9);
+		Assert.assertEquals(3, h.numDistinct());
+	}
+
+	/**
+	 * A column holding a single value, and an empty one
+	 */
+	@Test public void degenerateTest() {
+		EquiDepthHistogram h = new EquiDepthHistogram(10, 10, new int[]{7, 7, 7, 7});
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.EQUALS, 7), 1e-9);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, 7), 1e-9);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, 7), 1e-9);
+		Assert.assertEquals(1.0, h.avgSelectivity(), 1e-9);
+
+		h = new EquiDepthHistogram(10, 10, new int[0]);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, 7), 1e-9);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.GREATER_THAN, 7), 1e-9);
+	}
+}
@@ -0,0 +1,94 @@
+package simpledb;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.optimizer.EquiDepthStringHistogram;
+import simpledb.optimizer.HyperLogLog;
+import simpledb.optimizer.StringHistogram;
+
+public class EquiDepthStringHistogramTest {
+
+	private static String[] keys(int n) {
+		String[] values = new String[n];
+		for (int i = 0; i < n; i++)
+			values[i] = String.format("customer#%06d", i);
+		return values;
+	}
+
+	/**
+	 * Strings that share a long prefix are told apart by the characters
+	 * after it, which a histogram of their first four characters cannot do.
+	 */
+	@Test public void sharedPrefixRangeTest() {
+		String[] values = keys(10000);
+		EquiDepthStringHistogram h = new EquiDepthStringHistogram(100, 100, values, 10000);
+		StringHistogram old = new StringHistogram(100);
+		for (String s : values)
+			old.addValue(s);
+
+		for (int i = 0; i <= 10000; i += 1250) {
+			String s = String.format("customer#%06d", i);
+			double t = i / 10000.0;
+			Assert.assertEquals(t, h.estimateSelectivity(Op.LESS_THAN, s), 0.01);
+			Assert.assertEquals(1 - t, h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, s), 0.01);
+		}
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN, "customer#005000"), 0.01);
+		Assert.assertTrue(Math.abs(old.estimateSelectivity(Op.LESS_THAN, "customer#005000") - 0.5) > 0.25);
+
+		Assert.assertEquals(1.0 / 10000, h.estimateSelectivity(Op.EQUALS, "customer#004321"), 1e-6);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, "supplier#000001"), 1e-9);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, "a"), 1e-9);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN, "z"), 1e-9);
+	}
+
+	/**
+	 * Common values get their own frequencies; the rest share what is left
+	 * evenly over the distinct values the sketch counted.
+	 */
+	@Test public void mostCommonValuesTest() {
+		Random random = new Random(46);
+		String[] values = new String[10000];
+		for (int i = 0; i < values.length; i++) {
+			int r = random.nextInt(10);
+			values[i] = r < 5 ? "pending" : r < 8 ? "shipped" : "returned-" + random.nextInt(1000000);
+		}
+		// the sample is all of the values, but the field has more
+		EquiDepthStringHistogram h = new EquiDepthStringHistogram(100, 100, values, 20000);
+
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.EQUALS, "pending"), 0.02);
+		Assert.assertEquals(0.3, h.estimateSelectivity(Op.EQUALS, "shipped"), 0.02);
+		Assert.assertEquals(0.7, h.estimateSelectivity(Op.NOT_EQUALS, "shipped"), 0.02);
+		Assert.assertEquals(0.2 / 20000, h.estimateSelectivity(Op.EQUALS, "returned-1"), 1e-5);
+		Assert.assertEquals(20000, h.numDistinct());
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.LIKE, "pend"), 0.05);
+	}
+
+	/**
+	 * The sketch counts distinct values to within a few percent, and counts
+	 * few of them exactly
+	 */
+	@Test public void hyperLogLogTest() {
+		HyperLogLog small = new HyperLogLog();
+		for (int i = 0; i < 1000; i++)
+			small.add("value" + (i % 10));
+		Assert.assertEquals(10, small.estimate());
+
+		HyperLogLog a = new HyperLogLog(), b = new HyperLogLog();
+		for (int i = 0; i < 100000; i++) {
+			a.add("customer#" + i);
+			b.add(i);
+		}
+		Assert.assertEquals(100000, a.estimate(), 100000 * 0.05);
+		Assert.assertEquals(100000, b.estimate(), 100000 * 0.05);
+
+		HyperLogLog c = new HyperLogLog();
+		for (int i = 50000; i < 150000; i++)
+			c.add("customer#" + i);
+		a.merge(c);
+		Assert.assertEquals(150000, a.estimate(), 150000 * 0.05);
+	}
+}
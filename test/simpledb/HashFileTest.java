@@ -0,0 +1,307 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.index.HashFile;
+import simpledb.index.HashScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class HashFileTest extends SimpleDbTestBase {
+	private static final int ROWS = 5000;
+	private static final int MAX_VALUE = 2000;
+
+	private File file;
+	private InstrumentedHashFile hf;
+	private int tableId;
+	private TransactionId tid;
+
+	/** Counts the number of readPage operations. */
+	static class InstrumentedHashFile extends HashFile {
+		public InstrumentedHashFile(File f, int keyField, TupleDesc td) {
+			super(f, keyField, td);
+		}
+
+		@Override
+		public Page readPage(PageId pid) {
+			readCount += 1;
+			return super.readPage(pid);
+		}
+
+		public int readCount = 0;
+	}
+
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("table", ".hash");
+		file.deleteOnExit();
+		hf = new InstrumentedHashFile(file, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(hf, "h");
+		tableId = hf.getId();
+		tid = new TransactionId();
+	}
+
+	private List<List<Integer>> insertRandom(int rows, int maxValue) throws Exception {
+		Random random = new Random(42);
+		List<List<Integer>> tuples = new ArrayList<>();
+		for (int i = 0; i < rows; i++) {
+			int[] values = {random.nextInt(maxValue), random.nextInt(maxValue)};
+			tuples.add(Arrays.asList(values[0], values[1]));
+			Database.getBufferPool().insertTuple(tid, tableId, Utility.getHeapTuple(values));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		return tuples;
+	}
+
+	private static List<List<Integer>> scan(OpIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		it.open();
+		while (it.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return result;
+	}
+
+	private List<List<Integer>> lookup(int key) throws Exception {
+		return scan(new HashScan(tid, tableId, "h", new IndexPredicate(Op.EQUALS, new IntField(key))));
+	}
+
+	private static void assertSameTuples(List<List<Integer>> expected, List<List<Integer>> actual) {
+		Comparator<List<Integer>> byValues = Comparator.<List<Integer>>comparingInt(l -> l.get(0))
+				.thenComparingInt(l -> l.get(1));
+		expected = new ArrayList<>(expected);
+		actual = new ArrayList<>(actual);
+		expected.sort(byValues);
+		actual.sort(byValues);
+		assertEquals(expected, actual);
+	}
+
+	private static List<List<Integer>> withKey(List<List<Integer>> tuples, int key) {
+		List<List<Integer>> result = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			if (t.get(0) == key) {
+				result.add(t);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Unit test for HashFile.insertTuple() and lookups by key
+	 */
+	@Test public void testInsertAndLookup() throws Exception {
+		List<List<Integer>> tuples = insertRandom(ROWS, MAX_VALUE);
+
+		assertSameTuples(tuples, scan(new HashScan(tid, tableId, "h", null)));
+		for (int key = 0; key < MAX_VALUE; key += 37) {
+			assertSameTuples(withKey(tuples, key), lookup(key));
+		}
+		assertTrue(lookup(MAX_VALUE).isEmpty());
+
+		// a hash index has no order, so a range predicate scans the file
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			if (t.get(0) < 100) {
+				expected.add(t);
+			}
+		}
+		assertSameTuples(expected, scan(new HashScan(tid, tableId, "h",
+				new IndexPredicate(Op.LESS_THAN, new IntField(100)))));
+	}
+
+	/**
+	 * Once the meta page and the directory are cached, a point lookup reads
+	 * only the bucket of its key
+	 */
+	@Test public void testPointLookupReadsOnePage() throws Exception {
+		List<List<Integer>> tuples = insertRandom(ROWS, MAX_VALUE);
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		assertTrue(hf.numPages() > 5);
+
+		lookup(0);
+		for (int key = 1; key < MAX_VALUE; key += 97) {
+			int before = hf.readCount;
+			assertSameTuples(withKey(tuples, key), lookup(key));
+			assertTrue(hf.readCount - before <= 1);
+		}
+	}
+
+	/**
+	 * Tuples with the same key that do not fit on one page go to overflow pages
+	 */
+	@Test public void testDuplicateKeys() throws Exception {
+		int perPage = BufferPool.getPageSize() * 8 / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+		int rows = perPage * 3;
+		List<List<Integer>> tuples = new ArrayList<>();
+		for (int i = 0; i < rows; i++) {
+			tuples.add(Arrays.asList(7, i));
+			Database.getBufferPool().insertTuple(tid, tableId, Utility.getHeapTuple(new int[]{7, i}));
+		}
+		Database.getBufferPool().insertTuple(tid, tableId, Utility.getHeapTuple(new int[]{8, 0}));
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		assertSameTuples(tuples, lookup(7));
+		assertEquals(Collections.singletonList(Arrays.asList(8, 0)), lookup(8));
+		assertEquals(rows + 1, scan(new HashScan(tid, tableId, "h", null)).size());
+	}
+
+	/**
+	 * Unit test for HashFile.deleteTuple()
+	 */
+	@Test public void testDelete() throws Exception {
+		List<List<Integer>> tuples = insertRandom(ROWS, MAX_VALUE);
+
+		List<List<Integer>> remaining = new ArrayList<>();
+		DbFileIterator it = hf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (((IntField) t.getField(0)).getValue() % 2 == 0) {
+				Database.getBufferPool().deleteTuple(tid, t);
+			}
+			else {
+				remaining.add(SystemTestUtil.tupleToList(t));
+			}
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		assertTrue(remaining.size() > 0 && remaining.size() < tuples.size());
+		assertSameTuples(remaining, scan(new HashScan(tid, tableId, "h", null)));
+		assertTrue(lookup(42).isEmpty());
+		assertSameTuples(withKey(tuples, 43), lookup(43));
+	}
+
+	/**
+	 * A HashFile finds its tuples again after it is reopened
+	 */
+	@Test public void testReopen() throws Exception {
+		List<List<Integer>> tuples = insertRandom(ROWS, MAX_VALUE);
+		Database.getBufferPool().flushAllPages();
+
+		Database.getCatalog().clear();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		HashFile reopened = new HashFile(file, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(reopened, "h");
+
+		assertSameTuples(tuples, scan(new HashScan(tid, tableId, "h", null)));
+		assertSameTuples(withKey(tuples, 11), lookup(11));
+	}
+
+	/** Create a hash table "hc" with named fields, keyed on its first field */
+	private List<List<Integer>> createNamedHashTable() throws Exception {
+		File named = File.createTempFile("named", ".hash");
+		named.deleteOnExit();
+		hf = new InstrumentedHashFile(named, 0, Utility.getTupleDesc(2, "c"));
+		Database.getCatalog().addTable(hf, "hc");
+		tableId = hf.getId();
+		return insertRandom(ROWS, MAX_VALUE);
+	}
+
+	private static OpIterator leafOf(OpIterator plan) {
+		while (plan instanceof Operator) {
+			plan = ((Operator) plan).getChildren()[0];
+		}
+		return plan;
+	}
+
+	/**
+	 * The planner answers an equality on the key by a lookup in the hash
+	 * file, and scans the file for any other filter
+	 */
+	@Test public void plannerUsesHashLookup() throws Exception {
+		List<List<Integer>> tuples = createNamedHashTable();
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("hc", new TableStats(tableId, 1000));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(tableId, "hc");
+		lp.addFilter("hc.c0", Op.EQUALS, "17");
+		lp.addProjectField("null.*", null);
+		OpIterator lookup = lp.physicalPlan(tid, stats, false);
+		assertTrue(leafOf(lookup) instanceof HashScan);
+		assertSameTuples(withKey(tuples, 17), scan(lookup));
+
+		lp = new LogicalPlan();
+		lp.addScan(tableId, "hc");
+		lp.addFilter("hc.c1", Op.EQUALS, "17");
+		lp.addProjectField("null.*", null);
+		assertTrue(leafOf(lp.physicalPlan(tid, stats, false)) instanceof SeqScan);
+	}
+
+	/**
+	 * The join optimizer costs a scan of a hash file like that of any other
+	 * file
+	 */
+	@Test public void planJoinOverHashTable() throws Exception {
+		List<List<Integer>> hashed = createNamedHashTable();
+		List<List<Integer>> heap = new ArrayList<>();
+		HeapFile other = SystemTestUtil.createRandomHeapFile(2, 500, MAX_VALUE, null, heap, "c");
+		Database.getCatalog().addTable(other, "t");
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("hc", new TableStats(tableId, 1000));
+		stats.put("t", new TableStats(other.getId(), 1000));
+		assertEquals(hf.numPages() * 1000, stats.get("hc").estimateScanCost(), 0.0);
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(tableId, "hc");
+		lp.addScan(other.getId(), "t");
+		lp.addJoin("hc.c0", "t.c0", Op.EQUALS);
+		lp.addProjectField("null.*", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+		int expected = 0;
+		for (List<Integer> t : heap) {
+			expected += withKey(hashed, t.get(0)).size();
+		}
+		assertEquals(expected, scan(plan).size());
+	}
+
+	/**
+	 * The catalog stores a table annotated with "hash" in a HashFile
+	 */
+	@Test public void testCatalogAnnotation() throws Exception {
+		File schema = File.createTempFile("schema", ".txt");
+		schema.deleteOnExit();
+		try (FileWriter w = new FileWriter(schema)) {
+			w.write("hashed (a int, b int pk) hash\n");
+		}
+		Database.getCatalog().loadSchema(schema.getAbsolutePath());
+		new File(schema.getParent(), "hashed.dat").deleteOnExit();
+
+		DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("hashed"));
+		assertTrue(f instanceof HashFile);
+		assertEquals(1, ((HashFile) f).keyField());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashFileTest.class);
+	}
+}
@@ -10,14 +10,18 @@ import org.junit.Test;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
 import simpledb.optimizer.JoinOptimizer;
 import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapFile;
 import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
@@ -274,6 +278,51 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
     }
 
+    /**
+     * Create a table of rows (key, i) whose string keys take distinct values
+     * of the form k0000, k0001, ...
+     */
+    private static HeapFile createStringKeyTable(int rows, int distinct) throws IOException {
+        File text = File.createTempFile("strings", ".txt");
+        text.deleteOnExit();
+        try (java.io.PrintWriter w = new java.io.PrintWriter(text)) {
+            for (int i = 0; i < rows; i++)
+                w.printf("k%04d,%d%n", i % distinct, i);
+        }
+        File data = File.createTempFile("strings", ".dat");
+        data.deleteOnExit();
+        Type[] types = {Type.STRING_TYPE, Type.INT_TYPE};
+        HeapFileEncoder.convert(text, data, BufferPool.getPageSize(), 2, types);
+        return new HeapFile(data, new TupleDesc(types, new String[]{"k", "v"}));
+    }
+
+    /**
+     * An equality join keeps 1/max(distinct values) of the cross product of
+     * its inputs, on string and integer fields alike
+     */
+    @Test
+    public void estimateDistinctJoinCardinality() throws ParsingException, IOException {
+        HeapFile a = createStringKeyTable(2000, 500), b = createStringKeyTable(1000, 100);
+        Database.getCatalog().addTable(a, "sa");
+        Database.getCatalog().addTable(b, "sb");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("sa", new TableStats(a.getId(), 103));
+        stats.put("sb", new TableStats(b.getId(), 103));
+        Assert.assertEquals(500, stats.get("sa").numDistinct(0), 500 * 0.05);
+
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(new TransactionId(),
+                "SELECT * FROM sa, sb WHERE sa.k = sb.k;"), new ArrayList<>());
+        // each of the 100 keys of sb matches 4 rows of sa and 10 of sb
+        int card = j.estimateJoinCardinality(new LogicalJoinNode("sa", "sb", "k", "k",
+                Predicate.Op.EQUALS), 2000, 1000, false, false, stats);
+        Assert.assertEquals(4000, card, 4000 * 0.05);
+
+        // the 1000 values of sb.v are among the 2000 of sa.v
+        card = j.estimateJoinCardinality(new LogicalJoinNode("sa", "sb", "v", "v",
+                Predicate.Op.EQUALS), 2000, 1000, false, false, stats);
+        Assert.assertEquals(1000, card, 1000 * 0.05);
+    }
+
     /**
      * Determine whether the orderJoins implementation is doing a reasonable job
      * of ordering joins, and not taking an unreasonable amount of time to do so
@@ -629,4 +678,234 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Create n small tables named prefix0 ... prefix(n-1), with statistics
+     * in stats and a filter selectivity of 1 in filterSelectivities
+     */
+    private void createTables(String prefix, int n, Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities) throws IOException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        SystemTestUtil.createRandomHeapFile(2, 100, null, tuples, "c");
+        for (int i = 0; i < n; i++) {
+            HeapFile f = createDuplicateHeapFile(tuples, 2, "c");
+            Database.getCatalog().addTable(f, prefix + i);
+            stats.put(prefix + i, new TableStats(f.getId(), 103));
+            filterSelectivities.put(prefix + i, 1.0);
+        }
+    }
+
+    /**
+     * Check that every join of a query without cycles is in result once, and
+     * that each join joins two groups of tables that no earlier join
+     * connected, ending with a single group
+     */
+    private static void checkJoinOrder(List<LogicalJoinNode> nodes, List<LogicalJoinNode> result) {
+        Assert.assertEquals(nodes.size(), result.size());
+        Assert.assertTrue(new HashSet<>(result).containsAll(nodes));
+        Map<String, Set<String>> groups = new HashMap<>();
+        for (LogicalJoinNode j : result) {
+            Set<String> g1 = groups.getOrDefault(j.t1Alias, Collections.singleton(j.t1Alias));
+            Set<String> g2 = groups.getOrDefault(j.t2Alias, Collections.singleton(j.t2Alias));
+            Assert.assertFalse(g1.contains(j.t2Alias));
+            Set<String> joined = new HashSet<>(g1);
+            joined.addAll(g2);
+            for (String alias : joined)
+                groups.put(alias, joined);
+        }
+        Assert.assertEquals(nodes.size() + 1, groups.get(nodes.get(0).t1Alias).size());
+    }
+
+    /**
+     * Plan a 16-way star join and a 20-way chain join by dynamic programming.
+     * Only the pairs of connected sets of tables that a join connects are
+     * considered, so both take well under the time an enumeration of every
+     * subset would.
+     */
+    @Test(timeout = 20000)
+    public void starAndChainOrderJoinsTest() throws IOException, ParsingException {
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        JoinOptimizer.setDpThreshold(20);
+        try {
+            planStarAndChain(tid, p, stats, filterSelectivities);
+        } finally {
+            JoinOptimizer.setDpThreshold(JoinOptimizer.DEFAULT_DP_THRESHOLD);
+        }
+    }
+
+    private void planStarAndChain(TransactionId tid, Parser p, Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities) throws IOException, ParsingException {
+        createTables("s", 16, stats, filterSelectivities);
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        StringBuilder from = new StringBuilder("s0");
+        StringBuilder where = new StringBuilder();
+        for (int i = 1; i < 16; i++) {
+            nodes.add(new LogicalJoinNode("s0", "s" + i, "c0", "c1", Predicate.Op.EQUALS));
+            from.append(", s").append(i);
+            where.append(i > 1 ? " AND " : "").append("s0.c0 = s").append(i).append(".c1");
+        }
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + from + " WHERE " + where + ";"), nodes);
+        checkJoinOrder(nodes, j.orderJoins(stats, filterSelectivities, false));
+
+        createTables("c", 20, stats, filterSelectivities);
+        nodes = new ArrayList<>();
+        from = new StringBuilder("c0");
+        where = new StringBuilder();
+        for (int i = 1; i < 20; i++) {
+            nodes.add(new LogicalJoinNode("c" + (i - 1), "c" + i, "c0", "c1", Predicate.Op.EQUALS));
+            from.append(", c").append(i);
+            where.append(i > 1 ? " AND " : "").append("c").append(i - 1).append(".c0 = c").append(i).append(".c1");
+        }
+        Collections.shuffle(nodes);
+        j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + from + " WHERE " + where + ";"), nodes);
+        checkJoinOrder(nodes, j.orderJoins(stats, filterSelectivities, false));
+    }
+
+    /**
+     * Compare the plans greedy ordering finds with the ones dynamic
+     * programming finds, on random queries small enough to order both ways,
+     * and report the ratio of their estimated costs.  Dynamic programming
+     * finds the cheapest plan, so greedy ordering can never beat it.
+     */
+    @Test
+    public void greedyPlanQualityTest() throws IOException, ParsingException {
+        final int QUERIES = 40;
+        int[] sizes = {100, 200, 500, 1000, 2000, 5000, 10000};
+        Map<String, TableStats> stats = new HashMap<>();
+        int[] tableIds = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, sizes[i], null, new ArrayList<>(), "c");
+            Database.getCatalog().addTable(f, "q" + i);
+            tableIds[i] = f.getId();
+            stats.put("q" + i, new TableStats(f.getId(), 103));
+        }
+
+        Random random = new Random(830);
+        double sumLogRatio = 0, worstRatio = 1;
+        try {
+            for (int q = 0; q < QUERIES; q++) {
+                int n = 4 + random.nextInt(6);
+                LogicalPlan lp = new LogicalPlan();
+                Map<String, Double> filterSelectivities = new HashMap<>();
+                List<LogicalJoinNode> nodes = new ArrayList<>();
+                for (int i = 0; i < n; i++) {
+                    lp.addScan(tableIds[random.nextInt(tableIds.length)], "a" + i);
+                    filterSelectivities.put("a" + i, random.nextBoolean() ? 1.0 : 0.01 + random.nextDouble());
+                    if (i > 0)
+                        nodes.add(new LogicalJoinNode("a" + random.nextInt(i), "a" + i, "c0", "c1",
+                                Predicate.Op.EQUALS));
+                }
+
+                JoinOptimizer.setDpThreshold(n);
+                JoinOptimizer dp = new JoinOptimizer(lp, nodes);
+                checkJoinOrder(nodes, dp.orderJoins(stats, filterSelectivities, false));
+                JoinOptimizer.setDpThreshold(1);
+                JoinOptimizer greedy = new JoinOptimizer(lp, nodes);
+                checkJoinOrder(nodes, greedy.orderJoins(stats, filterSelectivities, false));
+
+                double ratio = greedy.getPlanCost() / dp.getPlanCost();
+                Assert.assertTrue(ratio >= 1 - 1e-9);
+                sumLogRatio += Math.log(ratio);
+                worstRatio = Math.max(worstRatio, ratio);
+            }
+        } finally {
+            JoinOptimizer.setDpThreshold(JoinOptimizer.DEFAULT_DP_THRESHOLD);
+        }
+        System.out.printf("greedy vs. dynamic programming join ordering over %d queries: "
+                + "mean cost ratio %.3f, worst %.3f%n", QUERIES, Math.exp(sumLogRatio / QUERIES), worstRatio);
+    }
+
+    /**
+     * Join a-b and c-d, both very selective, and b-c, which keeps every pair.
+     * The cheapest plan joins a with b and c with d and then joins the two
+     * results, a bushy plan no left-deep order can match.
+     */
+    @Test
+    public void bushyOrderJoinsTest() throws IOException, ParsingException {
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        createTables("b", 4, stats, filterSelectivities);
+        LogicalPlan lp = new LogicalPlan();
+        for (int i = 0; i < 4; i++)
+            lp.addScan(Database.getCatalog().getTableId("b" + i), "b" + i);
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        nodes.add(new LogicalJoinNode("b1", "b2", "c0", "c1", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("b0", "b1", "c0", "c1", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("b2", "b3", "c0", "c1", Predicate.Op.EQUALS));
+
+        JoinOptimizer j = new JoinOptimizer(lp, nodes) {
+            @Override
+            public int estimateJoinCardinality(LogicalJoinNode lj, int card1, int card2,
+                    boolean t1pkey, boolean t2pkey, Map<String, TableStats> stats) {
+                boolean keepsAll = (lj.t1Alias + lj.t2Alias).matches("b1b2|b2b1");
+                return (int) Math.max(1, (double) card1 * card2 * (keepsAll ? 1 : 1e-6));
+            }
+        };
+        List<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+        checkJoinOrder(nodes, result);
+        LogicalJoinNode last = result.get(2);
+        Assert.assertTrue((last.t1Alias + last.t2Alias).matches("b1b2|b2b1"));
+
+        // greedy ordering makes the two selective joins first as well
+        JoinOptimizer.setDpThreshold(1);
+        try {
+            result = j.orderJoins(stats, filterSelectivities, false);
+        } finally {
+            JoinOptimizer.setDpThreshold(JoinOptimizer.DEFAULT_DP_THRESHOLD);
+        }
+        checkJoinOrder(nodes, result);
+        last = result.get(2);
+        Assert.assertTrue((last.t1Alias + last.t2Alias).matches("b1b2|b2b1"));
+    }
+
+    /**
+     * Run a query whose joins form a cycle, with a second join between two
+     * of its tables, and compare its result with one computed by hand.  The
+     * joins between tables that earlier joins already brought into one plan
+     * filter that plan.
+     */
+    @Test
+    public void cyclicJoinQueryTest() throws Exception {
+        final int ROWS = 150, MAX_VALUE = 12;
+        Map<String, TableStats> stats = new HashMap<>();
+        List<List<List<Integer>>> tuples = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            List<List<Integer>> t = new ArrayList<>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, t, "c");
+            Database.getCatalog().addTable(f, "cyc" + i);
+            stats.put("cyc" + i, new TableStats(f.getId(), 103));
+            tuples.add(t);
+        }
+
+        int expected = 0;
+        for (List<Integer> t0 : tuples.get(0)) {
+            for (List<Integer> t1 : tuples.get(1)) {
+                if (!t0.get(0).equals(t1.get(0)) || t0.get(1) <= t1.get(1))
+                    continue;
+                for (List<Integer> t2 : tuples.get(2)) {
+                    if (t1.get(1).equals(t2.get(1)) && t2.get(0).equals(t0.get(1)))
+                        expected++;
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM cyc0, cyc1, cyc2 "
+                + "WHERE cyc0.c0 = cyc1.c0 AND cyc1.c1 = cyc2.c1 AND cyc2.c0 = cyc0.c1 AND cyc0.c1 > cyc1.c1;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        int actual = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            actual++;
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Assert.assertEquals(expected, actual);
+    }
 }
@@ -0,0 +1,290 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.IndexOnlyScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+	private static final int ROWS = 5000;
+	private static final int MAX_VALUE = 1000;
+
+	private List<List<Integer>> tuples;
+	private HeapFile hf;
+	private int tableId;
+	private TransactionId tid;
+
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		tuples = new ArrayList<>();
+		hf = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples, "c");
+		Database.getCatalog().addTable(hf, "t");
+		tableId = hf.getId();
+		tid = new TransactionId();
+	}
+
+	private SecondaryIndex createIndex() throws Exception {
+		File f = File.createTempFile("index", ".idx");
+		f.deleteOnExit();
+		return SecondaryIndex.create(tid, "t_c1", tableId, 1, f);
+	}
+
+	private List<List<Integer>> matching(int field, Op op, int value) {
+		List<List<Integer>> result = new ArrayList<>();
+		Predicate p = new Predicate(field, op, new IntField(value));
+		for (List<Integer> t : tuples) {
+			if (p.filter(Utility.getHeapTuple(new int[]{t.get(0), t.get(1)}))) {
+				result.add(t);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the value of c1 that the fewest tuples have, so that a filter
+	 *         on it is selective however the random values fell
+	 */
+	private int rareValue() {
+		Map<Integer, Integer> counts = new HashMap<>();
+		for (List<Integer> t : tuples) {
+			counts.merge(t.get(1), 1, Integer::sum);
+		}
+		return Collections.min(counts.entrySet(), Map.Entry.comparingByValue()).getKey();
+	}
+
+	private static List<List<Integer>> scan(OpIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		it.open();
+		while (it.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return result;
+	}
+
+	private static void assertSameTuples(List<List<Integer>> expected, List<List<Integer>> actual) {
+		Comparator<List<Integer>> byValues = Comparator.<List<Integer>>comparingInt(l -> l.get(0))
+				.thenComparingInt(l -> l.get(1));
+		expected = new ArrayList<>(expected);
+		actual = new ArrayList<>(actual);
+		expected.sort(byValues);
+		actual.sort(byValues);
+		assertEquals(expected, actual);
+	}
+
+	/** Unit test for SecondaryIndex.create() and SecondaryIndexScan */
+	@Test public void createAndScan() throws Exception {
+		SecondaryIndex index = createIndex();
+		assertEquals(Collections.singletonList(index), Database.getCatalog().getIndexes(tableId));
+		assertSame(index.getFile(), Database.getCatalog().getDatabaseFile(index.getFile().getId()));
+
+		int value = tuples.get(0).get(1);
+		assertSameTuples(matching(1, Op.EQUALS, value),
+				scan(new SecondaryIndexScan(tid, index, "t", new IndexPredicate(Op.EQUALS, new IntField(value)))));
+		assertSameTuples(matching(1, Op.LESS_THAN, 50),
+				scan(new SecondaryIndexScan(tid, index, "t", new IndexPredicate(Op.LESS_THAN, new IntField(50)))));
+		assertSameTuples(matching(1, Op.GREATER_THAN_OR_EQ, 990),
+				scan(new SecondaryIndexScan(tid, index, "t", new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(990)))));
+	}
+
+	private static int sortRuns() {
+		String[] runs = new File(System.getProperty("java.io.tmpdir")).list(
+				(dir, name) -> name.startsWith("sort") && name.endsWith(".run"));
+		return runs == null ? 0 : runs.length;
+	}
+
+	/** A table with more tuples than fit in one sort run is sorted in runs that are merged */
+	@Test public void createFromSortedRuns() throws Exception {
+		int before = sortRuns();
+		SecondaryIndex.setSortRunSize(97);
+		SecondaryIndex index;
+		try {
+			index = createIndex();
+		} finally {
+			SecondaryIndex.setSortRunSize(SecondaryIndex.DEFAULT_SORT_RUN_SIZE);
+		}
+		assertEquals(before, sortRuns());
+
+		List<List<Integer>> all = scan(new SecondaryIndexScan(tid, index, "t",
+				new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(0))));
+		assertSameTuples(tuples, all);
+		for (int i = 1; i < all.size(); i++) {
+			assertTrue(all.get(i - 1).get(1) <= all.get(i).get(1));
+		}
+	}
+
+	/** Inserts and deletes through the operators reach the index */
+	@Test public void maintainedOnInsertAndDelete() throws Exception {
+		SecondaryIndex index = createIndex();
+
+		List<Tuple> inserted = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			inserted.add(Utility.getHeapTuple(new int[]{i, 7}));
+			tuples.add(Arrays.asList(i, 7));
+		}
+		Insert insert = new Insert(tid, new TupleIterator(hf.getTupleDesc(), inserted), tableId);
+		insert.open();
+		assertEquals(100, ((IntField) insert.next().getField(0)).getValue());
+		insert.close();
+
+		Delete delete = new Delete(tid, new Filter(new Predicate(0, Op.LESS_THAN, new IntField(500)),
+				new SeqScan(tid, tableId, "t")));
+		delete.open();
+		delete.close();
+		tuples.removeIf(t -> t.get(0) < 500);
+
+		assertSameTuples(matching(1, Op.EQUALS, 7),
+				scan(new SecondaryIndexScan(tid, index, "t", new IndexPredicate(Op.EQUALS, new IntField(7)))));
+		assertSameTuples(tuples,
+				scan(new SecondaryIndexScan(tid, index, "t", new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(0)))));
+	}
+
+	private static OpIterator leafOf(OpIterator plan) {
+		while (plan instanceof Operator) {
+			plan = ((Operator) plan).getChildren()[0];
+		}
+		return plan;
+	}
+
+	private OpIterator plan(Op op, String value) throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(tableId, "t");
+		lp.addFilter("t.c1", op, value);
+		lp.addFilter("t.c0", Op.GREATER_THAN_OR_EQ, "0");
+		lp.addProjectField("null.*", null);
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("t", new TableStats(tableId, 1000));
+		return lp.physicalPlan(tid, stats, false);
+	}
+
+	/** The planner reads selective filters through the index, and scans otherwise */
+	@Test public void plannerChoosesIndex() throws Exception {
+		createIndex();
+
+		int value = rareValue();
+		OpIterator selective = plan(Op.EQUALS, Integer.toString(value));
+		assertTrue(leafOf(selective) instanceof SecondaryIndexScan);
+		assertSameTuples(matching(1, Op.EQUALS, value), scan(selective));
+
+		OpIterator wide = plan(Op.GREATER_THAN, "-1");
+		assertTrue(leafOf(wide) instanceof SeqScan);
+		assertEquals(ROWS, scan(wide).size());
+
+		// no index on c0
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(tableId, "t");
+		lp.addFilter("t.c0", Op.EQUALS, "3");
+		lp.addProjectField("null.*", null);
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("t", new TableStats(tableId, 1000));
+		assertTrue(leafOf(lp.physicalPlan(tid, stats, false)) instanceof SeqScan);
+	}
+
+	private SecondaryIndex createCoveringIndex() throws Exception {
+		File f = File.createTempFile("index", ".idx");
+		f.deleteOnExit();
+		return SecondaryIndex.create(tid, "t_c1_c0", tableId, 1, new int[]{0}, f);
+	}
+
+	private static List<List<Integer>> swapped(List<List<Integer>> tuples) {
+		List<List<Integer>> result = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			result.add(Arrays.asList(t.get(1), t.get(0)));
+		}
+		return result;
+	}
+
+	/** An index-only scan returns the key and included fields of matching tuples */
+	@Test public void indexOnlyScan() throws Exception {
+		SecondaryIndex index = createCoveringIndex();
+		IndexOnlyScan scan = new IndexOnlyScan(tid, index, "t", new IndexPredicate(Op.EQUALS, new IntField(5)));
+		assertEquals("t.c1", scan.getTupleDesc().getFieldName(0));
+		assertEquals("t.c0", scan.getTupleDesc().getFieldName(1));
+		assertSameTuples(swapped(matching(1, Op.EQUALS, 5)), scan(scan));
+
+		// included fields are kept up to date too
+		Database.getBufferPool().insertTuple(tid, tableId, Utility.getHeapTuple(new int[]{-4, 5}));
+		tuples.add(Arrays.asList(-4, 5));
+		assertSameTuples(swapped(matching(1, Op.EQUALS, 5)), scan(scan));
+		assertSameTuples(swapped(tuples), scan(new IndexOnlyScan(tid, index, "t", null)));
+	}
+
+	/** The planner skips the heap when the index covers every field the query reads */
+	@Test public void plannerChoosesIndexOnlyScan() throws Exception {
+		createCoveringIndex();
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("t", new TableStats(tableId, 1000));
+
+		int value = rareValue();
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(tableId, "t");
+		lp.addFilter("t.c1", Op.EQUALS, Integer.toString(value));
+		lp.addProjectField("t.c0", null);
+		OpIterator covered = lp.physicalPlan(tid, stats, false);
+		assertTrue(leafOf(covered) instanceof IndexOnlyScan);
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> t : matching(1, Op.EQUALS, value)) {
+			expected.add(Collections.singletonList(t.get(0)));
+		}
+		List<List<Integer>> actual = scan(covered);
+		expected.sort(Comparator.comparingInt(l -> l.get(0)));
+		actual.sort(Comparator.comparingInt(l -> l.get(0)));
+		assertEquals(expected, actual);
+
+		// every field is read, so the heap is needed
+		OpIterator all = plan(Op.EQUALS, Integer.toString(value));
+		assertTrue(leafOf(all) instanceof SecondaryIndexScan);
+	}
+
+	/** CREATE INDEX is understood by the parser */
+	@Test public void createIndexStatement() throws Exception {
+		Parser p = new Parser();
+		p.processNextStatement("CREATE INDEX t_c0 ON t (c0);");
+		List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(tableId);
+		assertEquals(1, indexes.size());
+		assertEquals("t_c0", indexes.get(0).getName());
+		assertEquals(0, indexes.get(0).getField());
+		indexes.get(0).getFile().getFile().deleteOnExit();
+
+		TransactionId scanTid = new TransactionId();
+		assertSameTuples(matching(0, Op.EQUALS, 11),
+				scan(new SecondaryIndexScan(scanTid, indexes.get(0), "t", new IndexPredicate(Op.EQUALS, new IntField(11)))));
+		Database.getBufferPool().transactionComplete(scanTid);
+	}
+
+	/** CREATE INDEX ... INCLUDE builds a covering index */
+	@Test public void createCoveringIndexStatement() throws Exception {
+		Parser p = new Parser();
+		p.processNextStatement("create index t_cover on t (c1) include (c0);");
+		List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(tableId);
+		assertEquals(1, indexes.size());
+		assertEquals(1, indexes.get(0).getField());
+		assertArrayEquals(new int[]{0}, indexes.get(0).getIncluded());
+		indexes.get(0).getFile().getFile().deleteOnExit();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
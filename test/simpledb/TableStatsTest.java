@@ -1,8 +1,16 @@
 package simpledb;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -10,14 +18,21 @@ import org.junit.Assert;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Utility;
 import simpledb.execution.Predicate;
+import simpledb.optimizer.HyperLogLog;
 import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.HeapPage;
 import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 public class TableStatsTest extends SimpleDbTestBase {
 	public static final int IO_COST = 71;
@@ -160,4 +175,262 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Statistics built from a sample of the pages, and of their tuples, are
+	 * close to the ones built from the whole table
+	 */
+	@Test public void sampledStatisticsTest() {
+		final Field halfMaxMin = new IntField(16);
+		TableStats s;
+		// 40 of the 100 or so pages, and 3000 of the 4000 tuples on them,
+		// leave the frequency of each of the 32 values well within bounds
+		TableStats.setSampleSize(3000);
+		TableStats.setSamplePages(40);
+		try {
+			Assert.assertTrue(f.numPages() > 40);
+			s = new TableStats(this.tableId, IO_COST);
+		} finally {
+			TableStats.setSampleSize(TableStats.DEFAULT_SAMPLE_SIZE);
+			TableStats.setSamplePages(TableStats.DEFAULT_SAMPLE_PAGES);
+		}
+
+		Assert.assertEquals(10200, s.totalTuples(), 10200 * 0.05);
+		Assert.assertEquals(f.numPages() * IO_COST, s.estimateScanCost(), 0.001);
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(1.0/32.0, s.estimateSelectivity(col, Predicate.Op.EQUALS, halfMaxMin), 0.015);
+			Assert.assertEquals(0.5, s.estimateSelectivity(col, Predicate.Op.GREATER_THAN, halfMaxMin), 0.1);
+			Assert.assertEquals(0.5, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, halfMaxMin), 0.1);
+		}
+	}
+
+	/**
+	 * Create a table of two columns whose tuples i have the values i and
+	 * i % distinct, in a random order
+	 */
+	private static HeapFile createDistinctFile(int rows, int distinct, long seed) throws IOException {
+		List<List<Integer>> rowList = new ArrayList<>();
+		for (int i = 0; i < rows; i++)
+			rowList.add(Arrays.asList(i, i % distinct));
+		Collections.shuffle(rowList, new Random(seed));
+		File file = File.createTempFile("distinct", ".dat");
+		file.deleteOnExit();
+		HeapFileEncoder.convert(rowList, file, BufferPool.getPageSize(), 2);
+		HeapFile hf = Utility.openHeapFile(2, file);
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		return hf;
+	}
+
+	private static TableStats createDistinctTable(int rows, int distinct, long seed) throws IOException {
+		return new TableStats(createDistinctFile(rows, distinct, seed).getId(), IO_COST);
+	}
+
+	/**
+	 * The number of distinct values of each field is counted when the whole
+	 * table is read, estimated when only some of its pages are, and the
+	 * sketches of the parts of a table merge into one of the whole table
+	 */
+	@Test public void distinctValuesTest() throws IOException {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		for (int col = 0; col < 10; col++) {
+			Set<Integer> values = new HashSet<>();
+			for (List<Integer> t : tuples)
+				values.add(t.get(col));
+			Assert.assertEquals(values.size(), s.numDistinct(col));
+		}
+
+		TableStats whole = createDistinctTable(50000, 1000, 1);
+		Assert.assertEquals(50000, whole.numDistinct(0), 50000 * 0.05);
+		Assert.assertEquals(1000, whole.numDistinct(1), 1000 * 0.05);
+
+		TableStats sampled;
+		TableStats.setSamplePages(20);
+		try {
+			sampled = createDistinctTable(50000, 1000, 2);
+		} finally {
+			TableStats.setSamplePages(TableStats.DEFAULT_SAMPLE_PAGES);
+		}
+		Assert.assertEquals(50000, sampled.totalTuples(), 50000 * 0.05);
+		Assert.assertEquals(50000, sampled.numDistinct(0), 50000 * 0.1);
+		Assert.assertEquals(1000, sampled.numDistinct(1), 1000 * 0.1);
+
+		HyperLogLog merged = whole.getDistinctSketch(0);
+		merged.merge(createDistinctTable(50000, 1000, 3).getDistinctSketch(0));
+		Assert.assertEquals(50000, merged.estimate(), 50000 * 0.05);
+		merged.merge(s.getDistinctSketch(0));
+		Assert.assertEquals(50000, whole.getDistinctSketch(0).estimate(), 50000 * 0.05);
+	}
+
+	/**
+	 * Tuples inserted and deleted through the buffer pool are counted when
+	 * their transaction commits, and not at all if it aborts; enough of them
+	 * rebuild the statistics in the background
+	 */
+	@Test public void incrementalMaintenanceTest() throws Exception {
+		HeapFile hf = createDistinctFile(1000, 100, 4);
+		String name = Database.getCatalog().getTableName(hf.getId());
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+		TableStats.setTableStats(name, s);
+		Assert.assertEquals(100, s.numDistinct(1), 100 * 0.05);
+
+		TransactionId tid = new TransactionId();
+		List<Tuple> added = new ArrayList<>();
+		for (int i = 1000; i < 1300; i++) {
+			Tuple t = Utility.getHeapTuple(new int[] {i, i});
+			Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+			added.add(t);
+		}
+		for (int i = 0; i < 100; i++)
+			Database.getBufferPool().deleteTuple(tid, added.get(i));
+		Assert.assertEquals(1000, s.totalTuples());
+		Database.getBufferPool().transactionComplete(tid);
+		// 400 changes are too few to rebuild the statistics
+		Assert.assertSame(s, TableStats.getTableStats(name));
+		Assert.assertEquals(1200, s.totalTuples());
+		Assert.assertEquals(1200, s.estimateTableCardinality(1.0));
+		Assert.assertEquals(400, s.numDistinct(1), 400 * 0.05);
+
+		// an aborted transaction changes nothing
+		TransactionId aborted = new TransactionId();
+		for (int i = 2000; i < 2200; i++)
+			Database.getBufferPool().insertTuple(aborted, hf.getId(), Utility.getHeapTuple(new int[] {i, i}));
+		Database.getBufferPool().transactionComplete(aborted, false);
+		Assert.assertSame(s, TableStats.getTableStats(name));
+		Assert.assertEquals(1200, s.totalTuples());
+		Assert.assertEquals(400, s.numDistinct(1), 400 * 0.05);
+
+		tid = new TransactionId();
+		for (int i = 1300; i < 1400; i++)
+			Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] {i, i}));
+		Assert.assertSame(s, TableStats.getTableStats(name));
+		Database.getBufferPool().transactionComplete(tid);
+		TableStats fresh = s;
+		for (int tries = 0; tries < 100 && fresh == s; tries++) {
+			Thread.sleep(50);
+			fresh = TableStats.getTableStats(name);
+		}
+		Assert.assertNotSame(s, fresh);
+		Assert.assertEquals(1300, fresh.totalTuples());
+		Assert.assertEquals(400, fresh.numDistinct(1), 400 * 0.05);
+		Assert.assertEquals(0.0, fresh.estimateSelectivity(1, Predicate.Op.GREATER_THAN, new IntField(1400)), 0.001);
+		Assert.assertEquals(200.0 / 1300, fresh.estimateSelectivity(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(1200)), 0.02);
+	}
+
+	/** Resetting the database stops the thread that rebuilds statistics */
+	@Test public void reanalyzerStopsOnResetTest() throws Exception {
+		HeapFile hf = createDistinctFile(100, 10, 5);
+		String name = Database.getCatalog().getTableName(hf.getId());
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+		TableStats.setTableStats(name, s);
+		TransactionId tid = new TransactionId();
+		// the fewest changes that rebuild the statistics of a small table
+		for (int i = 0; i < 500; i++)
+			Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] {i, i}));
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertTrue(reanalyzerRunning());
+
+		Database.reset();
+		Assert.assertFalse(reanalyzerRunning());
+	}
+
+	private static boolean reanalyzerRunning() {
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().equals("TableStats-reanalyze") && t.isAlive())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Statistics saved to a file are read back as they were, unless their
+	 * table has changed since or the file is of another version
+	 */
+	@Test public void persistedStatisticsTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(tableName, s);
+		File statsFile = File.createTempFile("catalog", TableStats.STATS_FILE_SUFFIX);
+		statsFile.deleteOnExit();
+		TableStats.saveStatistics(statsFile);
+
+		TableStats.getStatsMap().remove(tableName);
+		Assert.assertEquals(0, TableStats.loadStatistics(statsFile));
+		TableStats loaded = TableStats.getTableStats(tableName);
+		Assert.assertNotSame(s, loaded);
+		Assert.assertEquals(10200, loaded.totalTuples());
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(s.numDistinct(col), loaded.numDistinct(col));
+			Assert.assertEquals(s.getDistinctSketch(col).estimate(), loaded.getDistinctSketch(col).estimate());
+			for (Predicate.Op op : new Predicate.Op[] {Predicate.Op.EQUALS, Predicate.Op.LESS_THAN}) {
+				for (int v = -1; v <= 33; v += 5) {
+					Assert.assertEquals(s.estimateSelectivity(col, op, new IntField(v)),
+							loaded.estimateSelectivity(col, op, new IntField(v)), 0.0);
+				}
+			}
+		}
+
+		// statistics of a table written since are computed again, and saved
+		try (FileOutputStream out = new FileOutputStream(f.getFile(), true)) {
+			out.write(HeapPage.createEmptyPageData());
+		}
+		Assert.assertEquals(1, TableStats.loadStatistics(statsFile));
+		Assert.assertEquals(10200, TableStats.getTableStats(tableName).totalTuples());
+		Assert.assertEquals(0, TableStats.loadStatistics(statsFile));
+
+		// a file of another version is ignored
+		try (RandomAccessFile raf = new RandomAccessFile(statsFile, "rw")) {
+			raf.seek(4);
+			raf.writeInt(-1);
+		}
+		Assert.assertEquals(1, TableStats.loadStatistics(statsFile));
+	}
+
+	/** Set the time a heap file was last written to a minute ago */
+	private static void backdate(HeapFile hf) {
+		Assert.assertTrue(hf.getFile().setLastModified(System.currentTimeMillis() - 60000));
+	}
+
+	/**
+	 * Saved statistics count the committed changes that were still in the
+	 * buffer pool when they were saved, and are not read back for a table
+	 * whose file was written since they were built, or whose schema changed
+	 */
+	@Test public void staleStatisticsTest() throws Exception {
+		HeapFile hf = createDistinctFile(1000, 100, 6);
+		String name = Database.getCatalog().getTableName(hf.getId());
+		File statsFile = File.createTempFile("catalog", TableStats.STATS_FILE_SUFFIX);
+		statsFile.delete();
+		statsFile.deleteOnExit();
+		// so that any write from now on moves the time of the file
+		backdate(hf);
+		Assert.assertEquals(2, TableStats.loadStatistics(statsFile));
+		Assert.assertEquals(0, TableStats.loadStatistics(statsFile));
+
+		// a committed insert still only in the log and the buffer pool is
+		// counted by the statistics saved, without the pool being flushed
+		TransactionId tid = new TransactionId();
+		Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] {1000, 0}));
+		Database.getBufferPool().transactionComplete(tid);
+		TableStats.saveStatistics(statsFile);
+		Assert.assertFalse(Database.getBufferPool().getDirtyPageTable().isEmpty());
+		TableStats.getStatsMap().remove(name);
+		Assert.assertEquals(0, TableStats.loadStatistics(statsFile));
+		Assert.assertEquals(1001, TableStats.getTableStats(name).totalTuples());
+
+		// once the insert reaches the file, the statistics built before it
+		// are not read back
+		Database.getBufferPool().flushAllPages();
+		Assert.assertEquals(1, TableStats.loadStatistics(statsFile));
+		Assert.assertEquals(1001, TableStats.getTableStats(name).totalTuples());
+		Assert.assertEquals(0, TableStats.loadStatistics(statsFile));
+
+		// the file is written, but keeps its pages
+		backdate(hf);
+		Assert.assertEquals(1, TableStats.loadStatistics(statsFile));
+		Assert.assertEquals(0, TableStats.loadStatistics(statsFile));
+
+		// the same file, pages and time, read as one field
+		HeapFile narrower = new HeapFile(hf.getFile(), Utility.getTupleDesc(1));
+		Database.getCatalog().addTable(narrower, name);
+		Assert.assertEquals(1, TableStats.loadStatistics(statsFile));
+	}
 }
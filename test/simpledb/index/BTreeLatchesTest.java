@@ -0,0 +1,256 @@
+package simpledb.index;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+public class BTreeLatchesTest extends SimpleDbTestBase {
+
+	@After
+	public void tearDown() {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static void runAll(Thread[] threads, AtomicReference<Throwable> failure) throws InterruptedException {
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+	}
+
+	/**
+	 * A page has a latch only while some thread holds or waits for it, so
+	 * descending over many pages leaves the latch table empty
+	 */
+	@Test
+	public void latchTableShrinksTest() throws Exception {
+		BTreeLatches latches = new BTreeLatches();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				try {
+					Random r = new Random();
+					for (int i = 0; i < 5000; i++) {
+						latches.enter();
+						// crab down a path of three random pages out of a few
+						// hundred, so that threads meet on some of them
+						BTreePageId parent = new BTreePageId(1, 1 + r.nextInt(300), BTreePageId.INTERNAL);
+						latches.latch(parent, false);
+						BTreePageId child = new BTreePageId(1, 301 + r.nextInt(300), BTreePageId.INTERNAL);
+						latches.latch(child, r.nextBoolean());
+						latches.unlatch(parent);
+						BTreePageId leaf = new BTreePageId(1, 601 + r.nextInt(300), BTreePageId.LEAF);
+						latches.latch(leaf, true);
+						latches.unlatchAllBut(leaf);
+						latches.exit();
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			});
+		}
+		runAll(threads, failure);
+		assertEquals(0, latches.size());
+	}
+
+	/**
+	 * A latch that is waited for outlives its release by the holder, and
+	 * still excludes the waiter until then
+	 */
+	@Test
+	public void waitedForLatchTest() throws Exception {
+		BTreeLatches latches = new BTreeLatches();
+		BTreePageId pid = new BTreePageId(1, 1, BTreePageId.LEAF);
+		latches.enter();
+		latches.latch(pid, true);
+		assertEquals(1, latches.size());
+
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Object held = new Object();
+		Thread waiter = new Thread(() -> {
+			try {
+				latches.enter();
+				latches.latch(pid, false);
+				assertEquals(1, latches.size());
+				synchronized (held) {
+					held.notifyAll();
+					held.wait();
+				}
+				latches.exit();
+			} catch (Throwable e) {
+				failure.compareAndSet(null, e);
+			}
+		});
+		synchronized (held) {
+			waiter.start();
+			held.wait(200);
+			assertTrue(waiter.isAlive());
+			latches.unlatch(pid);
+			// the waiter now gets the latch, and the entry is still there
+			held.wait();
+			assertEquals(1, latches.size());
+			held.notifyAll();
+		}
+		waiter.join();
+		latches.exit();
+		assertNull(failure.get());
+		assertEquals(0, latches.size());
+	}
+
+	/**
+	 * Threads inserting at the same time race each other through leaf and
+	 * internal page splits; the tree must come out well formed and hold
+	 * every tuple
+	 */
+	@Test
+	public void concurrentInsertsTest() throws Exception {
+		// small pages, so that a few thousand tuples split many times
+		BufferPool.setPageSize(1024);
+		List<List<Integer>> tuples = Collections.synchronizedList(new ArrayList<>());
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 500, null, tuples, 0);
+		Database.resetBufferPool(1000);
+
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread(() -> {
+				try {
+					Random r = new Random(id);
+					for (int i = 0; i < 500; i++) {
+						// keys from a narrow range land on the same leaves
+						int[] data = {r.nextInt(4000), id};
+						TransactionId tid = new TransactionId();
+						Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(data));
+						Database.getBufferPool().transactionComplete(tid);
+						tuples.add(BTreeUtility.tupleToList(BTreeUtility.getBTreeTuple(data)));
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			});
+		}
+		runAll(threads, failure);
+
+		assertTreeHolds(bf, tuples, 500 + 8 * 500);
+	}
+
+	/**
+	 * Check that the tree is well formed and holds exactly the given tuples,
+	 * of which there must be count, in order of their keys
+	 */
+	private static void assertTreeHolds(BTreeFile bf, List<List<Integer>> tuples, int count) throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<List<Integer>> found = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int prev = Integer.MIN_VALUE;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			List<Integer> l = BTreeUtility.tupleToList(t);
+			assertTrue(l.get(0) >= prev);
+			prev = l.get(0);
+			found.add(l);
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+
+		Comparator<List<Integer>> order = Comparator.<List<Integer>>comparingInt(l -> l.get(0))
+				.thenComparingInt(l -> l.get(1));
+		List<List<Integer>> expected = new ArrayList<>(tuples);
+		expected.sort(order);
+		found.sort(order);
+		assertEquals(count, found.size());
+		assertEquals(expected, found);
+	}
+
+	/**
+	 * Threads inserting and deleting at the same time race each other through
+	 * splits, steals and merges; the tree must come out well formed and hold
+	 * exactly the tuples that were not deleted
+	 */
+	@Test
+	public void concurrentInsertsAndDeletesTest() throws Exception {
+		BufferPool.setPageSize(1024);
+		List<List<Integer>> tuples = Collections.synchronizedList(new ArrayList<>());
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 500, null, tuples, 0);
+		Database.resetBufferPool(1000);
+
+		int[] live = new int[8];
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread(() -> {
+				try {
+					Random r = new Random(id);
+					// the second field tells the tuples of this thread apart from all others
+					List<int[]> mine = new ArrayList<>();
+					for (int i = 0; i < 1000; i++) {
+						TransactionId tid = new TransactionId();
+						if (i < 400 || mine.isEmpty() || r.nextInt(3) == 0) {
+							int[] data = {r.nextInt(4000), 1000000 * (id + 1) + i};
+							Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(data));
+							mine.add(data);
+						} else {
+							int[] data = mine.remove(r.nextInt(mine.size()));
+							Tuple victim = null;
+							DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(data[0])));
+							it.open();
+							while (victim == null && it.hasNext()) {
+								Tuple candidate = it.next();
+								if (((IntField) candidate.getField(1)).getValue() == data[1]) {
+									victim = candidate;
+								}
+							}
+							it.close();
+							assertNotNull(victim);
+							Database.getBufferPool().deleteTuple(tid, victim);
+						}
+						Database.getBufferPool().transactionComplete(tid);
+					}
+					for (int[] data : mine) {
+						tuples.add(BTreeUtility.tupleToList(BTreeUtility.getBTreeTuple(data)));
+					}
+					live[id] = mine.size();
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			});
+		}
+		runAll(threads, failure);
+
+		int count = 500;
+		for (int n : live) {
+			count += n;
+		}
+		assertTreeHolds(bf, tuples, count);
+	}
+}
@@ -0,0 +1,157 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of fuzzy checkpoints that are interrupted or overlapped by other
+ * work between their BEGIN_CHECKPOINT and CHECKPOINT records.
+ */
+public class CheckpointTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("checkpoint", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @After public void tearDown() {
+        Database.reset();
+    }
+
+    private void insert(Transaction t, int v) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { v, 0 }));
+    }
+
+    private void insertCommitted(int v) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, v);
+        t.commit();
+    }
+
+    /** Whether a committed scan of the table finds v */
+    private boolean contains(int v) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        boolean found = false;
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            found |= ((IntField) it.next().getField(0)).getValue() == v;
+        }
+        it.close();
+        t.commit();
+        return found;
+    }
+
+    /** Restart the database on the same files and recover from the log */
+    private void crash() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * A crash after BEGIN_CHECKPOINT but before the CHECKPOINT record
+     * recovers from the previous complete checkpoint
+     */
+    @Test public void crashBetweenCheckpointRecords() throws Exception {
+        insertCommitted(1);
+        Database.getLogFile().logCheckpoint();
+        insertCommitted(2);
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(loser, 3);
+        Database.getBufferPool().flushAllPages();
+
+        LogFile log = Database.getLogFile();
+        log.checkpointHook = () -> {
+            try {
+                log.force();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            throw new IllegalStateException("crash");
+        };
+        try {
+            log.logCheckpoint();
+            fail("the checkpoint should have crashed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        crash();
+        assertTrue(contains(1));
+        assertTrue(contains(2));
+        assertFalse(contains(3));
+
+        // the unfinished checkpoint does not confuse later ones
+        Database.getLogFile().logCheckpoint();
+        insertCommitted(4);
+        crash();
+        assertTrue(contains(1));
+        assertTrue(contains(2));
+        assertFalse(contains(3));
+        assertTrue(contains(4));
+    }
+
+    /**
+     * A transaction commits while a checkpoint is stalled after its
+     * BEGIN_CHECKPOINT record, and both survive a crash
+     */
+    @Test(timeout = 60000) public void commitDuringCheckpoint() throws Exception {
+        insertCommitted(1);
+
+        CountDownLatch begun = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        Database.getLogFile().checkpointHook = () -> {
+            begun.countDown();
+            try {
+                resume.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread checkpointer = new Thread(() -> {
+            try {
+                Database.getLogFile().logCheckpoint();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        checkpointer.start();
+        assertTrue(begun.await(10, TimeUnit.SECONDS));
+
+        insertCommitted(2);
+        assertTrue(checkpointer.isAlive());
+
+        resume.countDown();
+        checkpointer.join();
+        assertNull(failure.get());
+
+        crash();
+        assertTrue(contains(1));
+        assertTrue(contains(2));
+    }
+}
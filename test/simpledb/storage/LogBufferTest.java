@@ -0,0 +1,261 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LogBufferTest {
+
+    private static final long SEGMENT_SIZE = 256;
+
+    private File dir;
+    private File base;
+    private LogSegments segments;
+    private LogBuffer buffer;
+
+    @Before public void setUp() throws IOException {
+        dir = Files.createTempDirectory("logbuffer").toFile();
+        base = new File(dir, "log");
+        segments = new LogSegments(base, SEGMENT_SIZE);
+    }
+
+    @After public void tearDown() throws IOException {
+        if (buffer != null) {
+            buffer.close();
+        }
+        segments.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /** A record of len bytes, all of them (byte) seed */
+    private static byte[] record(int len, int seed) {
+        byte[] rec = new byte[len];
+        Arrays.fill(rec, (byte) seed);
+        return rec;
+    }
+
+    private long append(byte[] rec) throws IOException {
+        long lsn = buffer.reserve(rec.length);
+        buffer.copyIn(lsn, rec);
+        return lsn;
+    }
+
+    /** What a fresh reader of the segment files finds, as the log after a crash would */
+    private byte[] onDisk(long from, int len) throws IOException {
+        LogSegments reader = new LogSegments(base, SEGMENT_SIZE);
+        try {
+            byte[] b = new byte[len];
+            reader.seek(from);
+            reader.readFully(b);
+            return b;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Records wrap around the end of the ring, some of them split across
+     * it, and come out of the segments intact
+     */
+    @Test public void wraparoundTest() throws IOException {
+        buffer = new LogBuffer(segments, 64);
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] rec = record(5 + i % 11, i);
+            assertEquals(buffer.tail(), append(rec));
+            records.add(rec);
+        }
+        long end = buffer.tail();
+        buffer.flush(end);
+        assertEquals(end, segments.length());
+
+        segments.seek(0);
+        for (byte[] rec : records) {
+            byte[] b = new byte[rec.length];
+            segments.readFully(b);
+            assertArrayEquals(rec, b);
+        }
+    }
+
+    /**
+     * A record larger than the space left in the ring waits for the writer
+     * to free some, and one larger than the whole ring is refused
+     */
+    @Test public void largeRecordTest() throws IOException {
+        buffer = new LogBuffer(segments, 64);
+        byte[] a = record(40, 1);
+        byte[] b = record(40, 2);
+        byte[] c = record(64, 3);
+        long lsnA = append(a);
+        long lsnB = append(b);
+        long lsnC = append(c);
+        assertEquals(0, lsnA);
+        assertEquals(40, lsnB);
+        assertEquals(80, lsnC);
+        buffer.flush(buffer.tail());
+        byte[] expected = new byte[144];
+        System.arraycopy(a, 0, expected, 0, 40);
+        System.arraycopy(b, 0, expected, 40, 40);
+        System.arraycopy(c, 0, expected, 80, 64);
+        assertArrayEquals(expected, onDisk(0, 144));
+
+        try {
+            buffer.reserve(65);
+            fail("reserved more than the ring holds");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(144, buffer.tail());
+    }
+
+    /**
+     * Threads appending at the same time each get a range of their own,
+     * and every record reaches the segments whole
+     */
+    @Test public void concurrentAppendersTest() throws Exception {
+        buffer = new LogBuffer(segments, 1024);
+        final int threads = 8;
+        final int perThread = 500;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] appenders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            appenders[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        // a length byte, the thread, then the sequence number
+                        byte[] rec = record(3 + (id + i) % 20, i);
+                        rec[0] = (byte) rec.length;
+                        rec[1] = (byte) id;
+                        long lsn = append(rec);
+                        if (i % 50 == 0) {
+                            buffer.force(lsn);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            appenders[t].start();
+        }
+        for (Thread t : appenders) {
+            t.join();
+        }
+        assertNull(failure.get());
+
+        long end = buffer.tail();
+        buffer.force(end - 1);
+        byte[] log = onDisk(0, (int) end);
+        int[] next = new int[threads];
+        int at = 0;
+        while (at < log.length) {
+            int len = log[at];
+            int id = log[at + 1];
+            for (int k = 2; k < len; k++) {
+                assertEquals((byte) next[id], log[at + k]);
+            }
+            assertEquals(3 + (id + next[id]) % 20, len);
+            next[id]++;
+            at += len;
+        }
+        for (int n : next) {
+            assertEquals(perThread, n);
+        }
+    }
+
+    /**
+     * force(lsn) returns once the record at lsn and every record before it
+     * are in the segment files, and not before: a record still being copied
+     * in ahead of lsn holds it up
+     */
+    @Test public void forceTest() throws Exception {
+        buffer = new LogBuffer(segments, 1024);
+        byte[] a = record(30, 1);
+        byte[] b = record(20, 2);
+        byte[] c = record(10, 3);
+        long lsnA = append(a);
+        buffer.force(lsnA);
+        assertArrayEquals(a, onDisk(lsnA, 30));
+
+        // b is reserved first but copied in last
+        long lsnB = buffer.reserve(b.length);
+        long lsnC = append(c);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread forcer = new Thread(() -> {
+            try {
+                buffer.force(lsnC);
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        forcer.start();
+        forcer.join(200);
+        assertTrue(forcer.isAlive());
+
+        buffer.copyIn(lsnB, b);
+        forcer.join();
+        assertNull(failure.get());
+        byte[] expected = new byte[60];
+        System.arraycopy(a, 0, expected, 0, 30);
+        System.arraycopy(b, 0, expected, 30, 20);
+        System.arraycopy(c, 0, expected, 50, 10);
+        assertArrayEquals(expected, onDisk(0, 60));
+    }
+
+    /**
+     * While a force waits for a record that is reserved but not copied in
+     * yet, the writer has nothing new to sync and waits as well
+     */
+    @Test public void forceOfUnfilledRecordTest() throws Exception {
+        AtomicInteger syncs = new AtomicInteger();
+        segments.close();
+        segments = new LogSegments(base, SEGMENT_SIZE) {
+            @Override void force() throws IOException {
+                syncs.incrementAndGet();
+                super.force();
+            }
+        };
+        buffer = new LogBuffer(segments, 1024);
+        long lsnA = append(record(30, 1));
+        buffer.force(lsnA);
+        int before = syncs.get();
+
+        byte[] b = record(20, 2);
+        long lsnB = buffer.reserve(b.length);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread forcer = new Thread(() -> {
+            try {
+                buffer.force(lsnB);
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        forcer.start();
+        forcer.join(200);
+        assertTrue(forcer.isAlive());
+        assertEquals(before, syncs.get());
+
+        buffer.copyIn(lsnB, b);
+        forcer.join();
+        assertNull(failure.get());
+        assertEquals(before + 1, syncs.get());
+        assertArrayEquals(b, onDisk(lsnB, 20));
+    }
+}
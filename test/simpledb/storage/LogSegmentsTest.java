@@ -0,0 +1,169 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LogSegmentsTest {
+
+    private static final long SEGMENT_SIZE = 64;
+
+    private File dir;
+    private File base;
+    private LogSegments segments;
+
+    @Before public void setUp() throws IOException {
+        dir = Files.createTempDirectory("segments").toFile();
+        base = new File(dir, "log");
+        segments = new LogSegments(base, SEGMENT_SIZE);
+    }
+
+    @After public void tearDown() throws IOException {
+        segments.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /** Append n bytes, b[i] = i, in pieces of 7 so that some straddle segments */
+    private byte[] appendBytes(int n) throws IOException {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) i;
+        }
+        for (int off = 0; off < n; off += 7) {
+            segments.append(b, off, Math.min(7, n - off));
+        }
+        return b;
+    }
+
+    private byte[] readAll(LogSegments from, long start, int len) throws IOException {
+        byte[] b = new byte[len];
+        from.seek(start);
+        from.readFully(b);
+        return b;
+    }
+
+    private long[] segmentStarts() {
+        List<Long> starts = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith("log."));
+        for (File f : files) {
+            starts.add(Long.parseLong(f.getName().substring("log.".length())));
+        }
+        return starts.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    /**
+     * Appends roll over into a new segment file every SEGMENT_SIZE bytes,
+     * and reads find their bytes across the boundaries, also after the log
+     * is opened again
+     */
+    @Test public void rolloverTest() throws IOException {
+        byte[] b = appendBytes(200);
+        assertEquals(200, segments.length());
+        assertEquals(0, segments.start());
+        assertArrayEquals(new long[] {0, 64, 128, 192}, segmentStarts());
+        assertEquals(SEGMENT_SIZE, segments.segmentFile(0).length());
+        assertEquals(8, segments.segmentFile(192).length());
+
+        assertArrayEquals(b, readAll(segments, 0, 200));
+        // an int and a long that straddle the first and second boundaries
+        segments.seek(62);
+        assertEquals(0x3e3f4041, segments.readInt());
+        segments.seek(125);
+        assertEquals(0x7d7e7f8081828384L, segments.readLong());
+
+        segments.close();
+        segments = new LogSegments(base, SEGMENT_SIZE);
+        assertEquals(200, segments.length());
+        assertArrayEquals(b, readAll(segments, 0, 200));
+        segments.seek(200);
+        segments.append(b, 0, 100);
+        assertArrayEquals(Arrays.copyOf(b, 100), readAll(segments, 200, 100));
+        assertArrayEquals(new long[] {0, 64, 128, 192, 256}, segmentStarts());
+    }
+
+    /**
+     * Only segments that end before the given LSN are dropped, so the
+     * segment holding it, and everything after, stays readable
+     */
+    @Test public void dropBeforeTest() throws IOException {
+        byte[] b = appendBytes(200);
+        assertEquals(0, segments.dropBefore(63, 0, null));
+        assertEquals(2, segments.dropBefore(130, 0, null));
+        assertEquals(128, segments.start());
+        assertArrayEquals(new long[] {128, 192}, segmentStarts());
+        assertArrayEquals(Arrays.copyOfRange(b, 128, 200), readAll(segments, 128, 72));
+        try {
+            readAll(segments, 100, 4);
+            fail("read a dropped segment");
+        } catch (IOException e) {
+            // expected
+        }
+
+        segments.close();
+        segments = new LogSegments(base, SEGMENT_SIZE);
+        assertEquals(128, segments.start());
+        assertEquals(200, segments.length());
+    }
+
+    /**
+     * The newest droppable segments are kept up to the retention limit; the
+     * others are archived, while their file still exists, and deleted
+     */
+    @Test public void retentionAndArchiverTest() throws IOException {
+        byte[] b = appendBytes(320);
+        List<long[]> archived = new ArrayList<>();
+        LogFile.SegmentArchiver archiver = (segment, startLsn, endLsn) -> {
+            assertTrue(segment.exists());
+            assertEquals(segments.segmentFile(startLsn), segment);
+            byte[] content = Files.readAllBytes(segment.toPath());
+            assertArrayEquals(Arrays.copyOfRange(b, (int) startLsn, (int) endLsn), content);
+            archived.add(new long[] {startLsn, endLsn});
+        };
+
+        // 0, 64, 128 and 192 lie before 256; 128 and 192 fit in 2 * 64 bytes
+        assertEquals(2, segments.dropBefore(300, 2 * SEGMENT_SIZE, archiver));
+        assertEquals(2, archived.size());
+        assertArrayEquals(new long[] {64, 128}, archived.get(0));
+        assertArrayEquals(new long[] {0, 64}, archived.get(1));
+        assertArrayEquals(new long[] {128, 192, 256}, segmentStarts());
+        assertEquals(128, segments.start());
+
+        // a smaller limit drops retained segments at the next truncation
+        archived.clear();
+        assertEquals(1, segments.dropBefore(300, SEGMENT_SIZE, archiver));
+        assertArrayEquals(new long[] {128, 192}, archived.get(0));
+        assertArrayEquals(new long[] {192, 256}, segmentStarts());
+    }
+
+    /** Cutting the log back removes whole segments past the new end */
+    @Test public void setLengthTest() throws IOException {
+        byte[] b = appendBytes(200);
+        segments.setLength(100);
+        assertEquals(100, segments.length());
+        assertArrayEquals(new long[] {0, 64}, segmentStarts());
+        assertEquals(36, segments.segmentFile(64).length());
+
+        segments.append(b, 0, 50);
+        assertArrayEquals(Arrays.copyOf(b, 100), readAll(segments, 0, 100));
+        assertArrayEquals(Arrays.copyOf(b, 50), readAll(segments, 100, 50));
+
+        segments.clear();
+        assertEquals(0, segments.length());
+        assertEquals(0, segmentStarts().length);
+    }
+}
@@ -75,10 +75,14 @@ public class BTreeScanTest extends SimpleDbTestBase {
         @Override
         public Page readPage(PageId pid) throws NoSuchElementException {
             readCount += 1;
+            if (Thread.currentThread().getName().equals("BufferPool-prefetch")) {
+                prefetchCount += 1;
+            }
             return super.readPage(pid);
         }
 
         public int readCount = 0;
+        public volatile int prefetchCount = 0;
     }
     
     /** Scan 1-4 columns. */
@@ -284,6 +288,187 @@ public class BTreeScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    private static List<List<Integer>> readAll(BTreeScan scan) throws DbException, TransactionAbortedException {
+        List<List<Integer>> result = new ArrayList<>();
+        scan.open();
+        while (scan.hasNext()) {
+            result.add(SystemTestUtil.tupleToList(scan.next()));
+        }
+        scan.close();
+        return result;
+    }
+
+    private static List<List<Integer>> inRange(List<List<Integer>> sorted, int keyField, IndexPredicate lower,
+            IndexPredicate upper) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> tup : sorted) {
+            IntField key = new IntField(tup.get(keyField));
+            if ((lower == null || key.compare(lower.getOp(), lower.getField()))
+                    && (upper == null || key.compare(upper.getOp(), upper.getField()))) {
+                result.add(tup);
+            }
+        }
+        return result;
+    }
+
+    /** Test that a descending BTreeScan returns the tuples of an ascending one in reverse. */
+    @Test public void testDescending() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = r.nextInt(2);
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, keyField);
+        TransactionId tid = new TransactionId();
+
+        List<IndexPredicate> preds = new ArrayList<>();
+        preds.add(null);
+        for (Op op : new Op[]{Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN,
+                Op.GREATER_THAN_OR_EQ, Op.NOT_EQUALS}) {
+            preds.add(new IndexPredicate(op, new IntField(tuples.get(r.nextInt(tuples.size())).get(keyField))));
+        }
+        for (IndexPredicate ipred : preds) {
+            List<List<Integer>> expected = readAll(new BTreeScan(tid, f.getId(), "table", ipred));
+            Collections.reverse(expected);
+            BTreeScan scan = new BTreeScan(tid, f.getId(), "table", ipred, true);
+            assertEquals(expected, readAll(scan));
+            // and again after a rewind
+            scan.open();
+            scan.rewind();
+            for (List<Integer> tup : expected) {
+                assertEquals(tup, SystemTestUtil.tupleToList(scan.next()));
+            }
+            assertFalse(scan.hasNext());
+            scan.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test BTreeScan over two-sided ranges, in both directions. */
+    @Test public void testRange() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = r.nextInt(2);
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, keyField);
+        TransactionId tid = new TransactionId();
+        List<List<Integer>> sorted = readAll(new BTreeScan(tid, f.getId(), "table", null));
+
+        for (int i = 0; i < 20; i++) {
+            int a = sorted.get(r.nextInt(sorted.size())).get(keyField);
+            int b = sorted.get(r.nextInt(sorted.size())).get(keyField);
+            IndexPredicate lower = new IndexPredicate(r.nextBoolean() ? Op.GREATER_THAN : Op.GREATER_THAN_OR_EQ,
+                    new IntField(Math.min(a, b)));
+            IndexPredicate upper = new IndexPredicate(r.nextBoolean() ? Op.LESS_THAN : Op.LESS_THAN_OR_EQ,
+                    new IntField(Math.max(a, b)));
+            List<List<Integer>> expected = inRange(sorted, keyField, lower, upper);
+            assertEquals(expected, readAll(new BTreeScan(tid, f.getId(), "table", lower, upper, false)));
+            Collections.reverse(expected);
+            assertEquals(expected, readAll(new BTreeScan(tid, f.getId(), "table", lower, upper, true)));
+        }
+
+        // one-sided and empty ranges
+        IndexPredicate upper = new IndexPredicate(Op.LESS_THAN, new IntField(sorted.get(0).get(keyField)));
+        assertTrue(readAll(new BTreeScan(tid, f.getId(), "table", null, upper, true)).isEmpty());
+        IndexPredicate lower = new IndexPredicate(Op.GREATER_THAN, new IntField(sorted.get(100).get(keyField)));
+        List<List<Integer>> expected = inRange(sorted, keyField, lower, null);
+        assertEquals(expected, readAll(new BTreeScan(tid, f.getId(), "table", lower, null, false)));
+        Collections.reverse(expected);
+        assertEquals(expected, readAll(new BTreeScan(tid, f.getId(), "table", lower, null, true)));
+
+        try {
+            new BTreeScan(tid, f.getId(), "table", upper, lower, false);
+            fail("expected IllegalArgumentException for swapped bounds");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that range and descending scans only read the leaf pages they return tuples from */
+    @Test public void testReadPageRange() throws Exception {
+        final int LEAF_PAGES = 30;
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = 0;
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, keyField);
+        tuples.sort(new TupleComparator(keyField));
+        TupleDesc td = Utility.getTupleDesc(2);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), keyField, td);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+
+        // the first ten tuples of a descending scan come from the last leaf
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        BTreeScan scan = new BTreeScan(tid, table.getId(), "table", null, true);
+        scan.open();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(tuples.get(tuples.size() - 1 - i), SystemTestUtil.tupleToList(scan.next()));
+        }
+        scan.close();
+        // root pointer page + root + last leaf page
+        assertEquals(3, table.readCount);
+
+        // a range spanning a few leaves in the middle of the file
+        int lo = r.nextInt(LEAF_PAGES*502/2);
+        IndexPredicate lower = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(lo));
+        IndexPredicate upper = new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(lo + 3*502));
+        List<List<Integer>> expected = inRange(tuples, keyField, lower, upper);
+        for (boolean descending : new boolean[]{false, true}) {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            table.readCount = 0;
+            List<List<Integer>> actual = readAll(new BTreeScan(tid, table.getId(), "table", lower, upper, descending));
+            assertEquals(expected.size(), actual.size());
+            // root pointer page + root + the leaf pages of the range, plus at most one
+            // leaf past its end
+            assertTrue(table.readCount <= 2 + expected.size()/502 + 2);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that a scan with read-ahead on reads the leaves ahead of it, each one once */
+    @Test public void testPrefetch() throws Exception {
+        final int LEAF_PAGES = 30;
+        final int PREFETCH = 8;
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = 0;
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, keyField);
+        tuples.sort(new TupleComparator(keyField));
+        TupleDesc td = Utility.getTupleDesc(2);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), keyField, td);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        table.setPrefetchPages(PREFETCH);
+        TransactionId tid = new TransactionId();
+
+        for (boolean descending : new boolean[]{false, true}) {
+            Database.resetBufferPool(2 * LEAF_PAGES);
+            table.readCount = 0;
+            table.prefetchCount = 0;
+            BTreeScan scan = new BTreeScan(tid, table.getId(), "table", null, descending);
+            scan.open();
+            // step onto the second leaf, then give the read-ahead time to catch up
+            for (int i = 0; i < 503; i++) {
+                scan.next();
+            }
+            for (int i = 0; i < 500 && table.prefetchCount < PREFETCH; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(PREFETCH, table.prefetchCount);
+
+            List<List<Integer>> expected = new ArrayList<>(tuples);
+            if (descending) {
+                Collections.reverse(expected);
+            }
+            int n = 503;
+            while (scan.hasNext()) {
+                assertEquals(expected.get(n++).get(keyField), SystemTestUtil.tupleToList(scan.next()).get(keyField));
+            }
+            scan.close();
+            assertEquals(tuples.size(), n);
+            Database.getBufferPool().stopPrefetch();
+            // root pointer page + root + every leaf page, none of them twice
+            assertEquals(2 + LEAF_PAGES, table.readCount);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);
@@ -9,8 +9,12 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
 import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
 import simpledb.execution.Insert;
+import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
@@ -118,6 +122,18 @@ public class LogTest extends SimpleDbTestBase {
         Database.getLogFile().recover();
     }
 
+    // remove the log of the running Database, so that the next one
+    // starts a new log with the segment size currently set
+    void removeLog() {
+        File[] files = new File(".").getAbsoluteFile().listFiles(
+                (dir, name) -> name.equals("log") || name.startsWith("log."));
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
     // create an initial database with two empty tables
     // does *not* initiate log file recovery
     void setup()
@@ -436,6 +452,357 @@ public class LogTest extends SimpleDbTestBase {
     }
 
 
+    @Test public void TestCrashDuringUndo()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts, its page is stolen, and it is rolled back
+        // crash after the CLR is logged but before the ABORT record
+        // T2 inserts into the slot T1 freed, and commits
+        // crash
+        // recovery must not undo T1's insert a second time
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        Database.getLogFile().rollback(t1.getId());
+        Database.getBufferPool().transactionComplete(t1.getId(), false);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4);
+        t2.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestRepeatedRecovery()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts twice, its page stolen each time, but does not commit
+        // T2 inserts and commits
+        // crash, and crash again right after recovery
+        // T3 inserts into the slots T1 used, and commits
+        // crash
+        // the CLRs of the first recovery must be redone, never undone
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 5);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        insertRow(hf1, t1, 6);
+        Database.getBufferPool().flushAllPages();
+
+        doInsert(hf2, 7, -1);
+
+        crash();
+        crash();
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf1, t3, 8);
+        insertRow(hf1, t3, 9);
+        t3.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 5, false);
+        look(hf1, t, 6, false);
+        look(hf1, t, 8, true);
+        look(hf1, t, 9, true);
+        look(hf2, t, 7, true);
+        t.commit();
+    }
+
+    @Test public void TestRedoFromOldestRecLsn()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // T1 commits, its page stays dirty in the buffer pool
+        // checkpoint, without writing the page
+        // T2 commits
+        // crash
+        // redo must start at the recovery LSN of T1's page, before the
+        // checkpoint, or T1's second row is lost
+
+        doInsert(hf1, 1, 2);
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        Long recLsn = Database.getBufferPool().getDirtyPageTable().get(pid);
+        assertNotNull(recLsn);
+
+        Database.getBufferPool().stopTrickleFlush();
+        Database.getLogFile().logCheckpoint();
+        assertEquals(recLsn, Database.getBufferPool().getDirtyPageTable().get(pid));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 3);
+        t2.commit();
+        assertEquals(recLsn, Database.getBufferPool().getDirtyPageTable().get(pid));
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf2, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestRecoveryAcrossSegments()
+            throws IOException, DbException, TransactionAbortedException {
+        LogFile.setSegmentSize(1024);
+        try {
+            removeLog();
+            setup();
+            List<Long> archived = new ArrayList<>();
+            Database.getLogFile().setSegmentArchiver((segment, start, end) -> archived.add(start));
+
+            // *** Test:
+            // committed transactions fill a few segments
+            // T1 inserts, its page is stolen
+            // more committed transactions fill more segments
+            // checkpoint, which drops the segments before T1's first record
+            // crash
+            // recovery must read T1's records back across segments
+
+            for (int i = 10; i < 30; i++) {
+                doInsert(hf2, i, -1);
+            }
+            Transaction t1 = new Transaction();
+            t1.start();
+            insertRow(hf1, t1, 3);
+            Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+            for (int i = 30; i < 60; i++) {
+                doInsert(hf2, i, -1);
+            }
+            int segments = new File(".").getAbsoluteFile().listFiles(
+                    (dir, name) -> name.startsWith("log.")).length;
+            assertTrue(segments >= 4);
+
+            Database.getLogFile().logCheckpoint();
+            assertFalse(archived.isEmpty());
+            for (long start : archived) {
+                assertFalse(new File("log." + String.format("%020d", start)).exists());
+            }
+            doInsert(hf2, 60, -1);
+
+            crash();
+
+            Transaction t = new Transaction();
+            t.start();
+            look(hf1, t, 3, false);
+            for (int i = 10; i <= 60; i++) {
+                look(hf2, t, i, true);
+            }
+            t.commit();
+        } finally {
+            LogFile.resetSegmentSize();
+            Database.reset();
+            removeLog();
+        }
+    }
+
+    // delete the tuple with the given first field
+    void deleteRow(HeapFile hf, Transaction t, int v1)
+        throws DbException, TransactionAbortedException, IOException {
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        Tuple found = null;
+        scan.open();
+        while (found == null && scan.hasNext()) {
+            Tuple tu = scan.next();
+            if (((IntField) tu.getField(0)).getValue() == v1)
+                found = tu;
+        }
+        scan.close();
+        assertNotNull(found);
+        Database.getBufferPool().deleteTuple(t.getId(), found);
+    }
+
+    // the bytes in the segments of the log of the running Database
+    long logBytes() {
+        File[] files = new File(".").getAbsoluteFile().listFiles(
+                (dir, name) -> name.startsWith("log.") && name.substring(4).matches("[0-9]+"));
+        long bytes = 0;
+        if (files != null) {
+            for (File f : files) {
+                bytes += f.length();
+            }
+        }
+        return bytes;
+    }
+
+    @Test public void TestUpdateLogsDelta()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().flushAllPages();
+
+        // *** Test:
+        // committing a one-tuple insert logs the bytes it changed, not
+        // the before and after images of the whole page
+        long before = logBytes();
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 3);
+        t.commit();
+        long growth = logBytes() - before;
+        assertTrue("log grew by " + growth, growth > 0);
+        assertTrue("log grew by " + growth, growth * 8 < 2 * BufferPool.getPageSize());
+
+        crash();
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestMultiRangeDeltaCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 400; i++)
+            insertRow(hf1, t, 1000 + i);
+        t.commit();
+        // leave holes in the first and the 301st slot of the page
+        t = new Transaction();
+        t.start();
+        deleteRow(hf1, t, 1000);
+        deleteRow(hf1, t, 1300);
+        t.commit();
+        Database.getBufferPool().flushAllPages();
+
+        // *** Test:
+        // filling both holes changes two header bytes and two slots far
+        // apart, so the update record holds several ranges; redo must
+        // install all of them
+        t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 7001);
+        insertRow(hf1, t, 7002);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 7001, true);
+        look(hf1, t, 7002, true);
+        look(hf1, t, 1000, false);
+        look(hf1, t, 1300, false);
+        look(hf1, t, 1001, true);
+        t.commit();
+
+        // *** Test:
+        // undo must restore all the ranges of an uncommitted change that
+        // was stolen to disk
+        t = new Transaction();
+        t.start();
+        deleteRow(hf1, t, 1001);
+        deleteRow(hf1, t, 1350);
+        deleteRow(hf1, t, 7002);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        for (int v : new int[] { 1001, 1350, 7001, 7002, 1399 })
+            look(hf1, t, v, true);
+        look(hf1, t, 1000, false);
+        t.commit();
+    }
+
+    // the number of entries of an index with the given key
+    int indexCount(SecondaryIndex index, Transaction t, int v1)
+        throws DbException, TransactionAbortedException {
+        SecondaryIndexScan scan = new SecondaryIndexScan(t.getId(), index, "",
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(v1)));
+        int count = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        return count;
+    }
+
+    @Test public void TestIndexCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        // *** Test:
+        // an index kept in the schema file is registered again before
+        // recovery, which redoes and undoes the changes to its pages
+        File dir = File.createTempFile("schema", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File schema = new File(dir, "schema.txt");
+        try (FileWriter w = new FileWriter(schema)) {
+            w.write("ix (a int, b int)\n");
+        }
+        for (String name : new String[] { "ix.dat", "ixa.idx" })
+            new File(dir, name).deleteOnExit();
+        schema.deleteOnExit();
+
+        Database.reset();
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        hf1 = (HeapFile) Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("ix"));
+        doInsert(hf1, 1, 2);
+        Transaction t = new Transaction();
+        t.start();
+        SecondaryIndex.create(t.getId(), "ixa", hf1.getId(), 0, new File(dir, "ixa.idx"));
+        t.commit();
+
+        // committed, with the index page only in the log
+        t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 3);
+        t.commit();
+        // uncommitted, with the index page stolen to disk
+        t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 4);
+        Database.getBufferPool().flushAllPages();
+
+        Database.reset();
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        hf1 = (HeapFile) Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("ix"));
+        List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(hf1.getId());
+        assertEquals(1, indexes.size());
+        Database.getLogFile().recover();
+
+        t = new Transaction();
+        t.start();
+        for (int v = 1; v <= 4; v++) {
+            look(hf1, t, v, v <= 3);
+            assertEquals(v <= 3 ? 1 : 0, indexCount(indexes.get(0), t, v));
+        }
+        t.commit();
+        Database.reset();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);